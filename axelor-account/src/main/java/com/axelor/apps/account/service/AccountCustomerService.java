@@ -20,11 +20,13 @@ package com.axelor.apps.account.service;
 import com.axelor.apps.account.db.Account;
 import com.axelor.apps.account.db.AccountConfig;
 import com.axelor.apps.account.db.AccountingSituation;
+import com.axelor.apps.account.db.Move;
 import com.axelor.apps.account.db.MoveLine;
 import com.axelor.apps.account.db.repo.AccountingSituationRepository;
 import com.axelor.apps.account.db.repo.MoveLineRepository;
 import com.axelor.apps.account.db.repo.MoveRepository;
 import com.axelor.apps.account.exception.IExceptionMessage;
+import com.axelor.apps.account.service.config.AccountConfigService;
 import com.axelor.apps.base.db.Company;
 import com.axelor.apps.base.db.Partner;
 import com.axelor.apps.base.service.app.AppBaseService;
@@ -311,6 +313,98 @@ public class AccountCustomerService {
     }
   }
 
+  /**
+   * Whether the partner balances of the company are maintained incrementally from the validated
+   * moves and the reconciliations instead of being recomputed from all the partner move lines.
+   *
+   * @param company
+   * @return
+   * @throws AxelorException
+   */
+  public boolean isPartnerBalanceIncremental(Company company) throws AxelorException {
+    return Beans.get(AccountConfigService.class)
+        .getAccountConfig(company)
+        .getUpdatePartnerBalanceIncrementallyOk();
+  }
+
+  /**
+   * Compute the amount a move line brings to the balance of its partner, for the given amount
+   * remaining, following the rules of {@link #getBalance(Partner, Company)}.
+   *
+   * @param moveLine
+   * @param amountRemaining
+   * @return
+   */
+  public BigDecimal getBalanceContribution(MoveLine moveLine, BigDecimal amountRemaining) {
+    Move move = moveLine.getMove();
+
+    if (moveLine.getPartner() == null
+        || moveLine.getAccount() == null
+        || !moveLine.getAccount().getUseForPartnerBalance()
+        || move.getIgnoreInAccountingOk()
+        || (move.getStatusSelect() != MoveRepository.STATUS_VALIDATED
+            && move.getStatusSelect() != MoveRepository.STATUS_DAYBOOK)
+        || amountRemaining == null
+        || amountRemaining.signum() <= 0) {
+      return BigDecimal.ZERO;
+    }
+
+    if (moveLine.getDebit().signum() > 0) {
+      return amountRemaining;
+    }
+    if (moveLine.getCredit().signum() > 0) {
+      return amountRemaining.negate();
+    }
+    return BigDecimal.ZERO;
+  }
+
+  /**
+   * Add the variation of the amount remaining of a move line to the balance of its partner.
+   *
+   * @param moveLine
+   * @param previousAmountRemaining the amount remaining of the move line before its update
+   * @throws AxelorException
+   */
+  public void updateBalance(MoveLine moveLine, BigDecimal previousAmountRemaining)
+      throws AxelorException {
+    BigDecimal delta =
+        this.getBalanceContribution(moveLine, moveLine.getAmountRemaining())
+            .subtract(this.getBalanceContribution(moveLine, previousAmountRemaining));
+
+    if (delta.signum() != 0) {
+      this.addToBalance(moveLine.getPartner(), moveLine.getMove().getCompany(), delta);
+    }
+  }
+
+  /**
+   * Add an amount to the balance of a partner. The balance due depends on the current date, so it
+   * is not updated here: the accounting situation is flagged to be updated by the batch.
+   *
+   * @param partner
+   * @param company
+   * @param amount
+   * @throws AxelorException
+   */
+  @Transactional(rollbackOn = {Exception.class})
+  public void addToBalance(Partner partner, Company company, BigDecimal amount)
+      throws AxelorException {
+    AccountingSituation accountingSituation =
+        accountingSituationService.getAccountingSituation(partner, company);
+
+    if (accountingSituation == null) {
+      accountingSituation = accountingSituationService.createAccountingSituation(partner, company);
+      if (accountingSituation != null) {
+        this.updateAccountingSituationCustomerAccount(accountingSituation, true, true, false);
+      }
+      return;
+    }
+
+    BigDecimal balance = accountingSituation.getBalanceCustAccount();
+    accountingSituation.setBalanceCustAccount(balance == null ? amount : balance.add(amount));
+    accountingSituation.setCustAccountMustBeUpdateOk(true);
+    accSituationRepo.save(accountingSituation);
+  }
+
   @Transactional(rollbackOn = {Exception.class})
   public AccountingSituation updateAccountingSituationCustomerAccount(
       AccountingSituation accountingSituation,
@@ -345,6 +439,116 @@ public class AccountCustomerService {
     return accountingSituation;
   }
 
+  /**
+   * Update the balances of every accounting situation of the company at once: each balance is
+   * computed for all partners with a single grouped query, and the accounting situations are
+   * updated from its result in the same statement.
+   *
+   * @param company the company whose accounting situations are updated.
+   * @return the number of accounting situations updated.
+   */
+  @Transactional
+  public int updateCompanyAccountingSituationsCustomerAccount(
+      Company company,
+      boolean updateCustAccount,
+      boolean updateDueCustAccount,
+      boolean updateDueDebtRecoveryCustAccount) {
+    log.debug(
+        "Bulk update customer accounts (Company : {}, Update balance : {}, balance due : {}, balance due debt recovery : {})",
+        company.getName(),
+        updateCustAccount,
+        updateDueCustAccount,
+        updateDueDebtRecoveryCustAccount);
+
+    Date todayDate =
+        Date.from(
+            appBaseService.getTodayDate(company).atStartOfDay().atZone(ZoneOffset.UTC).toInstant());
+
+    if (updateCustAccount) {
+      createBalanceUpdateQuery(
+              "balance_cust_account", getPartnerBalanceQuery("TRUE", "", ""), company)
+          .executeUpdate();
+    }
+    if (updateDueCustAccount) {
+      createBalanceUpdateQuery(
+              "balance_due_cust_account",
+              getPartnerBalanceQuery(
+                  "((ml.due_date IS NULL AND ml.date_val <= :todayDate) "
+                      + "OR (ml.due_date IS NOT NULL AND ml.due_date <= :todayDate))",
+                  "",
+                  "AND move.ignore_in_debt_recovery_ok IN ('false', null) "),
+              company)
+          .setParameter("todayDate", todayDate, TemporalType.DATE)
+          .executeUpdate();
+    }
+    if (updateDueDebtRecoveryCustAccount) {
+      AccountConfig accountConfig = company.getAccountConfig();
+      int mailTransitTime = accountConfig != null ? accountConfig.getMailTransitTime() : 0;
+
+      createBalanceUpdateQuery(
+              "balance_due_debt_recovery_cust_account",
+              getPartnerBalanceQuery(
+                  "((ml.date_val = ml.due_date AND (ml.due_date + :mailTransitTime) < :todayDate) "
+                      + "OR (ml.due_date IS NOT NULL AND ml.date_val != ml.due_date AND ml.due_date < :todayDate) "
+                      + "OR (ml.due_date IS NULL AND ml.date_val < :todayDate))",
+                  "LEFT OUTER JOIN public.account_invoice AS invoice ON (move.invoice = invoice.id) ",
+                  "AND move.ignore_in_debt_recovery_ok IN ('false', null) "
+                      + "AND (invoice.id IS NULL OR invoice.debt_recovery_blocking_ok = FALSE) "),
+              company)
+          .setParameter("mailTransitTime", mailTransitTime)
+          .setParameter("todayDate", todayDate, TemporalType.DATE)
+          .executeUpdate();
+    }
+
+    return JPA.em()
+        .createNativeQuery(
+            "UPDATE public.account_accounting_situation "
+                + "SET cust_account_must_be_update_ok = FALSE, version = version + 1 "
+                + "WHERE company = :company")
+        .setParameter("company", company.getId())
+        .executeUpdate();
+  }
+
+  /**
+   * Grouped version of the balance queries: returns the balance of every partner of the company,
+   * the debit lines being taken into account only if they match the given condition.
+   */
+  protected String getPartnerBalanceQuery(String debitCondition, String join, String condition) {
+    return "SELECT ml.partner AS partner, "
+        + "SUM(CASE WHEN ml.debit > 0 AND "
+        + debitCondition
+        + " THEN ml.amount_remaining ELSE 0 END "
+        + "- CASE WHEN ml.credit > 0 THEN ml.amount_remaining ELSE 0 END) AS amount "
+        + "FROM public.account_move_line AS ml "
+        + "JOIN public.account_account AS account ON (ml.account = account.id) "
+        + "JOIN public.account_move AS move ON (ml.move = move.id) "
+        + join
+        + "WHERE ml.partner IS NOT NULL AND move.company = :company "
+        + "AND move.ignore_in_accounting_ok IN ('false', null) "
+        + "AND account.use_for_partner_balance = 'true' "
+        + "AND (move.status_select = :statusValidated OR move.status_select = :statusDaybook) "
+        + "AND ml.amount_remaining > 0 "
+        + condition
+        + "GROUP BY ml.partner";
+  }
+
+  protected Query createBalanceUpdateQuery(
+      String balanceColumn, String partnerBalanceQuery, Company company) {
+    return JPA.em()
+        .createNativeQuery(
+            String.format(
+                "UPDATE public.account_accounting_situation AS situation "
+                    + "SET %s = COALESCE(balance.amount, 0), version = situation.version + 1 "
+                    + "FROM public.account_accounting_situation AS target "
+                    + "LEFT OUTER JOIN (%s) AS balance ON (balance.partner = target.partner) "
+                    + "WHERE situation.id = target.id AND target.company = :company",
+                balanceColumn,
+                partnerBalanceQuery))
+        .setParameter("company", company.getId())
+        .setParameter("statusValidated", MoveRepository.STATUS_VALIDATED)
+        .setParameter("statusDaybook", MoveRepository.STATUS_DAYBOOK);
+  }
+
   public Account getPartnerAccount(Partner partner, Company company, boolean isSupplierInvoice)
       throws AxelorException {
     return isSupplierInvoice
@@ -23,7 +23,6 @@ import com.axelor.apps.account.db.Journal;
 import com.axelor.apps.account.db.JournalType;
 import com.axelor.apps.account.db.Move;
 import com.axelor.apps.account.db.MoveLine;
-import com.axelor.apps.account.db.ReconcileGroup;
 import com.axelor.apps.account.db.repo.AccountRepository;
 import com.axelor.apps.account.db.repo.AccountingReportRepository;
 import com.axelor.apps.account.db.repo.JournalRepository;
@@ -40,6 +39,8 @@ import com.axelor.apps.base.db.repo.SequenceRepository;
 import com.axelor.apps.base.service.PartnerService;
 import com.axelor.apps.base.service.administration.SequenceService;
 import com.axelor.apps.tool.file.CsvTool;
+import com.axelor.auth.AuthUtils;
+import com.axelor.auth.db.User;
 import com.axelor.db.JPA;
 import com.axelor.exception.AxelorException;
 import com.axelor.exception.db.repo.TraceBackRepository;
@@ -47,8 +48,10 @@ import com.axelor.i18n.I18n;
 import com.axelor.inject.Beans;
 import com.axelor.meta.MetaFiles;
 import com.axelor.meta.db.MetaFile;
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.persist.Transactional;
+import com.opencsv.CSVWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -58,10 +61,19 @@ import java.math.BigDecimal;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 import javax.persistence.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -85,6 +97,11 @@ public class MoveLineExportServiceImpl implements MoveLineExportService {
   protected static final String DATE_FORMAT_YYYYMMDD = "yyyyMMdd";
   protected static final String DATE_FORMAT_YYYYMMDDHHMMSS = "yyyyMMddHHmmss";
 
+  protected static final int EXPORT_FETCH_SIZE = 1000;
+  protected static final int UPDATE_CHUNK_SIZE = 1000;
+
+  protected static final Pattern CSV_SPECIAL_CHARACTERS = Pattern.compile("(\r\n|\n\r|\r|\n|\\|)");
+
   @Inject
   public MoveLineExportServiceImpl(
       AppAccountService appAccountService,
@@ -117,24 +134,119 @@ public class MoveLineExportServiceImpl implements MoveLineExportService {
       LocalDate localDate,
       String exportNumber) {
 
-    int i = 0;
+    this.updateMoves(
+        moveList.stream().map(Move::getId).collect(Collectors.toList()),
+        accountingReport,
+        localDate,
+        exportNumber);
+
+    // The loaded moves no longer match their rows
+    moveList.forEach(JPA.em()::detach);
+  }
+
+  /**
+   * Get the journals exported by the accounting report: its journal, or else the exported journals
+   * of the journal type.
+   *
+   * @param accountingReport
+   * @param journalType
+   * @return
+   */
+  protected List<Journal> getExportedJournalList(
+      AccountingReport accountingReport, JournalType journalType) {
+
+    if (accountingReport.getJournal() != null) {
+      List<Journal> journalList = new ArrayList<>();
+      journalList.add(accountingReport.getJournal());
+      return journalList;
+    }
 
-    int moveListSize = moveList.size();
+    return journalRepo
+        .all()
+        .filter("self.journalType = ?1 AND self.notExportOk = false", journalType)
+        .fetch();
+  }
+
+  /**
+   * Load the moves to export of the journals with a single query, instead of one query for each
+   * date and journal.
+   *
+   * @param journalList
+   * @param moveQueryStr the conditions on the moves
+   * @return the moves, by date and journal id, in id order
+   */
+  protected Map<LocalDate, Map<Long, List<Move>>> getMoveMap(
+      List<Journal> journalList, String moveQueryStr) {
+
+    Map<LocalDate, Map<Long, List<Move>>> moveMap = new HashMap<>();
+
+    if (journalList.isEmpty()) {
+      return moveMap;
+    }
+
+    List<Move> moveList =
+        moveRepo
+            .all()
+            .filter(
+                "self.ignoreInAccountingOk = false AND self.journal.notExportOk = false AND self.journal IN (?1)"
+                    + moveQueryStr,
+                journalList)
+            .order("id")
+            .fetch();
 
     for (Move move : moveList) {
+      moveMap
+          .computeIfAbsent(move.getDate(), date -> new HashMap<>())
+          .computeIfAbsent(move.getJournal().getId(), journalId -> new ArrayList<>())
+          .add(move);
+    }
 
-      this.updateMove(
-          moveRepo.find(move.getId()),
-          accountingReportRepo.find(accountingReport.getId()),
-          localDate,
-          exportNumber);
+    return moveMap;
+  }
 
-      if (i % 10 == 0) {
-        JPA.clear();
-      }
-      if (i++ % 100 == 0) {
-        log.debug("Process : {} / {}", i, moveListSize);
+  /**
+   * Mark the moves as exported with one update query for each chunk of moves, instead of loading
+   * and saving them one by one. The version and the update date and user of the moves are set as a
+   * save would set them; none of the tracked fields of the moves is changed.
+   *
+   * @param moveIdList
+   * @param accountingReport
+   * @param localDate
+   * @param exportNumber
+   */
+  @Transactional
+  public void updateMoves(
+      List<Long> moveIdList,
+      AccountingReport accountingReport,
+      LocalDate localDate,
+      String exportNumber) {
+
+    int i = 0;
+    User user = AuthUtils.getUser();
+    LocalDateTime updatedOn = LocalDateTime.now();
+
+    for (List<Long> moveIdChunk : Lists.partition(moveIdList, UPDATE_CHUNK_SIZE)) {
+      Query query =
+          JPA.em()
+              .createQuery(
+                  "UPDATE Move self SET self.exportNumber = :exportNumber, "
+                      + "self.exportDate = :exportDate, self.accountingOk = TRUE, "
+                      + "self.accountingReport = :accountingReport, "
+                      + "self.version = self.version + 1, self.updatedOn = :updatedOn"
+                      + (user != null ? ", self.updatedBy = :updatedBy " : " ")
+                      + "WHERE self.id IN (:moveIdList)")
+              .setParameter("exportNumber", exportNumber)
+              .setParameter("exportDate", localDate)
+              .setParameter("accountingReport", accountingReport)
+              .setParameter("updatedOn", updatedOn)
+              .setParameter("moveIdList", moveIdChunk);
+      if (user != null) {
+        query.setParameter("updatedBy", user);
       }
+      query.executeUpdate();
+
+      i += moveIdChunk.size();
+      log.debug("Process : {} / {}", i, moveIdList.size());
     }
   }
 
@@ -351,7 +463,6 @@ public class MoveLineExportServiceImpl implements MoveLineExportService {
 
     log.debug("allDates : {}", allDates);
 
-    List<String[]> allMoveData = new ArrayList<>();
     String companyCode = "";
 
     String reference = "";
@@ -391,79 +502,65 @@ public class MoveLineExportServiceImpl implements MoveLineExportService {
 
     LocalDate interfaceDate = accountingReport.getDate();
 
-    for (LocalDate dt : allDates) {
+    String fileName =
+        "entete"
+            + appAccountService
+                .getTodayDateTime()
+                .format(DateTimeFormatter.ofPattern(DATE_FORMAT_YYYYMMDDHHMMSS))
+            + "ventes.dat";
+    String[] columnHeader = this.createHeaderForHeaderFile(accountingReport.getTypeSelect());
 
-      List<Journal> journalList =
-          journalRepo
-              .all()
-              .filter("self.journalType = ?1 AND self.notExportOk = false", journalType)
-              .fetch();
+    try (CSVWriter csvWriter = this.openCsvFile(company, fileName, columnHeader)) {
+      List<Journal> journalList = this.getExportedJournalList(accountingReport, journalType);
+      Map<LocalDate, Map<Long, List<Move>>> moveMap =
+          this.getMoveMap(journalList, moveQueryStr);
 
-      if (accountingReport.getJournal() != null) {
-        journalList = new ArrayList<>();
-        journalList.add(accountingReport.getJournal());
-      }
+      for (LocalDate dt : allDates) {
+
+        Map<Long, List<Move>> journalMoveMap = moveMap.getOrDefault(dt, Collections.emptyMap());
+
+        for (Journal journal : journalList) {
+
+          List<Move> moveList =
+              journalMoveMap.getOrDefault(journal.getId(), Collections.emptyList());
+
+          String journalCode = journal.getExportCode();
+
+          if (!moveList.isEmpty()) {
+
+            BigDecimal sumDebit =
+                this.getSumDebit(
+                    "self.account.useForPartnerBalance = true AND self.debit != 0.00 AND self.move in ?1 "
+                        + moveLineQueryStr,
+                    moveList);
+
+            if (sumDebit.compareTo(BigDecimal.ZERO) > 0) {
 
-      for (Journal journal : journalList) {
-
-        List<? extends Move> moveList =
-            moveRepo
-                .all()
-                .filter(
-                    "self.date = ?1 AND self.ignoreInAccountingOk = false AND self.journal.notExportOk = false AND self.journal = ?2"
-                        + moveQueryStr,
-                    dt,
-                    journal)
-                .fetch();
-
-        String journalCode = journal.getExportCode();
-
-        if (!moveList.isEmpty()) {
-
-          BigDecimal sumDebit =
-              this.getSumDebit(
-                  "self.account.useForPartnerBalance = true AND self.debit != 0.00 AND self.move in ?1 "
-                      + moveLineQueryStr,
-                  moveList);
-
-          if (sumDebit.compareTo(BigDecimal.ZERO) > 0) {
-
-            String exportNumber = this.getSaleExportNumber(company);
-
-            Move firstMove = moveList.get(0);
-            String periodCode =
-                firstMove.getPeriod().getFromDate().format(DateTimeFormatter.ofPattern("yyyyMM"));
-
-            this.updateMoveList(
-                (List<Move>) moveList, accountingReport, interfaceDate, exportNumber);
-
-            String items[] = new String[8];
-            items[0] = companyCode;
-            items[1] = journalCode;
-            items[2] = exportNumber;
-            items[3] = interfaceDate.format(DateTimeFormatter.ofPattern("dd/MM/yyyy"));
-            items[4] = sumDebit.toString();
-            items[5] = reference;
-            items[6] = dt.format(DateTimeFormatter.ofPattern("dd/MM/yyyy"));
-            items[7] = periodCode;
-            allMoveData.add(items);
+              String exportNumber = this.getSaleExportNumber(company);
+
+              Move firstMove = moveList.get(0);
+              String periodCode =
+                  firstMove.getPeriod().getFromDate().format(DateTimeFormatter.ofPattern("yyyyMM"));
+
+              this.updateMoveList(moveList, accountingReport, interfaceDate, exportNumber);
+
+              String items[] = new String[8];
+              items[0] = companyCode;
+              items[1] = journalCode;
+              items[2] = exportNumber;
+              items[3] = interfaceDate.format(DateTimeFormatter.ofPattern("dd/MM/yyyy"));
+              items[4] = sumDebit.toString();
+              items[5] = reference;
+              items[6] = dt.format(DateTimeFormatter.ofPattern("dd/MM/yyyy"));
+              items[7] = periodCode;
+              this.writeCsvRow(csvWriter, items);
+            }
           }
         }
       }
     }
 
-    String fileName =
-        "entete"
-            + appAccountService
-                .getTodayDateTime()
-                .format(DateTimeFormatter.ofPattern(DATE_FORMAT_YYYYMMDDHHMMSS))
-            + "ventes.dat";
-    writeMoveLineToCsvFile(
-        company,
-        fileName,
-        this.createHeaderForHeaderFile(accountingReport.getTypeSelect()),
-        allMoveData,
-        accountingReport);
+    this.attachCsvFile(company, fileName, accountingReport);
   }
 
   /**
@@ -541,7 +638,6 @@ public class MoveLineExportServiceImpl implements MoveLineExportService {
 
     log.debug("allDates : {}", allDates);
 
-    List<String[]> allMoveData = new ArrayList<>();
     String companyCode = "";
 
     String reference = "";
@@ -582,78 +678,65 @@ public class MoveLineExportServiceImpl implements MoveLineExportService {
 
     LocalDate interfaceDate = accountingReport.getDate();
 
-    for (LocalDate dt : allDates) {
+    String fileName =
+        "entete"
+            + appAccountService
+                .getTodayDateTime()
+                .format(DateTimeFormatter.ofPattern(DATE_FORMAT_YYYYMMDDHHMMSS))
+            + "avoirs.dat";
+    String[] columnHeader = this.createHeaderForHeaderFile(accountingReport.getTypeSelect());
 
-      List<Journal> journalList =
-          journalRepo
-              .all()
-              .filter("self.journalType = ?1 AND self.notExportOk = false", journalType)
-              .fetch();
+    try (CSVWriter csvWriter = this.openCsvFile(company, fileName, columnHeader)) {
+      List<Journal> journalList = this.getExportedJournalList(accountingReport, journalType);
+      Map<LocalDate, Map<Long, List<Move>>> moveMap =
+          this.getMoveMap(journalList, moveQueryStr);
 
-      if (accountingReport.getJournal() != null) {
-        journalList = new ArrayList<>();
-        journalList.add(accountingReport.getJournal());
-      }
+      for (LocalDate dt : allDates) {
 
-      for (Journal journal : journalList) {
+        Map<Long, List<Move>> journalMoveMap = moveMap.getOrDefault(dt, Collections.emptyMap());
 
-        List<Move> moveList =
-            moveRepo
-                .all()
-                .filter(
-                    "self.date = ?1 AND self.ignoreInAccountingOk = false AND self.journal.notExportOk = false AND self.journal = ?2"
-                        + moveQueryStr,
-                    dt,
-                    journal)
-                .fetch();
+        for (Journal journal : journalList) {
 
-        String journalCode = journal.getExportCode();
+          List<Move> moveList =
+              journalMoveMap.getOrDefault(journal.getId(), Collections.emptyList());
 
-        if (!moveList.isEmpty()) {
+          String journalCode = journal.getExportCode();
 
-          BigDecimal sumCredit =
-              this.getSumCredit(
-                  "self.account.useForPartnerBalance = true AND self.credit != 0.00 AND self.move in ?1 "
-                      + moveLineQueryStr,
-                  moveList);
+          if (!moveList.isEmpty()) {
 
-          if (sumCredit.compareTo(BigDecimal.ZERO) > 0) {
+            BigDecimal sumCredit =
+                this.getSumCredit(
+                    "self.account.useForPartnerBalance = true AND self.credit != 0.00 AND self.move in ?1 "
+                        + moveLineQueryStr,
+                    moveList);
 
-            String exportNumber = this.getRefundExportNumber(company);
+            if (sumCredit.compareTo(BigDecimal.ZERO) > 0) {
 
-            Move firstMove = moveList.get(0);
-            String periodCode =
-                firstMove.getPeriod().getFromDate().format(DateTimeFormatter.ofPattern("yyyyMM"));
+              String exportNumber = this.getRefundExportNumber(company);
 
-            this.updateMoveList(moveList, accountingReport, interfaceDate, exportNumber);
+              Move firstMove = moveList.get(0);
+              String periodCode =
+                  firstMove.getPeriod().getFromDate().format(DateTimeFormatter.ofPattern("yyyyMM"));
 
-            String items[] = new String[8];
-            items[0] = companyCode;
-            items[1] = journalCode;
-            items[2] = exportNumber;
-            items[3] = interfaceDate.format(DateTimeFormatter.ofPattern("dd/MM/yyyy"));
-            items[4] = sumCredit.toString();
-            items[5] = reference;
-            items[6] = dt.format(DateTimeFormatter.ofPattern("dd/MM/yyyy"));
-            items[7] = periodCode;
-            allMoveData.add(items);
+              this.updateMoveList(moveList, accountingReport, interfaceDate, exportNumber);
+
+              String items[] = new String[8];
+              items[0] = companyCode;
+              items[1] = journalCode;
+              items[2] = exportNumber;
+              items[3] = interfaceDate.format(DateTimeFormatter.ofPattern("dd/MM/yyyy"));
+              items[4] = sumCredit.toString();
+              items[5] = reference;
+              items[6] = dt.format(DateTimeFormatter.ofPattern("dd/MM/yyyy"));
+              items[7] = periodCode;
+              this.writeCsvRow(csvWriter, items);
+            }
           }
         }
       }
     }
 
-    String fileName =
-        "entete"
-            + appAccountService
-                .getTodayDateTime()
-                .format(DateTimeFormatter.ofPattern(DATE_FORMAT_YYYYMMDDHHMMSS))
-            + "avoirs.dat";
-    writeMoveLineToCsvFile(
-        company,
-        fileName,
-        this.createHeaderForHeaderFile(accountingReport.getTypeSelect()),
-        allMoveData,
-        accountingReport);
+    this.attachCsvFile(company, fileName, accountingReport);
   }
 
   /**
@@ -731,7 +814,6 @@ public class MoveLineExportServiceImpl implements MoveLineExportService {
 
     log.debug("allDates : {}", allDates);
 
-    List<String[]> allMoveData = new ArrayList<>();
     String companyCode = "";
 
     String reference = "";
@@ -771,80 +853,68 @@ public class MoveLineExportServiceImpl implements MoveLineExportService {
 
     LocalDate interfaceDate = accountingReport.getDate();
 
-    for (LocalDate dt : allDates) {
+    String fileName =
+        "entete"
+            + appAccountService
+                .getTodayDateTime()
+                .format(DateTimeFormatter.ofPattern(DATE_FORMAT_YYYYMMDDHHMMSS))
+            + "tresorerie.dat";
+    String[] columnHeader = this.createHeaderForHeaderFile(accountingReport.getTypeSelect());
 
-      List<Journal> journalList =
-          journalRepo
-              .all()
-              .filter("self.journalType = ?1 AND self.notExportOk = false", journalType)
-              .fetch();
+    try (CSVWriter csvWriter = this.openCsvFile(company, fileName, columnHeader)) {
+      List<Journal> journalList = this.getExportedJournalList(accountingReport, journalType);
+      Map<LocalDate, Map<Long, List<Move>>> moveMap =
+          this.getMoveMap(journalList, moveQueryStr);
 
-      if (accountingReport.getJournal() != null) {
-        journalList = new ArrayList<>();
-        journalList.add(accountingReport.getJournal());
-      }
+      for (LocalDate dt : allDates) {
+
+        Map<Long, List<Move>> journalMoveMap = moveMap.getOrDefault(dt, Collections.emptyMap());
+
+        for (Journal journal : journalList) {
+
+          List<Move> moveList =
+              journalMoveMap.getOrDefault(journal.getId(), Collections.emptyList());
+
+          String journalCode = journal.getExportCode();
+
+          if (!moveList.isEmpty()) {
+
+            long moveLineListSize =
+                moveLineRepo
+                    .all()
+                    .filter(
+                        "self.move in ?1 AND (self.debit > 0 OR self.credit > 0) "
+                            + moveLineQueryStr,
+                        moveList)
+                    .count();
 
-      for (Journal journal : journalList) {
-
-        List<Move> moveList =
-            moveRepo
-                .all()
-                .filter(
-                    "self.date = ?1 AND self.ignoreInAccountingOk = false AND self.journal.notExportOk = false AND self.journal = ?2"
-                        + moveQueryStr,
-                    dt,
-                    journal)
-                .fetch();
-
-        String journalCode = journal.getExportCode();
-
-        if (!moveList.isEmpty()) {
-
-          long moveLineListSize =
-              moveLineRepo
-                  .all()
-                  .filter(
-                      "self.move in ?1 AND (self.debit > 0 OR self.credit > 0) " + moveLineQueryStr,
-                      moveList)
-                  .count();
-
-          if (moveLineListSize > 0) {
-
-            String exportNumber = this.getTreasuryExportNumber(company);
-
-            Move firstMove = moveList.get(0);
-            String periodCode =
-                firstMove.getPeriod().getFromDate().format(DateTimeFormatter.ofPattern("yyyyMM"));
-
-            this.updateMoveList(moveList, accountingReport, interfaceDate, exportNumber);
-
-            String items[] = new String[8];
-            items[0] = companyCode;
-            items[1] = journalCode;
-            items[2] = exportNumber;
-            items[3] = interfaceDate.format(DateTimeFormatter.ofPattern("dd/MM/yyyy"));
-            items[4] = "0";
-            items[5] = reference;
-            items[6] = dt.format(DateTimeFormatter.ofPattern("dd/MM/yyyy"));
-            items[7] = periodCode;
-            allMoveData.add(items);
+            if (moveLineListSize > 0) {
+
+              String exportNumber = this.getTreasuryExportNumber(company);
+
+              Move firstMove = moveList.get(0);
+              String periodCode =
+                  firstMove.getPeriod().getFromDate().format(DateTimeFormatter.ofPattern("yyyyMM"));
+
+              this.updateMoveList(moveList, accountingReport, interfaceDate, exportNumber);
+
+              String items[] = new String[8];
+              items[0] = companyCode;
+              items[1] = journalCode;
+              items[2] = exportNumber;
+              items[3] = interfaceDate.format(DateTimeFormatter.ofPattern("dd/MM/yyyy"));
+              items[4] = "0";
+              items[5] = reference;
+              items[6] = dt.format(DateTimeFormatter.ofPattern("dd/MM/yyyy"));
+              items[7] = periodCode;
+              this.writeCsvRow(csvWriter, items);
+            }
           }
         }
       }
     }
 
-    String fileName =
-        "entete"
-            + appAccountService
-                .getTodayDateTime()
-                .format(DateTimeFormatter.ofPattern(DATE_FORMAT_YYYYMMDDHHMMSS))
-            + "tresorerie.dat";
-    writeMoveLineToCsvFile(
-        company,
-        fileName,
-        this.createHeaderForHeaderFile(accountingReport.getTypeSelect()),
-        allMoveData,
-        accountingReport);
+    this.attachCsvFile(company, fileName, accountingReport);
   }
 
   /**
@@ -920,7 +990,6 @@ public class MoveLineExportServiceImpl implements MoveLineExportService {
 
     log.debug("allDates : {}", allDates);
 
-    List<String[]> allMoveData = new ArrayList<>();
     String companyCode = "";
 
     String reference = "";
@@ -960,87 +1029,87 @@ public class MoveLineExportServiceImpl implements MoveLineExportService {
 
     LocalDate interfaceDate = accountingReport.getDate();
 
-    for (LocalDate dt : allDates) {
+    String fileName =
+        "entete"
+            + appAccountService
+                .getTodayDateTime()
+                .format(DateTimeFormatter.ofPattern(DATE_FORMAT_YYYYMMDDHHMMSS))
+            + "achats.dat";
+    String[] columnHeader = this.createHeaderForHeaderFile(accountingReport.getTypeSelect());
 
-      List<Journal> journalList =
-          journalRepo
-              .all()
-              .filter("self.journalType = ?1 AND self.notExportOk = false", journalType)
-              .fetch();
+    try (CSVWriter csvWriter = this.openCsvFile(company, fileName, columnHeader)) {
+      List<Journal> journalList = this.getExportedJournalList(accountingReport, journalType);
+      Map<LocalDate, Map<Long, List<Move>>> moveMap =
+          this.getMoveMap(journalList, moveQueryStr);
 
-      if (accountingReport.getJournal() != null) {
-        journalList = new ArrayList<>();
-        journalList.add(accountingReport.getJournal());
-      }
+      for (LocalDate dt : allDates) {
 
-      for (Journal journal : journalList) {
+        Map<Long, List<Move>> journalMoveMap = moveMap.getOrDefault(dt, Collections.emptyMap());
 
-        List<Move> moveList =
-            moveRepo
-                .all()
-                .filter(
-                    "self.date = ?1 AND self.ignoreInAccountingOk = false AND self.journal.notExportOk = false AND self.journal = ?2"
-                        + moveQueryStr,
-                    dt,
-                    journal)
-                .fetch();
+        for (Journal journal : journalList) {
 
-        String journalCode = journal.getExportCode();
+          List<Move> moveList =
+              journalMoveMap.getOrDefault(journal.getId(), Collections.emptyList());
 
-        int moveListSize = moveList.size();
+          String journalCode = journal.getExportCode();
 
-        if (moveListSize > 0) {
+          int moveListSize = moveList.size();
 
-          int i = 0;
+          if (moveListSize > 0) {
 
-          for (Move move : moveList) {
+            int i = 0;
 
-            List<MoveLine> moveLineList =
-                moveLineRepo
-                    .all()
-                    .filter(
-                        "self.account.useForPartnerBalance = true AND self.credit != 0.00 AND self.move in ?1"
-                            + moveLineQueryStr,
-                        moveList)
-                    .fetch();
+            for (Move move : moveList) {
 
-            if (!moveLineList.isEmpty()) {
+              List<MoveLine> moveLineList =
+                  moveLineRepo
+                      .all()
+                      .filter(
+                          "self.account.useForPartnerBalance = true AND self.credit != 0.00 AND self.move in ?1"
+                              + moveLineQueryStr,
+                          moveList)
+                      .fetch();
 
-              String exportNumber = this.getPurchaseExportNumber(company);
+              if (!moveLineList.isEmpty()) {
 
-              String periodCode =
-                  move.getPeriod().getFromDate().format(DateTimeFormatter.ofPattern("yyyyMM"));
-
-              BigDecimal totalCredit = this.getSumCredit(moveLineList);
-              String invoiceId = "";
-              String dueDate = "";
-              if (move.getInvoice() != null) {
-                invoiceId = move.getInvoice().getInvoiceId();
-                dueDate = move.getInvoice().getDueDate().toString();
-              }
+                String exportNumber = this.getPurchaseExportNumber(company);
 
-              MoveLine firstMoveLine = moveLineList.get(0);
-              String items[] = new String[11];
-              items[0] = companyCode;
-              items[1] = journalCode;
-              items[2] = exportNumber;
-              items[3] = interfaceDate.format(DateTimeFormatter.ofPattern("dd/MM/yyyy"));
-              items[4] = invoiceId;
-              items[5] = dueDate;
-              items[6] = firstMoveLine.getAccount().getCode();
-              items[7] = totalCredit.toString();
-              items[8] = reference;
-              items[9] = dt.format(DateTimeFormatter.ofPattern("dd/MM/yyyy"));
-              items[10] = periodCode;
-              allMoveData.add(items);
-
-              this.updateMove(move, accountingReport, interfaceDate, exportNumber);
-
-              if (i % 10 == 0) {
-                JPA.clear();
-              }
-              if (i++ % 100 == 0) {
-                log.debug("Process : {} / {}", i, moveListSize);
+                String periodCode =
+                    move.getPeriod().getFromDate().format(DateTimeFormatter.ofPattern("yyyyMM"));
+
+                BigDecimal totalCredit = this.getSumCredit(moveLineList);
+                String invoiceId = "";
+                String dueDate = "";
+                if (move.getInvoice() != null) {
+                  invoiceId = move.getInvoice().getInvoiceId();
+                  dueDate = move.getInvoice().getDueDate().toString();
+                }
+
+                MoveLine firstMoveLine = moveLineList.get(0);
+                String items[] = new String[11];
+                items[0] = companyCode;
+                items[1] = journalCode;
+                items[2] = exportNumber;
+                items[3] = interfaceDate.format(DateTimeFormatter.ofPattern("dd/MM/yyyy"));
+                items[4] = invoiceId;
+                items[5] = dueDate;
+                items[6] = firstMoveLine.getAccount().getCode();
+                items[7] = totalCredit.toString();
+                items[8] = reference;
+                items[9] = dt.format(DateTimeFormatter.ofPattern("dd/MM/yyyy"));
+                items[10] = periodCode;
+                this.writeCsvRow(csvWriter, items);
+
+                move.setExportNumber(exportNumber);
+                move.setExportDate(interfaceDate);
+                move.setAccountingOk(true);
+                move.setAccountingReport(accountingReport);
+
+                // Write the exported moves by batches, the moves stay loaded for the next rows
+                if (++i % UPDATE_CHUNK_SIZE == 0) {
+                  JPA.flush();
+                  log.debug("Process : {} / {}", i, moveListSize);
+                }
               }
             }
           }
@@ -1048,18 +1117,7 @@ public class MoveLineExportServiceImpl implements MoveLineExportService {
       }
     }
 
-    String fileName =
-        "entete"
-            + appAccountService
-                .getTodayDateTime()
-                .format(DateTimeFormatter.ofPattern(DATE_FORMAT_YYYYMMDDHHMMSS))
-            + "achats.dat";
-    writeMoveLineToCsvFile(
-        company,
-        fileName,
-        this.createHeaderForHeaderFile(accountingReport.getTypeSelect()),
-        allMoveData,
-        accountingReport);
+    this.attachCsvFile(company, fileName, accountingReport);
   }
 
   @Override
@@ -1067,7 +1125,6 @@ public class MoveLineExportServiceImpl implements MoveLineExportService {
   public void exportMoveLineTypeSelect1010(AccountingReport accountingReport)
       throws AxelorException, IOException {
     log.info("In Export type 1010 service:");
-    List<String[]> allMoveLineData = new ArrayList<>();
     String filterStr = accountingReportService.getMoveLineList(accountingReport);
     String queryStr =
         String.format(
@@ -1077,17 +1134,6 @@ public class MoveLineExportServiceImpl implements MoveLineExportService {
             filterStr);
     Query query = JPA.em().createQuery(queryStr);
 
-    @SuppressWarnings("unchecked")
-    List<Object[]> resultList = query.getResultList();
-
-    for (Object[] result : resultList) {
-      String[] items = new String[result.length];
-      for (int i = 0; i < result.length; ++i) {
-        items[i] = String.valueOf(result[i]);
-      }
-      allMoveLineData.add(items);
-    }
-
     LocalDate date;
 
     if (accountingReport.getDateTo() != null) {
@@ -1103,8 +1149,26 @@ public class MoveLineExportServiceImpl implements MoveLineExportService {
     String fileName =
         String.format(
             "%s %s%s.csv", I18n.get("General balance"), accountingReport.getRef(), dateStr);
-    writeMoveLineToCsvFile(
-        accountingReport.getCompany(), fileName, null, allMoveLineData, accountingReport);
+
+    try (CSVWriter csvWriter = this.openCsvFile(accountingReport.getCompany(), fileName, null);
+        ScrollableResults results =
+            query
+                .unwrap(org.hibernate.query.Query.class)
+                .setFetchSize(EXPORT_FETCH_SIZE)
+                .setReadOnly(true)
+                .scroll(ScrollMode.FORWARD_ONLY)) {
+
+      while (results.next()) {
+        Object[] result = results.get();
+        String[] items = new String[result.length];
+        for (int i = 0; i < result.length; ++i) {
+          items[i] = String.valueOf(result[i]);
+        }
+        this.writeCsvRow(csvWriter, items);
+      }
+    }
+
+    this.attachCsvFile(accountingReport.getCompany(), fileName, accountingReport);
   }
 
   /**
@@ -1119,28 +1183,27 @@ public class MoveLineExportServiceImpl implements MoveLineExportService {
       throws AxelorException, IOException {
 
     log.info("In Export type 1000 service : ");
-    List<String[]> allMoveLineData = new ArrayList<>();
     Company company = accountingReport.getCompany();
 
     LocalDate interfaceDate = accountingReport.getDate();
 
     String moveLineQueryStr =
-        String.format("(self.move.statusSelect = %s", MoveRepository.STATUS_VALIDATED);
+        String.format("(move.statusSelect = %s", MoveRepository.STATUS_VALIDATED);
     if (!administration) {
       moveLineQueryStr +=
-          String.format(" OR self.move.statusSelect = %s", MoveRepository.STATUS_DAYBOOK);
+          String.format(" OR move.statusSelect = %s", MoveRepository.STATUS_DAYBOOK);
     }
     moveLineQueryStr += ")";
 
-    moveLineQueryStr += String.format(" AND self.move.company = %s", company.getId());
+    moveLineQueryStr += String.format(" AND move.company = %s", company.getId());
     if (accountingReport.getYear() != null) {
       moveLineQueryStr +=
-          String.format(" AND self.move.period.year = %s", accountingReport.getYear().getId());
+          String.format(" AND move.period.year = %s", accountingReport.getYear().getId());
     }
 
     if (accountingReport.getPeriod() != null) {
       moveLineQueryStr +=
-          String.format(" AND self.move.period = %s", accountingReport.getPeriod().getId());
+          String.format(" AND move.period = %s", accountingReport.getPeriod().getId());
     } else {
       if (accountingReport.getDateFrom() != null) {
         moveLineQueryStr +=
@@ -1157,104 +1220,134 @@ public class MoveLineExportServiceImpl implements MoveLineExportService {
           String.format(" AND self.date <= '%s'", accountingReport.getDate().toString());
     }
 
-    moveLineQueryStr += " AND self.move.ignoreInAccountingOk = false";
+    moveLineQueryStr += " AND move.ignoreInAccountingOk = false";
 
     if (!administration) {
-      moveLineQueryStr += " AND self.move.journal.notExportOk = false";
+      moveLineQueryStr += " AND journal.notExportOk = false";
 
       if (replay) {
         moveLineQueryStr +=
             String.format(
-                " AND self.move.accountingOk = true AND self.move.accountingReport.id = %s",
+                " AND move.accountingOk = true AND move.accountingReport.id = %s",
                 accountingReport.getId());
       } else {
-        moveLineQueryStr += " AND self.move.accountingOk = false";
+        moveLineQueryStr += " AND move.accountingOk = false";
       }
     }
 
-    List<MoveLine> moveLineList =
-        moveLineRepo
-            .all()
-            .filter(moveLineQueryStr)
-            .order("move.validationDate")
-            .order("date")
-            .order("name")
-            .fetch();
+    // Only the exported values are read, and the lines are written to the file while scrolling
+    // through them, so that the memory used does not depend on the number of lines.
+    Query query =
+        JPA.em()
+            .createQuery(
+                "SELECT move.id, journal.code, journal.name, move.reference, self.date, "
+                    + "account.code, account.name, partner.id, partner.partnerSeq, partner.name, "
+                    + "self.origin, self.originDate, self.description, self.debit, self.credit, "
+                    + "reconcileGroup.code, reconcileGroup.statusSelect, "
+                    + "reconcileGroup.dateOfLettering, move.validationDate, "
+                    + "self.currencyAmount, currency.code "
+                    + "FROM MoveLine self "
+                    + "JOIN self.move move "
+                    + "JOIN move.journal journal "
+                    + "JOIN self.account account "
+                    + "LEFT JOIN self.partner partner "
+                    + "LEFT JOIN self.reconcileGroup reconcileGroup "
+                    + "LEFT JOIN move.currency currency "
+                    + "WHERE "
+                    + moveLineQueryStr
+                    + " ORDER BY move.validationDate, self.date, self.name");
 
-    if (!moveLineList.isEmpty()) {
-      List<Move> moveList = new ArrayList<>();
-      for (MoveLine moveLine : moveLineList) {
-        String[] items = new String[18];
-        Move move = moveLine.getMove();
-        if (!moveList.contains(move)) {
-          moveList.add(move);
-        }
-        Journal journal = move.getJournal();
-        items[0] = journal.getCode();
-        items[1] = journal.getName();
-        items[2] = moveLine.getMove().getReference();
-        items[3] = moveLine.getDate().format(DateTimeFormatter.ofPattern(DATE_FORMAT_YYYYMMDD));
-        items[4] = moveLine.getAccount().getCode();
-        items[5] = moveLine.getAccount().getName();
-        items[6] = "";
-        items[7] = "";
-        Partner partner = moveLine.getPartner();
-        if (partner != null) {
-          items[6] = partner.getPartnerSeq();
-          items[7] = partner.getName();
-        }
-        items[8] = moveLine.getOrigin();
-        if (moveLine.getOriginDate() != null) {
-          items[9] =
-              moveLine.getOriginDate().format(DateTimeFormatter.ofPattern(DATE_FORMAT_YYYYMMDD));
-        }
-        items[10] = moveLine.getDescription();
-        items[11] = moveLine.getDebit().toString().replace('.', ',');
-        items[12] = moveLine.getCredit().toString().replace('.', ',');
-
-        ReconcileGroup reconcileGroup = moveLine.getReconcileGroup();
-        if (reconcileGroup != null
-            && reconcileGroup.getStatusSelect() == ReconcileGroupRepository.STATUS_FINAL) {
-          items[13] = reconcileGroup.getCode();
-          items[14] =
-              reconcileGroup
-                  .getDateOfLettering()
-                  .format(DateTimeFormatter.ofPattern(DATE_FORMAT_YYYYMMDD))
-                  .toString();
-        } else {
-          items[13] = "";
-          items[14] = "";
+    String fileName = this.setFileName(accountingReport);
+    LongStream.Builder moveIdBuilder = LongStream.builder();
+    long lastMoveId = 0;
+    boolean isEmpty = true;
+
+    try (CSVWriter csvWriter =
+            this.openCsvFile(company, fileName, this.createHeaderForJournalEntry());
+        ScrollableResults results =
+            query
+                .unwrap(org.hibernate.query.Query.class)
+                .setFetchSize(EXPORT_FETCH_SIZE)
+                .setReadOnly(true)
+                .scroll(ScrollMode.FORWARD_ONLY)) {
+
+      while (results.next()) {
+        Object[] row = results.get();
+        long moveId = (Long) row[0];
+        if (moveId != lastMoveId) {
+          moveIdBuilder.add(moveId);
+          lastMoveId = moveId;
         }
+        this.writeCsvRow(csvWriter, this.createJournalEntryItems(row));
+        isEmpty = false;
+      }
+    }
 
-        if (move.getValidationDate() != null) {
-          items[15] =
-              move.getValidationDate().format(DateTimeFormatter.ofPattern(DATE_FORMAT_YYYYMMDD));
-        }
+    if (!isEmpty && !administration) {
+      String exportNumber = this.getSaleExportNumber(company);
+      this.updateMoves(
+          moveIdBuilder.build().sorted().distinct().boxed().collect(Collectors.toList()),
+          accountingReport,
+          interfaceDate,
+          exportNumber);
+    }
 
-        items[16] = moveLine.getCurrencyAmount().toString().replace('.', ',');
-        if (moveLine.getCurrencyAmount().compareTo(BigDecimal.ZERO) > 0
-            && moveLine.getCredit().compareTo(BigDecimal.ZERO) > 0) {
-          items[16] = "-" + items[16];
-        }
+    accountingReport = accountingReportRepo.find(accountingReport.getId());
+    accountingReportRepo.save(accountingReport);
+    return this.attachCsvFile(company, fileName, accountingReport);
+  }
 
-        if (move.getCurrency() != null) {
-          items[17] = move.getCurrency().getCode();
-        }
-        allMoveLineData.add(items);
-      }
+  /**
+   * Create the items of a journal entry line from the values read by {@link
+   * #exportMoveLineTypeSelect1000(AccountingReport, boolean, boolean)}.
+   *
+   * @param row
+   * @return
+   */
+  protected String[] createJournalEntryItems(Object[] row) {
+    DateTimeFormatter dateFormatter = DateTimeFormatter.ofPattern(DATE_FORMAT_YYYYMMDD);
+    String[] items = new String[18];
+    items[0] = (String) row[1];
+    items[1] = (String) row[2];
+    items[2] = (String) row[3];
+    items[3] = ((LocalDate) row[4]).format(dateFormatter);
+    items[4] = (String) row[5];
+    items[5] = (String) row[6];
+    items[6] = "";
+    items[7] = "";
+    if (row[7] != null) {
+      items[6] = (String) row[8];
+      items[7] = (String) row[9];
+    }
+    items[8] = (String) row[10];
+    if (row[11] != null) {
+      items[9] = ((LocalDate) row[11]).format(dateFormatter);
+    }
+    items[10] = (String) row[12];
+    BigDecimal credit = (BigDecimal) row[14];
+    items[11] = row[13].toString().replace('.', ',');
+    items[12] = credit.toString().replace('.', ',');
+
+    if (row[16] != null && (Integer) row[16] == ReconcileGroupRepository.STATUS_FINAL) {
+      items[13] = (String) row[15];
+      items[14] = ((LocalDate) row[17]).format(dateFormatter);
+    } else {
+      items[13] = "";
+      items[14] = "";
+    }
 
-      if (!administration) {
-        String exportNumber = this.getSaleExportNumber(company);
-        this.updateMoveList(moveList, accountingReport, interfaceDate, exportNumber);
-      }
+    if (row[18] != null) {
+      items[15] = ((LocalDate) row[18]).format(dateFormatter);
     }
 
-    accountingReport = accountingReportRepo.find(accountingReport.getId());
+    BigDecimal currencyAmount = (BigDecimal) row[19];
+    items[16] = currencyAmount.toString().replace('.', ',');
+    if (currencyAmount.compareTo(BigDecimal.ZERO) > 0 && credit.compareTo(BigDecimal.ZERO) > 0) {
+      items[16] = "-" + items[16];
+    }
 
-    String fileName = this.setFileName(accountingReport);
-    accountingReportRepo.save(accountingReport);
-    return writeMoveLineToCsvFile(
-        company, fileName, this.createHeaderForJournalEntry(), allMoveLineData, accountingReport);
+    items[17] = (String) row[20];
+    return items;
   }
 
   /**
@@ -1332,120 +1425,122 @@ public class MoveLineExportServiceImpl implements MoveLineExportService {
 
     log.debug("dates : {}", dates);
 
-    List<String[]> allMoveLineData = new ArrayList<>();
-
-    for (LocalDate localDate : dates) {
-
-      Query queryExportRef =
-          JPA.em()
-              .createQuery(
-                  "SELECT DISTINCT self.move.exportNumber from MoveLine self where self.account != null "
-                      + "AND (self.debit > 0 OR self.credit > 0) AND self.date = '"
-                      + localDate.toString()
-                      + "'"
-                      + moveLineQueryStr);
-      List<String> exportRefs = queryExportRef.getResultList();
-      for (String exportRef : exportRefs) {
-
-        if (exportRef != null && !exportRef.isEmpty()) {
-
-          int sequence = 1;
-
-          Query query =
-              JPA.em()
-                  .createQuery(
-                      "SELECT self.account.id from MoveLine self where self.account != null AND (self.debit > 0 OR self.credit > 0) "
-                          + "AND self.date = '"
-                          + localDate.toString()
-                          + "' AND self.move.exportNumber = '"
-                          + exportRef
-                          + "'"
-                          + moveLineQueryStr
-                          + " group by self.account.id");
-
-          List<Long> accountIds = query.getResultList();
-
-          log.debug("accountIds : {}", accountIds);
-
-          for (Long accountId : accountIds) {
-            if (accountId != null) {
-              String accountCode = accountRepo.find(accountId).getCode();
-              List<MoveLine> moveLines =
-                  moveLineRepo
-                      .all()
-                      .filter(
-                          "self.account.id = ?1 AND (self.debit > 0 OR self.credit > 0) AND self.date = '"
-                              + localDate.toString()
-                              + "' AND self.move.exportNumber = '"
-                              + exportRef
-                              + "'"
-                              + moveLineQueryStr,
-                          accountId)
-                      .fetch();
-
-              log.debug("movelines  : {} ", moveLines);
-
-              if (!moveLines.isEmpty()) {
-
-                List<MoveLine> moveLineList = moveLineService.consolidateMoveLines(moveLines);
-
-                List<MoveLine> sortMoveLineList = this.sortMoveLineByDebitCredit(moveLineList);
-
-                for (MoveLine moveLine3 : sortMoveLineList) {
-
-                  Journal journal = moveLine3.getMove().getJournal();
-                  LocalDate date = moveLine3.getDate();
-                  String items[] = null;
-
-                  if (typeSelect == 9) {
-                    items = new String[13];
-                  } else {
-                    items = new String[12];
+    try (CSVWriter csvWriter =
+        this.openCsvFile(company, fileName, this.createHeaderForDetailFile(typeSelect))) {
+
+      for (LocalDate localDate : dates) {
+
+        Query queryExportRef =
+            JPA.em()
+                .createQuery(
+                    "SELECT DISTINCT self.move.exportNumber from MoveLine self where self.account != null "
+                        + "AND (self.debit > 0 OR self.credit > 0) AND self.date = '"
+                        + localDate.toString()
+                        + "'"
+                        + moveLineQueryStr);
+        List<String> exportRefs = queryExportRef.getResultList();
+        for (String exportRef : exportRefs) {
+
+          if (exportRef != null && !exportRef.isEmpty()) {
+
+            int sequence = 1;
+
+            Query query =
+                JPA.em()
+                    .createQuery(
+                        "SELECT self.account.id from MoveLine self where self.account != null AND (self.debit > 0 OR self.credit > 0) "
+                            + "AND self.date = '"
+                            + localDate.toString()
+                            + "' AND self.move.exportNumber = '"
+                            + exportRef
+                            + "'"
+                            + moveLineQueryStr
+                            + " group by self.account.id");
+
+            List<Long> accountIds = query.getResultList();
+
+            log.debug("accountIds : {}", accountIds);
+
+            for (Long accountId : accountIds) {
+              if (accountId != null) {
+                String accountCode = accountRepo.find(accountId).getCode();
+                List<MoveLine> moveLines =
+                    moveLineRepo
+                        .all()
+                        .filter(
+                            "self.account.id = ?1 AND (self.debit > 0 OR self.credit > 0) AND self.date = '"
+                                + localDate.toString()
+                                + "' AND self.move.exportNumber = '"
+                                + exportRef
+                                + "'"
+                                + moveLineQueryStr,
+                            accountId)
+                        .fetch();
+
+                log.debug("movelines  : {} ", moveLines);
+
+                if (!moveLines.isEmpty()) {
+
+                  List<MoveLine> moveLineList = moveLineService.consolidateMoveLines(moveLines);
+
+                  List<MoveLine> sortMoveLineList = this.sortMoveLineByDebitCredit(moveLineList);
+
+                  for (MoveLine moveLine3 : sortMoveLineList) {
+
+                    Journal journal = moveLine3.getMove().getJournal();
+                    LocalDate date = moveLine3.getDate();
+                    String items[] = null;
+
+                    if (typeSelect == 9) {
+                      items = new String[13];
+                    } else {
+                      items = new String[12];
+                    }
+
+                    items[0] = companyCode;
+                    items[1] = journal.getExportCode();
+                    items[2] = moveLine3.getMove().getExportNumber();
+                    items[3] = String.format("%s", sequence);
+                    sequence++;
+                    items[4] = accountCode;
+
+                    BigDecimal totAmt = moveLine3.getCredit().subtract(moveLine3.getDebit());
+                    String moveLineSign = "C";
+                    if (totAmt.compareTo(BigDecimal.ZERO) < 0) {
+                      moveLineSign = "D";
+                      totAmt = totAmt.negate();
+                    }
+                    items[5] = moveLineSign;
+                    items[6] = totAmt.toString();
+
+                    String analyticAccounts = "";
+                    for (AnalyticMoveLine analyticDistributionLine :
+                        moveLine3.getAnalyticMoveLineList()) {
+                      analyticAccounts =
+                          analyticAccounts
+                              + analyticDistributionLine.getAnalyticAccount().getCode()
+                              + "/";
+                    }
+
+                    if (typeSelect == 9) {
+                      items[7] = "";
+                      items[8] = analyticAccounts;
+                      items[9] =
+                          String.format(
+                              "%s DU %s",
+                              journal.getCode(),
+                              date.format(DateTimeFormatter.ofPattern("dd/MM/yyyy")));
+                    } else {
+                      items[7] = analyticAccounts;
+                      items[8] =
+                          String.format(
+                              "%s DU %s",
+                              journal.getCode(),
+                              date.format(DateTimeFormatter.ofPattern("dd/MM/yyyy")));
+                    }
+
+                    this.writeCsvRow(csvWriter, items);
                   }
-
-                  items[0] = companyCode;
-                  items[1] = journal.getExportCode();
-                  items[2] = moveLine3.getMove().getExportNumber();
-                  items[3] = String.format("%s", sequence);
-                  sequence++;
-                  items[4] = accountCode;
-
-                  BigDecimal totAmt = moveLine3.getCredit().subtract(moveLine3.getDebit());
-                  String moveLineSign = "C";
-                  if (totAmt.compareTo(BigDecimal.ZERO) < 0) {
-                    moveLineSign = "D";
-                    totAmt = totAmt.negate();
-                  }
-                  items[5] = moveLineSign;
-                  items[6] = totAmt.toString();
-
-                  String analyticAccounts = "";
-                  for (AnalyticMoveLine analyticDistributionLine :
-                      moveLine3.getAnalyticMoveLineList()) {
-                    analyticAccounts =
-                        analyticAccounts
-                            + analyticDistributionLine.getAnalyticAccount().getCode()
-                            + "/";
-                  }
-
-                  if (typeSelect == 9) {
-                    items[7] = "";
-                    items[8] = analyticAccounts;
-                    items[9] =
-                        String.format(
-                            "%s DU %s",
-                            journal.getCode(),
-                            date.format(DateTimeFormatter.ofPattern("dd/MM/yyyy")));
-                  } else {
-                    items[7] = analyticAccounts;
-                    items[8] =
-                        String.format(
-                            "%s DU %s",
-                            journal.getCode(),
-                            date.format(DateTimeFormatter.ofPattern("dd/MM/yyyy")));
-                  }
-
-                  allMoveLineData.add(items);
                 }
               }
             }
@@ -1454,39 +1549,54 @@ public class MoveLineExportServiceImpl implements MoveLineExportService {
       }
     }
 
-    writeMoveLineToCsvFile(
-        company,
-        fileName,
-        this.createHeaderForDetailFile(typeSelect),
-        allMoveLineData,
-        accountingReport);
+    this.attachCsvFile(company, fileName, accountingReport);
   }
 
-  private MetaFile writeMoveLineToCsvFile(
-      Company company,
-      String fileName,
-      String[] columnHeader,
-      List<String[]> allMoveData,
-      AccountingReport accountingReport)
-      throws AxelorException, IOException {
-
+  protected String getExportFilePath(Company company) throws AxelorException {
     String filePath = accountConfigService.getAccountConfig(company).getExportPath();
     String dataExportDir = appAccountService.getDataExportDir();
 
-    for (String[] items : allMoveData) {
-      for (int i = 0; i < items.length; i++) {
-        if (items[i] != null) {
-          items[i] = items[i].replaceAll("(\r\n|\n\r|\r|\n|\\|)", " ");
-        }
-      }
-    }
+    return filePath == null ? dataExportDir : dataExportDir + filePath;
+  }
+
+  /**
+   * Open the export file so that the lines are written to it one by one.
+   *
+   * @param company
+   * @param fileName
+   * @param columnHeader
+   * @return
+   * @throws AxelorException
+   * @throws IOException
+   */
+  protected CSVWriter openCsvFile(Company company, String fileName, String[] columnHeader)
+      throws AxelorException, IOException {
 
-    filePath = filePath == null ? dataExportDir : dataExportDir + filePath;
+    String filePath = this.getExportFilePath(company);
     new File(filePath).mkdirs();
 
     log.debug("Full path to export : {}{}", filePath, fileName);
-    CsvTool.csvWriter(filePath, fileName, '|', columnHeader, allMoveData);
-    Path path = Paths.get(filePath, fileName);
+    CSVWriter csvWriter = CsvTool.setCsvFile(filePath, fileName, '|');
+    if (columnHeader != null) {
+      csvWriter.writeNext(columnHeader);
+    }
+    return csvWriter;
+  }
+
+  protected void writeCsvRow(CSVWriter csvWriter, String[] items) {
+    for (int i = 0; i < items.length; i++) {
+      if (items[i] != null) {
+        items[i] = CSV_SPECIAL_CHARACTERS.matcher(items[i]).replaceAll(" ");
+      }
+    }
+    csvWriter.writeNext(items);
+  }
+
+  protected MetaFile attachCsvFile(
+      Company company, String fileName, AccountingReport accountingReport)
+      throws AxelorException, IOException {
+
+    Path path = Paths.get(this.getExportFilePath(company), fileName);
     try (InputStream is = new FileInputStream(path.toFile())) {
       return Beans.get(MetaFiles.class).attach(is, fileName, accountingReport).getMetaFile();
     }
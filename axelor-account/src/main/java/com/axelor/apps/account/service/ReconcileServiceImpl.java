@@ -282,7 +282,9 @@ public class ReconcileServiceImpl implements ReconcileService {
 
       Company company = reconcile.getDebitMoveLine().getMove().getCompany();
 
-      if (AccountingService.getUpdateCustomerAccount()) {
+      if (accountCustomerService.isPartnerBalanceIncremental(company)) {
+        this.updatePartnerBalance(reconcile);
+      } else if (AccountingService.getUpdateCustomerAccount()) {
         accountCustomerService.updatePartnerAccountingSituation(
             partnerList, company, true, true, false);
       } else {
@@ -291,6 +293,27 @@ public class ReconcileServiceImpl implements ReconcileService {
     }
   }
 
+  /**
+   * Report the amount of the reconcile on the balances of the partners of the reconciled move
+   * lines, instead of recomputing them.
+   *
+   * @param reconcile
+   * @throws AxelorException
+   */
+  protected void updatePartnerBalance(Reconcile reconcile) throws AxelorException {
+    BigDecimal amount = reconcile.getAmount();
+    if (reconcile.getStatusSelect() == ReconcileRepository.STATUS_CANCELED) {
+      amount = amount.negate();
+    }
+
+    for (MoveLine moveLine :
+        Lists.newArrayList(reconcile.getDebitMoveLine(), reconcile.getCreditMoveLine())) {
+      if (moveLine.getAccount().getReconcileOk()) {
+        accountCustomerService.updateBalance(moveLine, moveLine.getAmountRemaining().add(amount));
+      }
+    }
+  }
+
   public List<Partner> getPartners(Reconcile reconcile) {
 
     List<Partner> partnerList = Lists.newArrayList();
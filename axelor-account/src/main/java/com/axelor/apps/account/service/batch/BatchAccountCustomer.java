@@ -27,14 +27,18 @@ import com.axelor.db.JPA;
 import com.axelor.exception.db.repo.ExceptionOriginRepository;
 import com.axelor.exception.service.TraceBackService;
 import com.axelor.i18n.I18n;
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import java.lang.invoke.MethodHandles;
 import java.util.List;
+import javax.persistence.Table;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class BatchAccountCustomer extends BatchStrategy {
 
+  protected static final int PARTITION_SIZE = 100;
+
   private final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
   protected AccountingSituationRepository accountingSituationRepo;
@@ -66,48 +70,119 @@ public class BatchAccountCustomer extends BatchStrategy {
     boolean updateDueDebtRecoveryCustAccountOk =
         accountingBatch.getUpdateDueDebtRecoveryCustAccountOk();
 
-    List<AccountingSituation> accountingSituationList =
-        accountingSituationRepo.all().filter("self.company = ?1", company).fetch();
-    int i = 0;
+    if (accountingBatch.getBulkUpdateCustAccountOk()) {
+      processCompany(
+          company, updateCustAccountOk, updateDueCustAccountOk, updateDueDebtRecoveryCustAccountOk);
+      return;
+    }
+
+    List<Long> accountingSituationIdList =
+        JPA.em()
+            .createQuery(
+                "SELECT self.id FROM AccountingSituation self "
+                    + "WHERE self.company = :company ORDER BY self.id",
+                Long.class)
+            .setParameter("company", company)
+            .getResultList();
     JPA.clear();
-    for (AccountingSituation accountingSituation : accountingSituationList) {
-      try {
 
-        accountingSituation =
-            accountCustomerService.updateAccountingSituationCustomerAccount(
-                accountingSituationRepo.find(accountingSituation.getId()),
+    // Accounting situations are independent from each other, so they are processed as partitions
+    // of consecutive ids.
+    processPartitions(
+        Lists.partition(accountingSituationIdList, PARTITION_SIZE),
+        idList -> {
+          for (Long accountingSituationId : idList) {
+            processAccountingSituation(
+                accountingSituationId,
                 updateCustAccountOk,
                 updateDueCustAccountOk,
                 updateDueDebtRecoveryCustAccountOk);
+          }
+        });
+  }
 
-        if (accountingSituation != null) {
-          this.updateAccountingSituation(accountingSituation);
-          i++;
-        }
+  /**
+   * Bulk mode: the balances of all accounting situations of the company are computed and updated
+   * with one query per balance.
+   */
+  protected void processCompany(
+      Company company,
+      boolean updateCustAccountOk,
+      boolean updateDueCustAccountOk,
+      boolean updateDueDebtRecoveryCustAccountOk) {
+    try {
+      int count =
+          accountCustomerService.updateCompanyAccountingSituationsCustomerAccount(
+              company,
+              updateCustAccountOk,
+              updateDueCustAccountOk,
+              updateDueDebtRecoveryCustAccountOk);
+      addBatchToAccountingSituations(company);
+      incrementDone(count);
+    } catch (Exception e) {
+      TraceBackService.trace(e, ExceptionOriginRepository.CUSTOMER_ACCOUNT, batch.getId());
+      incrementAnomaly();
+      log.error("Bug(Anomalie) généré(e) pour la société {}", company.getName());
+    } finally {
+      JPA.clear();
+    }
+  }
 
-      } catch (Exception e) {
+  protected void addBatchToAccountingSituations(Company company) {
+    String tableName = AccountingSituation.class.getAnnotation(Table.class).name();
 
-        TraceBackService.trace(
-            new Exception(
+    // Insert using native query for performance reasons, as every situation of the company is
+    // updated.
+    javax.persistence.Query query =
+        JPA.em()
+            .createNativeQuery(
                 String.format(
-                    I18n.get(IExceptionMessage.BATCH_ACCOUNT_1),
-                    accountingSituationRepo.find(accountingSituation.getId()).getName()),
-                e),
-            ExceptionOriginRepository.CUSTOMER_ACCOUNT,
-            batch.getId());
+                    "INSERT INTO %s_BATCH_SET SELECT self.id, :batchId FROM %s self "
+                        + "WHERE self.company = :companyId",
+                    tableName,
+                    tableName));
+    query.setParameter("batchId", batch.getId());
+    query.setParameter("companyId", company.getId());
+    JPA.runInTransaction(query::executeUpdate);
+  }
 
-        incrementAnomaly();
+  protected void processAccountingSituation(
+      Long accountingSituationId,
+      boolean updateCustAccountOk,
+      boolean updateDueCustAccountOk,
+      boolean updateDueDebtRecoveryCustAccountOk) {
+    try {
+
+      AccountingSituation accountingSituation =
+          accountCustomerService.updateAccountingSituationCustomerAccount(
+              accountingSituationRepo.find(accountingSituationId),
+              updateCustAccountOk,
+              updateDueCustAccountOk,
+              updateDueDebtRecoveryCustAccountOk);
+
+      if (accountingSituation != null) {
+        this.updateAccountingSituation(accountingSituation);
+      }
 
-        log.error(
-            "Bug(Anomalie) généré(e) pour la situation compable {}",
-            accountingSituationRepo.find(accountingSituation.getId()).getName());
+    } catch (Exception e) {
 
-      } finally {
+      TraceBackService.trace(
+          new Exception(
+              String.format(
+                  I18n.get(IExceptionMessage.BATCH_ACCOUNT_1),
+                  accountingSituationRepo.find(accountingSituationId).getName()),
+              e),
+          ExceptionOriginRepository.CUSTOMER_ACCOUNT,
+          batch.getId());
 
-        if (i % 1 == 0) {
-          JPA.clear();
-        }
-      }
+      incrementAnomaly();
+
+      log.error(
+          "Bug(Anomalie) généré(e) pour la situation compable {}",
+          accountingSituationRepo.find(accountingSituationId).getName());
+
+    } finally {
+      JPA.clear();
     }
   }
 
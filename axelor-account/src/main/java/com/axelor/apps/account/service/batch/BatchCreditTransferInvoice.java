@@ -27,13 +27,11 @@ import com.axelor.apps.account.service.app.AppAccountService;
 import com.axelor.apps.account.service.payment.invoice.payment.InvoicePaymentCreateService;
 import com.axelor.apps.base.db.BankDetails;
 import com.axelor.apps.base.db.repo.BankDetailsRepository;
-import com.axelor.db.JPA;
 import com.axelor.db.Query;
 import com.axelor.exception.db.repo.ExceptionOriginRepository;
 import com.axelor.exception.service.TraceBackService;
 import com.axelor.i18n.I18n;
 import com.axelor.inject.Beans;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import java.util.ArrayList;
@@ -69,7 +67,6 @@ public abstract class BatchCreditTransferInvoice extends BatchStrategy {
    */
   protected List<InvoicePayment> processInvoices(int operationTypeSelect) {
     List<InvoicePayment> doneList = new ArrayList<>();
-    List<Long> anomalyList = Lists.newArrayList(0L); // Can't pass an empty collection to the query
     AccountingBatch accountingBatch = batch.getAccountingBatch();
     boolean manageMultiBanks = appAccountService.getAppBase().getManageMultiBanks();
     StringBuilder filter = new StringBuilder();
@@ -81,7 +78,6 @@ public abstract class BatchCreditTransferInvoice extends BatchStrategy {
             + "AND self.company = :company "
             + "AND self.dueDate <= :dueDate "
             + "AND self.paymentMode = :paymentMode "
-            + "AND self.id NOT IN (:anomalyList)"
             + "AND self.pfpValidateStatusSelect != :pfpValidateStatusSelect");
 
     if (manageMultiBanks) {
@@ -95,13 +91,11 @@ public abstract class BatchCreditTransferInvoice extends BatchStrategy {
     Query<Invoice> query =
         invoiceRepo
             .all()
-            .filter(filter.toString())
             .bind("operationTypeSelect", operationTypeSelect)
             .bind("statusSelect", InvoiceRepository.STATUS_VENTILATED)
             .bind("company", accountingBatch.getCompany())
             .bind("dueDate", accountingBatch.getDueDate())
             .bind("paymentMode", accountingBatch.getPaymentMode())
-            .bind("anomalyList", anomalyList)
             .bind("pfpValidateStatusSelect", InvoiceRepository.PFP_STATUS_LITIGATION);
 
     if (manageMultiBanks) {
@@ -119,34 +113,26 @@ public abstract class BatchCreditTransferInvoice extends BatchStrategy {
     }
 
     BankDetailsRepository bankDetailsRepo = Beans.get(BankDetailsRepository.class);
-    BankDetails companyBankDetails = accountingBatch.getBankDetails();
+    Long companyBankDetailsId = accountingBatch.getBankDetails().getId();
 
-    for (List<Invoice> invoiceList;
-        !(invoiceList = query.fetch(FETCH_LIMIT)).isEmpty();
-        JPA.clear()) {
-      if (!JPA.em().contains(companyBankDetails)) {
-        companyBankDetails = bankDetailsRepo.find(companyBankDetails.getId());
-      }
-
-      for (Invoice invoice : invoiceList) {
-        try {
+    processByIdCursor(
+        query,
+        filter.toString(),
+        invoice -> {
           doneList.add(
-              invoicePaymentCreateService.createInvoicePayment(invoice, companyBankDetails));
+              invoicePaymentCreateService.createInvoicePayment(
+                  invoice, bankDetailsRepo.find(companyBankDetailsId)));
           incrementDone();
-        } catch (Exception ex) {
+        },
+        (invoice, ex) -> {
           incrementAnomaly();
-          anomalyList.add(invoice.getId());
-          query.bind("anomalyList", anomalyList);
           TraceBackService.trace(ex, ExceptionOriginRepository.CREDIT_TRANSFER, batch.getId());
           ex.printStackTrace();
           log.error(
               String.format(
                   "Credit transfer batch for invoices: anomaly for invoice %s",
                   invoice.getInvoiceId()));
-          break;
-        }
-      }
-    }
+        });
 
     return doneList;
   }
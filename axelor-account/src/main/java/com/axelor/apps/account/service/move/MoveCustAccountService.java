@@ -26,8 +26,11 @@ import com.axelor.apps.base.db.Partner;
 import com.axelor.exception.AxelorException;
 import com.google.inject.Inject;
 import com.google.inject.persist.Transactional;
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class MoveCustAccountService {
 
@@ -61,7 +64,9 @@ public class MoveCustAccountService {
   public void updateCustomerAccount(List<Partner> partnerList, Company company)
       throws AxelorException {
 
-    if (AccountingService.getUpdateCustomerAccount()) {
+    // an incremental balance can't be flagged and left stale: recompute it
+    if (AccountingService.getUpdateCustomerAccount()
+        || accountCustomerService.isPartnerBalanceIncremental(company)) {
       accountCustomerService.updatePartnerAccountingSituation(
           partnerList, company, true, true, false);
     } else {
@@ -69,6 +74,40 @@ public class MoveCustAccountService {
     }
   }
 
+  /**
+   * Whether the partner balances of the company of the move are maintained incrementally.
+   *
+   * @param move
+   * @return
+   * @throws AxelorException
+   */
+  public boolean isPartnerBalanceIncremental(Move move) throws AxelorException {
+    return accountCustomerService.isPartnerBalanceIncremental(move.getCompany());
+  }
+
+  /**
+   * Add the move lines of a move which has just been validated to the balances of their partners,
+   * without recomputing the balances.
+   *
+   * @param move
+   * @throws AxelorException
+   */
+  @Transactional(rollbackOn = {Exception.class})
+  public void addToCustomerAccount(Move move) throws AxelorException {
+    Map<Partner, BigDecimal> balanceMap = new HashMap<>();
+    for (MoveLine moveLine : move.getMoveLineList()) {
+      BigDecimal amount =
+          accountCustomerService.getBalanceContribution(moveLine, moveLine.getAmountRemaining());
+      if (amount.signum() != 0) {
+        balanceMap.merge(moveLine.getPartner(), amount, BigDecimal::add);
+      }
+    }
+
+    for (Map.Entry<Partner, BigDecimal> entry : balanceMap.entrySet()) {
+      accountCustomerService.addToBalance(entry.getKey(), move.getCompany(), entry.getValue());
+    }
+  }
+
   /**
    * Get the distinct partners of an account move that impact the partner balances
    *
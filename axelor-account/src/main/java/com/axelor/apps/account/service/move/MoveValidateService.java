@@ -227,6 +227,7 @@ public class MoveValidateService {
 
     Boolean dayBookMode =
         accountConfigService.getAccountConfig(move.getCompany()).getAccountingDaybook();
+    boolean wasInDayBook = move.getStatusSelect() == MoveRepository.STATUS_DAYBOOK;
 
     if (!dayBookMode || move.getStatusSelect() == MoveRepository.STATUS_DAYBOOK) {
       moveSequenceService.setSequence(move);
@@ -244,7 +245,12 @@ public class MoveValidateService {
 
     moveRepository.save(move);
 
-    if (updateCustomerAccount) {
+    if (moveCustAccountService.isPartnerBalanceIncremental(move)) {
+      // a daybook move is already part of the balances
+      if (!wasInDayBook) {
+        moveCustAccountService.addToCustomerAccount(move);
+      }
+    } else if (updateCustomerAccount) {
       moveCustAccountService.updateCustomerAccount(move);
     }
   }
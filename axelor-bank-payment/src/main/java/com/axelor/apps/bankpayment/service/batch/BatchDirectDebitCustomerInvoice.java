@@ -20,6 +20,7 @@ package com.axelor.apps.bankpayment.service.batch;
 import com.axelor.apps.account.db.AccountingBatch;
 import com.axelor.apps.account.db.Invoice;
 import com.axelor.apps.account.db.InvoicePayment;
+import com.axelor.apps.account.db.repo.InvoicePaymentRepository;
 import com.axelor.apps.account.db.repo.InvoiceRepository;
 import com.axelor.apps.account.service.payment.invoice.payment.InvoicePaymentCreateService;
 import com.axelor.apps.bankpayment.db.BankOrder;
@@ -41,9 +42,10 @@ import com.google.common.collect.Sets;
 import java.lang.invoke.MethodHandles;
 import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import javax.persistence.TypedQuery;
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -121,11 +123,7 @@ public class BatchDirectDebitCustomerInvoice extends BatchDirectDebit {
   private List<InvoicePayment> processQuery(
       List<String> filterList, List<Pair<String, Object>> bindingList) {
 
-    List<InvoicePayment> doneList = new ArrayList<>();
-
-    List<Long> anomalyList = Lists.newArrayList(0L);
-    filterList.add("self.id NOT IN (:anomalyList)");
-    bindingList.add(Pair.of("anomalyList", (Object) anomalyList));
+    List<Long> doneIdList = Collections.synchronizedList(new ArrayList<>());
 
     String filter =
         Joiner.on(" AND ")
@@ -139,46 +137,53 @@ public class BatchDirectDebitCustomerInvoice extends BatchDirectDebit {
                       }
                     }));
 
-    Query<Invoice> query = Beans.get(InvoiceRepository.class).all().filter(filter);
+    TypedQuery<Long> partnerQuery =
+        JPA.em()
+            .createQuery(
+                "SELECT DISTINCT self.partner.id FROM Invoice self WHERE " + filter, Long.class);
 
     for (Pair<String, Object> binding : bindingList) {
-      query.bind(binding.getLeft(), binding.getRight());
+      partnerQuery.setParameter(binding.getLeft(), binding.getRight());
     }
 
-    Set<Long> treatedSet = new HashSet<>();
-    List<Invoice> invoiceList;
     InvoicePaymentCreateService invoicePaymentCreateService =
         Beans.get(InvoicePaymentCreateService.class);
     BankDetailsRepository bankDetailsRepo = Beans.get(BankDetailsRepository.class);
-    BankDetails companyBankDetails = getCompanyBankDetails(batch.getAccountingBatch());
-
-    while (!(invoiceList = query.fetch(FETCH_LIMIT)).isEmpty()) {
-      if (!JPA.em().contains(companyBankDetails)) {
-        companyBankDetails = bankDetailsRepo.find(companyBankDetails.getId());
-      }
-
-      for (Invoice invoice : invoiceList) {
-        if (treatedSet.contains(invoice.getId())) {
-          throw new IllegalArgumentException("Invoice payment generation error");
-        }
-
-        treatedSet.add(invoice.getId());
-
-        try {
-          doneList.add(
-              invoicePaymentCreateService.createInvoicePayment(invoice, companyBankDetails));
-          incrementDone();
-        } catch (Exception e) {
-          incrementAnomaly();
-          anomalyList.add(invoice.getId());
-          query.bind("anomalyList", anomalyList);
-          TraceBackService.trace(e, ExceptionOriginRepository.DIRECT_DEBIT, batch.getId());
-          LOG.error(e.getMessage());
-          break;
-        }
-      }
+    Long companyBankDetailsId = getCompanyBankDetails(batch.getAccountingBatch()).getId();
+
+    // Invoices of each partner are processed as a separate partition.
+    processPartitions(
+        partnerQuery.getResultList(),
+        partnerId -> {
+          Query<Invoice> query =
+              Beans.get(InvoiceRepository.class).all().bind("partnerId", partnerId);
+
+          for (Pair<String, Object> binding : bindingList) {
+            query.bind(binding.getLeft(), binding.getRight());
+          }
+
+          processByIdCursor(
+              query,
+              String.format("(%s) AND self.partner.id = :partnerId", filter),
+              invoice -> {
+                doneIdList.add(
+                    invoicePaymentCreateService
+                        .createInvoicePayment(invoice, bankDetailsRepo.find(companyBankDetailsId))
+                        .getId());
+                incrementDone();
+              },
+              (invoice, e) -> {
+                incrementAnomaly();
+                TraceBackService.trace(e, ExceptionOriginRepository.DIRECT_DEBIT, batch.getId());
+                LOG.error(e.getMessage());
+              });
+        });
+
+    InvoicePaymentRepository invoicePaymentRepo = Beans.get(InvoicePaymentRepository.class);
+    List<InvoicePayment> doneList = new ArrayList<>();
 
-      JPA.clear();
+    for (Long invoicePaymentId : doneIdList) {
+      doneList.add(invoicePaymentRepo.find(invoicePaymentId));
     }
 
     return doneList;
@@ -137,6 +137,8 @@ import com.axelor.apps.base.service.user.UserService;
 import com.axelor.apps.base.service.user.UserServiceImpl;
 import com.axelor.apps.base.service.weeklyplanning.WeeklyPlanningService;
 import com.axelor.apps.base.service.weeklyplanning.WeeklyPlanningServiceImp;
+import com.axelor.apps.base.service.weeklyplanning.WorkingCalendarService;
+import com.axelor.apps.base.service.weeklyplanning.WorkingCalendarServiceImpl;
 import com.axelor.apps.base.tracking.ExportObserver;
 import com.axelor.apps.base.tracking.GlobalAuditInterceptor;
 import com.axelor.apps.base.tracking.GlobalTrackingLogService;
@@ -172,6 +174,7 @@ public class BaseModule extends AxelorModule {
     bind(SequenceRepository.class).to(SequenceBaseRepository.class);
     bind(ProductRepository.class).to(ProductBaseRepository.class);
     bind(WeeklyPlanningService.class).to(WeeklyPlanningServiceImp.class);
+    bind(WorkingCalendarService.class).to(WorkingCalendarServiceImpl.class);
     bind(MailServiceMessageImpl.class).to(MailServiceBaseImpl.class);
     bind(AddressRepository.class).to(AddressBaseRepository.class);
     bind(YearRepository.class).to(YearBaseRepository.class);
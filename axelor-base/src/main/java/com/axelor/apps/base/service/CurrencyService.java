@@ -18,9 +18,10 @@
 package com.axelor.apps.base.service;
 
 import com.axelor.apps.base.db.Currency;
-import com.axelor.apps.base.db.CurrencyConversionLine;
 import com.axelor.apps.base.exceptions.IExceptionMessage;
 import com.axelor.apps.base.service.app.AppBaseService;
+import com.axelor.apps.base.service.currency.CurrencyRateCache;
+import com.axelor.apps.base.service.currency.CurrencyRateCache.CurrencyRate;
 import com.axelor.auth.AuthUtils;
 import com.axelor.auth.db.User;
 import com.axelor.exception.AxelorException;
@@ -34,8 +35,12 @@ import java.lang.invoke.MethodHandles;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,12 +51,15 @@ public class CurrencyService {
 
   protected AppBaseService appBaseService;
 
+  protected CurrencyRateCache currencyRateCache;
+
   private LocalDate today;
 
   @Inject
   public CurrencyService(AppBaseService appBaseService) {
 
     this.appBaseService = appBaseService;
+    this.currencyRateCache = Beans.get(CurrencyRateCache.class);
     this.today =
         appBaseService.getTodayDate(
             Optional.ofNullable(AuthUtils.getUser()).map(User::getActiveCompany).orElse(null));
@@ -60,6 +68,7 @@ public class CurrencyService {
   public CurrencyService(LocalDate today) {
 
     this.appBaseService = Beans.get(AppBaseService.class);
+    this.currencyRateCache = Beans.get(CurrencyRateCache.class);
     this.today = today;
   }
 
@@ -77,30 +86,27 @@ public class CurrencyService {
     if (startCurrency != null && endCurrency != null && !startCurrency.equals(endCurrency)) {
 
       LocalDate dateToConvert = this.getDateToConvert(date);
-      boolean isInverse = true;
-      BigDecimal exchangeRate = null;
-
-      CurrencyConversionLine currencyConversionLine =
-          this.getCurrencyConversionLine(startCurrency, endCurrency, dateToConvert);
-      if (currencyConversionLine != null) {
-        exchangeRate = currencyConversionLine.getExchangeRate();
-        isInverse = false;
-
-      } else {
-        currencyConversionLine =
-            this.getCurrencyConversionLine(endCurrency, startCurrency, dateToConvert);
-
-        if (currencyConversionLine == null) {
-          throw new AxelorException(
-              TraceBackRepository.CATEGORY_CONFIGURATION_ERROR,
-              I18n.get(IExceptionMessage.CURRENCY_1),
-              startCurrency.getName(),
-              endCurrency.getName(),
-              dateToConvert);
-        }
-        exchangeRate = currencyConversionLine.getExchangeRate();
+
+      log.debug(
+          "Currency from: {}, Currency to: {}, localDate: {}",
+          startCurrency,
+          endCurrency,
+          dateToConvert);
+
+      CurrencyRate currencyRate =
+          currencyRateCache.getCurrencyRate(startCurrency, endCurrency, dateToConvert);
+
+      if (currencyRate == null) {
+        throw new AxelorException(
+            TraceBackRepository.CATEGORY_CONFIGURATION_ERROR,
+            I18n.get(IExceptionMessage.CURRENCY_1),
+            startCurrency.getName(),
+            endCurrency.getName(),
+            dateToConvert);
       }
 
+      BigDecimal exchangeRate = currencyRate.getExchangeRate();
+
       if (exchangeRate == null || exchangeRate.compareTo(BigDecimal.ZERO) == 0) {
         throw new AxelorException(
             TraceBackRepository.CATEGORY_CONFIGURATION_ERROR,
@@ -110,7 +116,7 @@ public class CurrencyService {
             dateToConvert);
       }
 
-      return isInverse
+      return currencyRate.isInverse()
           ? BigDecimal.ONE.divide(exchangeRate, 10, RoundingMode.HALF_EVEN)
           : exchangeRate;
     }
@@ -118,39 +124,6 @@ public class CurrencyService {
     return BigDecimal.ONE;
   }
 
-  private CurrencyConversionLine getCurrencyConversionLine(
-      Currency startCurrency, Currency endCurrency, LocalDate localDate) {
-
-    List<CurrencyConversionLine> currencyConversionLineList =
-        appBaseService.getCurrencyConfigurationLineList();
-
-    if (currencyConversionLineList == null) {
-      return null;
-    }
-
-    log.debug(
-        "Currency from: {}, Currency to: {}, localDate: {}", startCurrency, endCurrency, localDate);
-
-    for (CurrencyConversionLine ccl : currencyConversionLineList) {
-
-      String cclStartCode = ccl.getStartCurrency().getCode();
-      String cclEndCode = ccl.getEndCurrency().getCode();
-      String startCode = startCurrency.getCode();
-      String endCode = endCurrency.getCode();
-      LocalDate fromDate = ccl.getFromDate();
-      LocalDate toDate = ccl.getToDate();
-
-      if (cclStartCode.equals(startCode) && cclEndCode.equals(endCode)) {
-        if ((fromDate.isBefore(localDate) || fromDate.equals(localDate))
-            && (toDate == null || toDate.isAfter(localDate) || toDate.isEqual(localDate))) {
-          return ccl;
-        }
-      }
-    }
-
-    return null;
-  }
-
   /**
    * Convert the amount in start currency into the end currency according to the date to convert
    *
@@ -176,6 +149,45 @@ public class CurrencyService {
     return amount;
   }
 
+  /**
+   * Convert amounts in start currency into the end currency, each one according to its own date.
+   * The rate of each distinct date is looked up once.
+   *
+   * @param startCurrency
+   * @param endCurrency
+   * @param amountDateList the amounts to convert, with the date to convert them at
+   * @return the converted amounts, in the same order
+   * @throws AxelorException
+   */
+  public List<BigDecimal> getAmountsCurrencyConvertedAtDates(
+      Currency startCurrency,
+      Currency endCurrency,
+      List<Pair<BigDecimal, LocalDate>> amountDateList)
+      throws AxelorException {
+
+    List<BigDecimal> convertedAmountList = new ArrayList<>();
+    Map<LocalDate, BigDecimal> rateMap = new HashMap<>();
+
+    for (Pair<BigDecimal, LocalDate> amountDate : amountDateList) {
+      if (startCurrency == null || endCurrency == null || startCurrency.equals(endCurrency)) {
+        convertedAmountList.add(amountDate.getLeft());
+        continue;
+      }
+
+      LocalDate dateToConvert = this.getDateToConvert(amountDate.getRight());
+      BigDecimal exchangeRate = rateMap.get(dateToConvert);
+      if (exchangeRate == null) {
+        exchangeRate = this.getCurrencyConversionRate(startCurrency, endCurrency, dateToConvert);
+        rateMap.put(dateToConvert, exchangeRate);
+      }
+
+      convertedAmountList.add(
+          this.getAmountCurrencyConvertedUsingExchangeRate(amountDate.getLeft(), exchangeRate));
+    }
+
+    return convertedAmountList;
+  }
+
   /**
    * Convert the amount in start currency into the end currency according to the exchange rate
    *
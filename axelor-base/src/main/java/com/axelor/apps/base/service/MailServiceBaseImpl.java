@@ -25,8 +25,8 @@ import com.axelor.apps.base.db.repo.PartnerRepository;
 import com.axelor.apps.base.service.app.AppBaseService;
 import com.axelor.apps.message.db.EmailAccount;
 import com.axelor.apps.message.db.Template;
-import com.axelor.apps.message.db.repo.TemplateRepository;
 import com.axelor.apps.message.service.MailServiceMessageImpl;
+import com.axelor.apps.message.service.TemplateCache;
 import com.axelor.apps.message.service.TemplateMessageService;
 import com.axelor.auth.db.User;
 import com.axelor.auth.db.repo.UserRepository;
@@ -49,8 +49,6 @@ import com.axelor.mail.service.MailService;
 import com.axelor.meta.MetaFiles;
 import com.axelor.meta.db.MetaAttachment;
 import com.axelor.rpc.filter.Filter;
-import com.axelor.text.GroovyTemplates;
-import com.axelor.text.StringTemplates;
 import com.axelor.text.Templates;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -374,7 +372,10 @@ public class MailServiceBaseImpl extends MailServiceMessageImpl {
       templatesContext.put("comment", text);
     }
 
-    return templates.fromText(template.getContent()).make(templatesContext).render();
+    return Beans.get(TemplateCache.class)
+        .getTemplate(template, "content", template.getContent())
+        .make(templatesContext)
+        .render();
   }
 
   @Override
@@ -411,15 +412,14 @@ public class MailServiceBaseImpl extends MailServiceMessageImpl {
       TraceBackService.trace(e);
     }
     templates = createTemplates(template);
-    return templates.fromText(template.getSubject()).make(templatesContext).render();
+    return Beans.get(TemplateCache.class)
+        .getTemplate(template, "subject", template.getSubject())
+        .make(templatesContext)
+        .render();
   }
 
   protected Templates createTemplates(Template template) {
-    if (template.getTemplateEngineSelect() == TemplateRepository.TEMPLATE_ENGINE_GROOVY_TEMPLATE) {
-      templates = Beans.get(GroovyTemplates.class);
-    } else {
-      templates = new StringTemplates('$', '$');
-    }
+    templates = Beans.get(TemplateCache.class).getTemplates(template);
     return templates;
   }
 
@@ -0,0 +1,232 @@
+/*
+ * Axelor Business Solutions
+ *
+ * Copyright (C) 2021 Axelor (<http://axelor.com>).
+ *
+ * This program is free software: you can redistribute it and/or  modify
+ * it under the terms of the GNU Affero General Public License, version 3,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.axelor.apps.base.service;
+
+import com.axelor.apps.base.db.Unit;
+import com.axelor.apps.base.db.UnitConversion;
+import com.axelor.apps.base.db.repo.UnitConversionRepository;
+import com.axelor.db.JPA;
+import com.google.inject.Singleton;
+import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ImportCustomizer;
+
+/**
+ * Keeps the unit conversions in memory as a graph indexed by start unit and end unit, along with
+ * the coefficients of the transitive conversions already resolved and the compiled conversion
+ * formulas. The graph is cleared by {@link #invalidate()} once a transaction changing a unit
+ * conversion ends, imports included.
+ */
+@Singleton
+public class UnitConversionCache {
+
+  protected static final int DEFAULT_COEFFICIENT_SCALE = 12;
+
+  private ConversionGraph conversionGraph;
+
+  private final Map<String, Class<? extends Script>> scriptClassMap = new ConcurrentHashMap<>();
+
+  /**
+   * Get the conversions which can be used to convert from the start unit to the end unit, in the
+   * order they were defined. A conversion defined from the end unit to the start unit is returned
+   * as an inverse link.
+   *
+   * @param startUnit
+   * @param endUnit
+   * @return
+   */
+  public List<UnitConversionLink> getLinks(Unit startUnit, Unit endUnit) {
+    return getConversionGraph()
+        .linkMap
+        .getOrDefault(startUnit.getId(), Collections.emptyMap())
+        .getOrDefault(endUnit.getId(), Collections.emptyList());
+  }
+
+  /**
+   * Get the coefficient to convert from the start unit to the end unit by chaining coefficient
+   * conversions, using the shortest path between the units. The result is kept until the next
+   * invalidation.
+   *
+   * @param startUnit
+   * @param endUnit
+   * @return the coefficient, or an empty optional if the units are not linked.
+   */
+  public Optional<BigDecimal> getPathCoefficient(Unit startUnit, Unit endUnit) {
+    ConversionGraph graph = getConversionGraph();
+    return graph.pathCoefficientMap.computeIfAbsent(
+        Arrays.asList(startUnit.getId(), endUnit.getId()),
+        key -> graph.findPathCoefficient(key.get(0), key.get(1)));
+  }
+
+  /**
+   * Get the compiled class of a conversion formula script, compiling it on first use.
+   *
+   * @param script
+   * @return
+   */
+  public Class<? extends Script> getScriptClass(String script) {
+    return scriptClassMap.computeIfAbsent(script, this::compileScript);
+  }
+
+  public synchronized void invalidate() {
+    conversionGraph = null;
+  }
+
+  protected synchronized ConversionGraph getConversionGraph() {
+    if (conversionGraph == null) {
+      conversionGraph = new ConversionGraph(JPA.all(UnitConversion.class).order("id").fetch());
+    }
+    return conversionGraph;
+  }
+
+  protected Class<? extends Script> compileScript(String script) {
+    CompilerConfiguration conf = new CompilerConfiguration();
+    ImportCustomizer customizer = new ImportCustomizer();
+    customizer.addStaticStars("java.lang.Math");
+    conf.addCompilationCustomizers(customizer);
+    return new GroovyShell(conf).parse(script).getClass();
+  }
+
+  /** A unit conversion, read in one direction or the other. */
+  public static class UnitConversionLink {
+
+    protected final int typeSelect;
+    protected final BigDecimal coef;
+    protected final String formula;
+    protected final boolean inverse;
+
+    protected UnitConversionLink(UnitConversion unitConversion, boolean inverse) {
+      this.typeSelect = unitConversion.getTypeSelect();
+      this.coef = unitConversion.getCoef();
+      this.formula = unitConversion.getFormula();
+      this.inverse = inverse;
+    }
+
+    public int getTypeSelect() {
+      return typeSelect;
+    }
+
+    public BigDecimal getCoef() {
+      return coef;
+    }
+
+    public String getFormula() {
+      return formula;
+    }
+
+    public boolean isInverse() {
+      return inverse;
+    }
+
+    /**
+     * Get the coefficient of a coefficient conversion.
+     *
+     * @return the coefficient, or null if the link is a formula or can not be inverted.
+     */
+    public BigDecimal getCoefficient() {
+      if (typeSelect != UnitConversionRepository.TYPE_COEFF) {
+        return null;
+      }
+      if (!inverse) {
+        return coef;
+      }
+      return coef.signum() != 0
+          ? BigDecimal.ONE.divide(coef, DEFAULT_COEFFICIENT_SCALE, RoundingMode.HALF_EVEN)
+          : null;
+    }
+  }
+
+  protected static class ConversionGraph {
+
+    protected final Map<Long, Map<Long, List<UnitConversionLink>>> linkMap = new HashMap<>();
+
+    protected final Map<List<Long>, Optional<BigDecimal>> pathCoefficientMap =
+        new ConcurrentHashMap<>();
+
+    protected ConversionGraph(List<UnitConversion> unitConversionList) {
+      for (UnitConversion unitConversion : unitConversionList) {
+        Long startUnitId = unitConversion.getStartUnit().getId();
+        Long endUnitId = unitConversion.getEndUnit().getId();
+        addLink(startUnitId, endUnitId, new UnitConversionLink(unitConversion, false));
+        addLink(endUnitId, startUnitId, new UnitConversionLink(unitConversion, true));
+      }
+    }
+
+    protected void addLink(Long startUnitId, Long endUnitId, UnitConversionLink link) {
+      linkMap
+          .computeIfAbsent(startUnitId, id -> new HashMap<>())
+          .computeIfAbsent(endUnitId, id -> new ArrayList<>())
+          .add(link);
+    }
+
+    protected Optional<BigDecimal> findPathCoefficient(Long startUnitId, Long endUnitId) {
+      Map<Long, BigDecimal> coefficientMap = new HashMap<>();
+      Deque<Long> unitIdQueue = new ArrayDeque<>();
+      coefficientMap.put(startUnitId, BigDecimal.ONE);
+      unitIdQueue.add(startUnitId);
+
+      while (!unitIdQueue.isEmpty()) {
+        Long unitId = unitIdQueue.poll();
+        BigDecimal coefficient = coefficientMap.get(unitId);
+
+        for (Map.Entry<Long, List<UnitConversionLink>> entry :
+            linkMap.getOrDefault(unitId, Collections.emptyMap()).entrySet()) {
+          if (coefficientMap.containsKey(entry.getKey())) {
+            continue;
+          }
+          BigDecimal linkCoefficient = getFirstCoefficient(entry.getValue());
+          if (linkCoefficient == null) {
+            continue;
+          }
+          BigDecimal pathCoefficient = coefficient.multiply(linkCoefficient);
+          if (entry.getKey().equals(endUnitId)) {
+            return Optional.of(
+                pathCoefficient.setScale(DEFAULT_COEFFICIENT_SCALE, RoundingMode.HALF_EVEN));
+          }
+          coefficientMap.put(entry.getKey(), pathCoefficient);
+          unitIdQueue.add(entry.getKey());
+        }
+      }
+
+      return Optional.empty();
+    }
+
+    protected BigDecimal getFirstCoefficient(List<UnitConversionLink> linkList) {
+      for (UnitConversionLink link : linkList) {
+        BigDecimal coefficient = link.getCoefficient();
+        if (coefficient != null) {
+          return coefficient;
+        }
+      }
+      return null;
+    }
+  }
+}
@@ -24,6 +24,7 @@ import com.axelor.apps.base.db.Unit;
 import com.axelor.apps.base.db.UnitConversion;
 import com.axelor.apps.base.db.repo.UnitConversionRepository;
 import com.axelor.apps.base.exceptions.IExceptionMessage;
+import com.axelor.apps.base.service.UnitConversionCache.UnitConversionLink;
 import com.axelor.apps.base.service.app.AppBaseService;
 import com.axelor.auth.AuthUtils;
 import com.axelor.auth.db.User;
@@ -42,9 +43,11 @@ import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.List;
 import java.util.Optional;
+import java.util.regex.Pattern;
 import org.codehaus.groovy.control.CompilationFailedException;
 import org.codehaus.groovy.control.CompilerConfiguration;
 import org.codehaus.groovy.control.customizers.ImportCustomizer;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,12 +58,17 @@ public class UnitConversionService {
 
   private static final char TEMPLATE_DELIMITER = '$';
   private static final int DEFAULT_COEFFICIENT_SCALE = 12;
+  private static final String PRODUCT_VARIABLE = "Product";
+  private static final Pattern TEMPLATE_VARIABLE_PATTERN =
+      Pattern.compile("\\$(" + PRODUCT_VARIABLE + "(?:\\.\\w+)*)\\$");
   protected TemplateMaker maker;
 
   @Inject protected AppBaseService appBaseService;
 
   @Inject protected UnitConversionRepository unitConversionRepo;
 
+  @Inject protected UnitConversionCache unitConversionCache;
+
   /**
    * Convert a value from a unit to another
    *
@@ -97,8 +105,7 @@ public class UnitConversionService {
     if (startUnit.equals(endUnit)) return value;
     else {
       try {
-        BigDecimal coefficient =
-            this.getCoefficient(unitConversionRepo.all().fetch(), startUnit, endUnit, product);
+        BigDecimal coefficient = this.getCoefficient(startUnit, endUnit, product);
 
         return value.multiply(coefficient).setScale(scale, RoundingMode.HALF_EVEN);
       } catch (IOException | ClassNotFoundException e) {
@@ -108,6 +115,43 @@ public class UnitConversionService {
     return value;
   }
 
+  /**
+   * Get the conversion coefficient between two units from the cached conversions. The conversions
+   * defined between the two units are used first, in either direction. If there isn't any, the
+   * coefficient conversions are chained to link the units. If there still isn't any result, an
+   * Exception is thrown.
+   *
+   * @param startUnit The start unit
+   * @param endUnit The end unit
+   * @param product Optional, a product used for complex conversions. Input null if needless.
+   * @return A conversion coefficient to convert from startUnit to endUnit.
+   * @throws AxelorException The units can not be linked by the conversions.
+   * @throws CompilationFailedException
+   * @throws ClassNotFoundException
+   * @throws IOException
+   */
+  public BigDecimal getCoefficient(Unit startUnit, Unit endUnit, Product product)
+      throws AxelorException, CompilationFailedException, ClassNotFoundException, IOException {
+    for (UnitConversionLink link : unitConversionCache.getLinks(startUnit, endUnit)) {
+      BigDecimal coefficient = this.getCoefficient(link, product);
+      if (coefficient != null) {
+        return coefficient;
+      }
+    }
+
+    Optional<BigDecimal> pathCoefficient =
+        unitConversionCache.getPathCoefficient(startUnit, endUnit);
+    if (pathCoefficient.isPresent()) {
+      return pathCoefficient.get();
+    }
+
+    throw new AxelorException(
+        TraceBackRepository.CATEGORY_CONFIGURATION_ERROR,
+        I18n.get(IExceptionMessage.UNIT_CONVERSION_1),
+        startUnit.getName(),
+        endUnit.getName());
+  }
+
   /**
    * Get the conversion coefficient between two units from a conversion list. If the start unit and
    * the end unit can not be found in the list, then the units are swapped. If there still isn't any
@@ -130,22 +174,6 @@ public class UnitConversionService {
       Product product)
       throws AxelorException, CompilationFailedException, ClassNotFoundException, IOException {
     /* Looking for the start unit and the end unit in the unitConversionList to get the coefficient */
-    if (product != null) {
-      this.maker =
-          new TemplateMaker(
-              Optional.ofNullable(AuthUtils.getUser()).map(User::getActiveCompany).orElse(null)
-                      != null
-                  ? Optional.ofNullable(AuthUtils.getUser())
-                      .map(User::getActiveCompany)
-                      .map(Company::getTimezone)
-                      .orElse(null)
-                  : "",
-              AppFilter.getLocale(),
-              TEMPLATE_DELIMITER,
-              TEMPLATE_DELIMITER);
-      this.maker.setContext(product, "Product");
-    }
-    String eval = null;
     for (UnitConversion unitConversion : unitConversionList) {
 
       if (unitConversion.getStartUnit().equals(startUnit)
@@ -153,15 +181,7 @@ public class UnitConversionService {
         if (unitConversion.getTypeSelect() == UnitConversionRepository.TYPE_COEFF) {
           return unitConversion.getCoef();
         } else if (product != null) {
-          maker.setTemplate(unitConversion.getFormula());
-          eval = maker.make();
-          CompilerConfiguration conf = new CompilerConfiguration();
-          ImportCustomizer customizer = new ImportCustomizer();
-          customizer.addStaticStars("java.lang.Math");
-          conf.addCompilationCustomizers(customizer);
-          Binding binding = new Binding();
-          GroovyShell shell = new GroovyShell(binding, conf);
-          return new BigDecimal(shell.evaluate(eval).toString());
+          return this.evaluateFormula(unitConversion.getFormula(), product);
         }
       }
 
@@ -174,15 +194,7 @@ public class UnitConversionService {
           return BigDecimal.ONE.divide(
               unitConversion.getCoef(), DEFAULT_COEFFICIENT_SCALE, RoundingMode.HALF_EVEN);
         } else if (product != null) {
-          maker.setTemplate(unitConversion.getFormula());
-          eval = maker.make();
-          CompilerConfiguration conf = new CompilerConfiguration();
-          ImportCustomizer customizer = new ImportCustomizer();
-          customizer.addStaticStars("java.lang.Math");
-          conf.addCompilationCustomizers(customizer);
-          Binding binding = new Binding();
-          GroovyShell shell = new GroovyShell(binding, conf);
-          BigDecimal result = new BigDecimal(shell.evaluate(eval).toString());
+          BigDecimal result = this.evaluateFormula(unitConversion.getFormula(), product);
           if (result.compareTo(BigDecimal.ZERO) != 0) {
             return BigDecimal.ONE.divide(result, DEFAULT_COEFFICIENT_SCALE, RoundingMode.HALF_EVEN);
           }
@@ -196,4 +208,80 @@ public class UnitConversionService {
         startUnit.getName(),
         endUnit.getName());
   }
+
+  /**
+   * Get the coefficient of a single conversion link.
+   *
+   * @return the coefficient, or null if the link can not be used.
+   */
+  protected BigDecimal getCoefficient(UnitConversionLink link, Product product)
+      throws CompilationFailedException, ClassNotFoundException, IOException {
+    if (link.getTypeSelect() == UnitConversionRepository.TYPE_COEFF) {
+      return link.getCoefficient();
+    }
+    if (product == null) {
+      return null;
+    }
+
+    BigDecimal result = this.evaluateFormula(link.getFormula(), product);
+    if (!link.isInverse()) {
+      return result;
+    }
+    return result.compareTo(BigDecimal.ZERO) != 0
+        ? BigDecimal.ONE.divide(result, DEFAULT_COEFFICIENT_SCALE, RoundingMode.HALF_EVEN)
+        : null;
+  }
+
+  /**
+   * Evaluate a conversion formula for a product. When the formula only uses product fields, its
+   * template variables are turned into script variables so that the script is compiled once and
+   * evaluated with the product as binding. Otherwise, the formula is rendered as a template first.
+   *
+   * @param formula
+   * @param product
+   * @return
+   * @throws CompilationFailedException
+   * @throws ClassNotFoundException
+   * @throws IOException
+   */
+  protected BigDecimal evaluateFormula(String formula, Product product)
+      throws CompilationFailedException, ClassNotFoundException, IOException {
+    String script = TEMPLATE_VARIABLE_PATTERN.matcher(formula).replaceAll("$1");
+
+    if (script.indexOf(TEMPLATE_DELIMITER) >= 0) {
+      return this.evaluateTemplate(formula, product);
+    }
+
+    Binding binding = new Binding();
+    binding.setVariable(PRODUCT_VARIABLE, product);
+    Object result =
+        InvokerHelper.createScript(unitConversionCache.getScriptClass(script), binding).run();
+    return new BigDecimal(result.toString());
+  }
+
+  protected BigDecimal evaluateTemplate(String formula, Product product)
+      throws CompilationFailedException, ClassNotFoundException, IOException {
+    this.maker =
+        new TemplateMaker(
+            Optional.ofNullable(AuthUtils.getUser()).map(User::getActiveCompany).orElse(null)
+                    != null
+                ? Optional.ofNullable(AuthUtils.getUser())
+                    .map(User::getActiveCompany)
+                    .map(Company::getTimezone)
+                    .orElse(null)
+                : "",
+            AppFilter.getLocale(),
+            TEMPLATE_DELIMITER,
+            TEMPLATE_DELIMITER);
+    this.maker.setContext(product, PRODUCT_VARIABLE);
+    maker.setTemplate(formula);
+    String eval = maker.make();
+    CompilerConfiguration conf = new CompilerConfiguration();
+    ImportCustomizer customizer = new ImportCustomizer();
+    customizer.addStaticStars("java.lang.Math");
+    conf.addCompilationCustomizers(customizer);
+    Binding binding = new Binding();
+    GroovyShell shell = new GroovyShell(binding, conf);
+    return new BigDecimal(shell.evaluate(eval).toString());
+  }
 }
@@ -17,22 +17,40 @@
  */
 package com.axelor.apps.base.service.administration;
 
+import com.axelor.app.AppSettings;
 import com.axelor.apps.base.db.Batch;
 import com.axelor.apps.base.db.repo.BatchRepository;
 import com.axelor.apps.base.exceptions.IExceptionMessage;
 import com.axelor.apps.base.service.app.AppBaseService;
+import com.axelor.apps.tool.ThrowConsumer;
 import com.axelor.auth.db.AuditableModel;
 import com.axelor.db.EntityHelper;
 import com.axelor.db.JPA;
 import com.axelor.db.Model;
+import com.axelor.db.Query;
 import com.axelor.exception.service.TraceBackService;
 import com.axelor.i18n.I18n;
+import com.axelor.inject.Beans;
 import com.google.common.base.Preconditions;
 import com.google.inject.persist.Transactional;
+import com.google.inject.persist.UnitOfWork;
+import com.google.inject.servlet.RequestScoper;
+import com.google.inject.servlet.ServletScopes;
 import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Field;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import javax.inject.Inject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,6 +60,12 @@ public abstract class AbstractBatch {
 
   public static final int FETCH_LIMIT = 10;
 
+  public static final int PROGRESS_FLUSH_INTERVAL = 100;
+
+  public static final long PROGRESS_FLUSH_DELAY = 10_000L;
+
+  public static final String PARTITION_POOL_SIZE_SETTING = "batch.partition.pool.size";
+
   @Inject protected AppBaseService appBaseService;
 
   protected static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
@@ -51,19 +75,26 @@ public abstract class AbstractBatch {
 
   @Inject protected BatchRepository batchRepo;
 
-  private int done;
-  private int anomaly;
+  private final AtomicInteger done = new AtomicInteger();
+  private final AtomicInteger anomaly = new AtomicInteger();
+
+  /** Thread running the batch, as opposed to the workers processing its partitions. */
+  private Thread batchThread;
+
+  /** Number of increments since the counters were last written to the batch record. */
+  private int pendingProgress;
+
+  private long lastProgressFlush;
 
   protected AbstractBatch() {
     this.batch = new Batch();
 
     this.batch.setStartDate(ZonedDateTime.now());
 
-    this.done = 0;
-    this.anomaly = 0;
+    this.lastProgressFlush = System.currentTimeMillis();
 
-    this.batch.setDone(this.done);
-    this.batch.setAnomaly(this.anomaly);
+    this.batch.setDone(0);
+    this.batch.setAnomaly(0);
 
     JPA.runInTransaction(() -> batch = JPA.persist(batch));
   }
@@ -101,8 +132,10 @@ public abstract class AbstractBatch {
     if (isRunnable(model)) {
       try {
         threadBatchId.set(batch.getId());
+        batchThread = Thread.currentThread();
         start();
         process();
+        flushProgress();
         stop();
         return batch;
       } catch (Exception e) {
@@ -118,6 +151,74 @@ public abstract class AbstractBatch {
 
   protected abstract void process();
 
+  /**
+   * Page size used by {@link #processByIdCursor(Query, String, ThrowConsumer, BiConsumer)}.
+   * Override to use larger pages on batches whose records are cheap to process.
+   *
+   * @return the number of records fetched per page.
+   */
+  protected int getFetchLimit() {
+    return FETCH_LIMIT;
+  }
+
+  /**
+   * Same as {@link #processByIdCursor(Query, String, int, ThrowConsumer, BiConsumer)} using
+   * {@link #getFetchLimit()} as page size.
+   */
+  protected <T extends Model> void processByIdCursor(
+      Query<T> query,
+      String filter,
+      ThrowConsumer<T> processor,
+      BiConsumer<T, Exception> errorHandler) {
+    processByIdCursor(query, filter, getFetchLimit(), processor, errorHandler);
+  }
+
+  /**
+   * Process every record matching the filter, page by page, using the id of the last fetched record
+   * as cursor (<code>self.id > :lastId ORDER BY self.id</code>).
+   *
+   * <p>Unlike excluding the already processed records and the anomalies from the query (<code>
+   * NOT IN (:anomalyList)</code>, <code>NOT MEMBER OF self.batchSet</code>), the cost of fetching a
+   * page does not grow with the number of records already processed, and a record can not be
+   * fetched twice.
+   *
+   * <p>When the processor throws, the error handler is called with the failing record and the
+   * remaining records of the page are fetched again after clearing the persistence context, as the
+   * failed transaction may have left it in an inconsistent state.
+   *
+   * @param query the query to iterate on, with its named parameters already bound.
+   * @param filter the filter of the query, without ordering.
+   * @param pageSize the number of records fetched per page.
+   * @param processor the operation applied to each record.
+   * @param errorHandler called when the processor fails on a record.
+   */
+  protected <T extends Model> void processByIdCursor(
+      Query<T> query,
+      String filter,
+      int pageSize,
+      ThrowConsumer<T> processor,
+      BiConsumer<T, Exception> errorHandler) {
+    Preconditions.checkArgument(pageSize > 0);
+
+    query.filter(String.format("(%s) AND self.id > :lastIdCursor", filter)).order("id");
+
+    long lastId = 0L;
+    List<T> recordList;
+
+    while (!(recordList = query.bind("lastIdCursor", lastId).fetch(pageSize)).isEmpty()) {
+      for (T record : recordList) {
+        lastId = record.getId();
+        try {
+          processor.accept(record);
+        } catch (Exception e) {
+          errorHandler.accept(record, e);
+          break;
+        }
+      }
+      JPA.clear();
+    }
+  }
+
   protected boolean isRunnable(Model model) {
     this.model = model;
     return !Boolean.TRUE.equals(model.getArchived());
@@ -136,6 +237,7 @@ public abstract class AbstractBatch {
    * entity in the persistant context. Warning : {@code batch} entity have to be saved before.
    */
   protected void stop() {
+    flushProgress();
     findBatch();
 
     batch.setEndDate(ZonedDateTime.now());
@@ -147,29 +249,191 @@ public abstract class AbstractBatch {
   }
 
   protected void incrementDone() {
-    findBatch();
     _incrementDone();
   }
 
   protected void _incrementDone() {
-    done += 1;
-    batch.setDone(done);
-    checkPoint();
+    int count = done.incrementAndGet();
+    progress();
+
+    LOG.debug("Done ::: {}", count);
+  }
+
+  /**
+   * Counts several records as done at once, for batches updating their records with set-based
+   * queries.
+   *
+   * @param count the number of records done.
+   */
+  protected void incrementDone(int count) {
+    int total = done.addAndGet(count);
+    progress();
 
-    LOG.debug("Done ::: {}", done);
+    LOG.debug("Done ::: {}", total);
   }
 
   protected void incrementAnomaly() {
-    findBatch();
     _incrementAnomaly();
   }
 
   protected void _incrementAnomaly() {
-    anomaly += 1;
-    batch.setAnomaly(anomaly);
-    checkPoint();
+    int count = anomaly.incrementAndGet();
+    progress();
 
-    LOG.debug("Anomaly ::: {}", anomaly);
+    LOG.debug("Anomaly ::: {}", count);
+  }
+
+  /**
+   * Number of workers used by {@link #processPartitions(List, ThrowConsumer)}, read from the <code>
+   * batch.partition.pool.size</code> application setting. With a single worker, partitions are
+   * processed one after the other on the batch thread.
+   *
+   * @return the maximum number of partitions processed at the same time.
+   */
+  protected int getPartitionPoolSize() {
+    return Math.max(1, AppSettings.get().getInt(PARTITION_POOL_SIZE_SETTING, 1));
+  }
+
+  /**
+   * Process the batch as independent partitions (id ranges, partners, companies...) on a bounded
+   * pool of workers.
+   *
+   * <p>Each worker runs in its own request scope and unit of work, so every partition gets its own
+   * entity manager and transactions; the processor must therefore reload what it needs from the
+   * partition key rather than use entities loaded by the batch thread. Done and anomaly counts of
+   * all workers are merged into the batch record, which is written by the batch thread only. A
+   * partition whose processor throws is counted as an anomaly.
+   *
+   * @param partitionList the keys of the partitions to process.
+   * @param processor the operation applied to each partition.
+   */
+  protected <K> void processPartitions(List<K> partitionList, ThrowConsumer<K> processor) {
+    int poolSize = Math.min(getPartitionPoolSize(), partitionList.size());
+
+    if (poolSize <= 1) {
+      for (K partition : partitionList) {
+        processPartition(partition, processor);
+      }
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+    long batchId = batch.getId();
+    List<Future<?>> futureList = new ArrayList<>();
+
+    try {
+      for (K partition : partitionList) {
+        futureList.add(
+            executor.submit(() -> processPartitionInWorker(batchId, partition, processor)));
+      }
+
+      for (Future<?> future : futureList) {
+        waitForPartition(future);
+      }
+    } catch (InterruptedException e) {
+      futureList.forEach(future -> future.cancel(true));
+      TraceBackService.trace(e, null, batchId);
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private <K> void processPartitionInWorker(
+      long batchId, K partition, ThrowConsumer<K> processor) {
+    RequestScoper scope = ServletScopes.scopeRequest(Collections.emptyMap());
+    UnitOfWork unitOfWork = Beans.get(UnitOfWork.class);
+
+    try (RequestScoper.CloseableScope ignored = scope.open()) {
+      threadBatchId.set(batchId);
+      unitOfWork.begin();
+      processPartition(partition, processor);
+    } finally {
+      unitOfWork.end();
+      threadBatchId.remove();
+    }
+  }
+
+  private <K> void processPartition(K partition, ThrowConsumer<K> processor) {
+    try {
+      processor.accept(partition);
+    } catch (Exception e) {
+      LOG.error("Partition {} ::: {}", partition, e.getMessage());
+      TraceBackService.trace(e, null, getCurrentBatchId());
+      incrementAnomaly();
+    } finally {
+      JPA.clear();
+    }
+  }
+
+  /** Waits for a partition to complete, writing the counters of the batch in the meantime. */
+  private void waitForPartition(Future<?> future) throws InterruptedException {
+    while (true) {
+      try {
+        future.get(getProgressFlushDelay(), TimeUnit.MILLISECONDS);
+        return;
+      } catch (TimeoutException e) {
+        flushProgress();
+      } catch (ExecutionException e) {
+        TraceBackService.trace(e.getCause(), null, batch.getId());
+        return;
+      }
+    }
+  }
+
+  private boolean isBatchThread() {
+    return batchThread == null || batchThread == Thread.currentThread();
+  }
+
+  /**
+   * Number of processed records after which the done and anomaly counters are written to the batch
+   * record.
+   *
+   * @return the flush interval, in records.
+   */
+  protected int getProgressFlushInterval() {
+    return PROGRESS_FLUSH_INTERVAL;
+  }
+
+  /**
+   * Delay after which the done and anomaly counters are written to the batch record, whatever the
+   * number of records processed since the last write.
+   *
+   * @return the flush delay, in milliseconds.
+   */
+  protected long getProgressFlushDelay() {
+    return PROGRESS_FLUSH_DELAY;
+  }
+
+  /**
+   * Counters are kept in memory and only written to the batch record when the flush interval or
+   * delay is reached. In between, the transaction is still committed so that changes made on the
+   * processed record by the caller (e.g. adding the batch to its batch set) are saved as before.
+   *
+   * <p>Partition workers only commit their own transaction, the counters being written by the
+   * batch thread while it waits for them.
+   */
+  private void progress() {
+    if (!isBatchThread()) {
+      commit();
+      return;
+    }
+
+    pendingProgress += 1;
+
+    if (pendingProgress >= getProgressFlushInterval()
+        || System.currentTimeMillis() - lastProgressFlush >= getProgressFlushDelay()) {
+      flushProgress();
+    } else {
+      commit();
+    }
+  }
+
+  /** Writes the done and anomaly counters to the batch record. */
+  protected void flushProgress() {
+    pendingProgress = 0;
+    lastProgressFlush = System.currentTimeMillis();
+    checkPoint();
   }
 
   protected void addComment(String comment) {
@@ -182,9 +446,19 @@ public abstract class AbstractBatch {
 
   @Transactional
   protected Batch checkPoint() {
-    return findBatch();
+    if (!isBatchThread()) {
+      return batchRepo.find(batch.getId());
+    }
+
+    findBatch();
+    batch.setDone(done.get());
+    batch.setAnomaly(anomaly.get());
+    return batch;
   }
 
+  @Transactional
+  protected void commit() {}
+
   @Transactional
   protected void unarchived() {
     try {
@@ -17,6 +17,7 @@
  */
 package com.axelor.apps.base.service.administration;
 
+import com.axelor.app.AppSettings;
 import com.axelor.apps.base.db.Company;
 import com.axelor.apps.base.db.Sequence;
 import com.axelor.apps.base.db.SequenceLettersTypeSelect;
@@ -46,6 +47,12 @@ import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoField;
 import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -76,7 +83,20 @@ public class SequenceService {
 
   private final SequenceRepository sequenceRepo;
 
-  protected ExecutorService executor = Executors.newSingleThreadExecutor();
+  protected static final String ALLOCATION_THREADS_SETTING = "sequence.allocation.threads";
+
+  /**
+   * Number allocations run on single thread executors, each sequence always being handled by the
+   * same one, so that the numbers of a sequence are allocated one after the other while different
+   * sequences are allocated concurrently.
+   */
+  protected List<ExecutorService> executorList;
+
+  /** Numbers reserved in memory, by sequence version id. */
+  protected final Map<Long, NumberBlock> numberBlockMap = new ConcurrentHashMap<>();
+
+  /** Compiled prefixes and suffixes. */
+  protected final Map<String, SequencePattern> patternMap = new ConcurrentHashMap<>();
 
   @Inject
   public SequenceService(
@@ -87,6 +107,12 @@ public class SequenceService {
     this.sequenceVersionRepository = sequenceVersionRepository;
     this.appBaseService = appBaseService;
     this.sequenceRepo = sequenceRepo;
+
+    int threads = Math.max(1, AppSettings.get().getInt(ALLOCATION_THREADS_SETTING, 4));
+    this.executorList = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      executorList.add(Executors.newSingleThreadExecutor());
+    }
   }
 
   public static boolean isYearValid(Sequence sequence) {
@@ -194,20 +220,13 @@ public class SequenceService {
   public String getSequenceNumber(Sequence sequence, LocalDate refDate) {
 
     try {
+      ExecutorService executor = getExecutor(sequence);
       Future<String> newSeq =
           executor.submit(
               () -> {
                 Sequence seq = sequenceRepo.find(sequence.getId());
                 SequenceVersion sequenceVersion = getVersion(seq, refDate);
-                String nextSeq = computeNextSeq(sequenceVersion, seq, refDate);
-                JPA.runInTransaction(
-                    () -> {
-                      sequenceVersion.setNextNum(sequenceVersion.getNextNum() + seq.getToBeAdded());
-                      if (sequenceVersion.getId() == null) {
-                        sequenceVersionRepository.save(sequenceVersion);
-                      }
-                    });
-                return nextSeq;
+                return computeNextSeq(nextNum(seq, sequenceVersion), seq, refDate);
               });
       return newSeq.get();
     } catch (Exception e) {
@@ -216,45 +235,137 @@ public class SequenceService {
     }
   }
 
-  private String computeNextSeq(
-      SequenceVersion sequenceVersion, Sequence sequence, LocalDate refDate) {
+  /**
+   * Method reserving consecutive sequence numbers at once, with a single update of the sequence
+   * version, for the processes generating many documents of the same sequence and date.
+   *
+   * @param sequence
+   * @param refDate
+   * @param count the count of numbers to reserve
+   * @return the reserved sequence numbers, in order
+   */
+  public List<String> reserveSequenceNumbers(Sequence sequence, LocalDate refDate, int count) {
+
+    if (count <= 0) {
+      return new ArrayList<>();
+    }
 
-    String seqPrefixe = StringUtils.defaultString(sequence.getPrefixe(), ""),
-        seqSuffixe = StringUtils.defaultString(sequence.getSuffixe(), ""),
-        sequenceValue;
+    try {
+      ExecutorService executor = getExecutor(sequence);
+      Future<List<String>> newSeqList =
+          executor.submit(
+              () -> {
+                Sequence seq = sequenceRepo.find(sequence.getId());
+                SequenceVersion sequenceVersion = getVersion(seq, refDate);
+                long nextNum = reserveNums(seq, sequenceVersion, count);
+                List<String> seqList = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                  seqList.add(computeNextSeq(nextNum, seq, refDate));
+                  nextNum += seq.getToBeAdded();
+                }
+                return seqList;
+              });
+      return newSeqList.get();
+    } catch (Exception e) {
+      TraceBackService.trace(e);
+      throw new RuntimeException(e);
+    }
+  }
+
+  protected ExecutorService getExecutor(Sequence sequence) {
+    return executorList.get(Math.floorMod(sequence.getId().hashCode(), executorList.size()));
+  }
+
+  /**
+   * Get the next number of the sequence version. If the sequence reserves numbers by block, the
+   * number is taken from the block reserved in memory, and a new block is only reserved in database
+   * when it is empty. The block is dropped when the version was changed in database since it was
+   * reserved, by a user or by another server. Must be called from the executor of the sequence.
+   *
+   * @param sequence
+   * @param sequenceVersion
+   * @return
+   */
+  protected long nextNum(Sequence sequence, SequenceVersion sequenceVersion) {
+    int blockSize = sequence.getReservedBlockSize();
+
+    if (blockSize <= 1) {
+      return reserveNums(sequence, sequenceVersion, 1);
+    }
+
+    NumberBlock numberBlock =
+        sequenceVersion.getId() != null ? numberBlockMap.get(sequenceVersion.getId()) : null;
+
+    if (numberBlock != null && !numberBlock.isEmpty()) {
+      // The executor keeps its entity manager, which would not see the changes of the version
+      JPA.em().refresh(sequenceVersion);
+    }
+
+    if (numberBlock == null
+        || numberBlock.isEmpty()
+        || !numberBlock.isReservedBy(sequenceVersion, sequence.getToBeAdded())) {
+      long firstNum = reserveNums(sequence, sequenceVersion, blockSize);
+      numberBlock =
+          new NumberBlock(
+              firstNum, blockSize, sequence.getToBeAdded(), sequenceVersion.getVersion());
+      numberBlockMap.put(sequenceVersion.getId(), numberBlock);
+    }
+
+    return numberBlock.next();
+  }
+
+  /**
+   * Reserve numbers of the sequence version in database, in a transaction of their own.
+   *
+   * @param sequence
+   * @param sequenceVersion
+   * @param count the count of numbers to reserve
+   * @return the first reserved number
+   */
+  protected long reserveNums(Sequence sequence, SequenceVersion sequenceVersion, int count) {
+    long firstNum = sequenceVersion.getNextNum();
+    JPA.runInTransaction(
+        () -> {
+          sequenceVersion.setNextNum(firstNum + (long) sequence.getToBeAdded() * count);
+          if (sequenceVersion.getId() == null) {
+            sequenceVersionRepository.save(sequenceVersion);
+          }
+        });
+    return firstNum;
+  }
+
+  private String computeNextSeq(long nextNum, Sequence sequence, LocalDate refDate) {
+
+    String sequenceValue;
 
     if (sequence.getSequenceTypeSelect() == SequenceTypeSelect.NUMBERS) {
       sequenceValue =
-          StringUtils.leftPad(
-              sequenceVersion.getNextNum().toString(), sequence.getPadding(), PADDING_STRING);
+          StringUtils.leftPad(Long.toString(nextNum), sequence.getPadding(), PADDING_STRING);
     } else {
-      sequenceValue = findNextLetterSequence(sequenceVersion);
+      sequenceValue = findNextLetterSequence(nextNum, sequence);
     }
     String nextSeq =
-        (seqPrefixe + sequenceValue + seqSuffixe)
-            .replaceAll(PATTERN_FULL_YEAR, Integer.toString(refDate.get(ChronoField.YEAR_OF_ERA)))
-            .replaceAll(PATTERN_YEAR, refDate.format(DateTimeFormatter.ofPattern("yy")))
-            .replaceAll(PATTERN_MONTH, Integer.toString(refDate.getMonthValue()))
-            .replaceAll(PATTERN_FULL_MONTH, refDate.format(DateTimeFormatter.ofPattern("MM")))
-            .replaceAll(PATTERN_DAY, Integer.toString(refDate.getDayOfMonth()))
-            .replaceAll(
-                PATTERN_WEEK, Integer.toString(refDate.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR)));
+        getPattern(sequence.getPrefixe()).render(refDate)
+            + sequenceValue
+            + getPattern(sequence.getSuffixe()).render(refDate);
 
     log.debug("nextSeq : : : : {}", nextSeq);
 
     return nextSeq;
   }
 
-  private String findNextLetterSequence(SequenceVersion sequenceVersion) {
-    long n = sequenceVersion.getNextNum();
+  protected SequencePattern getPattern(String pattern) {
+    return patternMap.computeIfAbsent(StringUtils.defaultString(pattern, ""), SequencePattern::new);
+  }
+
+  private String findNextLetterSequence(long n, Sequence sequence) {
     char[] buf = new char[(int) Math.floor(Math.log(25 * (n + 1)) / Math.log(26))];
     for (int i = buf.length - 1; i >= 0; i--) {
       n--;
       buf[i] = (char) ('A' + n % 26);
       n /= 26;
     }
-    if (sequenceVersion.getSequence().getSequenceLettersTypeSelect()
-        == SequenceLettersTypeSelect.UPPERCASE) {
+    if (sequence.getSequenceLettersTypeSelect() == SequenceLettersTypeSelect.UPPERCASE) {
       return new String(buf);
     }
     return new String(buf).toLowerCase();
@@ -410,7 +521,132 @@ public class SequenceService {
    */
   protected void onApplicationShutdown(@Observes ShutdownEvent event) {
     log.debug("Shutting down sequence executor..");
-    executor.shutdown();
+    executorList.forEach(ExecutorService::shutdown);
     log.debug("Sequence executor stopped.");
   }
+
+  /** A block of numbers reserved in database and handed out from memory. */
+  protected static class NumberBlock {
+
+    private long nextNum;
+    private final long endNum;
+    private final int increment;
+
+    /** The version of the sequence version row once the block was reserved. */
+    private final Integer version;
+
+    public NumberBlock(long firstNum, int count, int increment, Integer version) {
+      this.nextNum = firstNum;
+      this.endNum = firstNum + (long) increment * count;
+      this.increment = increment;
+      this.version = version;
+    }
+
+    public boolean isEmpty() {
+      return nextNum >= endNum;
+    }
+
+    /**
+     * Whether the sequence version is still as this block left it: a user changing its next number
+     * or another server reserving numbers updates its row.
+     *
+     * @param sequenceVersion the sequence version, as read in database
+     * @param increment the current increment of the sequence
+     * @return true if the remaining numbers of the block can be handed out
+     */
+    public boolean isReservedBy(SequenceVersion sequenceVersion, int increment) {
+      return this.increment == increment
+          && sequenceVersion.getNextNum() == endNum
+          && Objects.equals(sequenceVersion.getVersion(), version);
+    }
+
+    public long next() {
+      long num = nextNum;
+      nextNum += increment;
+      return num;
+    }
+  }
+
+  /**
+   * A prefix or a suffix split once into its literal parts and its date tags, so that it is
+   * rendered without scanning it for every tag.
+   */
+  protected static class SequencePattern {
+
+    private static final DateTimeFormatter YEAR_FORMATTER = DateTimeFormatter.ofPattern("yy");
+    private static final DateTimeFormatter FULL_MONTH_FORMATTER = DateTimeFormatter.ofPattern("MM");
+
+    /** The tags, longest first when a tag starts with another one. */
+    private static final List<String> TAGS =
+        Arrays.asList(
+            PATTERN_FULL_YEAR,
+            PATTERN_YEAR,
+            PATTERN_FULL_MONTH,
+            PATTERN_MONTH,
+            PATTERN_DAY,
+            PATTERN_WEEK);
+
+    /** Literal strings, and tags among {@link #TAGS}. */
+    private final List<String> partList = new ArrayList<>();
+
+    public SequencePattern(String pattern) {
+      StringBuilder literal = new StringBuilder();
+      int i = 0;
+      while (i < pattern.length()) {
+        String tag = findTag(pattern, i);
+        if (tag == null) {
+          literal.append(pattern.charAt(i++));
+          continue;
+        }
+        if (literal.length() > 0) {
+          partList.add(literal.toString());
+          literal.setLength(0);
+        }
+        partList.add(tag);
+        i += tag.length();
+      }
+      if (literal.length() > 0) {
+        partList.add(literal.toString());
+      }
+    }
+
+    private static String findTag(String pattern, int index) {
+      if (pattern.charAt(index) != '%') {
+        return null;
+      }
+      for (String tag : TAGS) {
+        if (pattern.startsWith(tag, index)) {
+          return tag;
+        }
+      }
+      return null;
+    }
+
+    public String render(LocalDate refDate) {
+      StringBuilder sb = new StringBuilder();
+      for (String part : partList) {
+        sb.append(renderPart(part, refDate));
+      }
+      return sb.toString();
+    }
+
+    private static String renderPart(String part, LocalDate refDate) {
+      switch (part) {
+        case PATTERN_FULL_YEAR:
+          return Integer.toString(refDate.get(ChronoField.YEAR_OF_ERA));
+        case PATTERN_YEAR:
+          return refDate.format(YEAR_FORMATTER);
+        case PATTERN_FULL_MONTH:
+          return refDate.format(FULL_MONTH_FORMATTER);
+        case PATTERN_MONTH:
+          return Integer.toString(refDate.getMonthValue());
+        case PATTERN_DAY:
+          return Integer.toString(refDate.getDayOfMonth());
+        case PATTERN_WEEK:
+          return Integer.toString(refDate.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR));
+        default:
+          return part;
+      }
+    }
+  }
 }
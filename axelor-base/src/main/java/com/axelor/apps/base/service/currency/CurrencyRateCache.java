@@ -0,0 +1,197 @@
+/*
+ * Axelor Business Solutions
+ *
+ * Copyright (C) 2021 Axelor (<http://axelor.com>).
+ *
+ * This program is free software: you can redistribute it and/or  modify
+ * it under the terms of the GNU Affero General Public License, version 3,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.axelor.apps.base.service.currency;
+
+import com.axelor.apps.base.db.Currency;
+import com.axelor.apps.base.db.CurrencyConversionLine;
+import com.axelor.apps.base.service.app.AppBaseService;
+import com.axelor.inject.Beans;
+import com.google.inject.Singleton;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Keeps the currency conversion lines of the application in memory, indexed by currency pair and
+ * sorted by start date, so that the rate at a date is found without scanning every line. The index
+ * is cleared by {@link #invalidate()} once a transaction changing a currency conversion line ends.
+ */
+@Singleton
+public class CurrencyRateCache {
+
+  private Map<List<Long>, CurrencyRateIndex> rateIndexMap;
+
+  /**
+   * Get the rate to convert from the start currency to the end currency at the given date. A line
+   * defined from the start currency to the end currency is used first, otherwise the rate of a
+   * line defined the other way round is returned as inverse.
+   *
+   * @param startCurrency
+   * @param endCurrency
+   * @param date
+   * @return the rate, or null if no line is valid at the date.
+   */
+  public CurrencyRate getCurrencyRate(
+      Currency startCurrency, Currency endCurrency, LocalDate date) {
+    CurrencyRateIndex rateIndex =
+        getRateIndexMap().get(Arrays.asList(startCurrency.getId(), endCurrency.getId()));
+    return rateIndex != null ? rateIndex.getCurrencyRate(date) : null;
+  }
+
+  public synchronized void invalidate() {
+    rateIndexMap = null;
+  }
+
+  protected synchronized Map<List<Long>, CurrencyRateIndex> getRateIndexMap() {
+    if (rateIndexMap == null) {
+      rateIndexMap =
+          this.buildRateIndexMap(
+              Beans.get(AppBaseService.class).getCurrencyConfigurationLineList());
+    }
+    return rateIndexMap;
+  }
+
+  protected Map<List<Long>, CurrencyRateIndex> buildRateIndexMap(
+      List<CurrencyConversionLine> currencyConversionLineList) {
+    Map<List<Long>, CurrencyRateIndex> indexMap = new HashMap<>();
+
+    if (currencyConversionLineList == null) {
+      return indexMap;
+    }
+
+    for (CurrencyConversionLine ccl : currencyConversionLineList) {
+      Long startCurrencyId = ccl.getStartCurrency().getId();
+      Long endCurrencyId = ccl.getEndCurrency().getId();
+
+      indexMap
+          .computeIfAbsent(
+              Arrays.asList(startCurrencyId, endCurrencyId), key -> new CurrencyRateIndex())
+          .directRateMap
+          .putIfAbsent(ccl.getFromDate(), new CurrencyRate(ccl, false));
+      indexMap
+          .computeIfAbsent(
+              Arrays.asList(endCurrencyId, startCurrencyId), key -> new CurrencyRateIndex())
+          .inverseRateMap
+          .putIfAbsent(ccl.getFromDate(), new CurrencyRate(ccl, true));
+    }
+
+    indexMap.values().forEach(CurrencyRateIndex::buildValidityMaps);
+
+    return indexMap;
+  }
+
+  /** The exchange rate of a currency conversion line, read in one direction or the other. */
+  public static class CurrencyRate {
+
+    protected final LocalDate fromDate;
+    protected final LocalDate toDate;
+    protected final BigDecimal exchangeRate;
+    protected final boolean inverse;
+
+    protected CurrencyRate(CurrencyConversionLine ccl, boolean inverse) {
+      this.fromDate = ccl.getFromDate();
+      this.toDate = ccl.getToDate();
+      this.exchangeRate = ccl.getExchangeRate();
+      this.inverse = inverse;
+    }
+
+    public BigDecimal getExchangeRate() {
+      return exchangeRate;
+    }
+
+    public boolean isInverse() {
+      return inverse;
+    }
+
+    protected boolean isValid(LocalDate date) {
+      return !fromDate.isAfter(date) && (toDate == null || !toDate.isBefore(date));
+    }
+  }
+
+  /** The rates of a currency pair, sorted by start date. */
+  protected static class CurrencyRateIndex {
+
+    protected final TreeMap<LocalDate, CurrencyRate> directRateMap = new TreeMap<>();
+    protected final TreeMap<LocalDate, CurrencyRate> inverseRateMap = new TreeMap<>();
+
+    /** The rate valid from each date on, or null from the dates no rate is valid. */
+    protected TreeMap<LocalDate, CurrencyRate> directValidityMap;
+
+    protected TreeMap<LocalDate, CurrencyRate> inverseValidityMap;
+
+    protected void buildValidityMaps() {
+      directValidityMap = buildValidityMap(directRateMap);
+      inverseValidityMap = buildValidityMap(inverseRateMap);
+    }
+
+    protected CurrencyRate getCurrencyRate(LocalDate date) {
+      CurrencyRate currencyRate = findValidRate(directValidityMap, date);
+      return currencyRate != null ? currencyRate : findValidRate(inverseValidityMap, date);
+    }
+
+    protected CurrencyRate findValidRate(
+        NavigableMap<LocalDate, CurrencyRate> validityMap, LocalDate date) {
+      Map.Entry<LocalDate, CurrencyRate> entry = validityMap.floorEntry(date);
+      return entry != null ? entry.getValue() : null;
+    }
+
+    /**
+     * Split the time into the periods where the same rate is valid, so that the rate of a date is
+     * found with a single lookup. The valid rate only changes on the start date of a rate or on the
+     * day after its end date.
+     */
+    protected TreeMap<LocalDate, CurrencyRate> buildValidityMap(
+        NavigableMap<LocalDate, CurrencyRate> rateMap) {
+      TreeSet<LocalDate> dateSet = new TreeSet<>();
+
+      for (CurrencyRate currencyRate : rateMap.values()) {
+        dateSet.add(currencyRate.fromDate);
+        if (currencyRate.toDate != null && currencyRate.toDate.isBefore(LocalDate.MAX)) {
+          dateSet.add(currencyRate.toDate.plusDays(1));
+        }
+      }
+
+      TreeMap<LocalDate, CurrencyRate> validityMap = new TreeMap<>();
+      for (LocalDate date : dateSet) {
+        validityMap.put(date, findCurrencyRate(rateMap, date));
+      }
+      return validityMap;
+    }
+
+    /**
+     * Find the rate valid at the date. The lines of a pair are not supposed to overlap, so the rate
+     * starting last before the date is usually the right one; earlier rates are only checked when
+     * it is already closed at the date.
+     */
+    protected CurrencyRate findCurrencyRate(
+        NavigableMap<LocalDate, CurrencyRate> rateMap, LocalDate date) {
+      for (CurrencyRate currencyRate : rateMap.headMap(date, true).descendingMap().values()) {
+        if (currencyRate.isValid(date)) {
+          return currencyRate;
+        }
+      }
+      return null;
+    }
+  }
+}
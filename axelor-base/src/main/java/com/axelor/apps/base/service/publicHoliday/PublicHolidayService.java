@@ -18,28 +18,29 @@
 package com.axelor.apps.base.service.publicHoliday;
 
 import com.axelor.apps.base.db.EventsPlanning;
-import com.axelor.apps.base.db.EventsPlanningLine;
 import com.axelor.apps.base.db.WeeklyPlanning;
 import com.axelor.apps.base.db.repo.EventsPlanningLineRepository;
 import com.axelor.apps.base.service.weeklyplanning.WeeklyPlanningService;
-import com.axelor.common.ObjectUtils;
+import com.axelor.apps.base.service.weeklyplanning.WorkingCalendarService;
 import com.google.inject.Inject;
 import java.math.BigDecimal;
 import java.time.LocalDate;
-import java.util.List;
 
 public class PublicHolidayService {
 
   protected WeeklyPlanningService weeklyPlanningService;
   protected EventsPlanningLineRepository eventsPlanningLineRepo;
+  protected WorkingCalendarService workingCalendarService;
 
   @Inject
   public PublicHolidayService(
       WeeklyPlanningService weeklyPlanningService,
-      EventsPlanningLineRepository eventsPlanningLineRepo) {
+      EventsPlanningLineRepository eventsPlanningLineRepo,
+      WorkingCalendarService workingCalendarService) {
 
     this.weeklyPlanningService = weeklyPlanningService;
     this.eventsPlanningLineRepo = eventsPlanningLineRepo;
+    this.workingCalendarService = workingCalendarService;
   }
 
   public BigDecimal computePublicHolidayDays(
@@ -47,25 +48,8 @@ public class PublicHolidayService {
       LocalDate toDate,
       WeeklyPlanning weeklyPlanning,
       EventsPlanning publicHolidayPlanning) {
-    BigDecimal publicHolidayDays = BigDecimal.ZERO;
-
-    List<EventsPlanningLine> publicHolidayDayList =
-        eventsPlanningLineRepo
-            .all()
-            .filter(
-                "self.eventsPlanning = ?1 AND self.date BETWEEN ?2 AND ?3",
-                publicHolidayPlanning,
-                fromDate,
-                toDate)
-            .fetch();
-    for (EventsPlanningLine publicHolidayDay : publicHolidayDayList) {
-      publicHolidayDays =
-          publicHolidayDays.add(
-              BigDecimal.valueOf(
-                  weeklyPlanningService.getWorkingDayValueInDays(
-                      weeklyPlanning, publicHolidayDay.getDate())));
-    }
-    return publicHolidayDays;
+    return workingCalendarService.getPublicHolidayDays(
+        weeklyPlanning, publicHolidayPlanning, fromDate, toDate);
   }
 
   /**
@@ -76,17 +60,6 @@ public class PublicHolidayService {
    * @return
    */
   public boolean checkPublicHolidayDay(LocalDate date, EventsPlanning publicHolidayEventsPlanning) {
-
-    if (publicHolidayEventsPlanning == null) {
-      return false;
-    }
-
-    List<EventsPlanningLine> publicHolidayDayList =
-        eventsPlanningLineRepo
-            .all()
-            .filter(
-                "self.eventsPlanning = ?1 AND self.date = ?2", publicHolidayEventsPlanning, date)
-            .fetch();
-    return ObjectUtils.notEmpty(publicHolidayDayList);
+    return workingCalendarService.isPublicHoliday(date, publicHolidayEventsPlanning);
   }
 }
@@ -0,0 +1,120 @@
+/*
+ * Axelor Business Solutions
+ *
+ * Copyright (C) 2021 Axelor (<http://axelor.com>).
+ *
+ * This program is free software: you can redistribute it and/or  modify
+ * it under the terms of the GNU Affero General Public License, version 3,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.axelor.apps.base.service.weeklyplanning;
+
+import com.axelor.apps.base.db.EventsPlanning;
+import com.axelor.apps.base.db.WeeklyPlanning;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * Combines a weekly planning and a public holiday events planning into a working calendar. The
+ * public holidays and the working value of each day are computed once per year and kept in memory,
+ * so that counting the working days between two dates does not need to iterate over the days nor to
+ * query the public holidays day by day.
+ */
+public interface WorkingCalendarService {
+
+  /**
+   * Returns true if the given date is a public holiday in the given public holiday events planning.
+   *
+   * @param date
+   * @param publicHolidayPlanning
+   * @return
+   */
+  boolean isPublicHoliday(LocalDate date, EventsPlanning publicHolidayPlanning);
+
+  /**
+   * Computes the sum of the working values of the days between the given dates, according to the
+   * weekly planning only.
+   *
+   * @param weeklyPlanning
+   * @param fromDate the first day, included.
+   * @param toDate the last day, included.
+   * @return the number of days, or zero if the last day is before the first one.
+   */
+  BigDecimal getPlannedDays(WeeklyPlanning weeklyPlanning, LocalDate fromDate, LocalDate toDate);
+
+  /**
+   * Computes the sum of the working values, according to the weekly planning, of the public
+   * holidays between the given dates.
+   *
+   * @param weeklyPlanning
+   * @param publicHolidayPlanning
+   * @param fromDate the first day, included.
+   * @param toDate the last day, included.
+   * @return the number of days, or zero if the last day is before the first one.
+   */
+  BigDecimal getPublicHolidayDays(
+      WeeklyPlanning weeklyPlanning,
+      EventsPlanning publicHolidayPlanning,
+      LocalDate fromDate,
+      LocalDate toDate);
+
+  /**
+   * Computes the sum of the working values of the days between the given dates which are not public
+   * holidays.
+   *
+   * @param weeklyPlanning
+   * @param publicHolidayPlanning
+   * @param fromDate the first day, included.
+   * @param toDate the last day, included.
+   * @return the number of days, or zero if the last day is before the first one.
+   */
+  BigDecimal getWorkingDays(
+      WeeklyPlanning weeklyPlanning,
+      EventsPlanning publicHolidayPlanning,
+      LocalDate fromDate,
+      LocalDate toDate);
+
+  /**
+   * Computes the sum of the working hours of the days between the given dates which are not public
+   * holidays.
+   *
+   * @param weeklyPlanning
+   * @param publicHolidayPlanning
+   * @param fromDate the first day, included.
+   * @param toDate the last day, included.
+   * @return the number of hours, or zero if the last day is before the first one.
+   */
+  BigDecimal getWorkingHours(
+      WeeklyPlanning weeklyPlanning,
+      EventsPlanning publicHolidayPlanning,
+      LocalDate fromDate,
+      LocalDate toDate);
+
+  /**
+   * Gets the date reached by adding the given number of working days to a date. A working day is a
+   * day with a working value in the weekly planning which is not a public holiday.
+   *
+   * @param weeklyPlanning
+   * @param publicHolidayPlanning
+   * @param date the start date, not counted.
+   * @param days the number of working days to add.
+   * @return the date of the last working day added, the start date if no day is added, or null if
+   *     the weekly planning has no working day.
+   */
+  LocalDate plusWorkingDays(
+      WeeklyPlanning weeklyPlanning,
+      EventsPlanning publicHolidayPlanning,
+      LocalDate date,
+      int days);
+
+  /** Clears the calendars kept in memory. */
+  void invalidate();
+}
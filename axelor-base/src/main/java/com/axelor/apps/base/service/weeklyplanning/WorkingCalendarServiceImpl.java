@@ -0,0 +1,354 @@
+/*
+ * Axelor Business Solutions
+ *
+ * Copyright (C) 2021 Axelor (<http://axelor.com>).
+ *
+ * This program is free software: you can redistribute it and/or  modify
+ * it under the terms of the GNU Affero General Public License, version 3,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.axelor.apps.base.service.weeklyplanning;
+
+import com.axelor.apps.base.db.EventsPlanning;
+import com.axelor.apps.base.db.EventsPlanningLine;
+import com.axelor.apps.base.db.WeeklyPlanning;
+import com.axelor.db.JPA;
+import com.axelor.db.Model;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.math.BigDecimal;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps in memory, for each public holiday events planning and year, the public holidays as a set
+ * of days of the year, and for each weekly planning, public holiday events planning and year, the
+ * cumulated working values of the days. The working days between two dates are then the
+ * difference of two cumulated values. The calendars are cleared by {@link #invalidate()} once a
+ * transaction changing a weekly planning, a day planning or an events planning line ends.
+ */
+@Singleton
+public class WorkingCalendarServiceImpl implements WorkingCalendarService {
+
+  protected WeeklyPlanningService weeklyPlanningService;
+
+  private volatile Map<List<Long>, BitSet> publicHolidayMap = new ConcurrentHashMap<>();
+
+  private volatile Map<List<Long>, YearCalendar> yearCalendarMap = new ConcurrentHashMap<>();
+
+  @Inject
+  public WorkingCalendarServiceImpl(WeeklyPlanningService weeklyPlanningService) {
+    this.weeklyPlanningService = weeklyPlanningService;
+  }
+
+  @Override
+  public boolean isPublicHoliday(LocalDate date, EventsPlanning publicHolidayPlanning) {
+    return publicHolidayPlanning != null
+        && getPublicHolidaySet(publicHolidayPlanning, date.getYear()).get(date.getDayOfYear() - 1);
+  }
+
+  @Override
+  public BigDecimal getPlannedDays(
+      WeeklyPlanning weeklyPlanning, LocalDate fromDate, LocalDate toDate) {
+    return sum(weeklyPlanning, null, fromDate, toDate, YearCalendar::getPlannedDays);
+  }
+
+  @Override
+  public BigDecimal getPublicHolidayDays(
+      WeeklyPlanning weeklyPlanning,
+      EventsPlanning publicHolidayPlanning,
+      LocalDate fromDate,
+      LocalDate toDate) {
+    if (publicHolidayPlanning == null) {
+      return BigDecimal.ZERO;
+    }
+    return sum(
+        weeklyPlanning,
+        publicHolidayPlanning,
+        fromDate,
+        toDate,
+        YearCalendar::getPublicHolidayDays);
+  }
+
+  @Override
+  public BigDecimal getWorkingDays(
+      WeeklyPlanning weeklyPlanning,
+      EventsPlanning publicHolidayPlanning,
+      LocalDate fromDate,
+      LocalDate toDate) {
+    return sum(
+        weeklyPlanning, publicHolidayPlanning, fromDate, toDate, YearCalendar::getWorkingDays);
+  }
+
+  @Override
+  public BigDecimal getWorkingHours(
+      WeeklyPlanning weeklyPlanning,
+      EventsPlanning publicHolidayPlanning,
+      LocalDate fromDate,
+      LocalDate toDate) {
+    return sum(
+        weeklyPlanning, publicHolidayPlanning, fromDate, toDate, YearCalendar::getWorkingHours);
+  }
+
+  @Override
+  public LocalDate plusWorkingDays(
+      WeeklyPlanning weeklyPlanning,
+      EventsPlanning publicHolidayPlanning,
+      LocalDate date,
+      int days) {
+    if (days <= 0) {
+      return date;
+    }
+
+    int year = date.getYear();
+    int fromIndex = date.getDayOfYear();
+    int remainingDays = days;
+
+    while (true) {
+      YearCalendar calendar = getYearCalendar(weeklyPlanning, publicHolidayPlanning, year);
+      if (calendar.getWorkingDayCount(0, calendar.length) == 0) {
+        return null;
+      }
+
+      int dayOfYear = calendar.findWorkingDay(fromIndex, remainingDays);
+      if (dayOfYear > 0) {
+        return LocalDate.ofYearDay(year, dayOfYear);
+      }
+
+      remainingDays -= calendar.getWorkingDayCount(fromIndex, calendar.length);
+      fromIndex = 0;
+      year++;
+    }
+  }
+
+  @Override
+  public void invalidate() {
+    publicHolidayMap = new ConcurrentHashMap<>();
+    yearCalendarMap = new ConcurrentHashMap<>();
+  }
+
+  protected BigDecimal sum(
+      WeeklyPlanning weeklyPlanning,
+      EventsPlanning publicHolidayPlanning,
+      LocalDate fromDate,
+      LocalDate toDate,
+      RangeSum rangeSum) {
+    BigDecimal sum = BigDecimal.ZERO;
+
+    if (toDate.isBefore(fromDate)) {
+      return sum;
+    }
+
+    for (int year = fromDate.getYear(); year <= toDate.getYear(); year++) {
+      YearCalendar calendar = getYearCalendar(weeklyPlanning, publicHolidayPlanning, year);
+      int fromIndex = year == fromDate.getYear() ? fromDate.getDayOfYear() - 1 : 0;
+      int toIndex = year == toDate.getYear() ? toDate.getDayOfYear() : calendar.length;
+      sum = sum.add(rangeSum.apply(calendar, fromIndex, toIndex));
+    }
+    return sum;
+  }
+
+  protected YearCalendar getYearCalendar(
+      WeeklyPlanning weeklyPlanning, EventsPlanning publicHolidayPlanning, int year) {
+    if (isTransient(weeklyPlanning) || isTransient(publicHolidayPlanning)) {
+      return buildYearCalendar(weeklyPlanning, publicHolidayPlanning, year);
+    }
+    List<Long> key =
+        Arrays.asList(getId(weeklyPlanning), getId(publicHolidayPlanning), (long) year);
+    return yearCalendarMap.computeIfAbsent(
+        key, k -> buildYearCalendar(weeklyPlanning, publicHolidayPlanning, year));
+  }
+
+  protected YearCalendar buildYearCalendar(
+      WeeklyPlanning weeklyPlanning, EventsPlanning publicHolidayPlanning, int year) {
+    LocalDate firstDay = LocalDate.ofYearDay(year, 1);
+    Map<DayOfWeek, BigDecimal> dayValueMap = new EnumMap<>(DayOfWeek.class);
+    Map<DayOfWeek, BigDecimal> dayHoursMap = new EnumMap<>(DayOfWeek.class);
+
+    for (int i = 0; i < DayOfWeek.values().length; i++) {
+      LocalDate date = firstDay.plusDays(i);
+      if (weeklyPlanning != null) {
+        dayValueMap.put(
+            date.getDayOfWeek(),
+            BigDecimal.valueOf(
+                weeklyPlanningService.getWorkingDayValueInDays(weeklyPlanning, date)));
+        dayHoursMap.put(
+            date.getDayOfWeek(),
+            weeklyPlanningService.getWorkingDayValueInHours(weeklyPlanning, date, null, null));
+      } else {
+        dayValueMap.put(date.getDayOfWeek(), BigDecimal.ZERO);
+        dayHoursMap.put(date.getDayOfWeek(), BigDecimal.ZERO);
+      }
+    }
+
+    BitSet publicHolidaySet =
+        publicHolidayPlanning != null
+            ? getPublicHolidaySet(publicHolidayPlanning, year)
+            : new BitSet();
+
+    return new YearCalendar(firstDay, dayValueMap, dayHoursMap, publicHolidaySet);
+  }
+
+  protected BitSet getPublicHolidaySet(EventsPlanning publicHolidayPlanning, int year) {
+    if (isTransient(publicHolidayPlanning)) {
+      return buildPublicHolidaySet(publicHolidayPlanning, year);
+    }
+    return publicHolidayMap.computeIfAbsent(
+        Arrays.asList(publicHolidayPlanning.getId(), (long) year),
+        key -> buildPublicHolidaySet(publicHolidayPlanning, year));
+  }
+
+  protected BitSet buildPublicHolidaySet(EventsPlanning publicHolidayPlanning, int year) {
+    BitSet publicHolidaySet = new BitSet();
+
+    if (isTransient(publicHolidayPlanning)) {
+      if (publicHolidayPlanning.getEventsPlanningLineList() != null) {
+        for (EventsPlanningLine eventsPlanningLine :
+            publicHolidayPlanning.getEventsPlanningLineList()) {
+          LocalDate date = eventsPlanningLine.getDate();
+          if (date != null && date.getYear() == year) {
+            publicHolidaySet.set(date.getDayOfYear() - 1);
+          }
+        }
+      }
+      return publicHolidaySet;
+    }
+
+    List<LocalDate> dateList =
+        JPA.em()
+            .createQuery(
+                "SELECT self.date FROM EventsPlanningLine self "
+                    + "WHERE self.eventsPlanning.id = :eventsPlanningId "
+                    + "AND self.date BETWEEN :fromDate AND :toDate",
+                LocalDate.class)
+            .setParameter("eventsPlanningId", publicHolidayPlanning.getId())
+            .setParameter("fromDate", LocalDate.ofYearDay(year, 1))
+            .setParameter("toDate", LocalDate.of(year, 12, 31))
+            .getResultList();
+
+    for (LocalDate date : dateList) {
+      publicHolidaySet.set(date.getDayOfYear() - 1);
+    }
+    return publicHolidaySet;
+  }
+
+  protected boolean isTransient(Model model) {
+    return model != null && model.getId() == null;
+  }
+
+  protected Long getId(Model model) {
+    return model != null ? model.getId() : 0L;
+  }
+
+  @FunctionalInterface
+  protected interface RangeSum {
+    BigDecimal apply(YearCalendar calendar, int fromIndex, int toIndex);
+  }
+
+  /**
+   * The days of a year, with cumulated values: the value at index {@code i} is the sum over the
+   * first {@code i} days of the year, so that the sum over the days from {@code fromIndex} included
+   * to {@code toIndex} excluded is the difference of two values.
+   */
+  protected static class YearCalendar {
+
+    protected final int length;
+    protected final BigDecimal[] plannedDaySum;
+    protected final BigDecimal[] publicHolidayDaySum;
+    protected final BigDecimal[] workingHourSum;
+    protected final int[] workingDayCount;
+
+    protected YearCalendar(
+        LocalDate firstDay,
+        Map<DayOfWeek, BigDecimal> dayValueMap,
+        Map<DayOfWeek, BigDecimal> dayHoursMap,
+        BitSet publicHolidaySet) {
+      length = firstDay.lengthOfYear();
+      plannedDaySum = new BigDecimal[length + 1];
+      publicHolidayDaySum = new BigDecimal[length + 1];
+      workingHourSum = new BigDecimal[length + 1];
+      workingDayCount = new int[length + 1];
+
+      plannedDaySum[0] = BigDecimal.ZERO;
+      publicHolidayDaySum[0] = BigDecimal.ZERO;
+      workingHourSum[0] = BigDecimal.ZERO;
+
+      DayOfWeek dayOfWeek = firstDay.getDayOfWeek();
+      for (int i = 0; i < length; i++) {
+        BigDecimal dayValue = dayValueMap.get(dayOfWeek);
+        boolean publicHoliday = publicHolidaySet.get(i);
+
+        plannedDaySum[i + 1] = plannedDaySum[i].add(dayValue);
+        if (publicHoliday) {
+          publicHolidayDaySum[i + 1] = publicHolidayDaySum[i].add(dayValue);
+          workingHourSum[i + 1] = workingHourSum[i];
+          workingDayCount[i + 1] = workingDayCount[i];
+        } else {
+          publicHolidayDaySum[i + 1] = publicHolidayDaySum[i];
+          workingHourSum[i + 1] = workingHourSum[i].add(dayHoursMap.get(dayOfWeek));
+          workingDayCount[i + 1] = workingDayCount[i] + (dayValue.signum() > 0 ? 1 : 0);
+        }
+        dayOfWeek = dayOfWeek.plus(1);
+      }
+    }
+
+    protected BigDecimal getPlannedDays(int fromIndex, int toIndex) {
+      return plannedDaySum[toIndex].subtract(plannedDaySum[fromIndex]);
+    }
+
+    protected BigDecimal getPublicHolidayDays(int fromIndex, int toIndex) {
+      return publicHolidayDaySum[toIndex].subtract(publicHolidayDaySum[fromIndex]);
+    }
+
+    protected BigDecimal getWorkingDays(int fromIndex, int toIndex) {
+      return getPlannedDays(fromIndex, toIndex).subtract(getPublicHolidayDays(fromIndex, toIndex));
+    }
+
+    protected BigDecimal getWorkingHours(int fromIndex, int toIndex) {
+      return workingHourSum[toIndex].subtract(workingHourSum[fromIndex]);
+    }
+
+    protected int getWorkingDayCount(int fromIndex, int toIndex) {
+      return workingDayCount[toIndex] - workingDayCount[fromIndex];
+    }
+
+    /**
+     * Finds the day of the year of the n-th working day after the given index, by binary search on
+     * the cumulated working day count.
+     *
+     * @return the day of the year, or -1 if the year does not have enough working days left.
+     */
+    protected int findWorkingDay(int fromIndex, int n) {
+      int target = workingDayCount[fromIndex] + n;
+      if (workingDayCount[length] < target) {
+        return -1;
+      }
+
+      int low = fromIndex + 1;
+      int high = length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (workingDayCount[mid] < target) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+}
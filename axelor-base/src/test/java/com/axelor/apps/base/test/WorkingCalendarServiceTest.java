@@ -0,0 +1,302 @@
+/*
+ * Axelor Business Solutions
+ *
+ * Copyright (C) 2021 Axelor (<http://axelor.com>).
+ *
+ * This program is free software: you can redistribute it and/or  modify
+ * it under the terms of the GNU Affero General Public License, version 3,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.axelor.apps.base.test;
+
+import com.axelor.apps.base.db.DayPlanning;
+import com.axelor.apps.base.db.EventsPlanning;
+import com.axelor.apps.base.db.EventsPlanningLine;
+import com.axelor.apps.base.db.WeeklyPlanning;
+import com.axelor.apps.base.service.weeklyplanning.WeeklyPlanningService;
+import com.axelor.apps.base.service.weeklyplanning.WeeklyPlanningServiceImp;
+import com.axelor.apps.base.service.weeklyplanning.WorkingCalendarService;
+import com.axelor.apps.base.service.weeklyplanning.WorkingCalendarServiceImpl;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The plannings are not saved, so that the calendars are built from the plannings in memory
+ * without any database.
+ */
+public class WorkingCalendarServiceTest {
+
+  protected static final List<LocalDate> PUBLIC_HOLIDAY_LIST =
+      Arrays.asList(
+          LocalDate.of(2020, 12, 25),
+          LocalDate.of(2021, 1, 1),
+          LocalDate.of(2021, 1, 2),
+          LocalDate.of(2021, 1, 8));
+
+  protected WeeklyPlanningService weeklyPlanningService;
+  protected WorkingCalendarService workingCalendarService;
+
+  protected WeeklyPlanning fullDayPlanning;
+  protected WeeklyPlanning halfDayPlanning;
+  protected EventsPlanning publicHolidayPlanning;
+
+  @Before
+  public void prepare() {
+    weeklyPlanningService = new WeeklyPlanningServiceImp();
+    workingCalendarService = new WorkingCalendarServiceImpl(weeklyPlanningService);
+
+    fullDayPlanning =
+        createWeeklyPlanning(
+            createDayPlanning("monday", true, true),
+            createDayPlanning("tuesday", true, true),
+            createDayPlanning("wednesday", true, true),
+            createDayPlanning("thursday", true, true),
+            createDayPlanning("friday", true, true));
+
+    // Fridays are worked in the morning only and saturdays in the afternoon only
+    halfDayPlanning =
+        createWeeklyPlanning(
+            createDayPlanning("monday", true, true),
+            createDayPlanning("tuesday", true, true),
+            createDayPlanning("wednesday", true, true),
+            createDayPlanning("thursday", true, true),
+            createDayPlanning("friday", true, false),
+            createDayPlanning("saturday", false, true));
+
+    publicHolidayPlanning = new EventsPlanning();
+    publicHolidayPlanning.setName("Public holidays");
+    publicHolidayPlanning.setEventsPlanningLineList(new ArrayList<>());
+    for (LocalDate date : PUBLIC_HOLIDAY_LIST) {
+      EventsPlanningLine eventsPlanningLine = new EventsPlanningLine();
+      eventsPlanningLine.setEventsPlanning(publicHolidayPlanning);
+      eventsPlanningLine.setYear(date.getYear());
+      eventsPlanningLine.setDate(date);
+      publicHolidayPlanning.getEventsPlanningLineList().add(eventsPlanningLine);
+    }
+  }
+
+  protected DayPlanning createDayPlanning(String name, boolean morning, boolean afternoon) {
+    DayPlanning dayPlanning = new DayPlanning();
+    dayPlanning.setName(name);
+    if (morning) {
+      dayPlanning.setMorningFrom(LocalTime.of(8, 0));
+      dayPlanning.setMorningTo(LocalTime.of(12, 0));
+    }
+    if (afternoon) {
+      dayPlanning.setAfternoonFrom(LocalTime.of(13, 0));
+      dayPlanning.setAfternoonTo(LocalTime.of(16, 30));
+    }
+    return dayPlanning;
+  }
+
+  protected WeeklyPlanning createWeeklyPlanning(DayPlanning... dayPlannings) {
+    WeeklyPlanning weeklyPlanning = new WeeklyPlanning();
+    weeklyPlanning.setName("Weekly planning");
+    weeklyPlanning.setWeekDays(new ArrayList<>(Arrays.asList(dayPlannings)));
+    return weeklyPlanning;
+  }
+
+  /** The working days as they were computed before the calendar, one day at a time. */
+  protected BigDecimal computeWorkingDaysByDay(
+      WeeklyPlanning weeklyPlanning, LocalDate fromDate, LocalDate toDate) {
+    BigDecimal workingDays = BigDecimal.ZERO;
+    for (LocalDate date = fromDate; !date.isAfter(toDate); date = date.plusDays(1)) {
+      if (!PUBLIC_HOLIDAY_LIST.contains(date)) {
+        workingDays =
+            workingDays.add(
+                BigDecimal.valueOf(
+                    weeklyPlanningService.getWorkingDayValueInDays(weeklyPlanning, date)));
+      }
+    }
+    return workingDays;
+  }
+
+  /** The working hours as they were computed before the calendar, one day at a time. */
+  protected BigDecimal computeWorkingHoursByDay(
+      WeeklyPlanning weeklyPlanning, LocalDate fromDate, LocalDate toDate) {
+    BigDecimal workingHours = BigDecimal.ZERO;
+    for (LocalDate date = fromDate; !date.isAfter(toDate); date = date.plusDays(1)) {
+      if (!PUBLIC_HOLIDAY_LIST.contains(date)) {
+        workingHours =
+            workingHours.add(
+                weeklyPlanningService.getWorkingDayValueInHours(weeklyPlanning, date, null, null));
+      }
+    }
+    return workingHours;
+  }
+
+  /** The working days added to a date as they were before the calendar, one day at a time. */
+  protected LocalDate plusWorkingDaysByDay(
+      WeeklyPlanning weeklyPlanning, LocalDate date, int days) {
+    while (days > 0) {
+      date = date.plusDays(1);
+      if (weeklyPlanningService.getWorkingDayValueInDays(weeklyPlanning, date) != 0
+          && !PUBLIC_HOLIDAY_LIST.contains(date)) {
+        days--;
+      }
+    }
+    return date;
+  }
+
+  protected void assertDecimalEquals(BigDecimal expected, BigDecimal actual) {
+    Assert.assertTrue(expected + " != " + actual, expected.compareTo(actual) == 0);
+  }
+
+  @Test
+  public void testYearBoundary() {
+    LocalDate fromDate = LocalDate.of(2020, 12, 28);
+    LocalDate toDate = LocalDate.of(2021, 1, 8);
+
+    assertDecimalEquals(
+        BigDecimal.valueOf(10),
+        workingCalendarService.getPlannedDays(fullDayPlanning, fromDate, toDate));
+    assertDecimalEquals(
+        BigDecimal.valueOf(2),
+        workingCalendarService.getPublicHolidayDays(
+            fullDayPlanning, publicHolidayPlanning, fromDate, toDate));
+    assertDecimalEquals(
+        BigDecimal.valueOf(8),
+        workingCalendarService.getWorkingDays(
+            fullDayPlanning, publicHolidayPlanning, fromDate, toDate));
+    assertDecimalEquals(
+        BigDecimal.valueOf(60),
+        workingCalendarService.getWorkingHours(
+            fullDayPlanning, publicHolidayPlanning, fromDate, toDate));
+
+    // 2020 is a leap year starting on a wednesday
+    assertDecimalEquals(
+        BigDecimal.valueOf(262),
+        workingCalendarService.getPlannedDays(
+            fullDayPlanning, LocalDate.of(2020, 1, 1), LocalDate.of(2020, 12, 31)));
+    assertDecimalEquals(
+        BigDecimal.valueOf(523),
+        workingCalendarService.getPlannedDays(
+            fullDayPlanning, LocalDate.of(2020, 1, 1), LocalDate.of(2021, 12, 31)));
+
+    Assert.assertEquals(
+        LocalDate.of(2020, 12, 31),
+        workingCalendarService.plusWorkingDays(
+            fullDayPlanning, publicHolidayPlanning, LocalDate.of(2020, 12, 30), 1));
+    Assert.assertEquals(
+        LocalDate.of(2021, 1, 4),
+        workingCalendarService.plusWorkingDays(
+            fullDayPlanning, publicHolidayPlanning, LocalDate.of(2020, 12, 30), 2));
+    // The 261 working days of 2021, then the first one of 2022
+    Assert.assertEquals(
+        LocalDate.of(2022, 1, 3),
+        workingCalendarService.plusWorkingDays(
+            fullDayPlanning, null, LocalDate.of(2020, 12, 31), 262));
+  }
+
+  @Test
+  public void testZeroAndNegativeDays() {
+    LocalDate date = LocalDate.of(2020, 12, 31);
+
+    Assert.assertEquals(
+        date,
+        workingCalendarService.plusWorkingDays(fullDayPlanning, publicHolidayPlanning, date, 0));
+    Assert.assertEquals(
+        date,
+        workingCalendarService.plusWorkingDays(fullDayPlanning, publicHolidayPlanning, date, -3));
+
+    // The first and last days are included
+    assertDecimalEquals(
+        BigDecimal.ONE,
+        workingCalendarService.getWorkingDays(fullDayPlanning, publicHolidayPlanning, date, date));
+    assertDecimalEquals(
+        BigDecimal.ZERO,
+        workingCalendarService.getWorkingDays(
+            fullDayPlanning, publicHolidayPlanning, date, date.minusDays(1)));
+    assertDecimalEquals(
+        BigDecimal.ZERO,
+        workingCalendarService.getWorkingHours(
+            fullDayPlanning, publicHolidayPlanning, date, LocalDate.of(2020, 12, 1)));
+    assertDecimalEquals(
+        BigDecimal.ZERO,
+        workingCalendarService.getPlannedDays(fullDayPlanning, date, date.minusYears(1)));
+  }
+
+  @Test
+  public void testPublicHolidayOnStartDate() {
+    LocalDate date = LocalDate.of(2021, 1, 1);
+
+    Assert.assertTrue(workingCalendarService.isPublicHoliday(date, publicHolidayPlanning));
+    Assert.assertFalse(
+        workingCalendarService.isPublicHoliday(date.minusDays(1), publicHolidayPlanning));
+    Assert.assertFalse(workingCalendarService.isPublicHoliday(date, null));
+
+    assertDecimalEquals(
+        BigDecimal.ZERO,
+        workingCalendarService.getWorkingDays(fullDayPlanning, publicHolidayPlanning, date, date));
+    assertDecimalEquals(
+        BigDecimal.ONE,
+        workingCalendarService.getPublicHolidayDays(
+            fullDayPlanning, publicHolidayPlanning, date, date));
+    assertDecimalEquals(
+        BigDecimal.valueOf(2),
+        workingCalendarService.getWorkingDays(
+            fullDayPlanning, publicHolidayPlanning, date, LocalDate.of(2021, 1, 5)));
+    assertDecimalEquals(
+        BigDecimal.valueOf(15),
+        workingCalendarService.getWorkingHours(
+            fullDayPlanning, publicHolidayPlanning, date, LocalDate.of(2021, 1, 5)));
+
+    // The start date is not counted, whether it is worked or not
+    Assert.assertEquals(
+        LocalDate.of(2021, 1, 4),
+        workingCalendarService.plusWorkingDays(fullDayPlanning, publicHolidayPlanning, date, 1));
+    Assert.assertEquals(
+        LocalDate.of(2020, 12, 28),
+        workingCalendarService.plusWorkingDays(
+            fullDayPlanning, publicHolidayPlanning, LocalDate.of(2020, 12, 24), 1));
+  }
+
+  @Test
+  public void testHalfDayPlanningMatchesDayByDay() {
+    for (LocalDate fromDate = LocalDate.of(2020, 11, 30);
+        !fromDate.isAfter(LocalDate.of(2021, 2, 1));
+        fromDate = fromDate.plusDays(1)) {
+
+      for (int span = 0; span <= 40; span++) {
+        LocalDate toDate = fromDate.plusDays(span);
+        assertDecimalEquals(
+            computeWorkingDaysByDay(halfDayPlanning, fromDate, toDate),
+            workingCalendarService.getWorkingDays(
+                halfDayPlanning, publicHolidayPlanning, fromDate, toDate));
+        assertDecimalEquals(
+            computeWorkingHoursByDay(halfDayPlanning, fromDate, toDate),
+            workingCalendarService.getWorkingHours(
+                halfDayPlanning, publicHolidayPlanning, fromDate, toDate));
+      }
+
+      for (int days = 1; days <= 15; days++) {
+        Assert.assertEquals(
+            plusWorkingDaysByDay(halfDayPlanning, fromDate, days),
+            workingCalendarService.plusWorkingDays(
+                halfDayPlanning, publicHolidayPlanning, fromDate, days));
+      }
+    }
+  }
+
+  @Test
+  public void testPlanningWithoutWorkingDay() {
+    Assert.assertNull(
+        workingCalendarService.plusWorkingDays(
+            createWeeklyPlanning(), publicHolidayPlanning, LocalDate.of(2020, 12, 31), 1));
+  }
+}
@@ -22,8 +22,7 @@ import com.axelor.apps.base.db.Company;
 import com.axelor.apps.base.db.repo.AppHelpdeskRepository;
 import com.axelor.apps.base.db.repo.SequenceRepository;
 import com.axelor.apps.base.service.administration.SequenceService;
-import com.axelor.apps.base.service.publicHoliday.PublicHolidayService;
-import com.axelor.apps.base.service.weeklyplanning.WeeklyPlanningService;
+import com.axelor.apps.base.service.weeklyplanning.WorkingCalendarService;
 import com.axelor.apps.helpdesk.db.Sla;
 import com.axelor.apps.helpdesk.db.Ticket;
 import com.axelor.apps.helpdesk.db.repo.SlaRepository;
@@ -33,6 +32,7 @@ import com.axelor.exception.AxelorException;
 import com.google.common.base.Strings;
 import com.google.inject.Inject;
 import com.google.inject.persist.Transactional;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.List;
 
@@ -46,11 +46,7 @@ public class TicketServiceImpl implements TicketService {
 
   @Inject private SlaRepository slaRepo;
 
-  @Inject private PublicHolidayService publicHolidayService;
-
-  @Inject private WeeklyPlanningService weeklyPlanningService;
-
-  private LocalDateTime toDate;
+  @Inject private WorkingCalendarService workingCalendarService;
 
   /** Generate sequence of the ticket. */
   @Override
@@ -153,9 +149,11 @@ public class TicketServiceImpl implements TicketService {
         && ticket.getAssignedToUser().getActiveCompany().getPublicHolidayEventsPlanning() != null) {
 
       if (sla.getDays() > 0) {
-        LocalDateTime fromDate = ticket.getStartDateT().plusDays(1);
-        this.calculateWorkingDays(
-            fromDate, ticket.getAssignedToUser().getActiveCompany(), sla.getDays());
+        LocalDateTime toDate =
+            this.calculateWorkingDays(
+                ticket.getStartDateT(),
+                ticket.getAssignedToUser().getActiveCompany(),
+                sla.getDays());
         ticket.setDeadlineDateT(toDate.plusHours(sla.getHours()));
 
       } else {
@@ -183,30 +181,19 @@ public class TicketServiceImpl implements TicketService {
    * checked.
    *
    * @param fromDate
-   * @param employee
+   * @param company
    * @param days
-   * @throws AxelorException
+   * @return the date & time of the last working day, or the date & time after the given number of
+   *     days if the weekly planning of the company has no working day.
    */
-  private void calculateWorkingDays(LocalDateTime fromDate, Company company, int days)
-      throws AxelorException {
-
-    if (weeklyPlanningService.getWorkingDayValueInDays(
-                company.getWeeklyPlanning(), fromDate.toLocalDate())
-            == 0
-        || publicHolidayService.checkPublicHolidayDay(
-            fromDate.toLocalDate(), company.getPublicHolidayEventsPlanning())) {
-
-      fromDate = fromDate.plusDays(1);
-      this.calculateWorkingDays(fromDate, company, days);
-
-    } else {
-      toDate = fromDate;
-      days--;
-      if (days != 0) {
-        fromDate = fromDate.plusDays(1);
-        this.calculateWorkingDays(fromDate, company, days);
-      }
-    }
+  private LocalDateTime calculateWorkingDays(LocalDateTime fromDate, Company company, int days) {
+    LocalDate toDate =
+        workingCalendarService.plusWorkingDays(
+            company.getWeeklyPlanning(),
+            company.getPublicHolidayEventsPlanning(),
+            fromDate.toLocalDate(),
+            days);
+    return toDate != null ? toDate.atTime(fromDate.toLocalTime()) : fromDate.plusDays(days);
   }
 
   /** Check if SLA is completed or not. */
@@ -26,6 +26,7 @@ import com.axelor.apps.base.db.repo.ICalendarEventRepository;
 import com.axelor.apps.base.ical.ICalendarService;
 import com.axelor.apps.base.service.app.AppBaseService;
 import com.axelor.apps.base.service.weeklyplanning.WeeklyPlanningService;
+import com.axelor.apps.base.service.weeklyplanning.WorkingCalendarService;
 import com.axelor.apps.hr.db.Employee;
 import com.axelor.apps.hr.db.HRConfig;
 import com.axelor.apps.hr.db.LeaveLine;
@@ -68,6 +69,7 @@ public class LeaveServiceImpl implements LeaveService {
   protected TemplateMessageService templateMessageService;
   protected ICalendarEventRepository icalEventRepo;
   protected ICalendarService icalendarService;
+  protected WorkingCalendarService workingCalendarService;
 
   @Inject
   public LeaveServiceImpl(
@@ -79,7 +81,8 @@ public class LeaveServiceImpl implements LeaveService {
       HRConfigService hrConfigService,
       TemplateMessageService templateMessageService,
       ICalendarEventRepository icalEventRepo,
-      ICalendarService icalendarService) {
+      ICalendarService icalendarService,
+      WorkingCalendarService workingCalendarService) {
 
     this.leaveLineRepo = leaveLineRepo;
     this.weeklyPlanningService = weeklyPlanningService;
@@ -90,6 +93,7 @@ public class LeaveServiceImpl implements LeaveService {
     this.templateMessageService = templateMessageService;
     this.icalEventRepo = icalEventRepo;
     this.icalendarService = icalendarService;
+    this.workingCalendarService = workingCalendarService;
   }
 
   /**
@@ -248,14 +252,10 @@ public class LeaveServiceImpl implements LeaveService {
           duration.add(
               BigDecimal.valueOf(computeStartDateWithSelect(fromDate, startOn, weeklyPlanning)));
 
-      LocalDate itDate = fromDate.plusDays(1);
-      while (!itDate.isEqual(toDate) && !itDate.isAfter(toDate)) {
-        duration =
-            duration.add(
-                BigDecimal.valueOf(
-                    weeklyPlanningService.getWorkingDayValueInDays(weeklyPlanning, itDate)));
-        itDate = itDate.plusDays(1);
-      }
+      duration =
+          duration.add(
+              workingCalendarService.getPlannedDays(
+                  weeklyPlanning, fromDate.plusDays(1), toDate.minusDays(1)));
 
       duration =
           duration.add(BigDecimal.valueOf(computeEndDateWithSelect(toDate, endOn, weeklyPlanning)));
@@ -317,14 +317,10 @@ public class LeaveServiceImpl implements LeaveService {
       }
 
       // Daily leave duration of the other days between from and to date
-      for (LocalDate date = fromDate; date.isBefore(toDate); date = date.plusDays(1)) {
-        if (!publicHolidayHrService.checkPublicHolidayDay(date, holidayPlanning)) {
-          duration =
-              duration.add(
-                  weeklyPlanningService.getWorkingDayValueInHours(
-                      weeklyPlanning, date, null, null));
-        }
-      }
+      duration =
+          duration.add(
+              workingCalendarService.getWorkingHours(
+                  weeklyPlanning, holidayPlanning, fromDate, toDate.minusDays(1)));
     }
 
     return duration;
@@ -22,6 +22,7 @@ import com.axelor.apps.base.db.EventsPlanningLine;
 import com.axelor.apps.base.db.repo.EventsPlanningLineRepository;
 import com.axelor.apps.base.service.publicHoliday.PublicHolidayService;
 import com.axelor.apps.base.service.weeklyplanning.WeeklyPlanningService;
+import com.axelor.apps.base.service.weeklyplanning.WorkingCalendarService;
 import com.axelor.apps.hr.db.Employee;
 import com.google.inject.Inject;
 import java.time.LocalDate;
@@ -32,8 +33,9 @@ public class PublicHolidayHrService extends PublicHolidayService {
   @Inject
   public PublicHolidayHrService(
       WeeklyPlanningService weeklyPlanningService,
-      EventsPlanningLineRepository eventsPlanningLineRepo) {
-    super(weeklyPlanningService, eventsPlanningLineRepo);
+      EventsPlanningLineRepository eventsPlanningLineRepo,
+      WorkingCalendarService workingCalendarService) {
+    super(weeklyPlanningService, eventsPlanningLineRepo, workingCalendarService);
   }
 
   public boolean checkPublicHolidayDay(LocalDate date, Employee employee) {
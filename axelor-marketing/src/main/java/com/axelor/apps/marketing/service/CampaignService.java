@@ -26,9 +26,9 @@ import com.google.inject.persist.Transactional;
 
 public interface CampaignService {
 
-  public MetaFile sendEmail(Campaign campaign);
+  public MetaFile sendEmail(Campaign campaign) throws AxelorException;
 
-  public MetaFile sendReminderEmail(Campaign campaign);
+  public MetaFile sendReminderEmail(Campaign campaign) throws AxelorException;
 
   public void generateEvents(Campaign campaign);
 
@@ -17,6 +17,7 @@
  */
 package com.axelor.apps.marketing.service;
 
+import com.axelor.app.AppSettings;
 import com.axelor.apps.base.db.Partner;
 import com.axelor.apps.crm.db.Event;
 import com.axelor.apps.crm.db.Lead;
@@ -26,23 +27,55 @@ import com.axelor.apps.marketing.db.repo.CampaignRepository;
 import com.axelor.apps.marketing.exception.IExceptionMessage;
 import com.axelor.apps.message.db.Message;
 import com.axelor.apps.message.db.Template;
+import com.axelor.apps.message.db.repo.EmailAccountRepository;
+import com.axelor.apps.message.db.repo.MessageRepository;
+import com.axelor.apps.message.db.repo.TemplateRepository;
+import com.axelor.apps.message.service.MessageService;
 import com.axelor.apps.message.service.TemplateMessageService;
+import com.axelor.db.JPA;
 import com.axelor.db.Model;
 import com.axelor.exception.AxelorException;
+import com.axelor.exception.db.repo.TraceBackRepository;
+import com.axelor.exception.service.TraceBackService;
 import com.axelor.i18n.I18n;
 import com.axelor.inject.Beans;
 import com.axelor.meta.MetaFiles;
 import com.axelor.meta.db.MetaFile;
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.persist.Transactional;
+import com.google.inject.persist.UnitOfWork;
+import com.google.inject.servlet.RequestScoper;
+import com.google.inject.servlet.ServletScopes;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import javax.mail.MessagingException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.persistence.PersistenceException;
+import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.subject.Subject;
+import org.hibernate.Session;
 
 public class CampaignServiceImpl implements CampaignService {
 
+  public static final String EMAIL_POOL_SIZE_SETTING = "marketing.campaign.email.pool.size";
+
+  protected static final int EMAIL_CHUNK_SIZE = 100;
+
+  protected static final int TARGET_CHUNK_SIZE = 1000;
+
   protected TemplateMessageMarketingService templateMessageMarketingService;
 
   protected EventRepository eventRepo;
@@ -56,104 +89,436 @@ public class CampaignServiceImpl implements CampaignService {
     this.eventRepo = eventRepo;
   }
 
-  public MetaFile sendEmail(Campaign campaign) {
+  @Override
+  public MetaFile sendEmail(Campaign campaign) throws AxelorException {
+
+    return sendEmail(
+        campaign,
+        campaign.getPartnerTemplate(),
+        "partnerSet",
+        campaign.getLeadTemplate(),
+        "leadSet");
+  }
+
+  @Override
+  public MetaFile sendReminderEmail(Campaign campaign) throws AxelorException {
+
+    return sendEmail(
+        campaign,
+        campaign.getPartnerReminderTemplate(),
+        "invitedPartnerSet",
+        campaign.getLeadReminderTemplate(),
+        "invitedLeadSet");
+  }
+
+  /**
+   * Send the emails of a campaign to the partners and leads of the given target fields.
+   *
+   * <p>The ids of the targets are read in chunks. The messages of a chunk are generated in a single
+   * transaction, then queued for sending. Chunks are processed on a pool of workers whose size is
+   * read from the <code>marketing.campaign.email.pool.size</code> application setting. The progress
+   * is saved on the campaign after each chunk.
+   *
+   * @param campaign
+   * @param partnerTemplate
+   * @param partnerField the partner target set of the campaign
+   * @param leadTemplate
+   * @param leadField the lead target set of the campaign
+   * @return the log of the targets in error, or null if there is none
+   * @throws AxelorException
+   */
+  protected MetaFile sendEmail(
+      Campaign campaign,
+      Template partnerTemplate,
+      String partnerField,
+      Template leadTemplate,
+      String leadField)
+      throws AxelorException {
+
+    Long campaignId = campaign.getId();
+    long partnerCount = partnerTemplate != null ? countTargets(campaignId, partnerField) : 0;
+    long leadCount = leadTemplate != null ? countTargets(campaignId, leadField) : 0;
+
+    startEmailProgress(campaign, partnerCount + leadCount);
+
+    int poolSize = getEmailPoolSize();
+    ExecutorService executor = poolSize > 1 ? Executors.newFixedThreadPool(poolSize) : null;
 
     String errorPartners = "";
     String errorLeads = "";
 
-    templateMessageMarketingService.setEmailAccount(campaign.getEmailAccount());
-
-    if (campaign.getPartnerTemplate() != null) {
-      errorPartners =
-          sendToPartners(campaign.getPartnerSet(), campaign.getPartnerTemplate(), campaign);
-    }
+    try {
+      if (partnerTemplate != null) {
+        errorPartners =
+            sendToTargets(campaign, partnerTemplate, partnerField, Partner.class, executor);
+      }
 
-    if (campaign.getLeadTemplate() != null) {
-      errorLeads = sendToLeads(campaign.getLeadSet(), campaign.getLeadTemplate(), campaign);
+      if (leadTemplate != null) {
+        errorLeads = sendToTargets(campaign, leadTemplate, leadField, Lead.class, executor);
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+      }
     }
 
     if (errorPartners.isEmpty() && errorLeads.isEmpty()) {
       return null;
     }
 
-    return generateLog(errorPartners, errorLeads, campaign.getEmailLog(), campaign.getId());
+    campaign = Beans.get(CampaignRepository.class).find(campaignId);
+
+    return generateLog(errorPartners, errorLeads, campaign.getEmailLog(), campaignId);
   }
 
-  @Override
-  public MetaFile sendReminderEmail(Campaign campaign) {
+  /**
+   * Number of workers used to generate the messages of a campaign, read from the <code>
+   * marketing.campaign.email.pool.size</code> application setting. With a single worker, chunks are
+   * processed one after the other on the calling thread.
+   *
+   * @return
+   */
+  protected int getEmailPoolSize() {
+    return Math.max(1, AppSettings.get().getInt(EMAIL_POOL_SIZE_SETTING, 1));
+  }
 
-    String errorPartners = "";
-    String errorLeads = "";
+  protected long countTargets(Long campaignId, String targetField) {
+
+    return JPA.em()
+        .createQuery(
+            "SELECT COUNT(target) FROM Campaign self JOIN self."
+                + targetField
+                + " target WHERE self.id = :campaignId",
+            Long.class)
+        .setParameter("campaignId", campaignId)
+        .getSingleResult();
+  }
+
+  /**
+   * Get the next chunk of target ids of a campaign, ordered by id.
+   *
+   * @param campaignId
+   * @param targetField
+   * @param lastId the last id of the previous chunk
+   * @return
+   */
+  protected List<Long> getTargetIdList(Long campaignId, String targetField, Long lastId) {
+
+    return JPA.em()
+        .createQuery(
+            "SELECT target.id FROM Campaign self JOIN self."
+                + targetField
+                + " target WHERE self.id = :campaignId AND target.id > :lastId"
+                + " ORDER BY target.id",
+            Long.class)
+        .setParameter("campaignId", campaignId)
+        .setParameter("lastId", lastId)
+        .setMaxResults(EMAIL_CHUNK_SIZE)
+        .getResultList();
+  }
 
-    templateMessageMarketingService.setEmailAccount(campaign.getEmailAccount());
+  @Transactional
+  protected void startEmailProgress(Campaign campaign, long targetCount) {
+
+    campaign.setEmailTargetCount(Math.toIntExact(targetCount));
+    campaign.setEmailQueuedCount(0);
+    campaign.setEmailErrorCount(0);
+    Beans.get(CampaignRepository.class).save(campaign);
+  }
 
-    if (campaign.getPartnerReminderTemplate() != null) {
-      errorPartners =
-          sendToPartners(
-              campaign.getInvitedPartnerSet(), campaign.getPartnerReminderTemplate(), campaign);
+  @Transactional
+  protected void updateEmailProgress(Long campaignId, int queuedCount, int errorCount) {
+
+    JPA.em()
+        .createQuery(
+            "UPDATE Campaign self SET"
+                + " self.emailQueuedCount = self.emailQueuedCount + :queuedCount,"
+                + " self.emailErrorCount = self.emailErrorCount + :errorCount"
+                + " WHERE self.id = :campaignId")
+        .setParameter("queuedCount", queuedCount)
+        .setParameter("errorCount", errorCount)
+        .setParameter("campaignId", campaignId)
+        .executeUpdate();
+  }
+
+  /**
+   * Send the emails of a campaign to the targets of a field, chunk by chunk.
+   *
+   * @param campaign
+   * @param template
+   * @param targetField
+   * @param klass the class of the targets
+   * @param executor the pool of workers, or null to process the chunks on the calling thread
+   * @return the names of the targets in error, one per line
+   * @throws AxelorException
+   */
+  protected String sendToTargets(
+      Campaign campaign,
+      Template template,
+      String targetField,
+      Class<? extends Model> klass,
+      ExecutorService executor)
+      throws AxelorException {
+
+    Long campaignId = campaign.getId();
+    Long templateId = template.getId();
+    Long emailAccountId =
+        campaign.getEmailAccount() != null ? campaign.getEmailAccount().getId() : null;
+    Queue<Long> errorQueue = new ConcurrentLinkedQueue<>();
+    List<Future<?>> futureList = new ArrayList<>();
+    Subject subject = SecurityUtils.getSubject();
+
+    List<Long> targetIdList = getTargetIdList(campaignId, targetField, 0L);
+
+    while (!targetIdList.isEmpty()) {
+
+      List<Long> chunk = targetIdList;
+
+      if (executor == null) {
+        sendToTargets(
+            campaignId,
+            templateId,
+            emailAccountId,
+            klass,
+            chunk,
+            templateMessageMarketingService,
+            errorQueue);
+        JPA.clear();
+      } else {
+        futureList.add(
+            executor.submit(
+                subject.associateWith(
+                    () -> {
+                      sendToTargetsInWorker(
+                          campaignId, templateId, emailAccountId, klass, chunk, errorQueue);
+                      return null;
+                    })));
+      }
+
+      targetIdList =
+          getTargetIdList(campaignId, targetField, targetIdList.get(targetIdList.size() - 1));
     }
 
-    if (campaign.getLeadReminderTemplate() != null) {
-      errorLeads =
-          sendToLeads(campaign.getInvitedLeadSet(), campaign.getLeadReminderTemplate(), campaign);
+    try {
+      for (Future<?> future : futureList) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      futureList.forEach(future -> future.cancel(true));
+      Thread.currentThread().interrupt();
+      throw new AxelorException(e, TraceBackRepository.CATEGORY_INCONSISTENCY);
+    } catch (ExecutionException e) {
+      futureList.forEach(future -> future.cancel(true));
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new AxelorException(cause, TraceBackRepository.CATEGORY_INCONSISTENCY);
     }
-    if (errorPartners.isEmpty() && errorLeads.isEmpty()) {
-      return null;
+
+    return getTargetNames(klass, new ArrayList<>(errorQueue));
+  }
+
+  /**
+   * Send the emails of a chunk of targets on a worker thread, in its own request scope and unit of
+   * work so that it gets its own entity manager.
+   */
+  protected void sendToTargetsInWorker(
+      Long campaignId,
+      Long templateId,
+      Long emailAccountId,
+      Class<? extends Model> klass,
+      List<Long> targetIdList,
+      Queue<Long> errorQueue) {
+
+    RequestScoper scope = ServletScopes.scopeRequest(Collections.emptyMap());
+    UnitOfWork unitOfWork = Beans.get(UnitOfWork.class);
+
+    try (RequestScoper.CloseableScope ignored = scope.open()) {
+      unitOfWork.begin();
+      sendToTargets(
+          campaignId,
+          templateId,
+          emailAccountId,
+          klass,
+          targetIdList,
+          Beans.get(TemplateMessageMarketingService.class),
+          errorQueue);
+    } finally {
+      unitOfWork.end();
     }
-    return generateLog(errorPartners, errorLeads, campaign.getEmailLog(), campaign.getId());
   }
 
-  protected String sendToPartners(Set<Partner> partnerSet, Template template, Campaign campaign) {
+  /**
+   * Generate the messages of a chunk of targets in a single transaction, then queue them for
+   * sending.
+   *
+   * <p>If the transaction of the chunk fails, its messages are generated again one by one so that
+   * only the targets in error are left out.
+   *
+   * @param campaignId
+   * @param templateId
+   * @param emailAccountId
+   * @param klass the class of the targets
+   * @param targetIdList
+   * @param templateMessageMarketingService
+   * @param errorQueue the ids of the targets in error
+   */
+  protected void sendToTargets(
+      Long campaignId,
+      Long templateId,
+      Long emailAccountId,
+      Class<? extends Model> klass,
+      List<Long> targetIdList,
+      TemplateMessageMarketingService templateMessageMarketingService,
+      Queue<Long> errorQueue) {
+
+    Session session = JPA.em().unwrap(Session.class);
+    Integer jdbcBatchSize = session.getJdbcBatchSize();
+    session.setJdbcBatchSize(EMAIL_CHUNK_SIZE);
+
+    List<Long> errorIdList = new ArrayList<>();
+    Map<Long, Long> messageTargetMap;
+
+    try {
+      messageTargetMap =
+          generateMessages(
+              campaignId,
+              templateId,
+              emailAccountId,
+              klass,
+              targetIdList,
+              templateMessageMarketingService,
+              errorIdList);
+    } catch (PersistenceException e) {
+      JPA.clear();
+      errorIdList.clear();
+      messageTargetMap = new LinkedHashMap<>();
+
+      for (Long targetId : targetIdList) {
+        try {
+          messageTargetMap.putAll(
+              generateMessages(
+                  campaignId,
+                  templateId,
+                  emailAccountId,
+                  klass,
+                  Collections.singletonList(targetId),
+                  templateMessageMarketingService,
+                  errorIdList));
+        } catch (PersistenceException e1) {
+          TraceBackService.trace(e1);
+          errorIdList.add(targetId);
+          JPA.clear();
+        }
+      }
+    } finally {
+      session.setJdbcBatchSize(jdbcBatchSize);
+    }
 
-    StringBuilder errors = new StringBuilder();
+    errorIdList.addAll(queueMessages(messageTargetMap));
+    errorQueue.addAll(errorIdList);
 
-    for (Partner partner : partnerSet) {
+    updateEmailProgress(campaignId, targetIdList.size() - errorIdList.size(), errorIdList.size());
+  }
 
+  /**
+   * Generate the messages of a list of targets.
+   *
+   * @return the ids of the generated messages, mapped to the ids of their target
+   */
+  @Transactional(rollbackOn = {Exception.class})
+  protected Map<Long, Long> generateMessages(
+      Long campaignId,
+      Long templateId,
+      Long emailAccountId,
+      Class<? extends Model> klass,
+      List<Long> targetIdList,
+      TemplateMessageMarketingService templateMessageMarketingService,
+      List<Long> errorIdList) {
+
+    Template template = Beans.get(TemplateRepository.class).find(templateId);
+    templateMessageMarketingService.setEmailAccount(
+        emailAccountId != null
+            ? Beans.get(EmailAccountRepository.class).find(emailAccountId)
+            : null);
+
+    Map<Long, Long> messageTargetMap = new LinkedHashMap<>();
+
+    for (Long targetId : targetIdList) {
       try {
-        generateAndSendMessage(campaign, partner, template);
+        Message message =
+            templateMessageMarketingService.generateMessage(
+                targetId, klass.getCanonicalName(), klass.getSimpleName(), template);
+        message.setRelatedTo1Select(Campaign.class.getCanonicalName());
+        message.setRelatedTo1SelectId(campaignId);
+        message.setRelatedTo2Select(klass.getCanonicalName());
+        message.setRelatedTo2SelectId(targetId);
+        messageTargetMap.put(message.getId(), targetId);
       } catch (ClassNotFoundException
           | InstantiationException
           | IllegalAccessException
-          | MessagingException
           | IOException
           | AxelorException e) {
-        errors.append(partner.getName() + "\n");
-        e.printStackTrace();
+        TraceBackService.trace(e);
+        errorIdList.add(targetId);
       }
     }
 
-    return errors.toString();
+    return messageTargetMap;
   }
 
-  protected String sendToLeads(Set<Lead> leadSet, Template template, Campaign campaign) {
+  /**
+   * Queue generated messages for sending.
+   *
+   * @param messageTargetMap the ids of the messages, mapped to the ids of their target
+   * @return the ids of the targets whose message could not be queued
+   */
+  protected List<Long> queueMessages(Map<Long, Long> messageTargetMap) {
 
-    StringBuilder errors = new StringBuilder();
+    List<Long> errorIdList = new ArrayList<>();
 
-    for (Lead lead : leadSet) {
+    if (messageTargetMap.isEmpty()) {
+      return errorIdList;
+    }
+
+    MessageService messageService = Beans.get(MessageService.class);
+    List<Message> messageList =
+        Beans.get(MessageRepository.class)
+            .all()
+            .filter("self.id IN :messageIds")
+            .bind("messageIds", messageTargetMap.keySet())
+            .fetch();
 
+    for (Message message : messageList) {
       try {
-        generateAndSendMessage(campaign, lead, template);
-      } catch (ClassNotFoundException
-          | InstantiationException
-          | IllegalAccessException
-          | MessagingException
-          | IOException
-          | AxelorException e) {
-        errors.append(lead.getName() + "\n");
-        e.printStackTrace();
+        messageService.sendMessage(message);
+      } catch (AxelorException e) {
+        TraceBackService.trace(e);
+        errorIdList.add(messageTargetMap.get(message.getId()));
       }
     }
 
-    return errors.toString();
+    return errorIdList;
   }
 
-  @Transactional(rollbackOn = {Exception.class})
-  protected void generateAndSendMessage(Campaign campaign, Model model, Template template)
-      throws ClassNotFoundException, InstantiationException, IllegalAccessException,
-          MessagingException, IOException, AxelorException {
-    Message message = templateMessageMarketingService.generateAndSendMessage(model, template);
-    message.setRelatedTo1Select(Campaign.class.getCanonicalName());
-    message.setRelatedTo1SelectId(campaign.getId());
+  protected String getTargetNames(Class<? extends Model> klass, List<Long> targetIdList) {
+
+    StringBuilder names = new StringBuilder();
+
+    for (List<Long> idList : Lists.partition(targetIdList, EMAIL_CHUNK_SIZE)) {
+      JPA.em()
+          .createQuery(
+              "SELECT self.name FROM "
+                  + klass.getSimpleName()
+                  + " self WHERE self.id IN :ids ORDER BY self.id",
+              String.class)
+          .setParameter("ids", idList)
+          .getResultList()
+          .forEach(name -> names.append(name + "\n"));
+    }
+
+    return names.toString();
   }
 
   protected MetaFile generateLog(
@@ -243,11 +608,22 @@ public class CampaignServiceImpl implements CampaignService {
 
     TargetListService targetListService = Beans.get(TargetListService.class);
 
-    Set<Partner> partnerSet = targetListService.getAllPartners(campaign.getTargetModelSet());
-    Set<Lead> leadSet = targetListService.getAllLeads(campaign.getTargetModelSet());
+    Set<Long> partnerIdSet = targetListService.getAllPartnerIds(campaign.getTargetModelSet());
+    Set<Long> leadIdSet = targetListService.getAllLeadIds(campaign.getTargetModelSet());
 
-    campaign.setPartnerSet(partnerSet);
-    campaign.setLeadSet(leadSet);
+    // The targets are only referenced, so they are not loaded, and the join rows are flushed by
+    // chunks
+    campaign.setPartnerSet(new HashSet<>());
+    campaign.setLeadSet(new HashSet<>());
+
+    for (List<Long> idList : Lists.partition(new ArrayList<>(partnerIdSet), TARGET_CHUNK_SIZE)) {
+      idList.forEach(id -> campaign.addPartnerSetItem(JPA.em().getReference(Partner.class, id)));
+      JPA.flush();
+    }
+    for (List<Long> idList : Lists.partition(new ArrayList<>(leadIdSet), TARGET_CHUNK_SIZE)) {
+      idList.forEach(id -> campaign.addLeadSetItem(JPA.em().getReference(Lead.class, id)));
+      JPA.flush();
+    }
   }
 
   @Override
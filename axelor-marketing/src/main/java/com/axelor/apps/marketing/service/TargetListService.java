@@ -29,7 +29,39 @@ public interface TargetListService {
 
   public String getLeadQuery(TargetList targetList);
 
+  /**
+   * Get the ids of the partners of the target lists, without loading the partners.
+   *
+   * @param targetListSet
+   * @return
+   * @throws AxelorException if a partner filter is invalid
+   */
+  public Set<Long> getAllPartnerIds(Set<TargetList> targetListSet) throws AxelorException;
+
+  /**
+   * Get the ids of the leads of the target lists, without loading the leads.
+   *
+   * @param targetListSet
+   * @return
+   * @throws AxelorException if a lead filter is invalid
+   */
+  public Set<Long> getAllLeadIds(Set<TargetList> targetListSet) throws AxelorException;
+
+  /**
+   * Get references to the partners of the target lists, which are not loaded until used.
+   *
+   * @param targetListSet
+   * @return
+   * @throws AxelorException if a partner filter is invalid
+   */
   public Set<Partner> getAllPartners(Set<TargetList> targetListSet) throws AxelorException;
 
+  /**
+   * Get references to the leads of the target lists, which are not loaded until used.
+   *
+   * @param targetListSet
+   * @return
+   * @throws AxelorException if a lead filter is invalid
+   */
   public Set<Lead> getAllLeads(Set<TargetList> targetListSet) throws AxelorException;
 }
@@ -23,13 +23,19 @@ import com.axelor.apps.crm.db.Lead;
 import com.axelor.apps.crm.db.repo.LeadRepository;
 import com.axelor.apps.marketing.db.TargetList;
 import com.axelor.apps.marketing.exception.IExceptionMessage;
+import com.axelor.db.JPA;
+import com.axelor.db.Model;
+import com.axelor.db.Query;
 import com.axelor.exception.AxelorException;
 import com.axelor.exception.db.repo.TraceBackRepository;
 import com.axelor.i18n.I18n;
 import com.axelor.studio.service.filter.FilterJpqlService;
 import com.google.inject.Inject;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * This service class use to get filtered Partners and Leads.
@@ -71,46 +77,76 @@ public class TargetListServiceImpl implements TargetListService {
   }
 
   @Override
-  public Set<Partner> getAllPartners(Set<TargetList> targetListSet) throws AxelorException {
-    Set<Partner> partnerSet = new HashSet<>();
+  public Set<Long> getAllPartnerIds(Set<TargetList> targetListSet) throws AxelorException {
+    Set<Long> partnerIdSet = new HashSet<>();
 
     for (TargetList target : targetListSet) {
       String filter = getPartnerQuery(target);
       if (filter != null) {
         try {
-          partnerSet.addAll(partnerRepo.all().filter(filter).fetch());
+          partnerIdSet.addAll(getIdList(partnerRepo.all().filter(filter)));
         } catch (Exception e) {
           throw new AxelorException(
               TraceBackRepository.CATEGORY_CONFIGURATION_ERROR,
               I18n.get(IExceptionMessage.CAMPAIGN_PARTNER_FILTER));
         }
       }
-      for (Partner partner : target.getPartnerSet()) {
-        partnerSet.add(partner);
-      }
+      partnerIdSet.addAll(getIdList(target, "partnerSet"));
     }
-    return partnerSet;
+    return partnerIdSet;
   }
 
   @Override
-  public Set<Lead> getAllLeads(Set<TargetList> targetListSet) throws AxelorException {
-    Set<Lead> leadSet = new HashSet<>();
+  public Set<Long> getAllLeadIds(Set<TargetList> targetListSet) throws AxelorException {
+    Set<Long> leadIdSet = new HashSet<>();
 
     for (TargetList target : targetListSet) {
       String filter = getLeadQuery(target);
       if (filter != null) {
         try {
-          leadSet.addAll(leadRepo.all().filter(filter).fetch());
+          leadIdSet.addAll(getIdList(leadRepo.all().filter(filter)));
         } catch (Exception e) {
           throw new AxelorException(
               TraceBackRepository.CATEGORY_CONFIGURATION_ERROR,
               I18n.get(IExceptionMessage.CAMPAIGN_LEAD_FILTER));
         }
       }
-      for (Lead lead : target.getLeadSet()) {
-        leadSet.add(lead);
-      }
+      leadIdSet.addAll(getIdList(target, "leadSet"));
+    }
+    return leadIdSet;
+  }
+
+  @Override
+  public Set<Partner> getAllPartners(Set<TargetList> targetListSet) throws AxelorException {
+    return getAllPartnerIds(targetListSet).stream()
+        .map(id -> JPA.em().getReference(Partner.class, id))
+        .collect(Collectors.toSet());
+  }
+
+  @Override
+  public Set<Lead> getAllLeads(Set<TargetList> targetListSet) throws AxelorException {
+    return getAllLeadIds(targetListSet).stream()
+        .map(id -> JPA.em().getReference(Lead.class, id))
+        .collect(Collectors.toSet());
+  }
+
+  protected List<Long> getIdList(Query<? extends Model> query) {
+    return query.select("id").fetch(0, 0).stream()
+        .map(values -> (Long) values.get("id"))
+        .collect(Collectors.toList());
+  }
+
+  protected List<Long> getIdList(TargetList targetList, String targetField) {
+    if (targetList.getId() == null) {
+      return new ArrayList<>();
     }
-    return leadSet;
+    return JPA.em()
+        .createQuery(
+            "SELECT target.id FROM TargetList self JOIN self."
+                + targetField
+                + " target WHERE self.id = :id",
+            Long.class)
+        .setParameter("id", targetList.getId())
+        .getResultList();
   }
 }
@@ -48,6 +48,7 @@ public class CampaignController {
         return;
       }
       MetaFile logFile = Beans.get(CampaignService.class).sendEmail(campaign);
+      setEmailProgress(response, campaign.getId());
 
       if (logFile == null) {
         response.setFlash(I18n.get(IExceptionMessage.EMAIL_SUCCESS));
@@ -74,6 +75,7 @@ public class CampaignController {
       }
 
       MetaFile logFile = Beans.get(CampaignService.class).sendReminderEmail(campaign);
+      setEmailProgress(response, campaign.getId());
 
       if (logFile == null) {
         response.setFlash(I18n.get(IExceptionMessage.EMAIL_SUCCESS));
@@ -87,6 +89,18 @@ public class CampaignController {
     }
   }
 
+  protected void setEmailProgress(ActionResponse response, Long campaignId) {
+
+    CampaignRepository campaignRepo = Beans.get(CampaignRepository.class);
+    Campaign campaign = campaignRepo.find(campaignId);
+    // The progress is updated by the workers, reload it so that the form does not save stale values
+    campaignRepo.refresh(campaign);
+
+    response.setValue("emailTargetCount", campaign.getEmailTargetCount());
+    response.setValue("emailQueuedCount", campaign.getEmailQueuedCount());
+    response.setValue("emailErrorCount", campaign.getEmailErrorCount());
+  }
+
   public void generateEvents(ActionRequest request, ActionResponse response) {
 
     Campaign campaign = request.getContext().asType(Campaign.class);
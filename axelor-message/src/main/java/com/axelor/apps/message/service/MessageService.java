@@ -21,12 +21,15 @@ import com.axelor.apps.message.db.EmailAccount;
 import com.axelor.apps.message.db.EmailAddress;
 import com.axelor.apps.message.db.Message;
 import com.axelor.exception.AxelorException;
+import com.axelor.mail.MailSender;
 import com.axelor.meta.db.MetaAttachment;
 import com.axelor.meta.db.MetaFile;
 import com.google.inject.persist.Transactional;
+import java.io.IOException;
 import java.util.List;
 import java.util.Set;
 import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
 
 public interface MessageService {
 
@@ -57,6 +60,19 @@ public interface MessageService {
   @Transactional(rollbackOn = {Exception.class})
   public Message sendByEmail(Message message) throws MessagingException, AxelorException;
 
+  /**
+   * Build the email of a message, from its mail account, recipients, content and attachments.
+   *
+   * @param message the message to send.
+   * @param sender the sender of the mail account of the message.
+   * @return the email, ready to be sent.
+   * @throws MessagingException
+   * @throws IOException
+   * @throws AxelorException if the message has no recipient or the from address is invalid.
+   */
+  public MimeMessage buildEmail(Message message, MailSender sender)
+      throws MessagingException, IOException, AxelorException;
+
   @Transactional
   public Message sendToUser(Message message);
 
@@ -35,7 +35,6 @@ import com.axelor.i18n.I18n;
 import com.axelor.inject.Beans;
 import com.axelor.mail.MailBuilder;
 import com.axelor.mail.MailSender;
-import com.axelor.mail.SmtpAccount;
 import com.axelor.meta.MetaFiles;
 import com.axelor.meta.db.MetaAttachment;
 import com.axelor.meta.db.MetaFile;
@@ -47,12 +46,14 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import com.google.inject.persist.Transactional;
+import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.List;
 import java.util.Set;
 import javax.mail.MessagingException;
-import javax.persistence.LockModeType;
+import javax.mail.internet.MimeMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -252,6 +253,10 @@ public class MessageServiceImpl extends JpaSupport implements MessageService {
     return messageRepository.save(message);
   }
 
+  /**
+   * Queue a message to be sent by email. The message is sent by {@link SendMailQueueService} once
+   * the current transaction is committed.
+   */
   @Transactional(rollbackOn = {Exception.class})
   public Message sendByEmail(Message message) throws MessagingException, AxelorException {
 
@@ -261,15 +266,35 @@ public class MessageServiceImpl extends JpaSupport implements MessageService {
       return message;
     }
 
-    log.debug("Sending email...");
-    MailAccountService mailAccountService = Beans.get(MailAccountService.class);
-    com.axelor.mail.MailAccount account =
-        new SmtpAccount(
-            mailAccount.getHost(),
-            mailAccount.getPort().toString(),
-            mailAccount.getLogin(),
-            mailAccountService.getDecryptPassword(mailAccount.getPassword()),
-            mailAccountService.getSecurity(mailAccount));
+    if (this.getEmailAddresses(message.getToEmailAddressSet()).isEmpty()
+        && this.getEmailAddresses(message.getCcEmailAddressSet()).isEmpty()
+        && this.getEmailAddresses(message.getBccEmailAddressSet()).isEmpty()) {
+      throw new AxelorException(
+          message,
+          TraceBackRepository.CATEGORY_CONFIGURATION_ERROR,
+          I18n.get(IExceptionMessage.MESSAGE_6));
+    }
+
+    log.debug("Queuing email...");
+    message.setStatusSelect(MessageRepository.STATUS_IN_PROGRESS);
+    message.setSenderUser(AuthUtils.getUser());
+    message.setSendAttemptCount(0);
+    // Queued messages are the ones with a next send attempt date
+    message.setNextSendAttemptDateT(LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS));
+    message.setSendClaimToken(null);
+    message.setSendErrorMessage(null);
+    message = messageRepository.save(message);
+
+    sendMailQueueService.submitMailJob(message);
+
+    return message;
+  }
+
+  @Override
+  public MimeMessage buildEmail(Message message, MailSender sender)
+      throws MessagingException, IOException, AxelorException {
+
+    EmailAccount mailAccount = message.getMailAccount();
 
     List<String> replytoRecipients = this.getEmailAddresses(message.getReplyToEmailAddressSet());
     List<String> toRecipients = this.getEmailAddresses(message.getToEmailAddressSet());
@@ -283,7 +308,6 @@ public class MessageServiceImpl extends JpaSupport implements MessageService {
           I18n.get(IExceptionMessage.MESSAGE_6));
     }
 
-    MailSender sender = new MailSender(account);
     MailBuilder mailBuilder = sender.compose();
 
     mailBuilder.subject(message.getSubject());
@@ -328,12 +352,7 @@ public class MessageServiceImpl extends JpaSupport implements MessageService {
       mailBuilder.attach(metaFile.getFileName(), MetaFiles.getPath(metaFile).toString());
     }
 
-    getEntityManager().flush();
-    getEntityManager().lock(message, LockModeType.PESSIMISTIC_WRITE);
-    // send email using a separate process to avoid thread blocking
-    sendMailQueueService.submitMailJob(mailBuilder, message);
-
-    return message;
+    return mailBuilder.build();
   }
 
   public Set<MetaAttachment> getMetaAttachments(Message message) {
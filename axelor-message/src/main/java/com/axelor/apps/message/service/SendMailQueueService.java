@@ -17,125 +17,635 @@
  */
 package com.axelor.apps.message.service;
 
+import com.axelor.app.AppSettings;
+import com.axelor.apps.message.db.EmailAccount;
 import com.axelor.apps.message.db.Message;
 import com.axelor.apps.message.db.repo.MessageRepository;
-import com.axelor.auth.AuthUtils;
-import com.axelor.auth.db.User;
-import com.axelor.auth.db.repo.UserRepository;
+import com.axelor.db.JPA;
 import com.axelor.db.JpaSupport;
 import com.axelor.event.Observes;
 import com.axelor.events.ShutdownEvent;
+import com.axelor.events.StartupEvent;
+import com.axelor.exception.AxelorException;
 import com.axelor.exception.service.TraceBackService;
-import com.axelor.mail.MailBuilder;
+import com.axelor.inject.Beans;
+import com.axelor.mail.MailAccount;
+import com.axelor.mail.MailSender;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.RateLimiter;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.persist.UnitOfWork;
+import com.google.inject.servlet.RequestScoper;
+import com.google.inject.servlet.ServletScopes;
+import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import javax.persistence.EntityNotFoundException;
-import javax.persistence.LockModeType;
-import javax.persistence.PersistenceException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.MimeMessage;
+import org.hibernate.engine.spi.SessionImplementor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Outgoing email queue, backed by the message table.
+ *
+ * <p>A message to send by email is saved with the in progress status, and its next send attempt
+ * date set to the time it is queued. Once its transaction is committed, the dispatcher claims it by
+ * setting a lease on its next send attempt date and a claim token, and hands it to the workers of
+ * its mail account. Each worker keeps its own SMTP connection open from one message to the next,
+ * and the workers of an account share its rate limit. Messages left in progress without a next
+ * send attempt date, by the former sending thread, are not sent again.
+ *
+ * <p>The results are saved in batch. Sent messages get the sent status. Failed messages are retried
+ * with an exponential backoff until the maximum number of attempts is reached, then put back to
+ * draft with the error. A message whose lease expires, because the server stopped while it was
+ * queued, is claimed again by the next dispatch, so a message is sent at least once.
+ *
+ * <p>The SMTP connections are opened from the mail account of the messages, so the queue can be
+ * tested against a local SMTP server by pointing the mail account to it.
+ */
 @Singleton
 public class SendMailQueueService extends JpaSupport {
 
-  private static final int ENTITY_FIND_TIMEOUT = 10000;
-  private static final int ENTITY_FIND_INTERVAL = 200;
+  private final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /** Number of SMTP connections, and workers, per mail account. */
+  public static final String CONNECTIONS_SETTING = "mail.queue.connections";
+
+  /** Maximum number of emails sent per second and per mail account, 0 for no limit. */
+  public static final String RATE_SETTING = "mail.queue.rate";
+
+  public static final String MAX_ATTEMPTS_SETTING = "mail.queue.max.attempts";
+
+  /** Delay before the first retry in seconds, doubled on each following attempt. */
+  public static final String RETRY_DELAY_SETTING = "mail.queue.retry.delay";
+
+  /** Number of messages claimed, and of results saved, at once. */
+  public static final String BATCH_SIZE_SETTING = "mail.queue.batch.size";
+
+  /** Interval in seconds between two looks for messages to send or to retry. */
+  public static final String POLL_INTERVAL_SETTING = "mail.queue.poll.interval";
+
+  /** Time in seconds a claimed message is reserved to this server. */
+  public static final String LEASE_SETTING = "mail.queue.lease";
+
+  protected static final long FLUSH_INTERVAL = 1;
+  protected static final long CONNECTION_IDLE_TIMEOUT = 60;
+  protected static final long MAX_RETRY_DELAY = 86400;
+  protected static final long SHUTDOWN_TIMEOUT = 10;
+
   protected MessageRepository messageRepository;
-  protected UserRepository userRepository;
+
+  protected final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor();
+  protected final Map<Long, MailAccountQueue> accountQueueMap = new ConcurrentHashMap<>();
+  protected final Set<Long> inFlightIdSet = ConcurrentHashMap.newKeySet();
+  protected final Queue<SendResult> resultQueue = new ConcurrentLinkedQueue<>();
+  protected final AtomicBoolean started = new AtomicBoolean();
+  protected final AtomicBoolean dispatchRequested = new AtomicBoolean();
+  protected final AtomicBoolean flushRequested = new AtomicBoolean();
+  protected volatile boolean stopped;
 
   @Inject
-  public SendMailQueueService(MessageRepository messageRepository, UserRepository userRepository) {
+  public SendMailQueueService(MessageRepository messageRepository) {
     this.messageRepository = messageRepository;
-    this.userRepository = userRepository;
   }
 
-  private final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
-  protected ExecutorService executor = Executors.newSingleThreadExecutor();
-
   /**
-   * Submit a mail job to an executor which will send mails in a separate thread.
+   * Wake up the queue once the current transaction is committed, so that the message is sent
+   * without waiting for the next poll.
    *
-   * @param mailBuilder
-   * @param message
+   * @param message a message saved with the in progress status
    */
-  public void submitMailJob(MailBuilder mailBuilder, Message message) {
-    long messageId = message.getId();
-    log.debug("Submitting job to executor for message {}...", messageId);
-    User currentUser = AuthUtils.getUser();
-    executor.submit(
-        () -> {
-          try {
-            final long startTime = System.currentTimeMillis();
-            boolean done = false;
-            PersistenceException persistenceException = null;
-            log.debug("Sending message {}...", messageId);
-            mailBuilder.send();
-            log.debug("Message {} sent.", messageId);
-            do {
-              try {
-                inTransaction(
-                    () -> {
-                      final Message updateMessage = findMessage(messageId);
-                      getEntityManager().lock(updateMessage, LockModeType.PESSIMISTIC_WRITE);
-                      updateMessage.setSentByEmail(true);
-                      updateMessage.setStatusSelect(MessageRepository.STATUS_SENT);
-                      updateMessage.setSentDateT(LocalDateTime.now());
-                      updateMessage.setSenderUser(userRepository.find(currentUser.getId()));
-                      messageRepository.save(updateMessage);
-                    });
-                done = true;
-              } catch (PersistenceException e) {
-                persistenceException = e;
-                sleep();
+  public void submitMailJob(Message message) {
+    log.debug("Queuing message {}...", message.getId());
+    start();
+    JPA.em()
+        .unwrap(SessionImplementor.class)
+        .getActionQueue()
+        .registerProcess(
+            (success, session) -> {
+              if (success) {
+                requestDispatch();
               }
-            } while (!done && System.currentTimeMillis() - startTime < ENTITY_FIND_TIMEOUT);
-            if (!done) {
-              throw persistenceException;
-            }
-          } catch (Exception e) {
-            log.debug("Exception when sending email", e);
-            TraceBackService.trace(e);
-          }
-          return true;
-        });
+            });
+  }
+
+  protected void onApplicationStartup(@Observes StartupEvent event) {
+    start();
   }
 
   /**
-   * This method calls shutdown on the executor when the application stops.
+   * This method stops the workers and saves the pending results when the application stops.
    *
    * @param event shutdown event
    */
   protected void onApplicationShutdown(@Observes ShutdownEvent event) {
-    log.debug("Shutting down mail executor..");
-    executor.shutdown();
-    log.debug("Mail executor stopped.");
+    log.debug("Shutting down mail queue..");
+    stopped = true;
+
+    for (MailAccountQueue accountQueue : accountQueueMap.values()) {
+      accountQueue.executor.shutdownNow();
+    }
+
+    try {
+      for (MailAccountQueue accountQueue : accountQueueMap.values()) {
+        accountQueue.executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+      }
+      scheduler.shutdown();
+      scheduler.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    flush();
+    log.debug("Mail queue stopped.");
+  }
+
+  protected void start() {
+    if (stopped || !started.compareAndSet(false, true)) {
+      return;
+    }
+    scheduler.scheduleWithFixedDelay(
+        this::dispatch, 0, getSetting(POLL_INTERVAL_SETTING, 30), TimeUnit.SECONDS);
+    scheduler.scheduleWithFixedDelay(
+        this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.SECONDS);
+  }
+
+  protected int getSetting(String key, int defaultValue) {
+    return Math.max(0, AppSettings.get().getInt(key, defaultValue));
+  }
+
+  protected void requestDispatch() {
+    if (!stopped && dispatchRequested.compareAndSet(false, true)) {
+      scheduler.execute(this::dispatch);
+    }
   }
 
-  private Message findMessage(Long messageId) {
-    Message foundMessage;
-    final long startTime = System.currentTimeMillis();
+  protected void requestFlush() {
+    if (!stopped && flushRequested.compareAndSet(false, true)) {
+      scheduler.execute(this::flush);
+    }
+  }
+
+  /** Claim the messages due for sending and hand them to the workers of their mail account. */
+  protected void dispatch() {
+    dispatchRequested.set(false);
+
+    try {
+      inUnitOfWork(this::dispatchMessages);
+    } catch (Exception e) {
+      // An exception would cancel the periodic dispatch
+      TraceBackService.trace(e);
+    }
+  }
+
+  protected void dispatchMessages() {
+
+    int batchSize = Math.max(1, getSetting(BATCH_SIZE_SETTING, 100));
+
+    // Keep the backlog in the database rather than in memory, so that queued messages are sent
+    // well before their lease expires
+    while (!stopped && inFlightIdSet.size() < 2 * batchSize) {
+
+      LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+      List<Long> idList =
+          getEntityManager()
+              .createQuery(
+                  "SELECT self.id FROM Message self"
+                      + " WHERE self.statusSelect = :statusSelect"
+                      + " AND self.mediaTypeSelect = :mediaTypeSelect"
+                      + " AND self.mailAccount IS NOT NULL"
+                      + " AND self.nextSendAttemptDateT <= :now"
+                      + " ORDER BY self.id",
+                  Long.class)
+              .setParameter("statusSelect", MessageRepository.STATUS_IN_PROGRESS)
+              .setParameter("mediaTypeSelect", MessageRepository.MEDIA_TYPE_EMAIL)
+              .setParameter("now", now)
+              .setMaxResults(batchSize)
+              .getResultList();
+
+      if (idList.isEmpty()) {
+        break;
+      }
+
+      claimMessages(idList, now)
+          .forEach(
+              (emailAccountId, messageIdList) -> {
+                messageIdList.removeIf(messageId -> !inFlightIdSet.add(messageId));
+                accountQueueMap
+                    .computeIfAbsent(emailAccountId, MailAccountQueue::new)
+                    .messageIdQueue
+                    .addAll(messageIdList);
+              });
+
+      if (idList.size() < batchSize) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Reserve messages to this server until their lease ends. Messages claimed in the meantime by
+   * another server are left out: each claim sets its own token on the messages it reserves, and
+   * reads back the messages holding it.
+   *
+   * @param idList
+   * @param now
+   * @return the ids of the claimed messages, by mail account
+   */
+  protected Map<Long, List<Long>> claimMessages(List<Long> idList, LocalDateTime now) {
+
+    LocalDateTime leaseEnd = now.plusSeconds(getSetting(LEASE_SETTING, 600));
+    String claimToken = UUID.randomUUID().toString();
+    Map<Long, List<Long>> accountMessageMap = new HashMap<>();
+
+    inTransaction(
+        () ->
+            getEntityManager()
+                .createQuery(
+                    "UPDATE Message self SET self.nextSendAttemptDateT = :leaseEnd,"
+                        + " self.sendClaimToken = :claimToken,"
+                        + " self.version = self.version + 1"
+                        + " WHERE self.id IN :ids AND self.statusSelect = :statusSelect"
+                        + " AND self.nextSendAttemptDateT <= :now")
+                .setParameter("leaseEnd", leaseEnd)
+                .setParameter("claimToken", claimToken)
+                .setParameter("ids", idList)
+                .setParameter("statusSelect", MessageRepository.STATUS_IN_PROGRESS)
+                .setParameter("now", now)
+                .executeUpdate());
+
+    getEntityManager()
+        .createQuery(
+            "SELECT self.id, self.mailAccount.id FROM Message self"
+                + " WHERE self.id IN :ids AND self.sendClaimToken = :claimToken",
+            Object[].class)
+        .setParameter("ids", idList)
+        .setParameter("claimToken", claimToken)
+        .getResultList()
+        .forEach(
+            row ->
+                accountMessageMap
+                    .computeIfAbsent((Long) row[1], key -> new ArrayList<>())
+                    .add((Long) row[0]));
+
+    return accountMessageMap;
+  }
+
+  /**
+   * Send a message on a worker thread, in its own request scope and unit of work. Any exception is
+   * turned into a result, so that the worker goes on with the next message.
+   *
+   * @param messageId
+   * @param connection the SMTP connection of the worker
+   * @return the result to save
+   */
+  protected SendResult send(Long messageId, SmtpConnection connection) {
+
+    RequestScoper scope = ServletScopes.scopeRequest(Collections.emptyMap());
+    UnitOfWork unitOfWork = Beans.get(UnitOfWork.class);
+    int attempt = 0;
+
+    try (RequestScoper.CloseableScope ignored = scope.open()) {
+      unitOfWork.begin();
+
+      try {
+        Message message = messageRepository.find(messageId);
+
+        if (message == null || message.getStatusSelect() != MessageRepository.STATUS_IN_PROGRESS) {
+          return new SendResult(messageId, SendStatus.SKIPPED, 0, null);
+        }
+
+        attempt = message.getSendAttemptCount() + 1;
+
+        log.debug("Sending message {}...", messageId);
+        connection.send(message);
+        log.debug("Message {} sent.", messageId);
+        return new SendResult(messageId, SendStatus.SENT, attempt, null);
+      } finally {
+        unitOfWork.end();
+      }
+    } catch (MessagingException | IOException | AxelorException | RuntimeException e) {
+      return getFailureResult(messageId, attempt, e, connection);
+    }
+  }
+
+  /**
+   * Get the result of a failed attempt to send a message.
+   *
+   * @param messageId
+   * @param attempt the number of the attempt, 0 when the message could not be loaded
+   * @param e the exception
+   * @param connection the SMTP connection of the worker, reset unless the failure is permanent
+   * @return the result to save
+   */
+  protected SendResult getFailureResult(
+      Long messageId, int attempt, Exception e, SmtpConnection connection) {
+
+    log.debug("Exception when sending message {}", messageId, e);
+
+    if (attempt == 0) {
+      // The message is claimed again once its lease ends
+      TraceBackService.trace(e);
+      return new SendResult(messageId, SendStatus.SKIPPED, 0, e);
+    }
 
-    while ((foundMessage = messageRepository.find(messageId)) == null
-        && System.currentTimeMillis() - startTime < ENTITY_FIND_TIMEOUT) {
-      sleep();
+    if (!isPermanentFailure(e)) {
+      connection.reset();
     }
 
-    if (foundMessage == null) {
-      throw new EntityNotFoundException(messageId.toString());
+    if (isPermanentFailure(e) || attempt >= getSetting(MAX_ATTEMPTS_SETTING, 5)) {
+      TraceBackService.trace(e);
+      return new SendResult(messageId, SendStatus.FAILED, attempt, e);
     }
 
-    return foundMessage;
+    return new SendResult(messageId, SendStatus.RETRY, attempt, e);
+  }
+
+  /**
+   * A failure that will not go away by sending the message again, like an invalid configuration or
+   * recipient address.
+   */
+  protected boolean isPermanentFailure(Exception e) {
+    if (e instanceof SendFailedException) {
+      return ((SendFailedException) e).getInvalidAddresses() != null
+          && ((SendFailedException) e).getInvalidAddresses().length > 0;
+    }
+    return e instanceof AxelorException || e instanceof AddressException;
   }
 
-  private void sleep() {
+  /** Save the pending results in a single transaction. */
+  protected void flush() {
+    flushRequested.set(false);
+
+    List<SendResult> resultList = new ArrayList<>();
+    SendResult result;
+
+    while ((result = resultQueue.poll()) != null) {
+      resultList.add(result);
+    }
+
+    if (resultList.isEmpty()) {
+      return;
+    }
+
     try {
-      Thread.sleep(ENTITY_FIND_INTERVAL);
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
+      inUnitOfWork(() -> inTransaction(() -> saveResults(resultList)));
+    } catch (Exception e) {
+      // Saved again at the next flush
+      resultQueue.addAll(resultList);
+      TraceBackService.trace(e);
+      return;
+    }
+
+    resultList.forEach(sendResult -> inFlightIdSet.remove(sendResult.messageId));
+
+    if (inFlightIdSet.size() < Math.max(1, getSetting(BATCH_SIZE_SETTING, 100))) {
+      requestDispatch();
+    }
+  }
+
+  protected void saveResults(List<SendResult> resultList) {
+
+    LocalDateTime now = LocalDateTime.now();
+    List<Long> sentIdList = new ArrayList<>();
+
+    for (SendResult result : resultList) {
+      if (result.status == SendStatus.SENT) {
+        sentIdList.add(result.messageId);
+      } else if (result.status != SendStatus.SKIPPED) {
+        saveFailure(result, now);
+      }
+    }
+
+    for (List<Long> idList :
+        Lists.partition(sentIdList, Math.max(1, getSetting(BATCH_SIZE_SETTING, 100)))) {
+      getEntityManager()
+          .createQuery(
+              "UPDATE Message self SET self.statusSelect = :statusSelect,"
+                  + " self.sentByEmail = TRUE, self.sentDateT = :now,"
+                  + " self.sendAttemptCount = self.sendAttemptCount + 1,"
+                  + " self.nextSendAttemptDateT = NULL, self.sendErrorMessage = NULL,"
+                  + " self.sendClaimToken = NULL,"
+                  + " self.version = self.version + 1"
+                  + " WHERE self.id IN :ids")
+          .setParameter("statusSelect", MessageRepository.STATUS_SENT)
+          .setParameter("now", now)
+          .setParameter("ids", idList)
+          .executeUpdate();
+    }
+  }
+
+  /**
+   * Save a failed attempt. The message is either planned for a new attempt, with a delay doubled on
+   * each attempt, or put back to draft.
+   */
+  protected void saveFailure(SendResult result, LocalDateTime now) {
+
+    boolean retry = result.status == SendStatus.RETRY;
+    long delay =
+        Math.min(
+            MAX_RETRY_DELAY,
+            (long) getSetting(RETRY_DELAY_SETTING, 60) << Math.min(result.attempt - 1, 20));
+    String error =
+        result.exception.getMessage() != null
+            ? result.exception.getMessage()
+            : result.exception.getClass().getName();
+
+    getEntityManager()
+        .createQuery(
+            "UPDATE Message self SET self.statusSelect = :statusSelect,"
+                + " self.sendAttemptCount = :attempt,"
+                + " self.nextSendAttemptDateT = :nextSendAttemptDateT,"
+                + " self.sendErrorMessage = :error,"
+                + " self.sendClaimToken = NULL,"
+                + " self.version = self.version + 1"
+                + " WHERE self.id = :id")
+        .setParameter(
+            "statusSelect",
+            retry ? MessageRepository.STATUS_IN_PROGRESS : MessageRepository.STATUS_DRAFT)
+        .setParameter("attempt", result.attempt)
+        .setParameter("nextSendAttemptDateT", retry ? now.plusSeconds(delay) : null)
+        .setParameter("error", error)
+        .setParameter("id", result.messageId)
+        .executeUpdate();
+  }
+
+  protected void inUnitOfWork(Runnable task) {
+
+    RequestScoper scope = ServletScopes.scopeRequest(Collections.emptyMap());
+    UnitOfWork unitOfWork = Beans.get(UnitOfWork.class);
+
+    try (RequestScoper.CloseableScope ignored = scope.open()) {
+      unitOfWork.begin();
+      task.run();
+    } finally {
+      unitOfWork.end();
+    }
+  }
+
+  /**
+   * Open an SMTP connection. Override to connect to a test server.
+   *
+   * @param session the mail session of the mail account
+   * @return a connected transport
+   * @throws MessagingException
+   */
+  protected Transport openTransport(Session session) throws MessagingException {
+    Transport transport = session.getTransport("smtp");
+    transport.connect();
+    return transport;
+  }
+
+  protected enum SendStatus {
+    SENT,
+    RETRY,
+    FAILED,
+    SKIPPED
+  }
+
+  protected static class SendResult {
+
+    protected final Long messageId;
+    protected final SendStatus status;
+    protected final int attempt;
+    protected final Exception exception;
+
+    protected SendResult(Long messageId, SendStatus status, int attempt, Exception exception) {
+      this.messageId = messageId;
+      this.status = status;
+      this.attempt = attempt;
+      this.exception = exception;
+    }
+  }
+
+  /** The queue and the workers of a mail account. */
+  protected class MailAccountQueue {
+
+    protected final BlockingQueue<Long> messageIdQueue = new LinkedBlockingQueue<>();
+    protected final ExecutorService executor;
+    protected final RateLimiter rateLimiter;
+
+    protected MailAccountQueue(Long emailAccountId) {
+      int connections = Math.max(1, getSetting(CONNECTIONS_SETTING, 1));
+      int rate = getSetting(RATE_SETTING, 0);
+
+      log.debug("Starting {} mail workers for mail account {}", connections, emailAccountId);
+      this.rateLimiter = rate > 0 ? RateLimiter.create(rate) : null;
+      this.executor = Executors.newFixedThreadPool(connections);
+
+      for (int i = 0; i < connections; i++) {
+        executor.execute(this::work);
+      }
+    }
+
+    protected void work() {
+
+      SmtpConnection connection = new SmtpConnection();
+
+      try {
+        while (!stopped) {
+          Long messageId = messageIdQueue.poll(CONNECTION_IDLE_TIMEOUT, TimeUnit.SECONDS);
+
+          if (messageId == null) {
+            connection.close();
+            continue;
+          }
+
+          if (rateLimiter != null) {
+            rateLimiter.acquire();
+          }
+
+          resultQueue.add(send(messageId, connection));
+
+          if (resultQueue.size() >= Math.max(1, getSetting(BATCH_SIZE_SETTING, 100))) {
+            requestFlush();
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        connection.close();
+      }
+    }
+  }
+
+  /** An SMTP connection kept open from one message to the next. */
+  protected class SmtpConnection {
+
+    protected Long emailAccountId;
+    protected Integer emailAccountVersion;
+    protected MailSender sender;
+    protected Session session;
+    protected Transport transport;
+
+    protected void send(Message message) throws MessagingException, IOException, AxelorException {
+
+      EmailAccount emailAccount = message.getMailAccount();
+
+      // Reconnect when the mail account has changed
+      if (sender == null
+          || !emailAccount.getId().equals(emailAccountId)
+          || !emailAccount.getVersion().equals(emailAccountVersion)) {
+        close();
+        MailAccount account = Beans.get(MailAccountService.class).getMailAccount(emailAccount);
+        sender = new MailSender(account);
+        session = account.getSession();
+        emailAccountId = emailAccount.getId();
+        emailAccountVersion = emailAccount.getVersion();
+      }
+
+      MimeMessage email = Beans.get(MessageService.class).buildEmail(message, sender);
+      email.saveChanges();
+
+      if (transport == null || !transport.isConnected()) {
+        transport = openTransport(session);
+      }
+
+      transport.sendMessage(email, email.getAllRecipients());
+    }
+
+    /** Close the connection and reload the mail account before the next message. */
+    protected void reset() {
+      close();
+      sender = null;
+      session = null;
+    }
+
+    protected void close() {
+      if (transport == null) {
+        return;
+      }
+      try {
+        transport.close();
+      } catch (MessagingException e) {
+        log.debug("Exception when closing SMTP connection", e);
+      }
+      transport = null;
     }
   }
 }
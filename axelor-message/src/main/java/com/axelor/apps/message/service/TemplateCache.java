@@ -0,0 +1,130 @@
+/*
+ * Axelor Business Solutions
+ *
+ * Copyright (C) 2021 Axelor (<http://axelor.com>).
+ *
+ * This program is free software: you can redistribute it and/or  modify
+ * it under the terms of the GNU Affero General Public License, version 3,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.axelor.apps.message.service;
+
+import com.axelor.apps.message.db.Template;
+import com.axelor.apps.message.db.repo.TemplateRepository;
+import com.axelor.inject.Beans;
+import com.axelor.text.GroovyTemplates;
+import com.axelor.text.StringTemplates;
+import com.axelor.text.Templates;
+import com.google.inject.Singleton;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps, for each message template, the templates compiled from its fields along with the template
+ * engine used to compile them, so that generating many messages from the same template parses each
+ * field once. The compiled fields are keyed by template id, field and version: they are compiled
+ * again when the version of the template changes, and dropped by {@link #invalidate(Long)} once a
+ * transaction updating or removing the template ends.
+ */
+@Singleton
+public class TemplateCache {
+
+  protected static final char TEMPLATE_DELIMITER = '$';
+
+  private final Map<Long, CompiledTemplate> compiledTemplateMap = new ConcurrentHashMap<>();
+
+  /**
+   * Gets the template engine of the given template. The same engine is returned as long as the
+   * template is not modified.
+   *
+   * @param template
+   * @return
+   */
+  public Templates getTemplates(Template template) {
+    return getCompiledTemplate(template).templates;
+  }
+
+  /**
+   * Gets the compiled template of a field of the given template, compiling it on first use.
+   *
+   * @param template the message template.
+   * @param field the name of the field of the message template.
+   * @param text the value of the field.
+   * @return
+   */
+  public com.axelor.text.Template getTemplate(Template template, String field, String text) {
+    CompiledTemplate compiledTemplate = getCompiledTemplate(template);
+    CompiledField compiledField =
+        compiledTemplate.fieldMap.compute(
+            field,
+            (key, value) ->
+                value != null && value.text.equals(text)
+                    ? value
+                    : new CompiledField(text, compiledTemplate.templates.fromText(text)));
+    return compiledField.template;
+  }
+
+  public void invalidate(Long templateId) {
+    if (templateId != null) {
+      compiledTemplateMap.remove(templateId);
+    }
+  }
+
+  protected CompiledTemplate getCompiledTemplate(Template template) {
+    if (template.getId() == null) {
+      return new CompiledTemplate(template);
+    }
+    return compiledTemplateMap.compute(
+        template.getId(),
+        (id, compiledTemplate) ->
+            compiledTemplate != null && compiledTemplate.isValid(template)
+                ? compiledTemplate
+                : new CompiledTemplate(template));
+  }
+
+  protected static Templates createTemplates(Template template) {
+    if (template.getTemplateEngineSelect() == TemplateRepository.TEMPLATE_ENGINE_GROOVY_TEMPLATE) {
+      return Beans.get(GroovyTemplates.class);
+    }
+    return new StringTemplates(TEMPLATE_DELIMITER, TEMPLATE_DELIMITER);
+  }
+
+  protected static class CompiledTemplate {
+
+    protected final Integer version;
+    protected final int templateEngineSelect;
+    protected final Templates templates;
+    protected final Map<String, CompiledField> fieldMap = new ConcurrentHashMap<>();
+
+    protected CompiledTemplate(Template template) {
+      this.version = template.getVersion();
+      this.templateEngineSelect = template.getTemplateEngineSelect();
+      this.templates = createTemplates(template);
+    }
+
+    protected boolean isValid(Template template) {
+      return Objects.equals(version, template.getVersion())
+          && templateEngineSelect == template.getTemplateEngineSelect();
+    }
+  }
+
+  protected static class CompiledField {
+
+    protected final String text;
+    protected final com.axelor.text.Template template;
+
+    protected CompiledField(String text, com.axelor.text.Template template) {
+      this.text = text;
+      this.template = template;
+    }
+  }
+}
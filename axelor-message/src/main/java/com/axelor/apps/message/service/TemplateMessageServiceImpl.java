@@ -41,8 +41,6 @@ import com.axelor.meta.db.MetaJsonModel;
 import com.axelor.meta.db.MetaJsonRecord;
 import com.axelor.meta.db.MetaModel;
 import com.axelor.rpc.Context;
-import com.axelor.text.GroovyTemplates;
-import com.axelor.text.StringTemplates;
 import com.axelor.text.Templates;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
@@ -64,18 +62,21 @@ import org.slf4j.LoggerFactory;
 public class TemplateMessageServiceImpl implements TemplateMessageService {
 
   private static final String RECIPIENT_SEPARATOR = ";|,";
-  private static final char TEMPLATE_DELIMITER = '$';
 
   private final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
   protected MessageService messageService;
   protected TemplateContextService templateContextService;
+  protected TemplateCache templateCache;
 
   @Inject
   public TemplateMessageServiceImpl(
-      MessageService messageService, TemplateContextService templateContextService) {
+      MessageService messageService,
+      TemplateContextService templateContextService,
+      TemplateCache templateCache) {
     this.messageService = messageService;
     this.templateContextService = templateContextService;
+    this.templateCache = templateCache;
   }
 
   @Override
@@ -93,15 +94,9 @@ public class TemplateMessageServiceImpl implements TemplateMessageService {
       throws ClassNotFoundException, InstantiationException, IllegalAccessException,
           AxelorException, IOException {
 
-    Templates templates;
+    Templates templates = templateCache.getTemplates(template);
     Map<String, Object> templatesContext = Maps.newHashMap();
 
-    if (template.getTemplateEngineSelect() == TemplateRepository.TEMPLATE_ENGINE_GROOVY_TEMPLATE) {
-      templates = Beans.get(GroovyTemplates.class);
-    } else {
-      templates = new StringTemplates(TEMPLATE_DELIMITER, TEMPLATE_DELIMITER);
-    }
-
     Object modelObj = template.getIsJson() ? template.getMetaJsonModel() : template.getMetaModel();
 
     if (modelObj != null) {
@@ -141,37 +136,40 @@ public class TemplateMessageServiceImpl implements TemplateMessageService {
     String signature = "";
 
     if (!Strings.isNullOrEmpty(template.getContent())) {
-      content = templates.fromText(template.getContent()).make(templatesContext).render();
+      content = render(template, "content", template.getContent(), templatesContext);
     }
 
     if (!Strings.isNullOrEmpty(template.getAddressBlock())) {
-      addressBlock = templates.fromText(template.getAddressBlock()).make(templatesContext).render();
+      addressBlock =
+          render(template, "addressBlock", template.getAddressBlock(), templatesContext);
     }
 
     if (!Strings.isNullOrEmpty(template.getSubject())) {
-      subject = templates.fromText(template.getSubject()).make(templatesContext).render();
+      subject = render(template, "subject", template.getSubject(), templatesContext);
       log.debug("Subject ::: {}", subject);
     }
 
     if (!Strings.isNullOrEmpty(template.getReplyToRecipients())) {
       replyToRecipients =
-          templates.fromText(template.getReplyToRecipients()).make(templatesContext).render();
+          render(template, "replyToRecipients", template.getReplyToRecipients(), templatesContext);
       log.debug("Reply to ::: {}", replyToRecipients);
     }
 
     if (template.getToRecipients() != null) {
-      toRecipients = templates.fromText(template.getToRecipients()).make(templatesContext).render();
+      toRecipients =
+          render(template, "toRecipients", template.getToRecipients(), templatesContext);
       log.debug("To ::: {}", toRecipients);
     }
 
     if (template.getCcRecipients() != null) {
-      ccRecipients = templates.fromText(template.getCcRecipients()).make(templatesContext).render();
+      ccRecipients =
+          render(template, "ccRecipients", template.getCcRecipients(), templatesContext);
       log.debug("CC ::: {}", ccRecipients);
     }
 
     if (template.getBccRecipients() != null) {
       bccRecipients =
-          templates.fromText(template.getBccRecipients()).make(templatesContext).render();
+          render(template, "bccRecipients", template.getBccRecipients(), templatesContext);
       log.debug("BCC ::: {}", bccRecipients);
     }
 
@@ -179,7 +177,7 @@ public class TemplateMessageServiceImpl implements TemplateMessageService {
     log.debug("Media ::: {}", mediaTypeSelect);
 
     if (template.getSignature() != null) {
-      signature = templates.fromText(template.getSignature()).make(templatesContext).render();
+      signature = render(template, "signature", template.getSignature(), templatesContext);
       log.debug("Signature ::: {}", signature);
     }
     EmailAccount mailAccount = getMailAccount();
@@ -218,6 +216,20 @@ public class TemplateMessageServiceImpl implements TemplateMessageService {
     return message;
   }
 
+  /**
+   * Render a field of the template, using the compiled template kept by {@link TemplateCache}.
+   *
+   * @param template the message template.
+   * @param field the name of the field of the message template.
+   * @param text the value of the field.
+   * @param templatesContext
+   * @return the rendered text.
+   */
+  protected String render(
+      Template template, String field, String text, Map<String, Object> templatesContext) {
+    return templateCache.getTemplate(template, field, text).make(templatesContext).render();
+  }
+
   @Override
   public Message generateAndSendMessage(Model model, Template template)
       throws MessagingException, IOException, AxelorException, ClassNotFoundException,
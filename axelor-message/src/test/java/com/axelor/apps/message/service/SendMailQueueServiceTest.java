@@ -0,0 +1,303 @@
+/*
+ * Axelor Business Solutions
+ *
+ * Copyright (C) 2021 Axelor (<http://axelor.com>).
+ *
+ * This program is free software: you can redistribute it and/or  modify
+ * it under the terms of the GNU Affero General Public License, version 3,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.axelor.apps.message.service;
+
+import com.axelor.app.AxelorModule;
+import com.axelor.apps.message.db.EmailAccount;
+import com.axelor.apps.message.db.EmailAddress;
+import com.axelor.apps.message.db.Message;
+import com.axelor.apps.message.db.repo.EmailAccountRepository;
+import com.axelor.apps.message.db.repo.MessageRepository;
+import com.axelor.apps.message.module.MessageModule;
+import com.axelor.apps.message.service.SendMailQueueServiceTest.MyModule;
+import com.axelor.apps.tool.module.ToolModule;
+import com.axelor.db.JPA;
+import com.axelor.db.JpaModule;
+import com.axelor.inject.Beans;
+import com.axelor.test.GuiceModules;
+import com.axelor.test.GuiceRunner;
+import com.google.common.collect.Sets;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(GuiceRunner.class)
+@GuiceModules({MyModule.class})
+public class SendMailQueueServiceTest {
+
+  protected static final String SENT_ADDRESS = "sent@example.com";
+  protected static final String RETRY_ADDRESS = "retry@example.com";
+  protected static final String INVALID_ADDRESS = "invalid@example.com";
+
+  protected StubSendMailQueueService sendMailQueueService;
+  protected EmailAccount emailAccount;
+
+  public static class MyModule extends AxelorModule {
+
+    @Override
+    protected void configure() {
+      bind(Beans.class).asEagerSingleton();
+      install(new JpaModule("testUnit", true, true));
+      install(new ToolModule());
+      install(new MessageModule());
+    }
+  }
+
+  /** A mail queue whose SMTP connections are stubs, sending the messages on a worker thread. */
+  protected static class StubSendMailQueueService extends SendMailQueueService {
+
+    protected final List<String> sentAddressList = Collections.synchronizedList(new ArrayList<>());
+    protected final SmtpConnection connection = new SmtpConnection();
+
+    protected StubSendMailQueueService(MessageRepository messageRepository) {
+      super(messageRepository);
+    }
+
+    @Override
+    protected Transport openTransport(Session session) {
+      return new StubTransport(session, sentAddressList);
+    }
+
+    /** Send messages one after the other on the same connection, then save the results. */
+    protected void sendAndSave(Long... messageIds) throws Exception {
+      runOnWorker(
+          () -> {
+            List<SendResult> resultList = new ArrayList<>();
+            for (Long messageId : messageIds) {
+              resultList.add(send(messageId, connection));
+            }
+            inUnitOfWork(() -> inTransaction(() -> saveResults(resultList)));
+            return resultList;
+          });
+    }
+
+    protected Map<Long, List<Long>> claim(List<Long> idList) throws Exception {
+      return runOnWorker(
+          () -> {
+            List<Map<Long, List<Long>>> claimedList = new ArrayList<>();
+            inUnitOfWork(
+                () ->
+                    claimedList.add(
+                        claimMessages(
+                            idList, LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS))));
+            return claimedList.get(0);
+          });
+    }
+
+    /** Run a task on its own thread, with its own unit of work, as the queue workers do. */
+    protected <T> T runOnWorker(Callable<T> task) throws Exception {
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+        return executor.submit(task).get();
+      } finally {
+        executor.shutdown();
+      }
+    }
+  }
+
+  /**
+   * An SMTP connection that sends to any address, except the retry address, as if the connection
+   * was lost, and the invalid address, as if the server rejected it.
+   */
+  protected static class StubTransport extends Transport {
+
+    protected final List<String> sentAddressList;
+    protected boolean connected = true;
+
+    protected StubTransport(Session session, List<String> sentAddressList) {
+      super(session, new URLName("smtp", "localhost", 25, null, null, null));
+      this.sentAddressList = sentAddressList;
+    }
+
+    @Override
+    public void sendMessage(javax.mail.Message email, Address[] addresses)
+        throws MessagingException {
+      for (Address address : addresses) {
+        String emailAddress = ((InternetAddress) address).getAddress();
+        if (RETRY_ADDRESS.equals(emailAddress)) {
+          throw new MessagingException("Connection lost");
+        }
+        if (INVALID_ADDRESS.equals(emailAddress)) {
+          throw new SendFailedException(
+              "Invalid address", null, new Address[0], new Address[0], new Address[] {address});
+        }
+      }
+      for (Address address : addresses) {
+        sentAddressList.add(((InternetAddress) address).getAddress());
+      }
+    }
+
+    @Override
+    public boolean isConnected() {
+      return connected;
+    }
+
+    @Override
+    public synchronized void close() {
+      connected = false;
+    }
+  }
+
+  @Before
+  public void prepare() {
+    sendMailQueueService = new StubSendMailQueueService(Beans.get(MessageRepository.class));
+
+    emailAccount = new EmailAccount();
+    emailAccount.setName("Mail queue test");
+    emailAccount.setServerTypeSelect(EmailAccountRepository.SERVER_TYPE_SMTP);
+    emailAccount.setHost("localhost");
+    emailAccount.setPort(25);
+    emailAccount.setSecuritySelect(EmailAccountRepository.SECURITY_NONE);
+    emailAccount.setFromAddress("queue@example.com");
+    JPA.runInTransaction(() -> JPA.save(emailAccount));
+  }
+
+  protected Message createMessage(String address, LocalDateTime queueDateT) {
+    Message message = new Message();
+    message.setMediaTypeSelect(MessageRepository.MEDIA_TYPE_EMAIL);
+    message.setStatusSelect(MessageRepository.STATUS_IN_PROGRESS);
+    message.setSubject("Mail queue test");
+    message.setContent("<p>Mail queue test</p>");
+    message.setMailAccount(emailAccount);
+    message.setToEmailAddressSet(Sets.newHashSet(new EmailAddress(address)));
+    message.setSendAttemptCount(0);
+    message.setNextSendAttemptDateT(queueDateT);
+    JPA.runInTransaction(() -> JPA.save(message));
+    return message;
+  }
+
+  protected Message createMessage(String address) {
+    return createMessage(address, LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS));
+  }
+
+  protected Message reload(Message message) {
+    JPA.em().refresh(message);
+    return message;
+  }
+
+  protected void assertRetryPlanned(
+      Message message, int attempt, long delay, LocalDateTime start, LocalDateTime end) {
+    Assert.assertEquals(MessageRepository.STATUS_IN_PROGRESS, (int) message.getStatusSelect());
+    Assert.assertEquals(attempt, (int) message.getSendAttemptCount());
+    Assert.assertNotNull(message.getSendErrorMessage());
+    Assert.assertNull(message.getSendClaimToken());
+    Assert.assertFalse(message.getNextSendAttemptDateT().isBefore(start.plusSeconds(delay)));
+    Assert.assertFalse(message.getNextSendAttemptDateT().isAfter(end.plusSeconds(delay)));
+  }
+
+  @Test
+  public void testSentMessage() throws Exception {
+    Message message = createMessage(SENT_ADDRESS);
+
+    sendMailQueueService.sendAndSave(message.getId());
+
+    message = reload(message);
+    Assert.assertEquals(MessageRepository.STATUS_SENT, (int) message.getStatusSelect());
+    Assert.assertTrue(message.getSentByEmail());
+    Assert.assertNotNull(message.getSentDateT());
+    Assert.assertEquals(1, (int) message.getSendAttemptCount());
+    Assert.assertNull(message.getNextSendAttemptDateT());
+    Assert.assertNull(message.getSendErrorMessage());
+    Assert.assertEquals(
+        Collections.singletonList(SENT_ADDRESS), sendMailQueueService.sentAddressList);
+  }
+
+  @Test
+  public void testRetryWithBackoff() throws Exception {
+    Message message = createMessage(RETRY_ADDRESS);
+    int maxAttempts = sendMailQueueService.getSetting(SendMailQueueService.MAX_ATTEMPTS_SETTING, 5);
+    long retryDelay = sendMailQueueService.getSetting(SendMailQueueService.RETRY_DELAY_SETTING, 60);
+
+    for (int attempt = 1; attempt < maxAttempts; attempt++) {
+      LocalDateTime start = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+      sendMailQueueService.sendAndSave(message.getId());
+      LocalDateTime end = LocalDateTime.now().plusSeconds(1);
+
+      // The delay is doubled on each attempt
+      assertRetryPlanned(reload(message), attempt, retryDelay << (attempt - 1), start, end);
+    }
+
+    sendMailQueueService.sendAndSave(message.getId());
+
+    message = reload(message);
+    Assert.assertEquals(MessageRepository.STATUS_DRAFT, (int) message.getStatusSelect());
+    Assert.assertEquals(maxAttempts, (int) message.getSendAttemptCount());
+    Assert.assertNull(message.getNextSendAttemptDateT());
+    Assert.assertEquals("Connection lost", message.getSendErrorMessage());
+    Assert.assertTrue(sendMailQueueService.sentAddressList.isEmpty());
+  }
+
+  @Test
+  public void testPermanentFailure() throws Exception {
+    Message invalidMessage = createMessage(INVALID_ADDRESS);
+    Message sentMessage = createMessage(SENT_ADDRESS);
+
+    // The connection is kept after a rejected address
+    sendMailQueueService.sendAndSave(invalidMessage.getId(), sentMessage.getId());
+
+    invalidMessage = reload(invalidMessage);
+    Assert.assertEquals(MessageRepository.STATUS_DRAFT, (int) invalidMessage.getStatusSelect());
+    Assert.assertEquals(1, (int) invalidMessage.getSendAttemptCount());
+    Assert.assertNull(invalidMessage.getNextSendAttemptDateT());
+    Assert.assertEquals("Invalid address", invalidMessage.getSendErrorMessage());
+
+    Assert.assertEquals(MessageRepository.STATUS_SENT, (int) reload(sentMessage).getStatusSelect());
+    Assert.assertEquals(
+        Collections.singletonList(SENT_ADDRESS), sendMailQueueService.sentAddressList);
+  }
+
+  @Test
+  public void testClaimOnlyQueuedMessages() throws Exception {
+    Message queuedMessage = createMessage(SENT_ADDRESS);
+    Message legacyMessage = createMessage(SENT_ADDRESS, null);
+    Message laterMessage = createMessage(SENT_ADDRESS, LocalDateTime.now().plusHours(1));
+
+    Map<Long, List<Long>> claimedMap =
+        sendMailQueueService.claim(
+            Arrays.asList(queuedMessage.getId(), legacyMessage.getId(), laterMessage.getId()));
+
+    Assert.assertEquals(
+        Collections.singletonMap(
+            emailAccount.getId(), Collections.singletonList(queuedMessage.getId())),
+        claimedMap);
+    Assert.assertNotNull(reload(queuedMessage).getSendClaimToken());
+    Assert.assertNull(reload(legacyMessage).getSendClaimToken());
+
+    // A message is claimed once until its lease ends
+    Assert.assertTrue(
+        sendMailQueueService.claim(Collections.singletonList(queuedMessage.getId())).isEmpty());
+  }
+}
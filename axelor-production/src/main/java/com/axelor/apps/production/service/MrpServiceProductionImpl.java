@@ -54,13 +54,21 @@ import com.axelor.exception.AxelorException;
 import com.axelor.exception.db.repo.TraceBackRepository;
 import com.axelor.i18n.I18n;
 import com.axelor.inject.Beans;
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.persist.Transactional;
 import java.lang.invoke.MethodHandles;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -114,9 +122,9 @@ public class MrpServiceProductionImpl extends MrpServiceImpl {
   }
 
   @Override
-  protected void completeMrp(Mrp mrp) throws AxelorException {
+  protected void createMrpLines() throws AxelorException {
 
-    super.completeMrp(mrp);
+    super.createMrpLines();
 
     if (Beans.get(AppProductionService.class).isApp("production")) {
       this.createManufOrderMrpLines();
@@ -137,12 +145,7 @@ public class MrpServiceProductionImpl extends MrpServiceImpl {
     MrpLineType manufOrderNeedMrpLineType =
         this.getMrpLineType(MrpLineTypeRepository.ELEMENT_MANUFACTURING_ORDER_NEED);
 
-    String statusSelect = manufOrderMrpLineType.getStatusSelect();
-    List<Integer> statusList = StringTool.getIntegerList(statusSelect);
-
-    if (statusList.isEmpty()) {
-      statusList.add(ManufOrderRepository.STATUS_FINISHED);
-    }
+    List<Integer> statusList = this.getManufOrderStatusList(manufOrderMrpLineType);
 
     List<ManufOrder> manufOrderList =
         manufOrderRepository
@@ -158,14 +161,26 @@ public class MrpServiceProductionImpl extends MrpServiceImpl {
     for (ManufOrder manufOrder : manufOrderList) {
 
       this.createManufOrderMrpLines(
-          mrpRepository.find(mrp.getId()),
+          this.findMrp(),
           manufOrderRepository.find(manufOrder.getId()),
           mrpLineTypeRepository.find(manufOrderMrpLineType.getId()),
           mrpLineTypeRepository.find(manufOrderNeedMrpLineType.getId()));
-      JPA.clear();
+      this.clearSession();
     }
   }
 
+  protected List<Integer> getManufOrderStatusList(MrpLineType manufOrderMrpLineType) {
+
+    String statusSelect = manufOrderMrpLineType.getStatusSelect();
+    List<Integer> statusList = StringTool.getIntegerList(statusSelect);
+
+    if (statusList.isEmpty()) {
+      statusList.add(ManufOrderRepository.STATUS_FINISHED);
+    }
+
+    return statusList;
+  }
+
   @Transactional(rollbackOn = {Exception.class})
   protected void createManufOrderMrpLines(
       Mrp mrp,
@@ -203,7 +218,7 @@ public class MrpServiceProductionImpl extends MrpServiceImpl {
                 stockLocation,
                 manufOrder);
         if (mrpLine != null) {
-          mrpLineRepository.save(mrpLine);
+          this.saveMrpLine(mrpLine);
         }
       }
     }
@@ -241,7 +256,7 @@ public class MrpServiceProductionImpl extends MrpServiceImpl {
                     stockLocation,
                     operationOrder);
             if (mrpLine != null) {
-              mrpLineRepository.save(mrpLine);
+              this.saveMrpLine(mrpLine);
             }
           }
         }
@@ -274,7 +289,7 @@ public class MrpServiceProductionImpl extends MrpServiceImpl {
                   stockLocation,
                   manufOrder);
           if (mrpLine != null) {
-            mrpLineRepository.save(mrpLine);
+            this.saveMrpLine(mrpLine);
           }
         }
       }
@@ -309,10 +324,10 @@ public class MrpServiceProductionImpl extends MrpServiceImpl {
     for (MrpLine mpsMrpLine : mpsMrpLineList) {
 
       this.createMpsMrpLines(
-          mrpRepository.find(mrp.getId()),
+          this.findMrp(),
           mrpLineRepository.find(mpsMrpLine.getId()),
           mrpLineTypeRepository.find(mpsNeedMrpLineType.getId()));
-      JPA.clear();
+      this.clearSession();
     }
   }
 
@@ -334,14 +349,14 @@ public class MrpServiceProductionImpl extends MrpServiceImpl {
               mpsMrpLine.getStockLocation(),
               mrp);
       if (mrpLine != null) {
-        mrpLineRepository.save(mrpLine);
+        this.saveMrpLine(mrpLine);
       }
     }
   }
 
   @Override
   @Transactional(rollbackOn = {Exception.class})
-  protected void createProposalMrpLine(
+  protected MrpLine createProposalMrpLine(
       Mrp mrp,
       Product product,
       MrpLineType mrpLineType,
@@ -352,18 +367,19 @@ public class MrpServiceProductionImpl extends MrpServiceImpl {
       String relatedToSelectName)
       throws AxelorException {
 
-    super.createProposalMrpLine(
-        mrp,
-        product,
-        mrpLineType,
-        reorderQty,
-        stockLocation,
-        maturityDate,
-        mrpLineOriginList,
-        relatedToSelectName);
+    MrpLine mrpLine =
+        super.createProposalMrpLine(
+            mrp,
+            product,
+            mrpLineType,
+            reorderQty,
+            stockLocation,
+            maturityDate,
+            mrpLineOriginList,
+            relatedToSelectName);
 
     if (!Beans.get(AppProductionService.class).isApp("production")) {
-      return;
+      return mrpLine;
     }
     BillOfMaterial defaultBillOfMaterial = product.getDefaultBillOfMaterial();
 
@@ -374,7 +390,7 @@ public class MrpServiceProductionImpl extends MrpServiceImpl {
           this.getMrpLineType(MrpLineTypeRepository.ELEMENT_MANUFACTURING_PROPOSAL_NEED);
 
       if (manufProposalNeedMrpLineType == null) {
-        return;
+        return mrpLine;
       }
 
       for (BillOfMaterial billOfMaterial : defaultBillOfMaterial.getBillOfMaterialSet()) {
@@ -397,6 +413,8 @@ public class MrpServiceProductionImpl extends MrpServiceImpl {
         }
       }
     }
+
+    return mrpLine;
   }
 
   /**
@@ -557,12 +575,154 @@ public class MrpServiceProductionImpl extends MrpServiceImpl {
       return;
     }
 
-    mrpLineRepository.save(
-        this.createAvailableStockMrpLine(
-            mrpRepository.find(mrp.getId()),
-            productRepository.find(product.getId()),
-            stockLocation,
-            availableStockMrpLineType));
+    this.createAvailableStockMrpLine(
+        this.findMrp(),
+        productRepository.find(product.getId()),
+        stockLocation,
+        availableStockMrpLineType);
+  }
+
+  @Override
+  protected Map<Long, Set<Long>> getLinkedProductMap() throws AxelorException {
+
+    Map<Long, Set<Long>> linkedProductMap = super.getLinkedProductMap();
+
+    if (!Beans.get(AppProductionService.class).isApp("production")) {
+      return linkedProductMap;
+    }
+
+    // A manufacturing proposal creates needs on the components of the default bill of materials
+    for (Object[] result : this.getDefaultBillOfMaterialComponents(this.productMap.keySet())) {
+      this.addLinkedProduct(linkedProductMap, (Long) result[0], (Long) result[1]);
+    }
+
+    MrpLineType manufOrderMrpLineType =
+        this.getMrpLineType(MrpLineTypeRepository.ELEMENT_MANUFACTURING_ORDER);
+
+    if (manufOrderMrpLineType == null) {
+      return linkedProductMap;
+    }
+
+    // A manufacturing order creates needs on its components, even outside of the bill of materials
+    List<String> queryList =
+        Arrays.asList(
+            "SELECT produced.product.id, consumed.product.id FROM ManufOrder self "
+                + "JOIN self.toProduceProdProductList produced "
+                + "JOIN self.toConsumeProdProductList consumed "
+                + "WHERE self.prodProcess.stockLocation IN (:stockLocations) "
+                + "AND self.statusSelect IN (:statusList)",
+            "SELECT produced.product.id, consumed.product.id FROM ManufOrder self "
+                + "JOIN self.toProduceProdProductList produced "
+                + "JOIN self.operationOrderList operationOrder "
+                + "JOIN operationOrder.toConsumeProdProductList consumed "
+                + "WHERE self.prodProcess.stockLocation IN (:stockLocations) "
+                + "AND self.statusSelect IN (:statusList)");
+
+    for (String query : queryList) {
+      List<Object[]> resultList =
+          JPA.em()
+              .createQuery(query, Object[].class)
+              .setParameter("stockLocations", this.stockLocationList)
+              .setParameter("statusList", this.getManufOrderStatusList(manufOrderMrpLineType))
+              .getResultList();
+
+      for (Object[] result : resultList) {
+        this.addLinkedProduct(linkedProductMap, (Long) result[0], (Long) result[1]);
+      }
+    }
+
+    return linkedProductMap;
+  }
+
+  /**
+   * Get the components of the default bill of materials of products, with one query for each
+   * thousand products.
+   *
+   * @param productIds
+   * @return the product id and component product id of each component
+   */
+  protected List<Object[]> getDefaultBillOfMaterialComponents(Collection<Long> productIds) {
+
+    List<Object[]> resultList = new ArrayList<>();
+
+    for (List<Long> productIdList : Lists.partition(new ArrayList<>(productIds), 1000)) {
+      resultList.addAll(
+          JPA.em()
+              .createQuery(
+                  "SELECT self.id, component.product.id FROM Product self "
+                      + "JOIN self.defaultBillOfMaterial billOfMaterial "
+                      + "JOIN billOfMaterial.billOfMaterialSet component "
+                      + "WHERE self.id IN (:productIds)",
+                  Object[].class)
+              .setParameter("productIds", productIdList)
+              .getResultList());
+    }
+
+    return resultList;
+  }
+
+  @Override
+  protected Map<Long, Set<Long>> getComponentProductMap(List<Long> productIdList)
+      throws AxelorException {
+
+    Map<Long, Set<Long>> componentProductMap = super.getComponentProductMap(productIdList);
+
+    if (!Beans.get(AppProductionService.class).isApp("production")) {
+      return componentProductMap;
+    }
+
+    // A manufacturing proposal creates needs on the components of the default bill of materials
+    for (Object[] result : this.getDefaultBillOfMaterialComponents(productIdList)) {
+      componentProductMap
+          .computeIfAbsent((Long) result[0], key -> new HashSet<>())
+          .add((Long) result[1]);
+    }
+
+    return componentProductMap;
+  }
+
+  @Override
+  protected Set<Long> getChangedProductIdSet(LocalDateTime dateTime) {
+
+    Set<Long> productIdSet = super.getChangedProductIdSet(dateTime);
+
+    if (!Beans.get(AppProductionService.class).isApp("production")) {
+      return productIdSet;
+    }
+
+    productIdSet.addAll(
+        this.createChangedProductQuery(
+                "SELECT self.product.id FROM BillOfMaterial self "
+                    + "WHERE self.createdOn > :dateTime OR self.updatedOn > :dateTime",
+                dateTime)
+            .getResultList());
+
+    productIdSet.addAll(
+        this.createChangedProductQuery(
+                "SELECT prodProduct.product.id FROM ManufOrder self "
+                    + "JOIN self.toProduceProdProductList prodProduct "
+                    + "WHERE self.prodProcess.stockLocation IN (:stockLocations) "
+                    + "AND (self.createdOn > :dateTime OR self.updatedOn > :dateTime)",
+                dateTime)
+            .setParameter("stockLocations", this.stockLocationList)
+            .getResultList());
+
+    productIdSet.addAll(
+        this.createChangedProductQuery(
+                "SELECT self.product.id FROM MrpLine self "
+                    + "WHERE self.stockLocation IN (:stockLocations) "
+                    + "AND self.mrp.id != :mrpId AND self.mrp.mrpTypeSelect = :mrpTypeSelect "
+                    + "AND self.mrpLineType.elementSelect = :elementSelect "
+                    + "AND (self.createdOn > :dateTime OR self.updatedOn > :dateTime)",
+                dateTime)
+            .setParameter("stockLocations", this.stockLocationList)
+            .setParameter("mrpId", mrp.getId())
+            .setParameter("mrpTypeSelect", MrpRepository.MRP_TYPE_MPS)
+            .setParameter(
+                "elementSelect", MrpLineTypeRepository.ELEMENT_MASTER_PRODUCTION_SCHEDULING)
+            .getResultList());
+
+    return productIdSet;
   }
 
   @Override
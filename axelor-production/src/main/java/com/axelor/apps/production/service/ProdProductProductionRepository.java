@@ -20,6 +20,7 @@ package com.axelor.apps.production.service;
 import com.axelor.apps.base.service.app.AppBaseService;
 import com.axelor.apps.production.db.repo.ProdProductRepository;
 import com.axelor.apps.production.service.app.AppProductionService;
+import com.axelor.apps.stock.service.StockLocationLineLedgerService;
 import com.axelor.db.JPA;
 import com.axelor.inject.Beans;
 import java.math.BigDecimal;
@@ -70,7 +71,10 @@ public class ProdProductProductionRepository extends ProdProductRepository {
     List<BigDecimal> queryResult =
         JPA.em()
             .createQuery(
-                "SELECT locationLine.currentQty "
+                "SELECT "
+                    + Beans.get(StockLocationLineLedgerService.class)
+                        .getCurrentQtyExpression("locationLine")
+                    + " "
                     + "FROM ManufOrder manufOrder "
                     + "LEFT JOIN StockLocationLine locationLine "
                     + "ON locationLine.stockLocation.id = manufOrder.prodProcess.stockLocation.id "
@@ -19,8 +19,10 @@ package com.axelor.apps.stock.db.repo;
 
 import com.axelor.apps.base.db.Product;
 import com.axelor.apps.stock.db.StockLocationLine;
+import com.axelor.apps.stock.service.StockLocationLineLedgerService;
 import com.axelor.apps.stock.service.WeightedAveragePriceService;
 import com.axelor.inject.Beans;
+import java.util.Map;
 import javax.persistence.PersistenceException;
 
 public class StockLocationLineStockRepository extends StockLocationLineRepository {
@@ -37,4 +39,29 @@ public class StockLocationLineStockRepository extends StockLocationLineRepositor
       throw new PersistenceException(e);
     }
   }
+
+  /** Override to show the quantities including the pending deltas of the stock movement ledger */
+  @Override
+  public Map<String, Object> populate(Map<String, Object> json, Map<String, Object> context) {
+    StockLocationLineLedgerService stockLocationLineLedgerService =
+        Beans.get(StockLocationLineLedgerService.class);
+    Long stockLocationLineId = (Long) json.get("id");
+
+    if (!stockLocationLineLedgerService.isEnabled() || stockLocationLineId == null) {
+      return super.populate(json, context);
+    }
+
+    StockLocationLine stockLocationLine = find(stockLocationLineId);
+
+    if (json.containsKey("currentQty")) {
+      json.put(
+          "currentQty", stockLocationLineLedgerService.getDisplayedCurrentQty(stockLocationLine));
+    }
+    if (json.containsKey("futureQty")) {
+      json.put(
+          "futureQty", stockLocationLineLedgerService.getDisplayedFutureQty(stockLocationLine));
+    }
+
+    return super.populate(json, context);
+  }
 }
@@ -216,4 +216,10 @@ public interface IExceptionMessage {
 
   public static final String INVENTORY_PRODUCT_TRACKING_NUMBER_ERROR = /*$$(*/
       "There is more than one line for same product with same tracking number." /*)*/;
+
+  /** Batch rebuild future qty */
+  String BATCH_REBUILD_FUTURE_QTY_REPORT = /*$$(*/ "Future quantity check report:" /*)*/;
+
+  String BATCH_REBUILD_FUTURE_QTY_DONE_SINGULAR = /*$$(*/ "%d stock location line corrected," /*)*/;
+  String BATCH_REBUILD_FUTURE_QTY_DONE_PLURAL = /*$$(*/ "%d stock location lines corrected," /*)*/;
 }
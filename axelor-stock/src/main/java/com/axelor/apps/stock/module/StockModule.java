@@ -26,6 +26,8 @@ import com.axelor.apps.stock.db.repo.InventoryRepository;
 import com.axelor.apps.stock.db.repo.LogisticalFormRepository;
 import com.axelor.apps.stock.db.repo.LogisticalFormStockRepository;
 import com.axelor.apps.stock.db.repo.ProductStockRepository;
+import com.axelor.apps.stock.db.repo.StockBatchManagementRepository;
+import com.axelor.apps.stock.db.repo.StockBatchRepository;
 import com.axelor.apps.stock.db.repo.StockCorrectionRepository;
 import com.axelor.apps.stock.db.repo.StockCorrectionStockRepository;
 import com.axelor.apps.stock.db.repo.StockLocationLineRepository;
@@ -51,6 +53,9 @@ import com.axelor.apps.stock.service.StockCorrectionService;
 import com.axelor.apps.stock.service.StockCorrectionServiceImpl;
 import com.axelor.apps.stock.service.StockHistoryService;
 import com.axelor.apps.stock.service.StockHistoryServiceImpl;
+import com.axelor.apps.stock.service.StockLocationLineLedgerCompactor;
+import com.axelor.apps.stock.service.StockLocationLineLedgerService;
+import com.axelor.apps.stock.service.StockLocationLineLedgerServiceImpl;
 import com.axelor.apps.stock.service.StockLocationLineService;
 import com.axelor.apps.stock.service.StockLocationLineServiceImpl;
 import com.axelor.apps.stock.service.StockLocationService;
@@ -83,6 +88,8 @@ public class StockModule extends AxelorModule {
     bind(InventoryRepository.class).to(InventoryManagementRepository.class);
     bind(StockMoveRepository.class).to(StockMoveManagementRepository.class);
     bind(StockLocationLineService.class).to(StockLocationLineServiceImpl.class);
+    bind(StockLocationLineLedgerService.class).to(StockLocationLineLedgerServiceImpl.class);
+    bind(StockLocationLineLedgerCompactor.class);
     bind(StockMoveLineService.class).to(StockMoveLineServiceImpl.class);
     bind(StockMoveService.class).to(StockMoveServiceImpl.class);
     bind(StockLocationService.class).to(StockLocationServiceImpl.class);
@@ -106,5 +113,6 @@ public class StockModule extends AxelorModule {
     bind(WeightedAveragePriceService.class).to(WeightedAveragePriceServiceImpl.class);
     bind(StockHistoryService.class).to(StockHistoryServiceImpl.class);
     bind(StockCorrectionRepository.class).to(StockCorrectionStockRepository.class);
+    bind(StockBatchRepository.class).to(StockBatchManagementRepository.class);
   }
 }
@@ -35,9 +35,11 @@ import com.axelor.apps.stock.db.repo.StockLocationLineRepository;
 import com.axelor.db.JPA;
 import com.axelor.db.Query;
 import com.axelor.exception.AxelorException;
+import com.axelor.inject.Beans;
 import com.google.inject.Inject;
 import java.math.BigDecimal;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 public class ABCAnalysisServiceStockImpl extends ABCAnalysisServiceImpl {
@@ -79,11 +81,15 @@ public class ABCAnalysisServiceStockImpl extends ABCAnalysisServiceImpl {
     List<StockLocationLine> stockLocationLineList;
     int offset = 0;
 
+    StockLocationLineLedgerService stockLocationLineLedgerService =
+        Beans.get(StockLocationLineLedgerService.class);
     Query<StockLocationLine> stockLocationLineQuery =
         stockLocationLineRepository
             .all()
             .filter(
-                "self.stockLocation IN :stockLocationList AND self.product.id = :productId AND self.currentQty != 0 ")
+                "self.stockLocation IN :stockLocationList AND self.product.id = :productId AND "
+                    + stockLocationLineLedgerService.getCurrentQtyExpression("self")
+                    + " != 0 ")
             .bind("stockLocationList", stockLocationList)
             .bind("productId", product.getId());
 
@@ -95,12 +101,15 @@ public class ABCAnalysisServiceStockImpl extends ABCAnalysisServiceImpl {
         abcAnalysisLine = super.createABCAnalysisLine(abcAnalysis, product).get();
       }
 
+      Map<Long, BigDecimal> currentQtyMap =
+          stockLocationLineLedgerService.getCurrentQtyMap(stockLocationLineList);
+
       for (StockLocationLine stockLocationLine : stockLocationLineList) {
         BigDecimal convertedQty =
             unitConversionService.convert(
                 stockLocationLine.getUnit(),
                 product.getUnit(),
-                stockLocationLine.getCurrentQty(),
+                currentQtyMap.get(stockLocationLine.getId()),
                 5,
                 product);
         productQty = productQty.add(convertedQty);
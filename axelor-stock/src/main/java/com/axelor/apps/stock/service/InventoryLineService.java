@@ -28,6 +28,7 @@ import com.axelor.apps.stock.db.repo.StockLocationLineRepository;
 import com.axelor.inject.Beans;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.util.List;
 
 public class InventoryLineService {
 
@@ -59,11 +60,14 @@ public class InventoryLineService {
           Beans.get(StockLocationLineService.class)
               .getOrCreateStockLocationLine(stockLocation, product);
 
+      StockLocationLineLedgerService ledgerService =
+          Beans.get(StockLocationLineLedgerService.class);
+
       if (stockLocationLine != null) {
-        inventoryLine.setCurrentQty(stockLocationLine.getCurrentQty());
+        inventoryLine.setCurrentQty(ledgerService.getCurrentQty(stockLocationLine));
         inventoryLine.setRack(stockLocationLine.getRack());
         if (inventoryLine.getTrackingNumber() != null) {
-          inventoryLine.setCurrentQty(
+          List<StockLocationLine> detailLocationLineList =
               Beans.get(StockLocationLineRepository.class)
                   .all()
                   .filter(
@@ -71,8 +75,9 @@ public class InventoryLineService {
                   .bind("product", inventoryLine.getProduct())
                   .bind("stockLocation", stockLocation)
                   .bind("trackingNumber", inventoryLine.getTrackingNumber())
-                  .fetchStream()
-                  .map(it -> it.getCurrentQty())
+                  .fetch();
+          inventoryLine.setCurrentQty(
+              ledgerService.getCurrentQtyMap(detailLocationLineList).values().stream()
                   .reduce(BigDecimal.ZERO, (a, b) -> a.add(b)));
         }
       } else {
@@ -41,6 +41,7 @@ import com.axelor.apps.stock.exception.IExceptionMessage;
 import com.axelor.apps.stock.service.config.StockConfigService;
 import com.axelor.apps.tool.file.CsvTool;
 import com.axelor.auth.AuthUtils;
+import com.axelor.db.JPA;
 import com.axelor.exception.AxelorException;
 import com.axelor.exception.db.repo.TraceBackRepository;
 import com.axelor.i18n.I18n;
@@ -48,6 +49,7 @@ import com.axelor.inject.Beans;
 import com.axelor.meta.MetaFiles;
 import com.axelor.meta.db.MetaFile;
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.persist.Transactional;
 import java.io.File;
@@ -65,13 +67,18 @@ import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
+import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -88,6 +95,13 @@ public class InventoryService {
   private final String DESCRIPTION = I18n.get("Description");
   private final String LAST_INVENTORY_DATE = I18n.get("Last Inventory date");
 
+  /** Number of lines of an import file resolved and inserted at once. */
+  protected static final int IMPORT_CHUNK_SIZE = 1000;
+
+  /** Number of inventory lines validated per transaction by the validation by chunks. */
+  public static final String VALIDATION_CHUNK_SIZE_SETTING =
+      "stock.inventory.validation.chunk.size";
+
   protected InventoryLineService inventoryLineService;
   protected SequenceService sequenceService;
   protected StockConfigService stockConfigService;
@@ -184,18 +198,31 @@ public class InventoryService {
     return ref;
   }
 
+  /**
+   * Import the lines of an inventory from its import file.
+   *
+   * <p>The lines of the file matching an inventory line by product code and tracking number update
+   * it. The other lines are created: their products and tracking numbers are resolved with a few
+   * queries on all the codes of the file, and they are inserted in batches.
+   */
   @Transactional(rollbackOn = {Exception.class})
   public Path importFile(Inventory inventory) throws AxelorException {
 
-    List<InventoryLine> inventoryLineList = inventory.getInventoryLineList();
     Path filePath = MetaFiles.getPath(inventory.getImportFile());
     List<String[]> data = this.getDatas(filePath);
 
     HashMap<String, InventoryLine> inventoryLineMap = this.getInventoryLines(inventory);
     List<String> headers = Arrays.asList(data.get(0));
+    int codeIndex = headers.indexOf(PRODUCT_CODE);
+    int trackingNumberIndex = headers.indexOf(TRACKING_NUMBER);
+    int realQtyIndex = headers.indexOf(REAL_QUANTITY);
+    int descriptionIndex = headers.indexOf(DESCRIPTION);
+    int qtyScale = appBaseService.getNbDecimalDigitForQty();
 
     data.remove(0); /* Skip headers */
 
+    List<String[]> newLineList = new ArrayList<>();
+
     for (String[] line : data) {
       if (line.length < 6)
         throw new AxelorException(
@@ -204,83 +231,247 @@ public class InventoryService {
             TraceBackRepository.CATEGORY_CONFIGURATION_ERROR,
             I18n.get(IExceptionMessage.INVENTORY_3));
 
-      String code = line[headers.indexOf(PRODUCT_CODE)].replace("\"", "");
-      String rack = line[headers.indexOf(RACK)].replace("\"", "");
-      String trackingNumberSeq = line[headers.indexOf(TRACKING_NUMBER)].replace("\"", "");
-
-      BigDecimal realQty;
-      try {
-        realQty = new BigDecimal(line[headers.indexOf(REAL_QUANTITY)].replace("\"", ""));
-      } catch (NumberFormatException e) {
-        throw new AxelorException(
-            new Throwable(I18n.get(IExceptionMessage.INVENTORY_3_REAL_QUANTITY)),
-            inventory,
-            TraceBackRepository.CATEGORY_CONFIGURATION_ERROR,
-            I18n.get(IExceptionMessage.INVENTORY_3));
-      }
-
-      String description = line[headers.indexOf(DESCRIPTION)].replace("\"", "");
+      String code = getValue(line, codeIndex);
+      String trackingNumberSeq = getValue(line, trackingNumberIndex);
+      BigDecimal realQty =
+          this.getQty(inventory, line, realQtyIndex, IExceptionMessage.INVENTORY_3_REAL_QUANTITY);
 
-      int qtyScale = Beans.get(AppBaseService.class).getAppBase().getNbDecimalDigitForQty();
-      String key = code + trackingNumberSeq;
+      InventoryLine inventoryLine = inventoryLineMap.get(code + trackingNumberSeq);
 
-      if (inventoryLineMap.containsKey(key)) {
-        InventoryLine inventoryLine = inventoryLineMap.get(key);
+      if (inventoryLine != null) {
         inventoryLine.setRealQty(realQty.setScale(qtyScale, RoundingMode.HALF_EVEN));
-        inventoryLine.setDescription(description);
+        inventoryLine.setDescription(getValue(line, descriptionIndex));
 
         if (inventoryLine.getTrackingNumber() != null) {
           inventoryLine.getTrackingNumber().setCounter(realQty);
         }
       } else {
-        BigDecimal currentQty;
-        try {
-          currentQty = new BigDecimal(line[headers.indexOf(CURRENT_QUANTITY)].replace("\"", ""));
-        } catch (NumberFormatException e) {
+        newLineList.add(line);
+      }
+    }
+
+    inventoryRepo.save(inventory);
+
+    if (!newLineList.isEmpty()) {
+      this.importInventoryLines(inventory, headers, newLineList, qtyScale);
+    }
+
+    return filePath;
+  }
+
+  /**
+   * Create the inventory lines of the import file which are not in the inventory yet. The existing
+   * tracking numbers are reused and the missing ones are created. The lines are inserted by chunks,
+   * and the persistence context is cleared after each chunk.
+   */
+  protected void importInventoryLines(
+      Inventory inventory, List<String> headers, List<String[]> lineList, int qtyScale)
+      throws AxelorException {
+
+    int codeIndex = headers.indexOf(PRODUCT_CODE);
+    int rackIndex = headers.indexOf(RACK);
+    int trackingNumberIndex = headers.indexOf(TRACKING_NUMBER);
+    int currentQtyIndex = headers.indexOf(CURRENT_QUANTITY);
+    int realQtyIndex = headers.indexOf(REAL_QUANTITY);
+    int descriptionIndex = headers.indexOf(DESCRIPTION);
+
+    Map<String, Long> productIdMap =
+        this.getStorableProductIdMap(
+            inventory,
+            lineList.stream().map(line -> getValue(line, codeIndex)).collect(Collectors.toSet()));
+    Map<Pair<Long, String>, Long> trackingNumberIdMap =
+        this.getTrackingNumberIdMap(
+            inventory, lineList, productIdMap, codeIndex, trackingNumberIndex, realQtyIndex);
+
+    Long inventoryId = inventory.getId();
+    Session session = JPA.em().unwrap(Session.class);
+    Integer jdbcBatchSize = session.getJdbcBatchSize();
+    session.setJdbcBatchSize(IMPORT_CHUNK_SIZE);
+
+    try {
+      JPA.flush();
+      JPA.clear();
+
+      for (List<String[]> chunk : Lists.partition(lineList, IMPORT_CHUNK_SIZE)) {
+        inventory = JPA.em().getReference(Inventory.class, inventoryId);
+
+        for (String[] line : chunk) {
+          Long productId = productIdMap.get(getValue(line, codeIndex));
+          Long trackingNumberId =
+              trackingNumberIdMap.get(Pair.of(productId, getValue(line, trackingNumberIndex)));
+          BigDecimal currentQty =
+              this.getQty(
+                  inventory, line, currentQtyIndex, IExceptionMessage.INVENTORY_3_CURRENT_QUANTITY);
+          BigDecimal realQty =
+              this.getQty(
+                  inventory, line, realQtyIndex, IExceptionMessage.INVENTORY_3_REAL_QUANTITY);
+
+          InventoryLine inventoryLine = new InventoryLine();
+          inventoryLine.setProduct(JPA.em().getReference(Product.class, productId));
+          inventoryLine.setInventory(inventory);
+          inventoryLine.setRack(getValue(line, rackIndex));
+          inventoryLine.setCurrentQty(currentQty.setScale(qtyScale, RoundingMode.HALF_EVEN));
+          inventoryLine.setRealQty(realQty.setScale(qtyScale, RoundingMode.HALF_EVEN));
+          inventoryLine.setDescription(getValue(line, descriptionIndex));
+          if (trackingNumberId != null) {
+            inventoryLine.setTrackingNumber(
+                JPA.em().getReference(TrackingNumber.class, trackingNumberId));
+          }
+          JPA.em().persist(inventoryLine);
+        }
+
+        JPA.flush();
+        JPA.clear();
+      }
+    } finally {
+      session.setJdbcBatchSize(jdbcBatchSize);
+    }
+  }
+
+  /**
+   * Get the storable products of the given codes.
+   *
+   * @return the product ids, by product code
+   * @throws AxelorException if a code is missing, shared by several products or not storable
+   */
+  protected Map<String, Long> getStorableProductIdMap(Inventory inventory, Set<String> codeSet)
+      throws AxelorException {
+
+    Map<String, Long> productIdMap = new HashMap<>();
+
+    for (List<String> codeList : Lists.partition(new ArrayList<>(codeSet), IMPORT_CHUNK_SIZE)) {
+      List<Object[]> productList =
+          JPA.em()
+              .createQuery(
+                  "SELECT self.code, self.id, self.productTypeSelect FROM Product self"
+                      + " WHERE self.code IN :codes AND self.dtype = 'Product'",
+                  Object[].class)
+              .setParameter("codes", codeList)
+              .getResultList();
+
+      for (Object[] product : productList) {
+        String code = (String) product[0];
+        if (productIdMap.containsKey(code)) {
           throw new AxelorException(
-              new Throwable(I18n.get(IExceptionMessage.INVENTORY_3_CURRENT_QUANTITY)),
               inventory,
               TraceBackRepository.CATEGORY_CONFIGURATION_ERROR,
-              I18n.get(IExceptionMessage.INVENTORY_3));
+              I18n.get(IExceptionMessage.INVENTORY_12) + " " + code);
         }
-
-        InventoryLine inventoryLine = new InventoryLine();
-        List<Product> productList =
-            productRepo
-                .all()
-                .filter("self.code = :code AND self.dtype = 'Product'")
-                .bind("code", code)
-                .fetch();
-        if (productList != null && !productList.isEmpty()) {
-          if (productList.size() > 1) {
-            throw new AxelorException(
-                inventory,
-                TraceBackRepository.CATEGORY_CONFIGURATION_ERROR,
-                I18n.get(IExceptionMessage.INVENTORY_12) + " " + code);
-          }
-        }
-        Product product = productList.get(0);
-        if (product == null
-            || !product.getProductTypeSelect().equals(ProductRepository.PRODUCT_TYPE_STORABLE))
+        if (!ProductRepository.PRODUCT_TYPE_STORABLE.equals(product[2])) {
           throw new AxelorException(
               inventory,
               TraceBackRepository.CATEGORY_CONFIGURATION_ERROR,
               I18n.get(IExceptionMessage.INVENTORY_4) + " " + code);
-        inventoryLine.setProduct(product);
-        inventoryLine.setInventory(inventory);
-        inventoryLine.setRack(rack);
-        inventoryLine.setCurrentQty(currentQty.setScale(qtyScale, RoundingMode.HALF_EVEN));
-        inventoryLine.setRealQty(realQty.setScale(qtyScale, RoundingMode.HALF_EVEN));
-        inventoryLine.setDescription(description);
-        inventoryLine.setTrackingNumber(
-            this.getTrackingNumber(trackingNumberSeq, product, realQty));
-        inventoryLineList.add(inventoryLine);
+        }
+        productIdMap.put(code, (Long) product[1]);
       }
     }
-    inventory.setInventoryLineList(inventoryLineList);
 
-    inventoryRepo.save(inventory);
-    return filePath;
+    for (String code : codeSet) {
+      if (!productIdMap.containsKey(code)) {
+        throw new AxelorException(
+            inventory,
+            TraceBackRepository.CATEGORY_CONFIGURATION_ERROR,
+            I18n.get(IExceptionMessage.INVENTORY_4) + " " + code);
+      }
+    }
+
+    return productIdMap;
+  }
+
+  /**
+   * Get the tracking numbers of the lines of the import file, and create the missing ones with the
+   * real quantity of their first line as counter.
+   *
+   * @return the tracking number ids, by product id and tracking number sequence
+   */
+  protected Map<Pair<Long, String>, Long> getTrackingNumberIdMap(
+      Inventory inventory,
+      List<String[]> lineList,
+      Map<String, Long> productIdMap,
+      int codeIndex,
+      int trackingNumberIndex,
+      int realQtyIndex)
+      throws AxelorException {
+
+    Map<Pair<Long, String>, String[]> trackingNumberLineMap = new LinkedHashMap<>();
+
+    for (String[] line : lineList) {
+      String sequence = getValue(line, trackingNumberIndex);
+      if (!StringUtils.isEmpty(sequence)) {
+        trackingNumberLineMap.putIfAbsent(
+            Pair.of(productIdMap.get(getValue(line, codeIndex)), sequence), line);
+      }
+    }
+
+    Map<Pair<Long, String>, Long> trackingNumberIdMap = new HashMap<>();
+
+    for (List<Pair<Long, String>> keyList :
+        Lists.partition(new ArrayList<>(trackingNumberLineMap.keySet()), IMPORT_CHUNK_SIZE)) {
+      JPA.em()
+          .createQuery(
+              "SELECT self.product.id, self.trackingNumberSeq, self.id FROM TrackingNumber self"
+                  + " WHERE self.product.id IN :productIds"
+                  + " AND self.trackingNumberSeq IN :sequences",
+              Object[].class)
+          .setParameter(
+              "productIds", keyList.stream().map(Pair::getLeft).collect(Collectors.toSet()))
+          .setParameter(
+              "sequences", keyList.stream().map(Pair::getRight).collect(Collectors.toSet()))
+          .getResultList()
+          .forEach(
+              trackingNumber ->
+                  trackingNumberIdMap.putIfAbsent(
+                      Pair.of((Long) trackingNumber[0], (String) trackingNumber[1]),
+                      (Long) trackingNumber[2]));
+    }
+
+    List<TrackingNumber> newTrackingNumberList = new ArrayList<>();
+
+    for (Map.Entry<Pair<Long, String>, String[]> entry : trackingNumberLineMap.entrySet()) {
+      Pair<Long, String> key = entry.getKey();
+      if (trackingNumberIdMap.containsKey(key)) {
+        continue;
+      }
+      TrackingNumber trackingNumber = new TrackingNumber();
+      trackingNumber.setTrackingNumberSeq(key.getRight());
+      trackingNumber.setProduct(JPA.em().getReference(Product.class, key.getLeft()));
+      trackingNumber.setCounter(
+          this.getQty(
+              inventory,
+              entry.getValue(),
+              realQtyIndex,
+              IExceptionMessage.INVENTORY_3_REAL_QUANTITY));
+      JPA.em().persist(trackingNumber);
+      newTrackingNumberList.add(trackingNumber);
+    }
+
+    JPA.flush();
+
+    for (TrackingNumber trackingNumber : newTrackingNumberList) {
+      trackingNumberIdMap.put(
+          Pair.of(trackingNumber.getProduct().getId(), trackingNumber.getTrackingNumberSeq()),
+          trackingNumber.getId());
+    }
+
+    return trackingNumberIdMap;
+  }
+
+  protected String getValue(String[] line, int index) {
+    return line[index].replace("\"", "");
+  }
+
+  protected BigDecimal getQty(Inventory inventory, String[] line, int index, String message)
+      throws AxelorException {
+    try {
+      return new BigDecimal(getValue(line, index));
+    } catch (NumberFormatException e) {
+      throw new AxelorException(
+          new Throwable(I18n.get(message)),
+          inventory,
+          TraceBackRepository.CATEGORY_CONFIGURATION_ERROR,
+          I18n.get(IExceptionMessage.INVENTORY_3));
+    }
   }
 
   public List<String[]> getDatas(Path filePath) throws AxelorException {
@@ -357,6 +548,297 @@ public class InventoryService {
     storeLastInventoryData(inventory);
   }
 
+  /**
+   * Validate an inventory by chunks of lines, each chunk in its own transaction.
+   *
+   * <p>The gaps of the inventory lines are read with a single query per chunk, and the stock of
+   * each chunk is corrected by an incoming and an outgoing stock move. The last validated line is
+   * saved with each chunk, so that a validation interrupted by an error resumes after it when the
+   * inventory is validated again.
+   *
+   * @param inventoryId the id of a completed inventory
+   * @throws AxelorException
+   */
+  public void validateInventoryByChunks(Long inventoryId) throws AxelorException {
+
+    int chunkSize =
+        Math.max(1, AppSettings.get().getInt(VALIDATION_CHUNK_SIZE_SETTING, IMPORT_CHUNK_SIZE));
+
+    this.startValidation(inventoryRepo.find(inventoryId));
+
+    while (true) {
+      Inventory inventory = inventoryRepo.find(inventoryId);
+      List<Object[]> gapList = this.getGaps(inventory, chunkSize);
+
+      if (gapList.isEmpty()) {
+        break;
+      }
+
+      this.validateInventoryLines(inventory, gapList);
+      JPA.clear();
+    }
+
+    this.storeLastInventoryData(inventoryId, chunkSize);
+    this.endValidation(inventoryRepo.find(inventoryId));
+  }
+
+  @Transactional(rollbackOn = {Exception.class})
+  protected void startValidation(Inventory inventory) {
+    // A last validated line without any realized stock move is left by a validation canceled
+    // since, so the validation starts again from the first line
+    if (inventory.getLastValidatedLineId() != null && !this.hasRealizedStockMove(inventory)) {
+      inventory.setLastValidatedLineId(null);
+      inventory.setValidatedOn(null);
+    }
+    // Keep the date of a resumed validation, as the date of its stock moves
+    if (inventory.getValidatedOn() == null) {
+      inventory.setValidatedOn(appBaseService.getTodayDate(inventory.getCompany()));
+    }
+    inventory.setValidatedBy(AuthUtils.getUser());
+  }
+
+  @Transactional(rollbackOn = {Exception.class})
+  protected void endValidation(Inventory inventory) {
+    inventory.setStatusSelect(InventoryRepository.STATUS_VALIDATED);
+  }
+
+  protected boolean hasRealizedStockMove(Inventory inventory) {
+    return stockMoveRepo
+            .all()
+            .filter(
+                "self.originTypeSelect = :originTypeSelect AND self.originId = :originId"
+                    + " AND self.statusSelect = :statusSelect")
+            .bind("originTypeSelect", StockMoveRepository.ORIGIN_INVENTORY)
+            .bind("originId", inventory.getId())
+            .bind("statusSelect", StockMoveRepository.STATUS_REALIZED)
+            .count()
+        > 0;
+  }
+
+  /**
+   * Get the gaps of the next inventory lines to validate.
+   *
+   * @param inventory
+   * @param limit
+   * @return the line id, product id, tracking number id and gap of each line, in id order
+   */
+  protected List<Object[]> getGaps(Inventory inventory, int limit) {
+    return JPA.em()
+        .createQuery(
+            "SELECT self.id, self.product.id, trackingNumber.id,"
+                + " self.realQty - COALESCE(self.currentQty, 0)"
+                + " FROM InventoryLine self LEFT JOIN self.trackingNumber trackingNumber"
+                + " WHERE self.inventory.id = :inventoryId AND self.id > :lastId"
+                + " AND self.realQty IS NOT NULL"
+                + " AND self.realQty <> COALESCE(self.currentQty, 0)"
+                + " ORDER BY self.id",
+            Object[].class)
+        .setParameter("inventoryId", inventory.getId())
+        .setParameter(
+            "lastId",
+            inventory.getLastValidatedLineId() != null ? inventory.getLastValidatedLineId() : 0L)
+        .setMaxResults(limit)
+        .getResultList();
+  }
+
+  /**
+   * Correct the stock of a chunk of inventory lines with an incoming and an outgoing stock move,
+   * and save the last validated line.
+   *
+   * @param inventory
+   * @param gapList the gaps of the lines, as returned by {@link #getGaps(Inventory, int)}
+   * @throws AxelorException
+   */
+  @Transactional(rollbackOn = {Exception.class})
+  protected void validateInventoryLines(Inventory inventory, List<Object[]> gapList)
+      throws AxelorException {
+
+    Session session = JPA.em().unwrap(Session.class);
+    Integer jdbcBatchSize = session.getJdbcBatchSize();
+    session.setJdbcBatchSize(gapList.size());
+
+    try {
+      Map<Long, Product> productMap =
+          productRepo
+              .all()
+              .filter("self.id IN :productIds")
+              .bind(
+                  "productIds",
+                  gapList.stream().map(gap -> (Long) gap[1]).collect(Collectors.toSet()))
+              .fetch()
+              .stream()
+              .collect(Collectors.toMap(Product::getId, product -> product));
+
+      StockMove incomingStockMove = this.createStockMove(inventory, true);
+      StockMove outgoingStockMove = this.createStockMove(inventory, false);
+      Map<Long, BigDecimal> incomingAvgPriceMap =
+          this.getAvgPriceMap(incomingStockMove.getToStockLocation(), productMap.keySet());
+      Map<Long, BigDecimal> outgoingAvgPriceMap =
+          this.getAvgPriceMap(outgoingStockMove.getToStockLocation(), productMap.keySet());
+
+      for (Object[] gap : gapList) {
+        Product product = productMap.get((Long) gap[1]);
+        TrackingNumber trackingNumber =
+            gap[2] != null ? JPA.em().getReference(TrackingNumber.class, gap[2]) : null;
+        BigDecimal diff = (BigDecimal) gap[3];
+
+        if (diff.signum() > 0) {
+          this.createStockMoveLine(
+              inventory,
+              incomingStockMove,
+              product,
+              trackingNumber,
+              diff,
+              incomingAvgPriceMap.getOrDefault(product.getId(), BigDecimal.ZERO));
+        } else {
+          this.createStockMoveLine(
+              inventory,
+              outgoingStockMove,
+              product,
+              trackingNumber,
+              diff.negate(),
+              outgoingAvgPriceMap.getOrDefault(product.getId(), BigDecimal.ZERO));
+        }
+      }
+
+      this.realizeStockMove(incomingStockMove);
+      this.realizeStockMove(outgoingStockMove);
+
+      inventory.setLastValidatedLineId((Long) gapList.get(gapList.size() - 1)[0]);
+      inventoryRepo.save(inventory);
+      JPA.flush();
+    } finally {
+      session.setJdbcBatchSize(jdbcBatchSize);
+    }
+  }
+
+  /**
+   * Get the average prices of products in a stock location.
+   *
+   * @return the average prices, by product id
+   */
+  protected Map<Long, BigDecimal> getAvgPriceMap(
+      StockLocation stockLocation, Collection<Long> productIds) {
+
+    Map<Long, BigDecimal> avgPriceMap = new HashMap<>();
+
+    JPA.em()
+        .createQuery(
+            "SELECT self.product.id, self.avgPrice FROM StockLocationLine self"
+                + " WHERE self.stockLocation.id = :stockLocationId"
+                + " AND self.product.id IN :productIds",
+            Object[].class)
+        .setParameter("stockLocationId", stockLocation.getId())
+        .setParameter("productIds", productIds)
+        .getResultList()
+        .forEach(row -> avgPriceMap.putIfAbsent((Long) row[0], (BigDecimal) row[1]));
+
+    return avgPriceMap;
+  }
+
+  /**
+   * Store the real quantities and racks of an inventory on the stock location lines of its stock
+   * location, by chunks of stock location lines, each chunk in its own transaction.
+   *
+   * @param inventoryId
+   * @param chunkSize
+   */
+  protected void storeLastInventoryData(Long inventoryId, int chunkSize) {
+
+    Map<Pair<Long, Long>, BigDecimal> realQties = new HashMap<>();
+    Map<Long, BigDecimal> consolidatedRealQties = new HashMap<>();
+    Map<Long, String> realRacks = new HashMap<>();
+
+    List<Object[]> inventoryLineList =
+        JPA.em()
+            .createQuery(
+                "SELECT self.product.id, trackingNumber.id, self.realQty, self.rack"
+                    + " FROM InventoryLine self LEFT JOIN self.trackingNumber trackingNumber"
+                    + " WHERE self.inventory.id = :inventoryId"
+                    + " ORDER BY self.id",
+                Object[].class)
+            .setParameter("inventoryId", inventoryId)
+            .getResultList();
+
+    for (Object[] inventoryLine : inventoryLineList) {
+      Long productId = (Long) inventoryLine[0];
+      BigDecimal realQty = (BigDecimal) inventoryLine[2];
+
+      realQties.put(Pair.of(productId, (Long) inventoryLine[1]), realQty);
+      consolidatedRealQties.merge(
+          productId, realQty != null ? realQty : BigDecimal.ZERO, BigDecimal::add);
+      realRacks.put(productId, (String) inventoryLine[3]);
+    }
+
+    Long lastId = 0L;
+
+    while (true) {
+      List<Long> idList =
+          this.storeLastInventoryDataChunk(
+              inventoryId, lastId, chunkSize, realQties, consolidatedRealQties, realRacks);
+
+      if (idList.isEmpty()) {
+        break;
+      }
+      lastId = idList.get(idList.size() - 1);
+      JPA.clear();
+    }
+  }
+
+  @Transactional(rollbackOn = {Exception.class})
+  protected List<Long> storeLastInventoryDataChunk(
+      Long inventoryId,
+      Long lastId,
+      int chunkSize,
+      Map<Pair<Long, Long>, BigDecimal> realQties,
+      Map<Long, BigDecimal> consolidatedRealQties,
+      Map<Long, String> realRacks) {
+
+    Inventory inventory = inventoryRepo.find(inventoryId);
+    ZonedDateTime lastInventoryDateT =
+        inventory.getValidatedOn().atStartOfDay().atZone(ZoneOffset.UTC);
+
+    List<StockLocationLine> stockLocationLineList =
+        stockLocationLineRepository
+            .all()
+            .filter(
+                "(self.stockLocation = :stockLocation"
+                    + " OR self.detailsStockLocation = :stockLocation)"
+                    + " AND self.id > :lastId")
+            .bind("stockLocation", inventory.getStockLocation())
+            .bind("lastId", lastId)
+            .order("id")
+            .fetch(chunkSize);
+
+    for (StockLocationLine stockLocationLine : stockLocationLineList) {
+      Long productId = stockLocationLine.getProduct().getId();
+      BigDecimal realQty;
+
+      if (stockLocationLine.getDetailsStockLocation() == null) {
+        realQty = consolidatedRealQties.get(productId);
+      } else {
+        TrackingNumber trackingNumber = stockLocationLine.getTrackingNumber();
+        realQty =
+            realQties.get(
+                Pair.of(productId, trackingNumber != null ? trackingNumber.getId() : null));
+      }
+
+      if (realQty != null) {
+        stockLocationLine.setLastInventoryRealQty(realQty);
+        stockLocationLine.setLastInventoryDateT(lastInventoryDateT);
+      }
+
+      String rack = realRacks.get(productId);
+      if (rack != null) {
+        stockLocationLine.setRack(rack);
+      }
+    }
+
+    return stockLocationLineList.stream()
+        .map(StockLocationLine::getId)
+        .collect(Collectors.toList());
+  }
+
   private void storeLastInventoryData(Inventory inventory) {
     Map<Pair<Product, TrackingNumber>, BigDecimal> realQties = new HashMap<>();
     Map<Product, BigDecimal> consolidatedRealQties = new HashMap<>();
@@ -433,6 +915,27 @@ public class InventoryService {
   public StockMove generateStockMove(Inventory inventory, boolean isEnteringStock)
       throws AxelorException {
 
+    StockMove stockMove = this.createStockMove(inventory, isEnteringStock);
+
+    for (InventoryLine inventoryLine : inventory.getInventoryLineList()) {
+      generateStockMoveLines(inventoryLine, stockMove, isEnteringStock);
+    }
+    this.realizeStockMove(stockMove);
+    return stockMove;
+  }
+
+  /**
+   * Create the stock move, without lines, correcting the stock of an inventory.
+   *
+   * @param inventory a realized inventory.
+   * @param isEnteringStock whether we want to create incoming or upcoming stock move of this
+   *     inventory.
+   * @return the created stock move.
+   * @throws AxelorException
+   */
+  protected StockMove createStockMove(Inventory inventory, boolean isEnteringStock)
+      throws AxelorException {
+
     StockLocation toStockLocation;
     StockLocation fromStockLocation;
     Company company = inventory.getCompany();
@@ -470,16 +973,17 @@ public class InventoryService {
     stockMove.setOriginId(inventory.getId());
     stockMove.setOrigin(inventorySeq);
 
-    for (InventoryLine inventoryLine : inventory.getInventoryLineList()) {
-      generateStockMoveLines(inventoryLine, stockMove, isEnteringStock);
-    }
+    return stockMove;
+  }
+
+  /** Plan and realize a stock move correcting the stock of an inventory, if it has lines. */
+  protected void realizeStockMove(StockMove stockMove) throws AxelorException {
     if (stockMove.getStockMoveLineList() != null && !stockMove.getStockMoveLineList().isEmpty()) {
 
       stockMoveService.plan(stockMove);
       stockMoveService.copyQtyToRealQty(stockMove);
       stockMoveService.realize(stockMove, false);
     }
-    return stockMove;
   }
 
   /**
@@ -510,33 +1014,45 @@ public class InventoryService {
         avgPrice = BigDecimal.ZERO;
       }
 
-      StockMoveLine stockMoveLine =
-          stockMoveLineService.createStockMoveLine(
-              product,
-              product.getName(),
-              product.getDescription(),
-              diff,
-              avgPrice,
-              avgPrice,
-              product.getUnit(),
-              stockMove,
-              StockMoveLineService.TYPE_NULL,
-              false,
-              BigDecimal.ZERO);
-      if (stockMoveLine == null) {
-        throw new AxelorException(
-            inventoryLine.getInventory(),
-            TraceBackRepository.CATEGORY_CONFIGURATION_ERROR,
-            I18n.get(IExceptionMessage.INVENTORY_7)
-                + " "
-                + inventoryLine.getInventory().getInventorySeq());
-      }
-      if (trackingNumber != null && stockMoveLine.getTrackingNumber() == null) {
-        stockMoveLine.setTrackingNumber(trackingNumber);
-      }
+      this.createStockMoveLine(
+          inventoryLine.getInventory(), stockMove, product, trackingNumber, diff, avgPrice);
     }
   }
 
+  protected StockMoveLine createStockMoveLine(
+      Inventory inventory,
+      StockMove stockMove,
+      Product product,
+      TrackingNumber trackingNumber,
+      BigDecimal qty,
+      BigDecimal avgPrice)
+      throws AxelorException {
+
+    StockMoveLine stockMoveLine =
+        stockMoveLineService.createStockMoveLine(
+            product,
+            product.getName(),
+            product.getDescription(),
+            qty,
+            avgPrice,
+            avgPrice,
+            product.getUnit(),
+            stockMove,
+            StockMoveLineService.TYPE_NULL,
+            false,
+            BigDecimal.ZERO);
+    if (stockMoveLine == null) {
+      throw new AxelorException(
+          inventory,
+          TraceBackRepository.CATEGORY_CONFIGURATION_ERROR,
+          I18n.get(IExceptionMessage.INVENTORY_7) + " " + inventory.getInventorySeq());
+    }
+    if (trackingNumber != null && stockMoveLine.getTrackingNumber() == null) {
+      stockMoveLine.setTrackingNumber(trackingNumber);
+    }
+    return stockMoveLine;
+  }
+
   @Transactional(rollbackOn = {Exception.class})
   public void cancel(Inventory inventory) throws AxelorException {
     List<StockMove> stockMoveList =
@@ -552,6 +1068,7 @@ public class InventoryService {
     }
 
     inventory.setStatusSelect(InventoryRepository.STATUS_CANCELED);
+    inventory.setLastValidatedLineId(null);
   }
 
   @Transactional(rollbackOn = {Exception.class})
@@ -570,6 +1087,8 @@ public class InventoryService {
 
     if (stockLocationLineList != null) {
       Boolean succeed = false;
+      Map<Long, BigDecimal> currentQtyMap =
+          Beans.get(StockLocationLineLedgerService.class).getCurrentQtyMap(stockLocationLineList);
       for (StockLocationLine stockLocationLine : stockLocationLineList) {
         if (stockLocationLine.getTrackingNumber()
             == null) { // if no tracking number on stockLocationLine, check if there is a tracking
@@ -587,7 +1106,9 @@ public class InventoryService {
             continue;
           }
         }
-        inventory.addInventoryLineListItem(this.createInventoryLine(inventory, stockLocationLine));
+        inventory.addInventoryLineListItem(
+            this.createInventoryLine(
+                inventory, stockLocationLine, currentQtyMap.get(stockLocationLine.getId())));
         succeed = true;
       }
       inventoryRepo.save(inventory);
@@ -605,7 +1126,10 @@ public class InventoryService {
     params.add(inventory.getStockLocation());
 
     if (inventory.getExcludeOutOfStock()) {
-      query += " and self.currentQty > 0";
+      query +=
+          " and "
+              + Beans.get(StockLocationLineLedgerService.class).getCurrentQtyExpression("self")
+              + " > 0";
     }
 
     if (!inventory.getIncludeObsolete()) {
@@ -644,10 +1168,19 @@ public class InventoryService {
   public InventoryLine createInventoryLine(
       Inventory inventory, StockLocationLine stockLocationLine) {
 
+    return createInventoryLine(
+        inventory,
+        stockLocationLine,
+        Beans.get(StockLocationLineLedgerService.class).getCurrentQty(stockLocationLine));
+  }
+
+  public InventoryLine createInventoryLine(
+      Inventory inventory, StockLocationLine stockLocationLine, BigDecimal currentQty) {
+
     return inventoryLineService.createInventoryLine(
         inventory,
         stockLocationLine.getProduct(),
-        stockLocationLine.getCurrentQty(),
+        currentQty,
         stockLocationLine.getRack(),
         stockLocationLine.getTrackingNumber());
   }
@@ -47,6 +47,8 @@ public class StockCorrectionServiceImpl implements StockCorrectionService {
 
   @Inject private ProductCompanyService productCompanyService;
 
+  @Inject private StockLocationLineLedgerService stockLocationLineLedgerService;
+
   @Override
   public Map<String, Object> fillDefaultValues(StockLocationLine stockLocationLine) {
 
@@ -131,7 +133,8 @@ public class StockCorrectionServiceImpl implements StockCorrectionService {
     BigDecimal realQty = stockCorrection.getRealQty();
     Product product = stockCorrection.getProduct();
     TrackingNumber trackingNumber = stockCorrection.getTrackingNumber();
-    BigDecimal diff = realQty.subtract(stockLocationLine.getCurrentQty());
+    BigDecimal diff =
+        realQty.subtract(stockLocationLineLedgerService.getCurrentQty(stockLocationLine));
 
     StockMove stockMove = null;
 
@@ -202,7 +205,9 @@ public class StockCorrectionServiceImpl implements StockCorrectionService {
   @Override
   public void getDefaultQtys(
       StockLocationLine stockLocationLine, Map<String, Object> stockCorrectionQtys) {
-    stockCorrectionQtys.put("realQty", stockLocationLine.getCurrentQty());
-    stockCorrectionQtys.put("futureQty", stockLocationLine.getFutureQty());
+    stockCorrectionQtys.put(
+        "realQty", stockLocationLineLedgerService.getCurrentQty(stockLocationLine));
+    stockCorrectionQtys.put(
+        "futureQty", stockLocationLineLedgerService.getFutureQty(stockLocationLine));
   }
 }
@@ -17,23 +17,32 @@
  */
 package com.axelor.apps.stock.service;
 
+import com.axelor.apps.base.db.Product;
+import com.axelor.apps.base.db.Unit;
 import com.axelor.apps.base.service.UnitConversionService;
 import com.axelor.apps.base.service.app.AppBaseService;
 import com.axelor.apps.stock.db.StockHistoryLine;
-import com.axelor.apps.stock.db.StockMoveLine;
 import com.axelor.apps.stock.db.repo.StockMoveLineRepository;
 import com.axelor.apps.stock.db.repo.StockMoveRepository;
 import com.axelor.db.JPA;
 import com.axelor.exception.AxelorException;
+import com.axelor.exception.service.TraceBackService;
 import com.axelor.i18n.I18n;
 import com.axelor.inject.Beans;
 import com.google.inject.Inject;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 public class StockHistoryServiceImpl implements StockHistoryService {
 
@@ -57,27 +66,19 @@ public class StockHistoryServiceImpl implements StockHistoryService {
     for (LocalDate periodBeginDate = beginDate.withDayOfMonth(1);
         periodBeginDate.isBefore(endDate);
         periodBeginDate = periodBeginDate.plusMonths(1)) {
-      LocalDate periodEndDate = periodBeginDate.plusMonths(1);
       StockHistoryLine stockHistoryLine = new StockHistoryLine();
       stockHistoryLine.setLabel(periodBeginDate.toString());
-      fetchAndFillResultForStockHistoryQuery(
-          stockHistoryLine,
-          productId,
-          companyId,
-          stockLocationId,
-          periodBeginDate,
-          periodEndDate,
-          true);
-      fetchAndFillResultForStockHistoryQuery(
-          stockHistoryLine,
-          productId,
-          companyId,
-          stockLocationId,
-          periodBeginDate,
-          periodEndDate,
-          false);
+      stockHistoryLine.setCountIncMvtStockPeriod(0);
+      stockHistoryLine.setSumIncQtyPeriod(BigDecimal.ZERO);
+      stockHistoryLine.setPriceIncStockMovePeriod(BigDecimal.ZERO);
+      stockHistoryLine.setCountOutMvtStockPeriod(0);
+      stockHistoryLine.setSumOutQtyPeriod(BigDecimal.ZERO);
+      stockHistoryLine.setPriceOutStockMovePeriod(BigDecimal.ZERO);
       stockHistoryLineList.add(stockHistoryLine);
     }
+    fillStockHistoryLineList(
+        stockHistoryLineList, productId, companyId, stockLocationId, beginDate.withDayOfMonth(1));
+
     StockHistoryLine totalStockHistoryLine = createStockHistoryTotalLine(stockHistoryLineList);
     StockHistoryLine avgStockHistoryLine =
         createStockHistoryAvgLine(stockHistoryLineList, totalStockHistoryLine);
@@ -88,99 +89,129 @@ public class StockHistoryServiceImpl implements StockHistoryService {
     return stockHistoryLineList;
   }
 
-  protected void fetchAndFillResultForStockHistoryQuery(
-      StockHistoryLine stockHistoryLine,
+  /**
+   * Fill the monthly lines with the realized stock move lines of the whole period, fetched in a
+   * single query. Only the fields needed for the history are fetched, and each line is added to the
+   * line of its month, as incoming and/or outgoing depending on the stock locations of its move.
+   *
+   * @param stockHistoryLineList one line per month, starting from beginDate.
+   * @param productId id of the queried product.
+   * @param companyId id of the company used as filter.
+   * @param stockLocationId id of the stock location used as filter.
+   * @param beginDate the first day of the first month.
+   * @throws AxelorException
+   */
+  protected void fillStockHistoryLineList(
+      List<StockHistoryLine> stockHistoryLineList,
       Long productId,
       Long companyId,
       Long stockLocationId,
-      LocalDate periodBeginDate,
-      LocalDate periodEndDate,
-      boolean incoming)
+      LocalDate beginDate)
       throws AxelorException {
-    String filter =
-        "self.product.id = :productId "
-            + "AND self.stockMove.statusSelect = :realized "
-            + "AND self.stockMove.company.id = :companyId "
-            + "AND self.stockMove.realDate >= :beginDate "
-            + "AND self.stockMove.realDate < :endDate ";
-
-    if (incoming) {
-      filter += "AND self.stockMove.toStockLocation.id = :stockLocationId ";
-    } else {
-      filter += "AND self.stockMove.fromStockLocation.id = :stockLocationId ";
+    if (stockHistoryLineList.isEmpty()) {
+      return;
     }
 
-    List<StockMoveLine> stockMoveLineList =
-        stockMoveLineRepository
-            .all()
-            .filter(filter)
-            .bind("productId", productId)
-            .bind("companyId", companyId)
-            .bind("stockLocationId", stockLocationId)
-            .bind("realized", StockMoveRepository.STATUS_REALIZED)
-            .bind("beginDate", periodBeginDate)
-            .bind("endDate", periodEndDate)
-            .fetch();
-    if (incoming) {
-      fillIncomingStockHistoryLineFields(stockHistoryLine, stockMoveLineList);
-    } else {
-      fillOutgoingStockHistoryLineFields(stockHistoryLine, stockMoveLineList);
+    List<Object[]> resultList =
+        JPA.em()
+            .createQuery(
+                "SELECT stockMove.id, stockMove.realDate, "
+                    + "stockMove.toStockLocation.id, stockMove.fromStockLocation.id, "
+                    + "unit, self.realQty, self.companyUnitPriceUntaxed "
+                    + "FROM StockMoveLine self "
+                    + "JOIN self.stockMove stockMove "
+                    + "LEFT JOIN self.unit unit "
+                    + "WHERE self.product.id = :productId "
+                    + "AND stockMove.statusSelect = :realized "
+                    + "AND stockMove.company.id = :companyId "
+                    + "AND stockMove.realDate >= :beginDate "
+                    + "AND stockMove.realDate < :endDate "
+                    + "AND (stockMove.toStockLocation.id = :stockLocationId "
+                    + "OR stockMove.fromStockLocation.id = :stockLocationId)",
+                Object[].class)
+            .setParameter("productId", productId)
+            .setParameter("companyId", companyId)
+            .setParameter("stockLocationId", stockLocationId)
+            .setParameter("realized", StockMoveRepository.STATUS_REALIZED)
+            .setParameter("beginDate", beginDate)
+            .setParameter("endDate", beginDate.plusMonths(stockHistoryLineList.size()))
+            .getResultList();
+
+    Product product = JPA.find(Product.class, productId);
+    YearMonth beginMonth = YearMonth.from(beginDate);
+    Map<Unit, BigDecimal> coefficientMap = new HashMap<>();
+    List<Set<Long>> incStockMoveIdSetList = new ArrayList<>();
+    List<Set<Long>> outStockMoveIdSetList = new ArrayList<>();
+    for (int i = 0; i < stockHistoryLineList.size(); i++) {
+      incStockMoveIdSetList.add(new HashSet<>());
+      outStockMoveIdSetList.add(new HashSet<>());
     }
-    JPA.clear();
-  }
 
-  protected void fillIncomingStockHistoryLineFields(
-      StockHistoryLine stockHistoryLine, List<StockMoveLine> stockMoveLineList)
-      throws AxelorException {
+    for (Object[] result : resultList) {
+      Long stockMoveId = (Long) result[0];
+      int month =
+          (int) ChronoUnit.MONTHS.between(beginMonth, YearMonth.from((LocalDate) result[1]));
+      StockHistoryLine stockHistoryLine = stockHistoryLineList.get(month);
+      BigDecimal realQty = (BigDecimal) result[5];
+      BigDecimal price = (BigDecimal) result[6];
 
-    stockHistoryLine.setCountIncMvtStockPeriod(
-        Math.toIntExact(
-            stockMoveLineList.stream().map(StockMoveLine::getStockMove).distinct().count()));
-    BigDecimal sumIncQtyPeriod = BigDecimal.ZERO;
-    for (StockMoveLine stockMoveLine : stockMoveLineList) {
       // quantity in product unit
       BigDecimal qtyConverted =
-          unitConversionService.convert(
-              stockMoveLine.getUnit(),
-              stockMoveLine.getProduct().getUnit(),
-              stockMoveLine.getRealQty(),
-              stockMoveLine.getRealQty().scale(),
-              stockMoveLine.getProduct());
-      sumIncQtyPeriod = sumIncQtyPeriod.add(qtyConverted);
+          convertToProductUnit(coefficientMap, (Unit) result[4], realQty, product);
+
+      if (stockLocationId.equals(result[2])) {
+        stockHistoryLine.setSumIncQtyPeriod(
+            stockHistoryLine.getSumIncQtyPeriod().add(qtyConverted));
+        stockHistoryLine.setPriceIncStockMovePeriod(
+            stockHistoryLine.getPriceIncStockMovePeriod().add(price));
+        incStockMoveIdSetList.get(month).add(stockMoveId);
+      }
+      if (stockLocationId.equals(result[3])) {
+        stockHistoryLine.setSumOutQtyPeriod(
+            stockHistoryLine.getSumOutQtyPeriod().add(qtyConverted));
+        stockHistoryLine.setPriceOutStockMovePeriod(
+            stockHistoryLine.getPriceOutStockMovePeriod().add(price));
+        outStockMoveIdSetList.get(month).add(stockMoveId);
+      }
+    }
+
+    for (int i = 0; i < stockHistoryLineList.size(); i++) {
+      stockHistoryLineList.get(i).setCountIncMvtStockPeriod(incStockMoveIdSetList.get(i).size());
+      stockHistoryLineList.get(i).setCountOutMvtStockPeriod(outStockMoveIdSetList.get(i).size());
     }
-    stockHistoryLine.setSumIncQtyPeriod(sumIncQtyPeriod);
-    stockHistoryLine.setPriceIncStockMovePeriod(
-        stockMoveLineList.stream()
-            .map(StockMoveLine::getCompanyUnitPriceUntaxed)
-            .reduce(BigDecimal::add)
-            .orElse(BigDecimal.ZERO));
   }
 
-  protected void fillOutgoingStockHistoryLineFields(
-      StockHistoryLine stockHistoryLine, List<StockMoveLine> stockMoveLineList)
+  /**
+   * Convert a quantity to the unit of the product. The conversion coefficient of each unit is only
+   * computed once for the product. As with {@link UnitConversionService#convert}, a missing unit is
+   * a configuration error and the quantity is kept if the conversion formula fails.
+   *
+   * @param coefficientMap the coefficients already computed, by unit.
+   * @param unit the unit of the quantity.
+   * @param qty the quantity to convert.
+   * @param product the product giving the unit to convert to.
+   * @return the converted quantity, with the scale of the given quantity.
+   * @throws AxelorException
+   */
+  protected BigDecimal convertToProductUnit(
+      Map<Unit, BigDecimal> coefficientMap, Unit unit, BigDecimal qty, Product product)
       throws AxelorException {
+    Unit productUnit = product.getUnit();
+    if (unit == null || productUnit == null || unit.equals(productUnit)) {
+      return unitConversionService.convert(unit, productUnit, qty, qty.scale(), product);
+    }
 
-    stockHistoryLine.setCountOutMvtStockPeriod(
-        Math.toIntExact(
-            stockMoveLineList.stream().map(StockMoveLine::getStockMove).distinct().count()));
-    BigDecimal sumOutQtyPeriod = BigDecimal.ZERO;
-    for (StockMoveLine stockMoveLine : stockMoveLineList) {
-      // quantity in product unit
-      BigDecimal qtyConverted =
-          unitConversionService.convert(
-              stockMoveLine.getUnit(),
-              stockMoveLine.getProduct().getUnit(),
-              stockMoveLine.getRealQty(),
-              stockMoveLine.getRealQty().scale(),
-              stockMoveLine.getProduct());
-      sumOutQtyPeriod = sumOutQtyPeriod.add(qtyConverted);
+    BigDecimal coefficient = coefficientMap.get(unit);
+    if (coefficient == null) {
+      try {
+        coefficient = unitConversionService.getCoefficient(unit, productUnit, product);
+      } catch (IOException | ClassNotFoundException e) {
+        TraceBackService.trace(e);
+        coefficient = BigDecimal.ONE;
+      }
+      coefficientMap.put(unit, coefficient);
     }
-    stockHistoryLine.setSumOutQtyPeriod(sumOutQtyPeriod);
-    stockHistoryLine.setPriceOutStockMovePeriod(
-        stockMoveLineList.stream()
-            .map(StockMoveLine::getCompanyUnitPriceUntaxed)
-            .reduce(BigDecimal::add)
-            .orElse(BigDecimal.ZERO));
+    return qty.multiply(coefficient).setScale(qty.scale(), RoundingMode.HALF_EVEN);
   }
 
   /**
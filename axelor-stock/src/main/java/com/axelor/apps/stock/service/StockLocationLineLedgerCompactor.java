@@ -0,0 +1,193 @@
+/*
+ * Axelor Business Solutions
+ *
+ * Copyright (C) 2021 Axelor (<http://axelor.com>).
+ *
+ * This program is free software: you can redistribute it and/or  modify
+ * it under the terms of the GNU Affero General Public License, version 3,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.axelor.apps.stock.service;
+
+import com.axelor.app.AppSettings;
+import com.axelor.db.JpaSupport;
+import com.axelor.event.Observes;
+import com.axelor.events.ShutdownEvent;
+import com.axelor.events.StartupEvent;
+import com.axelor.exception.service.TraceBackService;
+import com.axelor.inject.Beans;
+import com.google.inject.Singleton;
+import com.google.inject.persist.UnitOfWork;
+import com.google.inject.servlet.RequestScoper;
+import com.google.inject.servlet.ServletScopes;
+import java.lang.invoke.MethodHandles;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.LockTimeoutException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PessimisticLockException;
+import org.hibernate.StaleStateException;
+import org.hibernate.exception.LockAcquisitionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background compaction of the stock movement ledger.
+ *
+ * <p>The pending deltas of the ledger are folded into their stock location lines at a fixed
+ * interval, each line in its own short transaction and without bumping its version. A line whose
+ * compaction fails on a lock conflict is retried right away, then left to the next run.
+ */
+@Singleton
+public class StockLocationLineLedgerCompactor extends JpaSupport {
+
+  private final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /** Interval in seconds between two compactions. */
+  public static final String INTERVAL_SETTING = "stock.ledger.compaction.interval";
+
+  /** Number of stock location lines with pending deltas read at once. */
+  public static final String BATCH_SIZE_SETTING = "stock.ledger.compaction.batch.size";
+
+  protected static final int MAX_ATTEMPTS = 3;
+  protected static final long SHUTDOWN_TIMEOUT = 10;
+
+  protected final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor();
+  protected volatile boolean stopped;
+
+  /**
+   * Fold the deltas left by a previous run at startup, then compact at a fixed interval if the
+   * ledger is enabled.
+   *
+   * @param event startup event
+   */
+  protected void onApplicationStartup(@Observes StartupEvent event) {
+    if (Beans.get(StockLocationLineLedgerService.class).isEnabled()) {
+      scheduler.scheduleWithFixedDelay(
+          this::compact, 0, getSetting(INTERVAL_SETTING, 5), TimeUnit.SECONDS);
+    } else {
+      scheduler.execute(this::compact);
+    }
+  }
+
+  protected void onApplicationShutdown(@Observes ShutdownEvent event) {
+    stopped = true;
+    scheduler.shutdown();
+
+    try {
+      scheduler.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  protected int getSetting(String key, int defaultValue) {
+    return Math.max(1, AppSettings.get().getInt(key, defaultValue));
+  }
+
+  protected void compact() {
+    RequestScoper scope = ServletScopes.scopeRequest(Collections.emptyMap());
+    UnitOfWork unitOfWork = Beans.get(UnitOfWork.class);
+
+    try (RequestScoper.CloseableScope ignored = scope.open()) {
+      unitOfWork.begin();
+      compactLines();
+    } catch (Exception e) {
+      // An exception would cancel the periodic compaction
+      TraceBackService.trace(e);
+    } finally {
+      unitOfWork.end();
+    }
+  }
+
+  protected void compactLines() {
+
+    int batchSize = getSetting(BATCH_SIZE_SETTING, 100);
+    Long lastId = 0L;
+
+    while (!stopped) {
+      List<Long> idList =
+          getEntityManager()
+              .createQuery(
+                  "SELECT DISTINCT self.stockLocationLine.id FROM StockLocationLineDelta self"
+                      + " WHERE self.stockLocationLine.id > :lastId"
+                      + " ORDER BY self.stockLocationLine.id",
+                  Long.class)
+              .setParameter("lastId", lastId)
+              .setMaxResults(batchSize)
+              .getResultList();
+
+      if (idList.isEmpty()) {
+        break;
+      }
+
+      int count = 0;
+      for (Long id : idList) {
+        count += compactLine(id);
+      }
+      getEntityManager().clear();
+      lastId = idList.get(idList.size() - 1);
+
+      log.debug(
+          "Stock ledger: {} deltas folded into {} stock location lines", count, idList.size());
+    }
+  }
+
+  /**
+   * Fold the pending deltas of a stock location line in a new transaction, retrying on conflicts.
+   *
+   * @param stockLocationLineId
+   * @return the number of deltas folded
+   */
+  protected int compactLine(Long stockLocationLineId) {
+
+    StockLocationLineLedgerService ledgerService =
+        Beans.get(StockLocationLineLedgerService.class);
+
+    for (int attempt = 1; ; attempt++) {
+      int[] count = {0};
+
+      try {
+        inTransaction(() -> count[0] = ledgerService.compact(stockLocationLineId));
+        return count[0];
+      } catch (RuntimeException e) {
+        getEntityManager().clear();
+
+        if (!isConflict(e) || attempt >= MAX_ATTEMPTS) {
+          log.warn("Stock ledger: could not compact stock location line {}", stockLocationLineId);
+          TraceBackService.trace(e);
+          return 0;
+        }
+        log.debug(
+            "Stock ledger: conflict on stock location line {}, attempt {}",
+            stockLocationLineId,
+            attempt);
+      }
+    }
+  }
+
+  protected boolean isConflict(Throwable throwable) {
+    for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+      if (cause instanceof OptimisticLockException
+          || cause instanceof PessimisticLockException
+          || cause instanceof LockTimeoutException
+          || cause instanceof StaleStateException
+          || cause instanceof LockAcquisitionException) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
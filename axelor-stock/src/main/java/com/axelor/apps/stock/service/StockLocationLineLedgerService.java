@@ -0,0 +1,165 @@
+/*
+ * Axelor Business Solutions
+ *
+ * Copyright (C) 2021 Axelor (<http://axelor.com>).
+ *
+ * This program is free software: you can redistribute it and/or  modify
+ * it under the terms of the GNU Affero General Public License, version 3,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.axelor.apps.stock.service;
+
+import com.axelor.apps.stock.db.StockLocationLine;
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Stock movement ledger.
+ *
+ * <p>When the ledger is enabled, the quantities moved on a stock location line are not written to
+ * the line, but appended to the ledger as deltas. Concurrent stock moves on the same products then
+ * no longer update the same rows, and only the moves decreasing the current quantity of a line
+ * lock it, to check its stock min. The deltas are folded into the stock location lines by {@link
+ * StockLocationLineLedgerCompactor}, and the actual quantities of a line are its stored quantities
+ * plus its pending deltas.
+ *
+ * <p>The compactor does not bump the version of the lines it folds, so the code writing other
+ * fields of a line must {@link #lock(Collection)} it first, to re-read its quantities.
+ */
+public interface StockLocationLineLedgerService {
+
+  /**
+   * Whether the quantities moved on the stock location lines are recorded in the ledger.
+   *
+   * @return true if the ledger is enabled
+   */
+  public boolean isEnabled();
+
+  /**
+   * Lock stock location lines in id order, before loading their pending quantities, when their
+   * update must see every delta committed by the concurrent stock moves: when their current
+   * quantity decreases, so that it cannot become negative, or when other fields than the
+   * quantities are written to them. Does nothing outside of a transaction.
+   *
+   * @param stockLocationLineList stock location lines about to be updated
+   */
+  public void lock(Collection<StockLocationLine> stockLocationLineList);
+
+  /**
+   * Add the pending deltas of stock location lines to their quantities, in memory, before updating
+   * them. The lines then show their actual quantities. Their stored quantities are kept to be
+   * restored by {@link #saveDeltas(Collection)}.
+   *
+   * @param stockLocationLineList stock location lines about to be updated
+   */
+  public void loadPendingQty(Collection<StockLocationLine> stockLocationLineList);
+
+  /**
+   * Record the quantities changed on stock location lines since {@link
+   * #loadPendingQty(Collection)} as deltas, and restore the stored quantities of the lines so that
+   * their rows are not updated.
+   *
+   * @param stockLocationLineList updated stock location lines
+   */
+  public void saveDeltas(Collection<StockLocationLine> stockLocationLineList);
+
+  /**
+   * Get the current quantity of a stock location line, including its pending deltas.
+   *
+   * @param stockLocationLine a stock location line
+   * @return the current quantity, in the unit of the line
+   */
+  public BigDecimal getCurrentQty(StockLocationLine stockLocationLine);
+
+  /**
+   * Get the future quantity of a stock location line, including its pending deltas.
+   *
+   * @param stockLocationLine a stock location line
+   * @return the future quantity, in the unit of the line
+   */
+  public BigDecimal getFutureQty(StockLocationLine stockLocationLine);
+
+  /**
+   * Get the current quantities of stock location lines, including their pending deltas, with one
+   * query per thousand lines.
+   *
+   * @param stockLocationLineList stock location lines
+   * @return the current quantities, by stock location line id
+   */
+  public Map<Long, BigDecimal> getCurrentQtyMap(
+      Collection<? extends StockLocationLine> stockLocationLineList);
+
+  /**
+   * Get the future quantities of stock location lines, including their pending deltas, with one
+   * query per thousand lines.
+   *
+   * @param stockLocationLineList stock location lines
+   * @return the future quantities, by stock location line id
+   */
+  public Map<Long, BigDecimal> getFutureQtyMap(
+      Collection<? extends StockLocationLine> stockLocationLineList);
+
+  /**
+   * Get the current quantity of a stock location line to display it. The pending deltas of all the
+   * lines are read once per entity manager, so that a list of lines costs a single query.
+   *
+   * @param stockLocationLine a stock location line
+   * @return the current quantity, in the unit of the line
+   */
+  public BigDecimal getDisplayedCurrentQty(StockLocationLine stockLocationLine);
+
+  /**
+   * Get the future quantity of a stock location line to display it, like {@link
+   * #getDisplayedCurrentQty(StockLocationLine)}.
+   *
+   * @param stockLocationLine a stock location line
+   * @return the future quantity, in the unit of the line
+   */
+  public BigDecimal getDisplayedFutureQty(StockLocationLine stockLocationLine);
+
+  /**
+   * Get a JPQL expression of the current quantity of stock location lines, including their pending
+   * deltas when the ledger is enabled, for queries reading the quantities in the database.
+   *
+   * @param alias alias of the stock location lines in the query
+   * @return the JPQL expression
+   */
+  public String getCurrentQtyExpression(String alias);
+
+  /**
+   * Get a JPQL expression of the future quantity of stock location lines, including their pending
+   * deltas when the ledger is enabled.
+   *
+   * @param alias alias of the stock location lines in the query
+   * @return the JPQL expression
+   */
+  public String getFutureQtyExpression(String alias);
+
+  /**
+   * Fold the pending deltas of a stock location line into its quantities, in the current
+   * transaction. The line is locked first.
+   *
+   * @param stockLocationLine a stock location line
+   * @return the number of deltas folded
+   */
+  public int compact(StockLocationLine stockLocationLine);
+
+  /**
+   * Fold the pending deltas of a stock location line into its row with a bulk update, in the
+   * current transaction. The row is locked first, and its version is left unchanged so that the
+   * users holding the line do not fail to save it.
+   *
+   * @param stockLocationLineId the id of a stock location line
+   * @return the number of deltas folded
+   */
+  public int compact(Long stockLocationLineId);
+}
@@ -0,0 +1,422 @@
+/*
+ * Axelor Business Solutions
+ *
+ * Copyright (C) 2021 Axelor (<http://axelor.com>).
+ *
+ * This program is free software: you can redistribute it and/or  modify
+ * it under the terms of the GNU Affero General Public License, version 3,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.axelor.apps.stock.service;
+
+import com.axelor.app.AppSettings;
+import com.axelor.apps.stock.db.StockLocationLine;
+import com.axelor.apps.stock.db.StockLocationLineDelta;
+import com.axelor.db.JPA;
+import com.google.common.collect.Lists;
+import com.google.inject.Singleton;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.stream.Collectors;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.TypedQuery;
+
+@Singleton
+public class StockLocationLineLedgerServiceImpl implements StockLocationLineLedgerService {
+
+  /** Whether the quantities moved are recorded in the ledger instead of the stock lines. */
+  public static final String LEDGER_ENABLED_SETTING = "stock.ledger.enabled";
+
+  protected static final int CHUNK_SIZE = 1000;
+
+  /** Pending quantities of all the stock location lines, read once per entity manager. */
+  private final Map<EntityManager, Map<Long, BigDecimal[]>> displayedPendingQtyMap =
+      Collections.synchronizedMap(new WeakHashMap<>());
+
+  @Override
+  public boolean isEnabled() {
+    return AppSettings.get().getBoolean(LEDGER_ENABLED_SETTING, false);
+  }
+
+  @Override
+  public void lock(Collection<StockLocationLine> stockLocationLineList) {
+
+    if (!JPA.em().getTransaction().isActive()) {
+      return;
+    }
+
+    List<StockLocationLine> lockedLineList =
+        stockLocationLineList.stream()
+            .filter(stockLocationLine -> stockLocationLine.getId() != null)
+            .distinct()
+            .sorted(Comparator.comparing(StockLocationLine::getId))
+            .collect(Collectors.toList());
+
+    if (lockedLineList.isEmpty()) {
+      return;
+    }
+
+    // Refreshing the lines must not discard their changes made earlier in the transaction
+    JPA.flush();
+
+    for (StockLocationLine stockLocationLine : lockedLineList) {
+      JPA.em().refresh(stockLocationLine, LockModeType.PESSIMISTIC_WRITE);
+    }
+  }
+
+  @Override
+  public void loadPendingQty(Collection<StockLocationLine> stockLocationLineList) {
+
+    Map<Long, StockLocationLine> stockLocationLineMap = new HashMap<>();
+
+    for (StockLocationLine stockLocationLine : stockLocationLineList) {
+      if (stockLocationLine.getId() == null || stockLocationLine.getIsPendingQtyLoaded()) {
+        continue;
+      }
+      stockLocationLine.setIsPendingQtyLoaded(true);
+      stockLocationLine.setStoredCurrentQty(stockLocationLine.getCurrentQty());
+      stockLocationLine.setStoredFutureQty(stockLocationLine.getFutureQty());
+      stockLocationLine.setStoredLastFutureStockMoveDate(
+          stockLocationLine.getLastFutureStockMoveDate());
+      stockLocationLineMap.put(stockLocationLine.getId(), stockLocationLine);
+    }
+
+    if (stockLocationLineMap.isEmpty()) {
+      return;
+    }
+
+    for (Object[] delta : getPendingDeltas(stockLocationLineMap.keySet())) {
+      this.addDelta(stockLocationLineMap.get((Long) delta[0]), delta);
+    }
+
+    for (StockLocationLine stockLocationLine : stockLocationLineMap.values()) {
+      stockLocationLine.setLoadedCurrentQty(stockLocationLine.getCurrentQty());
+      stockLocationLine.setLoadedFutureQty(stockLocationLine.getFutureQty());
+    }
+  }
+
+  @Override
+  public void saveDeltas(Collection<StockLocationLine> stockLocationLineList) {
+
+    displayedPendingQtyMap.remove(JPA.em());
+
+    for (StockLocationLine stockLocationLine : stockLocationLineList) {
+      if (!stockLocationLine.getIsPendingQtyLoaded()) {
+        continue;
+      }
+
+      BigDecimal currentQty =
+          stockLocationLine.getCurrentQty().subtract(stockLocationLine.getLoadedCurrentQty());
+      BigDecimal futureQty =
+          stockLocationLine.getFutureQty().subtract(stockLocationLine.getLoadedFutureQty());
+      LocalDate lastFutureStockMoveDate = stockLocationLine.getLastFutureStockMoveDate();
+
+      if (currentQty.signum() != 0
+          || futureQty.signum() != 0
+          || !Objects.equals(
+              lastFutureStockMoveDate, stockLocationLine.getStoredLastFutureStockMoveDate())) {
+        JPA.em()
+            .persist(
+                new StockLocationLineDelta(
+                    stockLocationLine, currentQty, futureQty, lastFutureStockMoveDate));
+      }
+
+      // Restore the values loaded from the row so that it is not updated
+      stockLocationLine.setCurrentQty(stockLocationLine.getStoredCurrentQty());
+      stockLocationLine.setFutureQty(stockLocationLine.getStoredFutureQty());
+      stockLocationLine.setLastFutureStockMoveDate(
+          stockLocationLine.getStoredLastFutureStockMoveDate());
+      stockLocationLine.setIsPendingQtyLoaded(false);
+    }
+  }
+
+  @Override
+  public BigDecimal getCurrentQty(StockLocationLine stockLocationLine) {
+    return getQty(stockLocationLine, true);
+  }
+
+  @Override
+  public BigDecimal getFutureQty(StockLocationLine stockLocationLine) {
+    return getQty(stockLocationLine, false);
+  }
+
+  protected BigDecimal getQty(StockLocationLine stockLocationLine, boolean current) {
+
+    if (stockLocationLine.getId() == null) {
+      return current ? stockLocationLine.getCurrentQty() : stockLocationLine.getFutureQty();
+    }
+
+    return getQtyMap(Collections.singletonList(stockLocationLine), current)
+        .get(stockLocationLine.getId());
+  }
+
+  @Override
+  public Map<Long, BigDecimal> getCurrentQtyMap(
+      Collection<? extends StockLocationLine> stockLocationLineList) {
+    return getQtyMap(stockLocationLineList, true);
+  }
+
+  @Override
+  public Map<Long, BigDecimal> getFutureQtyMap(
+      Collection<? extends StockLocationLine> stockLocationLineList) {
+    return getQtyMap(stockLocationLineList, false);
+  }
+
+  protected Map<Long, BigDecimal> getQtyMap(
+      Collection<? extends StockLocationLine> stockLocationLineList, boolean current) {
+
+    Map<Long, BigDecimal> qtyMap = new HashMap<>();
+    List<Long> pendingIdList = new ArrayList<>();
+    boolean isEnabled = isEnabled();
+
+    for (StockLocationLine stockLocationLine : stockLocationLineList) {
+      if (stockLocationLine.getId() == null) {
+        continue;
+      }
+
+      qtyMap.put(
+          stockLocationLine.getId(),
+          current ? stockLocationLine.getCurrentQty() : stockLocationLine.getFutureQty());
+
+      if (isEnabled && !stockLocationLine.getIsPendingQtyLoaded()) {
+        pendingIdList.add(stockLocationLine.getId());
+      }
+    }
+
+    for (List<Long> idList : Lists.partition(pendingIdList, CHUNK_SIZE)) {
+      getPendingQtyMap(idList)
+          .forEach(
+              (id, pendingQty) ->
+                  qtyMap.put(id, qtyMap.get(id).add(pendingQty[current ? 0 : 1])));
+    }
+
+    return qtyMap;
+  }
+
+  @Override
+  public BigDecimal getDisplayedCurrentQty(StockLocationLine stockLocationLine) {
+    return getDisplayedQty(stockLocationLine, true);
+  }
+
+  @Override
+  public BigDecimal getDisplayedFutureQty(StockLocationLine stockLocationLine) {
+    return getDisplayedQty(stockLocationLine, false);
+  }
+
+  protected BigDecimal getDisplayedQty(StockLocationLine stockLocationLine, boolean current) {
+
+    BigDecimal qty =
+        current ? stockLocationLine.getCurrentQty() : stockLocationLine.getFutureQty();
+
+    if (stockLocationLine.getId() == null
+        || stockLocationLine.getIsPendingQtyLoaded()
+        || !isEnabled()) {
+      return qty;
+    }
+
+    // The compactor keeps the pending deltas few, so reading all of them at once lets a list of
+    // lines be displayed with a single query
+    BigDecimal[] pendingQty =
+        displayedPendingQtyMap
+            .computeIfAbsent(JPA.em(), em -> getPendingQtyMap(null))
+            .get(stockLocationLine.getId());
+
+    return pendingQty != null ? qty.add(pendingQty[current ? 0 : 1]) : qty;
+  }
+
+  /**
+   * Get the sums of the pending deltas of stock location lines.
+   *
+   * @param stockLocationLineIds the ids of the lines, or null for all the lines
+   * @return the current and future quantities, by stock location line id
+   */
+  protected Map<Long, BigDecimal[]> getPendingQtyMap(Collection<Long> stockLocationLineIds) {
+
+    TypedQuery<Object[]> query =
+        JPA.em()
+            .createQuery(
+                "SELECT self.stockLocationLine.id, SUM(self.currentQty), SUM(self.futureQty)"
+                    + " FROM StockLocationLineDelta self"
+                    + (stockLocationLineIds != null
+                        ? " WHERE self.stockLocationLine.id IN :stockLocationLineIds"
+                        : "")
+                    + " GROUP BY self.stockLocationLine.id",
+                Object[].class);
+
+    if (stockLocationLineIds != null) {
+      query.setParameter("stockLocationLineIds", stockLocationLineIds);
+    }
+
+    Map<Long, BigDecimal[]> pendingQtyMap = new HashMap<>();
+
+    for (Object[] result : query.getResultList()) {
+      pendingQtyMap.put(
+          (Long) result[0], new BigDecimal[] {(BigDecimal) result[1], (BigDecimal) result[2]});
+    }
+
+    return pendingQtyMap;
+  }
+
+  @Override
+  public String getCurrentQtyExpression(String alias) {
+    return getQtyExpression(alias, "currentQty");
+  }
+
+  @Override
+  public String getFutureQtyExpression(String alias) {
+    return getQtyExpression(alias, "futureQty");
+  }
+
+  protected String getQtyExpression(String alias, String fieldName) {
+
+    String expression = alias + "." + fieldName;
+
+    if (!isEnabled()) {
+      return expression;
+    }
+
+    return "("
+        + expression
+        + " + COALESCE((SELECT SUM(pendingDelta."
+        + fieldName
+        + ") FROM StockLocationLineDelta pendingDelta WHERE pendingDelta.stockLocationLine = "
+        + alias
+        + "), 0))";
+  }
+
+  @Override
+  public int compact(StockLocationLine stockLocationLine) {
+
+    if (stockLocationLine.getId() == null) {
+      return 0;
+    }
+
+    // Re-read the row under lock: the compactor folds the deltas without bumping the version, so
+    // the values held by the session may be older than the row
+    lock(Collections.singletonList(stockLocationLine));
+
+    List<Object[]> deltaList =
+        getPendingDeltas(Collections.singletonList(stockLocationLine.getId()));
+
+    if (deltaList.isEmpty()) {
+      return 0;
+    }
+
+    for (Object[] delta : deltaList) {
+      this.addDelta(stockLocationLine, delta);
+    }
+
+    deleteDeltas(deltaList);
+
+    return deltaList.size();
+  }
+
+  @Override
+  public int compact(Long stockLocationLineId) {
+
+    // Serialize with the other compactors and with the user paths locking the line
+    StockLocationLine stockLocationLine =
+        JPA.em().find(StockLocationLine.class, stockLocationLineId, LockModeType.PESSIMISTIC_WRITE);
+
+    if (stockLocationLine == null) {
+      return 0;
+    }
+
+    List<Object[]> deltaList = getPendingDeltas(Collections.singletonList(stockLocationLineId));
+
+    if (deltaList.isEmpty()) {
+      return 0;
+    }
+
+    BigDecimal currentQty = BigDecimal.ZERO;
+    BigDecimal futureQty = BigDecimal.ZERO;
+
+    for (Object[] delta : deltaList) {
+      currentQty = currentQty.add((BigDecimal) delta[1]);
+      futureQty = futureQty.add((BigDecimal) delta[2]);
+    }
+
+    // The version is left as is so that the users holding the line, to reserve quantities for
+    // example, do not fail with an optimistic lock exception
+    JPA.em()
+        .createQuery(
+            "UPDATE StockLocationLine self"
+                + " SET self.currentQty = self.currentQty + :currentQty,"
+                + " self.futureQty = self.futureQty + :futureQty,"
+                + " self.lastFutureStockMoveDate = :lastFutureStockMoveDate"
+                + " WHERE self.id = :id")
+        .setParameter("currentQty", currentQty)
+        .setParameter("futureQty", futureQty)
+        .setParameter("lastFutureStockMoveDate", deltaList.get(deltaList.size() - 1)[3])
+        .setParameter("id", stockLocationLineId)
+        .executeUpdate();
+
+    deleteDeltas(deltaList);
+
+    return deltaList.size();
+  }
+
+  /**
+   * Delete exactly the folded deltas: a delta with a lower id may be committed after the select.
+   *
+   * @param deltaList the deltas returned by {@link #getPendingDeltas(Collection)}
+   */
+  protected void deleteDeltas(List<Object[]> deltaList) {
+
+    displayedPendingQtyMap.remove(JPA.em());
+
+    List<Long> foldedIdList =
+        deltaList.stream().map(delta -> (Long) delta[4]).collect(Collectors.toList());
+
+    for (List<Long> idList : Lists.partition(foldedIdList, CHUNK_SIZE)) {
+      JPA.em()
+          .createQuery("DELETE FROM StockLocationLineDelta self WHERE self.id IN :foldedIds")
+          .setParameter("foldedIds", idList)
+          .executeUpdate();
+    }
+  }
+
+  /**
+   * Get the pending deltas of stock location lines, in the order they were recorded.
+   *
+   * @param stockLocationLineIds
+   * @return the stock location line id, current qty, future qty, last future stock move date and
+   *     id of each delta
+   */
+  protected List<Object[]> getPendingDeltas(Collection<Long> stockLocationLineIds) {
+    return JPA.em()
+        .createQuery(
+            "SELECT self.stockLocationLine.id, self.currentQty, self.futureQty,"
+                + " self.lastFutureStockMoveDate, self.id"
+                + " FROM StockLocationLineDelta self"
+                + " WHERE self.stockLocationLine.id IN :stockLocationLineIds"
+                + " ORDER BY self.id",
+            Object[].class)
+        .setParameter("stockLocationLineIds", stockLocationLineIds)
+        .getResultList();
+  }
+
+  protected void addDelta(StockLocationLine stockLocationLine, Object[] delta) {
+    stockLocationLine.setCurrentQty(stockLocationLine.getCurrentQty().add((BigDecimal) delta[1]));
+    stockLocationLine.setFutureQty(stockLocationLine.getFutureQty().add((BigDecimal) delta[2]));
+    stockLocationLine.setLastFutureStockMoveDate((LocalDate) delta[3]);
+  }
+}
@@ -64,6 +64,14 @@ public interface StockLocationLineService {
       boolean future)
       throws AxelorException;
 
+  public void maxStockRules(
+      Product product,
+      BigDecimal qty,
+      StockLocationLine stockLocationLine,
+      boolean current,
+      boolean future)
+      throws AxelorException;
+
   @Transactional(rollbackOn = {Exception.class})
   public void updateDetailLocation(
       StockLocation stockLocation,
@@ -206,11 +214,23 @@ public interface StockLocationLineService {
    * For a given line, compute the future quantity of a stock location line from its current qty and
    * planned stock move lines with the same stock location and the same product.
    *
+   * <p>The future quantity is maintained incrementally when stock moves are planned, realized or
+   * canceled, so this full computation is only used to check the stored value.
+   *
    * @param stockLocationLine a stock location line with a product and a stock location.
    * @return the future quantity of the stock location line.
    */
   BigDecimal computeFutureQty(StockLocationLine stockLocationLine) throws AxelorException;
 
+  /**
+   * Compare the stored future quantity of a stock location line with the one computed from the
+   * planned stock move lines, and replace it if they differ.
+   *
+   * @param stockLocationLine a stock location line with a product and a stock location.
+   * @return true if the stored future quantity was wrong and has been updated.
+   */
+  boolean rebuildFutureQty(StockLocationLine stockLocationLine) throws AxelorException;
+
   /**
    * Create a query to find stock location line of a product of a specific/all company and a
    * specific/all stock location
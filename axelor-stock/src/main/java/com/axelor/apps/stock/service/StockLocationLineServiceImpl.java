@@ -49,6 +49,7 @@ import java.lang.invoke.MethodHandles;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.time.LocalDate;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import org.slf4j.Logger;
@@ -144,6 +145,15 @@ public class StockLocationLineServiceImpl implements StockLocationLineService {
       return;
     }
 
+    StockLocationLineLedgerService ledgerService = Beans.get(StockLocationLineLedgerService.class);
+    boolean isLedgerEnabled = ledgerService.isEnabled();
+    if (isLedgerEnabled) {
+      if (current && !isIncrement) {
+        ledgerService.lock(Collections.singletonList(stockLocationLine));
+      }
+      ledgerService.loadPendingQty(Collections.singletonList(stockLocationLine));
+    }
+
     Unit stockLocationLineUnit = stockLocationLine.getUnit();
     if (stockLocationLineUnit == null) {
       throw new AxelorException(
@@ -187,6 +197,10 @@ public class StockLocationLineServiceImpl implements StockLocationLineService {
 
     this.checkStockMin(stockLocationLine, false);
 
+    if (isLedgerEnabled) {
+      ledgerService.saveDeltas(Collections.singletonList(stockLocationLine));
+    }
+
     stockLocationLineRepo.save(stockLocationLine);
   }
 
@@ -209,6 +223,7 @@ public class StockLocationLineServiceImpl implements StockLocationLineService {
     }
   }
 
+  @Override
   public void maxStockRules(
       Product product,
       BigDecimal qty,
@@ -283,6 +298,15 @@ public class StockLocationLineServiceImpl implements StockLocationLineService {
       return;
     }
 
+    StockLocationLineLedgerService ledgerService = Beans.get(StockLocationLineLedgerService.class);
+    boolean isLedgerEnabled = ledgerService.isEnabled();
+    if (isLedgerEnabled) {
+      if (current && !isIncrement) {
+        ledgerService.lock(Collections.singletonList(detailLocationLine));
+      }
+      ledgerService.loadPendingQty(Collections.singletonList(detailLocationLine));
+    }
+
     Unit stockLocationLineUnit = detailLocationLine.getUnit();
 
     if (stockLocationLineUnit == null) {
@@ -323,6 +347,10 @@ public class StockLocationLineServiceImpl implements StockLocationLineService {
 
     this.checkStockMin(detailLocationLine, true);
 
+    if (isLedgerEnabled) {
+      ledgerService.saveDeltas(Collections.singletonList(detailLocationLine));
+    }
+
     stockLocationLineRepo.save(detailLocationLine);
   }
 
@@ -374,7 +402,11 @@ public class StockLocationLineServiceImpl implements StockLocationLineService {
 
     StockLocationLine stockLocationLine = this.getStockLocationLine(stockLocation, product);
 
-    if (stockLocationLine != null && stockLocationLine.getCurrentQty().compareTo(qty) < 0) {
+    if (stockLocationLine != null
+        && Beans.get(StockLocationLineLedgerService.class)
+                .getCurrentQty(stockLocationLine)
+                .compareTo(qty)
+            < 0) {
       throw new AxelorException(
           stockLocationLine,
           TraceBackRepository.CATEGORY_CONFIGURATION_ERROR,
@@ -404,7 +436,11 @@ public class StockLocationLineServiceImpl implements StockLocationLineService {
       }
     }
     if (future) {
-      stockLocationLine.setFutureQty(computeFutureQty(stockLocationLine));
+      if (isIncrement) {
+        stockLocationLine.setFutureQty(stockLocationLine.getFutureQty().add(qty));
+      } else {
+        stockLocationLine.setFutureQty(stockLocationLine.getFutureQty().subtract(qty));
+      }
       stockLocationLine.setLastFutureStockMoveDate(lastFutureStockMoveDate);
     }
 
@@ -552,7 +588,8 @@ public class StockLocationLineServiceImpl implements StockLocationLineService {
     StockLocationLine stockLocationLine = getStockLocationLine(stockLocation, product);
     BigDecimal availableQty = BigDecimal.ZERO;
     if (stockLocationLine != null) {
-      availableQty = stockLocationLine.getCurrentQty();
+      availableQty =
+          Beans.get(StockLocationLineLedgerService.class).getCurrentQty(stockLocationLine);
     }
     return availableQty;
   }
@@ -566,7 +603,8 @@ public class StockLocationLineServiceImpl implements StockLocationLineService {
     BigDecimal availableQty = BigDecimal.ZERO;
 
     if (detailStockLocationLine != null) {
-      availableQty = detailStockLocationLine.getCurrentQty();
+      availableQty =
+          Beans.get(StockLocationLineLedgerService.class).getCurrentQty(detailStockLocationLine);
     }
     return availableQty;
   }
@@ -576,6 +614,8 @@ public class StockLocationLineServiceImpl implements StockLocationLineService {
   public void updateStockLocationFromProduct(StockLocationLine stockLocationLine, Product product)
       throws AxelorException {
 
+    // The pending deltas are in the unit of the line
+    this.compactLedger(stockLocationLine);
     stockLocationLine = this.updateLocationFromProduct(stockLocationLine, product);
     stockLocationLineRepo.save(stockLocationLine);
   }
@@ -601,8 +641,16 @@ public class StockLocationLineServiceImpl implements StockLocationLineService {
               product);
       stockLocationLine.setCurrentQty(currentQty);
 
+      BigDecimal futureQty =
+          unitConversionService.convert(
+              stockLocationUnit,
+              productUnit,
+              stockLocationLine.getFutureQty(),
+              stockLocationLine.getFutureQty().scale(),
+              product);
+      stockLocationLine.setFutureQty(futureQty);
+
       stockLocationLine.setUnit(product.getUnit());
-      stockLocationLine.setFutureQty(computeFutureQty(stockLocationLine));
 
       BigDecimal avgQty = BigDecimal.ZERO;
       if (currentQty.compareTo(BigDecimal.ZERO) != 0) {
@@ -614,6 +662,19 @@ public class StockLocationLineServiceImpl implements StockLocationLineService {
     return stockLocationLine;
   }
 
+  /**
+   * Fold the pending deltas of the stock movement ledger into a stock location line, before
+   * updating it from its stored quantities.
+   *
+   * @param stockLocationLine
+   */
+  protected void compactLedger(StockLocationLine stockLocationLine) {
+    StockLocationLineLedgerService ledgerService = Beans.get(StockLocationLineLedgerService.class);
+    if (ledgerService.isEnabled()) {
+      ledgerService.compact(stockLocationLine);
+    }
+  }
+
   protected static final String STOCK_MOVE_LINE_FILTER =
       "(self.stockMove.archived IS NULL OR self.archived IS FALSE) "
           + "AND self.stockMove.statusSelect = :planned "
@@ -666,6 +727,30 @@ public class StockLocationLineServiceImpl implements StockLocationLineService {
     return futureQty;
   }
 
+  @Override
+  @Transactional(rollbackOn = {Exception.class})
+  public boolean rebuildFutureQty(StockLocationLine stockLocationLine) throws AxelorException {
+    this.compactLedger(stockLocationLine);
+    BigDecimal futureQty = computeFutureQty(stockLocationLine);
+
+    if (futureQty.compareTo(stockLocationLine.getFutureQty()) == 0) {
+      return false;
+    }
+
+    LOG.debug(
+        "Correction de la quantité future : Entrepot? {}, Produit? {}, Stockée? {}, Calculée? {}",
+        stockLocationLine.getStockLocation() != null
+            ? stockLocationLine.getStockLocation().getName()
+            : stockLocationLine.getDetailsStockLocation().getName(),
+        stockLocationLine.getProduct().getCode(),
+        stockLocationLine.getFutureQty(),
+        futureQty);
+
+    stockLocationLine.setFutureQty(futureQty);
+    stockLocationLineRepo.save(stockLocationLine);
+    return true;
+  }
+
   protected List<StockMoveLine> findIncomingPlannedStockMoveLines(
       StockLocationLine stockLocationLine) {
     boolean isDetailsStockLocationLine = stockLocationLine.getDetailsStockLocation() != null;
@@ -749,8 +834,13 @@ public class StockLocationLineServiceImpl implements StockLocationLineService {
   @Override
   public String getAvailableStockForAProduct(Long productId, Long companyId, Long stockLocationId) {
     String query = this.getStockLocationLineListForAProduct(productId, companyId, stockLocationId);
+    StockLocationLineLedgerService ledgerService = Beans.get(StockLocationLineLedgerService.class);
     query +=
-        " AND (self.currentQty != 0 OR self.futureQty != 0) "
+        " AND ("
+            + ledgerService.getCurrentQtyExpression("self")
+            + " != 0 OR "
+            + ledgerService.getFutureQtyExpression("self")
+            + " != 0) "
             + " AND (self.stockLocation.isNotInCalculStock = false OR self.stockLocation.isNotInCalculStock IS NULL)";
     return query;
   }
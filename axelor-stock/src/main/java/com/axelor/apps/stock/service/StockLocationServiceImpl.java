@@ -44,6 +44,7 @@ import java.math.RoundingMode;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 import javax.persistence.Query;
@@ -112,30 +113,45 @@ public class StockLocationServiceImpl implements StockLocationService {
       Unit productUnit = product.getUnit();
       UnitConversionService unitConversionService = Beans.get(UnitConversionService.class);
       int scale = Beans.get(AppBaseService.class).getNbDecimalDigitForQty();
+      StockLocationLineLedgerService ledgerService =
+          Beans.get(StockLocationLineLedgerService.class);
 
       if (locationId == null || locationId == 0L) {
         List<StockLocation> stockLocations = getNonVirtualStockLocations(companyId);
         if (!stockLocations.isEmpty()) {
-          BigDecimal qty = BigDecimal.ZERO;
+          List<StockLocationLine> stockLocationLineList = new ArrayList<>();
           for (StockLocation stockLocation : stockLocations) {
             StockLocationLine stockLocationLine =
                 stockLocationLineService.getOrCreateStockLocationLine(
                     stockLocationRepo.find(stockLocation.getId()), productRepo.find(productId));
 
             if (stockLocationLine != null) {
-              Unit stockLocationLineUnit = stockLocationLine.getUnit();
-              qty =
-                  qty.add(
-                      qtyType.equals("real")
-                          ? stockLocationLine.getCurrentQty()
-                          : stockLocationLine.getFutureQty());
-
-              if (productUnit != null && !productUnit.equals(stockLocationLineUnit)) {
-                qty =
-                    unitConversionService.convert(
-                        stockLocationLineUnit, productUnit, qty, qty.scale(), product);
-              }
+              stockLocationLineList.add(stockLocationLine);
+            }
+          }
+
+          // Read the pending quantities of all the lines at once
+          Map<Long, BigDecimal> qtyMap =
+              qtyType.equals("real")
+                  ? ledgerService.getCurrentQtyMap(stockLocationLineList)
+                  : ledgerService.getFutureQtyMap(stockLocationLineList);
+
+          BigDecimal qty = BigDecimal.ZERO;
+          for (StockLocationLine stockLocationLine : stockLocationLineList) {
+            Unit stockLocationLineUnit = stockLocationLine.getUnit();
+            BigDecimal lineQty =
+                stockLocationLine.getId() != null
+                    ? qtyMap.get(stockLocationLine.getId())
+                    : qtyType.equals("real")
+                        ? stockLocationLine.getCurrentQty()
+                        : stockLocationLine.getFutureQty();
+
+            if (productUnit != null && !productUnit.equals(stockLocationLineUnit)) {
+              lineQty =
+                  unitConversionService.convert(
+                      stockLocationLineUnit, productUnit, lineQty, lineQty.scale(), product);
             }
+            qty = qty.add(lineQty);
           }
           return qty.setScale(scale, RoundingMode.HALF_UP);
         }
@@ -150,8 +166,8 @@ public class StockLocationServiceImpl implements StockLocationService {
 
           qty =
               qtyType.equals("real")
-                  ? stockLocationLine.getCurrentQty()
-                  : stockLocationLine.getFutureQty();
+                  ? ledgerService.getCurrentQty(stockLocationLine)
+                  : ledgerService.getFutureQty(stockLocationLine);
 
           if (productUnit != null && !productUnit.equals(stockLocationLineUnit)) {
             qty =
@@ -268,7 +284,10 @@ public class StockLocationServiceImpl implements StockLocationService {
     Query query =
         JPA.em()
             .createQuery(
-                "SELECT SUM( self.currentQty * CASE WHEN (location.company.stockConfig.stockValuationTypeSelect = 1) THEN "
+                "SELECT SUM( "
+                    + Beans.get(StockLocationLineLedgerService.class)
+                        .getCurrentQtyExpression("self")
+                    + " * CASE WHEN (location.company.stockConfig.stockValuationTypeSelect = 1) THEN "
                     + "(self.avgPrice)  WHEN (location.company.stockConfig.stockValuationTypeSelect = 2) THEN "
                     + "CASE WHEN (self.product.costTypeSelect = 3) THEN (self.avgPrice) ELSE (self.product.costPrice) END "
                     + "WHEN (location.company.stockConfig.stockValuationTypeSelect = 3) THEN "
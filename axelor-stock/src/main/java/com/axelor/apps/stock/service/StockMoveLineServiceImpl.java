@@ -43,6 +43,7 @@ import com.axelor.apps.stock.db.repo.StockMoveRepository;
 import com.axelor.apps.stock.db.repo.TrackingNumberRepository;
 import com.axelor.apps.stock.exception.IExceptionMessage;
 import com.axelor.apps.stock.service.app.AppStockService;
+import com.axelor.db.JPA;
 import com.axelor.exception.AxelorException;
 import com.axelor.exception.db.repo.TraceBackRepository;
 import com.axelor.i18n.I18n;
@@ -57,11 +58,21 @@ import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
+import javax.persistence.LockModeType;
+import javax.persistence.TypedQuery;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -399,7 +410,9 @@ public class StockMoveLineServiceImpl implements StockMoveLineService {
         Beans.get(StockLocationLineRepository.class)
             .all()
             .filter(
-                "self.product = ?1 AND self.futureQty > 0 AND self.trackingNumber IS NOT NULL AND self.detailsStockLocation = ?2"
+                "self.product = ?1 AND "
+                    + Beans.get(StockLocationLineLedgerService.class).getFutureQtyExpression("self")
+                    + " > 0 AND self.trackingNumber IS NOT NULL AND self.detailsStockLocation = ?2"
                     + trackingNumberService.getOrderMethod(
                         product.getTrackingNumberConfiguration()),
                 product,
@@ -434,6 +447,14 @@ public class StockMoveLineServiceImpl implements StockMoveLineService {
     return newStockMoveLine;
   }
 
+  /**
+   * Update the stock location lines of the products moved by a list of stock move lines.
+   *
+   * <p>The stock location lines of the moved products are loaded and locked in a single query, in
+   * id order, so that concurrent stock moves on the same products lock them in the same order. The
+   * quantities of the stock move lines are applied in memory, the stock rules are checked once per
+   * stock location line on its net quantity, and each stock location line is saved once.
+   */
   @Override
   public void updateLocations(
       StockLocation fromStockLocation,
@@ -445,38 +466,504 @@ public class StockMoveLineServiceImpl implements StockMoveLineService {
       boolean realQty)
       throws AxelorException {
 
-    stockMoveLineList = MoreObjects.firstNonNull(stockMoveLineList, Collections.emptyList());
+    stockMoveLineList =
+        MoreObjects.firstNonNull(stockMoveLineList, Collections.<StockMoveLine>emptyList())
+            .stream()
+            .filter(
+                stockMoveLine ->
+                    stockMoveLine.getProduct() != null
+                        && stockMoveLine
+                            .getProduct()
+                            .getProductTypeSelect()
+                            .equals(ProductRepository.PRODUCT_TYPE_STORABLE))
+            .collect(Collectors.toList());
+
+    if (stockMoveLineList.isEmpty()) {
+      return;
+    }
+
+    StockLocationLineLedgerService ledgerService = Beans.get(StockLocationLineLedgerService.class);
+    boolean isLedgerEnabled = ledgerService.isEnabled();
+    boolean isAvgPriceUpdated =
+        toStockLocation.getTypeSelect() != StockLocationRepository.TYPE_VIRTUAL
+            && toStatus == StockMoveRepository.STATUS_REALIZED;
+
+    Map<List<Long>, StockLocationLine> stockLocationLineMap =
+        this.getStockLocationLineMap(fromStockLocation, toStockLocation, stockMoveLineList);
+    Map<StockMoveLine, List<StockLocationLineOperation>> operationMap = new LinkedHashMap<>();
 
     for (StockMoveLine stockMoveLine : stockMoveLineList) {
+      BigDecimal qty = realQty ? stockMoveLine.getRealQty() : stockMoveLine.getQty();
+      List<StockLocationLineOperation> operationList = new ArrayList<>();
+
+      this.addOperations(
+          operationList,
+          stockLocationLineMap,
+          stockMoveLine,
+          fromStockLocation,
+          toStockLocation,
+          qty,
+          fromStatus,
+          toStatus,
+          lastFutureStockMoveDate);
+
+      operationMap.put(stockMoveLine, operationList);
+    }
+
+    // The stock rules are checked on the quantities before the stock move
+    Map<StockLocationLine, BigDecimal[]> netQtyMap = new IdentityHashMap<>();
+
+    for (List<StockLocationLineOperation> operationList : operationMap.values()) {
+      for (StockLocationLineOperation operation : operationList) {
+        BigDecimal[] netQty =
+            netQtyMap.computeIfAbsent(
+                operation.stockLocationLine,
+                key -> new BigDecimal[] {BigDecimal.ZERO, BigDecimal.ZERO});
+        BigDecimal qty = operation.isIncrement ? operation.qty : operation.qty.negate();
+        if (operation.current) {
+          netQty[0] = netQty[0].add(qty);
+        }
+        netQty[1] = netQty[1].add(qty);
+      }
+    }
+
+    List<StockLocationLine> stockLocationLineList = new ArrayList<>(netQtyMap.keySet());
+    stockLocationLineList.sort(
+        Comparator.comparing(
+            StockLocationLine::getId, Comparator.nullsLast(Comparator.naturalOrder())));
+
+    if (isLedgerEnabled) {
+      // The lines whose current quantity decreases are locked so that their stock min check sees
+      // the deltas of the concurrent stock moves, as the locked rows do without the ledger
+      List<StockLocationLine> lockedLineList =
+          stockLocationLineList.stream()
+              .filter(stockLocationLine -> netQtyMap.get(stockLocationLine)[0].signum() < 0)
+              .collect(Collectors.toList());
+      if (isAvgPriceUpdated) {
+        lockedLineList.addAll(
+            this.getAvgPriceLocationLines(
+                toStockLocation, stockMoveLineList, stockLocationLineMap));
+      }
+      ledgerService.lock(lockedLineList);
+      ledgerService.loadPendingQty(stockLocationLineMap.values());
+    }
 
+    for (StockLocationLine stockLocationLine : stockLocationLineList) {
+      if (stockLocationLine.getStockLocation() != null) {
+        this.applyStockRules(stockLocationLine, netQtyMap.get(stockLocationLine));
+      }
+    }
+
+    Map<Long, Product> productMap = new LinkedHashMap<>();
+
+    for (Map.Entry<StockMoveLine, List<StockLocationLineOperation>> entry :
+        operationMap.entrySet()) {
+      StockMoveLine stockMoveLine = entry.getKey();
       Product product = stockMoveLine.getProduct();
 
-      if (product != null
-          && product.getProductTypeSelect().equals(ProductRepository.PRODUCT_TYPE_STORABLE)) {
+      for (StockLocationLineOperation operation : entry.getValue()) {
+        stockLocationLineService.updateLocation(
+            operation.stockLocationLine,
+            stockMoveLine.getUnit(),
+            product,
+            operation.qty,
+            operation.current,
+            true,
+            operation.isIncrement,
+            operation.lastFutureStockMoveDate);
+      }
 
-        BigDecimal qty;
-        if (realQty) {
-          qty = stockMoveLine.getRealQty();
-        } else {
-          qty = stockMoveLine.getQty();
+      if (isAvgPriceUpdated) {
+        StockLocationLine stockLocationLine =
+            stockLocationLineMap.get(getStockLocationLineKey(toStockLocation, product, null));
+        if (stockLocationLine != null) {
+          this.computeNewAveragePriceLocationLine(stockLocationLine, stockMoveLine);
+        }
+        productMap.put(product.getId(), product);
+      }
+    }
+
+    StockLocationLineRepository stockLocationLineRepository =
+        Beans.get(StockLocationLineRepository.class);
+
+    for (StockLocationLine stockLocationLine : stockLocationLineList) {
+      stockLocationLineService.checkStockMin(
+          stockLocationLine, stockLocationLine.getDetailsStockLocation() != null);
+    }
+
+    if (isLedgerEnabled) {
+      ledgerService.saveDeltas(stockLocationLineList);
+    }
+
+    for (StockLocationLine stockLocationLine : stockLocationLineList) {
+      stockLocationLineRepository.save(stockLocationLine);
+    }
+
+    for (Product product : productMap.values()) {
+      weightedAveragePriceService.computeAvgPriceForProduct(product);
+    }
+  }
+
+  /**
+   * Load the stock location lines and the detail stock location lines of the moved products in the
+   * stock locations, and create the missing ones. The existing lines are locked in id order when a
+   * transaction is active and the ledger is disabled.
+   *
+   * @return the stock location lines, by stock location, product and tracking number ids
+   */
+  protected Map<List<Long>, StockLocationLine> getStockLocationLineMap(
+      StockLocation fromStockLocation,
+      StockLocation toStockLocation,
+      List<StockMoveLine> stockMoveLineList) {
+
+    Map<List<Long>, StockLocationLine> stockLocationLineMap = new HashMap<>();
+    List<StockLocation> stockLocationList =
+        fromStockLocation.equals(toStockLocation)
+            ? Collections.singletonList(fromStockLocation)
+            : Arrays.asList(fromStockLocation, toStockLocation);
+    List<Long> stockLocationIdList =
+        stockLocationList.stream().map(StockLocation::getId).collect(Collectors.toList());
+    Set<Long> productIdSet = new HashSet<>();
+    Set<Long> trackingNumberIdSet = new HashSet<>();
+
+    for (StockMoveLine stockMoveLine : stockMoveLineList) {
+      productIdSet.add(stockMoveLine.getProduct().getId());
+      if (stockMoveLine.getTrackingNumber() != null) {
+        trackingNumberIdSet.add(stockMoveLine.getTrackingNumber().getId());
+      }
+    }
+
+    TypedQuery<StockLocationLine> query =
+        JPA.em()
+            .createQuery(
+                "SELECT self FROM StockLocationLine self"
+                    + " WHERE self.stockLocation.id IN :stockLocationIds"
+                    + " AND self.product.id IN :productIds"
+                    + (trackingNumberIdSet.isEmpty()
+                        ? ""
+                        : " OR self.detailsStockLocation.id IN :stockLocationIds"
+                            + " AND self.product.id IN :productIds"
+                            + " AND self.trackingNumber.id IN :trackingNumberIds")
+                    + " ORDER BY self.id",
+                StockLocationLine.class)
+            .setParameter("stockLocationIds", stockLocationIdList)
+            .setParameter("productIds", productIdSet);
+
+    if (!trackingNumberIdSet.isEmpty()) {
+      query.setParameter("trackingNumberIds", trackingNumberIdSet);
+    }
+    // With the ledger, the quantities are not written to the lines, so only the lines whose
+    // current quantity decreases are locked, once the operations are known
+    if (JPA.em().getTransaction().isActive()
+        && !Beans.get(StockLocationLineLedgerService.class).isEnabled()) {
+      query.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+    }
+
+    for (StockLocationLine stockLocationLine : query.getResultList()) {
+      if (stockLocationLine.getStockLocation() != null
+          && !stockLocationLine.getProduct().getStockManaged()) {
+        continue;
+      }
+      StockLocation stockLocation =
+          stockLocationLine.getStockLocation() != null
+              ? stockLocationLine.getStockLocation()
+              : stockLocationLine.getDetailsStockLocation();
+      stockLocationLineMap.putIfAbsent(
+          getStockLocationLineKey(
+              stockLocation,
+              stockLocationLine.getProduct(),
+              stockLocationLine.getStockLocation() != null
+                  ? null
+                  : stockLocationLine.getTrackingNumber()),
+          stockLocationLine);
+    }
+
+    for (StockMoveLine stockMoveLine : stockMoveLineList) {
+      Product product = stockMoveLine.getProduct();
+      TrackingNumber trackingNumber = stockMoveLine.getTrackingNumber();
+
+      for (StockLocation stockLocation : stockLocationList) {
+        if (product.getStockManaged()) {
+          stockLocationLineMap.computeIfAbsent(
+              getStockLocationLineKey(stockLocation, product, null),
+              key -> stockLocationLineService.createLocationLine(stockLocation, product));
+        }
+        if (trackingNumber != null) {
+          stockLocationLineMap.computeIfAbsent(
+              getStockLocationLineKey(stockLocation, product, trackingNumber),
+              key ->
+                  stockLocationLineService.createDetailLocationLine(
+                      stockLocation, product, trackingNumber));
         }
+      }
+    }
+
+    return stockLocationLineMap;
+  }
+
+  /**
+   * Get the stock location lines whose average price is updated by the stock move. With the
+   * ledger, they are locked as the average price is still written to the lines, so they must not be
+   * updated by the ledger compaction in the meantime.
+   */
+  protected List<StockLocationLine> getAvgPriceLocationLines(
+      StockLocation toStockLocation,
+      List<StockMoveLine> stockMoveLineList,
+      Map<List<Long>, StockLocationLine> stockLocationLineMap) {
+
+    return stockMoveLineList.stream()
+        .map(
+            stockMoveLine ->
+                stockLocationLineMap.get(
+                    getStockLocationLineKey(toStockLocation, stockMoveLine.getProduct(), null)))
+        .filter(Objects::nonNull)
+        .collect(Collectors.toList());
+  }
+
+  protected List<Long> getStockLocationLineKey(
+      StockLocation stockLocation, Product product, TrackingNumber trackingNumber) {
+    return Arrays.asList(
+        stockLocation.getId(),
+        product.getId(),
+        trackingNumber != null ? trackingNumber.getId() : null);
+  }
+
+  /**
+   * Add the stock location line operations of a stock move line, in the same order as {@link
+   * #updateLocations(StockMoveLine, StockLocation, StockLocation, Product, BigDecimal, int, int,
+   * LocalDate, TrackingNumber)}.
+   */
+  protected void addOperations(
+      List<StockLocationLineOperation> operationList,
+      Map<List<Long>, StockLocationLine> stockLocationLineMap,
+      StockMoveLine stockMoveLine,
+      StockLocation fromStockLocation,
+      StockLocation toStockLocation,
+      BigDecimal qty,
+      int fromStatus,
+      int toStatus,
+      LocalDate lastFutureStockMoveDate)
+      throws AxelorException {
+
+    switch (fromStatus) {
+      case StockMoveRepository.STATUS_PLANNED:
+        this.addOperation(
+            operationList,
+            stockLocationLineMap,
+            stockMoveLine,
+            fromStockLocation,
+            qty,
+            false,
+            true,
+            null);
+        this.addOperation(
+            operationList,
+            stockLocationLineMap,
+            stockMoveLine,
+            toStockLocation,
+            qty,
+            false,
+            false,
+            null);
+        break;
 
-        this.updateLocations(
+      case StockMoveRepository.STATUS_REALIZED:
+        this.addOperation(
+            operationList,
+            stockLocationLineMap,
             stockMoveLine,
             fromStockLocation,
+            qty,
+            true,
+            true,
+            null);
+        this.addOperation(
+            operationList,
+            stockLocationLineMap,
+            stockMoveLine,
             toStockLocation,
-            stockMoveLine.getProduct(),
             qty,
-            fromStatus,
-            toStatus,
-            lastFutureStockMoveDate,
-            stockMoveLine.getTrackingNumber());
-        if (toStockLocation.getTypeSelect() != StockLocationRepository.TYPE_VIRTUAL
-            && toStatus == StockMoveRepository.STATUS_REALIZED) {
-          this.updateAveragePriceLocationLine(toStockLocation, stockMoveLine, fromStatus, toStatus);
-          weightedAveragePriceService.computeAvgPriceForProduct(stockMoveLine.getProduct());
-        }
+            true,
+            false,
+            null);
+        break;
+
+      default:
+        break;
+    }
+
+    switch (toStatus) {
+      case StockMoveRepository.STATUS_PLANNED:
+        this.addOperation(
+            operationList,
+            stockLocationLineMap,
+            stockMoveLine,
+            fromStockLocation,
+            qty,
+            false,
+            false,
+            lastFutureStockMoveDate);
+        this.addOperation(
+            operationList,
+            stockLocationLineMap,
+            stockMoveLine,
+            toStockLocation,
+            qty,
+            false,
+            true,
+            lastFutureStockMoveDate);
+        break;
+
+      case StockMoveRepository.STATUS_REALIZED:
+        this.addOperation(
+            operationList,
+            stockLocationLineMap,
+            stockMoveLine,
+            fromStockLocation,
+            qty,
+            true,
+            false,
+            null);
+        this.addOperation(
+            operationList,
+            stockLocationLineMap,
+            stockMoveLine,
+            toStockLocation,
+            qty,
+            true,
+            true,
+            null);
+        break;
+
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Add the operations of a quantity moved in a stock location, on its stock location line and on
+   * the detail stock location line of the tracking number, in the unit of each line.
+   */
+  protected void addOperation(
+      List<StockLocationLineOperation> operationList,
+      Map<List<Long>, StockLocationLine> stockLocationLineMap,
+      StockMoveLine stockMoveLine,
+      StockLocation stockLocation,
+      BigDecimal qty,
+      boolean current,
+      boolean isIncrement,
+      LocalDate lastFutureStockMoveDate)
+      throws AxelorException {
+
+    Product product = stockMoveLine.getProduct();
+    TrackingNumber trackingNumber = stockMoveLine.getTrackingNumber();
+
+    // The stock location lines of the products not managed in stock are left as they are, as
+    // getOrCreateStockLocationLine() returns none for them
+    StockLocationLine stockLocationLine =
+        product.getStockManaged()
+            ? stockLocationLineMap.get(getStockLocationLineKey(stockLocation, product, null))
+            : null;
+
+    if (stockLocationLine != null) {
+      if (stockLocationLine.getUnit() == null) {
+        throw new AxelorException(
+            TraceBackRepository.CATEGORY_CONFIGURATION_ERROR,
+            I18n.get(IExceptionMessage.LOCATION_LINE_MISSING_UNIT),
+            stockLocation.getName(),
+            product.getFullName());
       }
+      operationList.add(
+          new StockLocationLineOperation(
+              stockLocationLine,
+              this.convertQty(stockMoveLine, stockLocationLine, qty),
+              current,
+              isIncrement,
+              lastFutureStockMoveDate));
+    }
+
+    if (trackingNumber == null) {
+      return;
+    }
+
+    StockLocationLine detailLocationLine =
+        stockLocationLineMap.get(getStockLocationLineKey(stockLocation, product, trackingNumber));
+
+    if (detailLocationLine.getUnit() == null) {
+      throw new AxelorException(
+          TraceBackRepository.CATEGORY_CONFIGURATION_ERROR,
+          I18n.get(IExceptionMessage.DETAIL_LOCATION_LINE_MISSING_UNIT),
+          trackingNumber.getTrackingNumberSeq(),
+          stockLocation.getName(),
+          product.getFullName());
+    }
+    operationList.add(
+        new StockLocationLineOperation(
+            detailLocationLine,
+            this.convertQty(stockMoveLine, detailLocationLine, qty),
+            current,
+            isIncrement,
+            lastFutureStockMoveDate));
+  }
+
+  protected BigDecimal convertQty(
+      StockMoveLine stockMoveLine, StockLocationLine stockLocationLine, BigDecimal qty)
+      throws AxelorException {
+
+    if (stockLocationLine.getUnit().equals(stockMoveLine.getUnit())) {
+      return qty;
+    }
+    return unitConversionService.convert(
+        stockMoveLine.getUnit(),
+        stockLocationLine.getUnit(),
+        qty,
+        qty.scale(),
+        stockMoveLine.getProduct());
+  }
+
+  /**
+   * Check the min and max stock rules of a stock location line, on its net current and future
+   * quantities moved.
+   */
+  protected void applyStockRules(StockLocationLine stockLocationLine, BigDecimal[] netQty)
+      throws AxelorException {
+
+    Product product = stockLocationLine.getProduct();
+
+    for (int index = 0; index < netQty.length; index++) {
+      boolean current = index == 0;
+      int signum = netQty[index].signum();
+
+      if (signum < 0) {
+        stockLocationLineService.minStockRules(
+            product, netQty[index].negate(), stockLocationLine, current, !current);
+      } else if (signum > 0) {
+        stockLocationLineService.maxStockRules(
+            product, netQty[index], stockLocationLine, current, !current);
+      }
+    }
+  }
+
+  /** A quantity added to or removed from a stock location line, in the unit of the line. */
+  protected static class StockLocationLineOperation {
+
+    protected final StockLocationLine stockLocationLine;
+    protected final BigDecimal qty;
+    protected final boolean current;
+    protected final boolean isIncrement;
+    protected final LocalDate lastFutureStockMoveDate;
+
+    protected StockLocationLineOperation(
+        StockLocationLine stockLocationLine,
+        BigDecimal qty,
+        boolean current,
+        boolean isIncrement,
+        LocalDate lastFutureStockMoveDate) {
+      this.stockLocationLine = stockLocationLine;
+      this.qty = qty;
+      this.current = current;
+      this.isIncrement = isIncrement;
+      this.lastFutureStockMoveDate = lastFutureStockMoveDate;
     }
   }
 
@@ -1183,7 +1670,9 @@ public class StockMoveLineServiceImpl implements StockMoveLineService {
       domain +=
           " AND self.id in (select sll.product.id from StockLocation sl inner join sl.stockLocationLineList sll WHERE sl.id = "
               + stockMove.getFromStockLocation().getId()
-              + " AND sll.currentQty > 0)";
+              + " AND "
+              + Beans.get(StockLocationLineLedgerService.class).getCurrentQtyExpression("sll")
+              + " > 0)";
     }
     return domain + " AND self.dtype = 'Product'";
   }
@@ -1230,7 +1719,10 @@ public class StockMoveLineServiceImpl implements StockMoveLineService {
             + " AND self.id in (select stockLocationLine.trackingNumber.id from StockLocationLine stockLocationLine"
             + " join StockLocation sl on sl.id = stockLocationLine.detailsStockLocation.id WHERE sl.id = "
             + stockMove.getFromStockLocation().getId()
-            + " AND coalesce(stockLocationLine.currentQty, 0) != 0)";
+            + " AND coalesce("
+            + Beans.get(StockLocationLineLedgerService.class)
+                .getCurrentQtyExpression("stockLocationLine")
+            + ", 0) != 0)";
     return trackingNumberRepo.all().filter(domain).fetch();
   }
 
@@ -52,6 +52,7 @@ import com.axelor.apps.stock.db.repo.StockMoveRepository;
 import com.axelor.apps.stock.exception.IExceptionMessage;
 import com.axelor.apps.stock.report.IReport;
 import com.axelor.common.ObjectUtils;
+import com.axelor.db.JPA;
 import com.axelor.exception.AxelorException;
 import com.axelor.exception.db.repo.TraceBackRepository;
 import com.axelor.exception.service.TraceBackService;
@@ -71,6 +72,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -348,7 +351,7 @@ public class StockMoveServiceImpl implements StockMoveService {
         StockMoveRepository.STATUS_PLANNED,
         stockMove.getPlannedStockMoveLineList(),
         stockMove.getEstimatedDate(),
-        false);
+        true);
   }
 
   protected void copyPlannedStockMovLines(StockMove stockMove) {
@@ -397,7 +400,7 @@ public class StockMoveServiceImpl implements StockMoveService {
         StockMoveRepository.STATUS_CANCELED,
         stockMove.getPlannedStockMoveLineList(),
         stockMove.getEstimatedDate(),
-        false);
+        true);
 
     stockMoveLineService.updateLocations(
         stockMove.getFromStockLocation(),
@@ -791,7 +794,7 @@ public class StockMoveServiceImpl implements StockMoveService {
           StockMoveRepository.STATUS_CANCELED,
           stockMove.getPlannedStockMoveLineList(),
           stockMove.getEstimatedDate(),
-          false);
+          true);
     } else {
       stockMoveLineService.updateLocations(
           stockMove.getFromStockLocation(),
@@ -973,53 +976,83 @@ public class StockMoveServiceImpl implements StockMoveService {
   public List<Map<String, Object>> getStockPerDate(
       Long locationId, Long productId, LocalDate fromDate, LocalDate toDate) {
 
+    SortedMap<LocalDate, BigDecimal> deltaMap = new TreeMap<>();
+    addStockDeltas(deltaMap, "toStockLocation", locationId, productId, toDate, false);
+    addStockDeltas(deltaMap, "fromStockLocation", locationId, productId, toDate, true);
+
+    // Stock at the start of the period, then running sum of the daily deltas
+    BigDecimal qty =
+        deltaMap.headMap(fromDate.plusDays(1)).values().stream()
+            .reduce(BigDecimal.ZERO, BigDecimal::add);
     List<Map<String, Object>> stock = new ArrayList<>();
 
-    while (!fromDate.isAfter(toDate)) {
-      Double qty = getStock(locationId, productId, fromDate);
+    for (LocalDate date = fromDate; !date.isAfter(toDate); date = date.plusDays(1)) {
+      if (date.isAfter(fromDate)) {
+        qty = qty.add(deltaMap.getOrDefault(date, BigDecimal.ZERO));
+      }
       Map<String, Object> dateStock = new HashMap<>();
-      dateStock.put("$date", fromDate);
-      dateStock.put("$qty", new BigDecimal(qty));
+      dateStock.put("$date", date);
+      dateStock.put("$qty", qty);
       stock.add(dateStock);
-      fromDate = fromDate.plusDays(1);
     }
 
     return stock;
   }
 
-  private Double getStock(Long locationId, Long productId, LocalDate date) {
-
-    List<StockMoveLine> inLines =
-        stockMoveLineRepo
-            .all()
-            .filter(
-                "self.product.id = ?1 AND self.stockMove.toStockLocation.id = ?2 AND self.stockMove.statusSelect != ?3 AND (self.stockMove.estimatedDate <= ?4 OR self.stockMove.realDate <= ?4)",
-                productId,
-                locationId,
-                StockMoveRepository.STATUS_CANCELED,
-                date)
-            .fetch();
-
-    List<StockMoveLine> outLines =
-        stockMoveLineRepo
-            .all()
-            .filter(
-                "self.product.id = ?1 AND self.stockMove.fromStockLocation.id = ?2 AND self.stockMove.statusSelect != ?3 AND (self.stockMove.estimatedDate <= ?4 OR self.stockMove.realDate <= ?4)",
-                productId,
-                locationId,
-                StockMoveRepository.STATUS_CANCELED,
-                date)
-            .fetch();
-
-    Double inQty =
-        inLines.stream().mapToDouble(inl -> Double.parseDouble(inl.getQty().toString())).sum();
-
-    Double outQty =
-        outLines.stream().mapToDouble(out -> Double.parseDouble(out.getQty().toString())).sum();
-
-    Double qty = inQty - outQty;
+  /**
+   * Add the quantities of the stock move lines of a product entering or leaving a stock location
+   * to its deltas, on the date they are counted in the stock. A line is counted from its estimated
+   * or real date, whichever comes first.
+   *
+   * @param deltaMap the deltas by date
+   * @param locationField toStockLocation or fromStockLocation
+   * @param locationId
+   * @param productId
+   * @param toDate
+   * @param negate true for the lines leaving the stock location
+   */
+  protected void addStockDeltas(
+      SortedMap<LocalDate, BigDecimal> deltaMap,
+      String locationField,
+      Long locationId,
+      Long productId,
+      LocalDate toDate,
+      boolean negate) {
+
+    List<Object[]> rowList =
+        JPA.em()
+            .createQuery(
+                "SELECT stockMove.estimatedDate, stockMove.realDate, SUM(self.qty)"
+                    + " FROM StockMoveLine self JOIN self.stockMove stockMove"
+                    + " WHERE self.product.id = :productId"
+                    + " AND stockMove."
+                    + locationField
+                    + ".id = :locationId"
+                    + " AND stockMove.statusSelect != :statusSelect"
+                    + " AND (stockMove.estimatedDate <= :toDate OR stockMove.realDate <= :toDate)"
+                    + " GROUP BY stockMove.estimatedDate, stockMove.realDate",
+                Object[].class)
+            .setParameter("productId", productId)
+            .setParameter("locationId", locationId)
+            .setParameter("statusSelect", StockMoveRepository.STATUS_CANCELED)
+            .setParameter("toDate", toDate)
+            .getResultList();
+
+    for (Object[] row : rowList) {
+      LocalDate estimatedDate = (LocalDate) row[0];
+      LocalDate realDate = (LocalDate) row[1];
+      LocalDate date =
+          estimatedDate == null || realDate != null && realDate.isBefore(estimatedDate)
+              ? realDate
+              : estimatedDate;
+      BigDecimal qty = (BigDecimal) row[2];
+
+      if (qty == null) {
+        continue;
+      }
 
-    return qty;
+      deltaMap.merge(date, negate ? qty.negate() : qty, BigDecimal::add);
+    }
   }
 
   @Override
@@ -1279,7 +1312,7 @@ public class StockMoveServiceImpl implements StockMoveService {
         StockMoveRepository.STATUS_CANCELED,
         savedStockMoveLineList,
         stockMove.getEstimatedDate(),
-        false);
+        true);
 
     stockMoveLineService.updateLocations(
         stockMove.getFromStockLocation(),
@@ -107,7 +107,9 @@ public class WeightedAveragePriceServiceImpl implements WeightedAveragePriceServ
   public BigDecimal computeAvgPriceForCompany(Product product, Company company) {
     Long productId = product.getId();
     String query =
-        "SELECT new list(self.id, self.avgPrice, self.currentQty) FROM StockLocationLine as self "
+        "SELECT new list(self.id, self.avgPrice, "
+            + Beans.get(StockLocationLineLedgerService.class).getCurrentQtyExpression("self")
+            + ") FROM StockLocationLine as self "
             + "WHERE self.product.id = "
             + productId
             + " AND self.stockLocation.typeSelect != "
@@ -0,0 +1,103 @@
+/*
+ * Axelor Business Solutions
+ *
+ * Copyright (C) 2021 Axelor (<http://axelor.com>).
+ *
+ * This program is free software: you can redistribute it and/or  modify
+ * it under the terms of the GNU Affero General Public License, version 3,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.axelor.apps.stock.service.batch;
+
+import com.axelor.apps.base.db.Company;
+import com.axelor.apps.base.service.administration.AbstractBatch;
+import com.axelor.apps.stock.db.StockLocationLine;
+import com.axelor.apps.stock.db.repo.StockLocationLineRepository;
+import com.axelor.apps.stock.exception.IExceptionMessage;
+import com.axelor.apps.stock.service.StockLocationLineService;
+import com.axelor.db.Query;
+import com.axelor.exception.service.TraceBackService;
+import com.axelor.i18n.I18n;
+import com.google.inject.Inject;
+
+/**
+ * Check the future quantity stored on each stock location line against the one computed from the
+ * planned stock move lines, and fix the lines that have drifted. Lines whose future quantity was
+ * already right are not counted.
+ */
+public class BatchRebuildFutureQty extends AbstractBatch {
+
+  protected StockLocationLineService stockLocationLineService;
+  protected StockLocationLineRepository stockLocationLineRepository;
+
+  @Inject
+  public BatchRebuildFutureQty(
+      StockLocationLineService stockLocationLineService,
+      StockLocationLineRepository stockLocationLineRepository) {
+    this.stockLocationLineService = stockLocationLineService;
+    this.stockLocationLineRepository = stockLocationLineRepository;
+  }
+
+  @Override
+  protected int getFetchLimit() {
+    return 100;
+  }
+
+  @Override
+  protected void process() {
+    Company company = batch.getStockBatch().getCompany();
+
+    String filter = "self.product.stockManaged IS TRUE";
+    Query<StockLocationLine> query = stockLocationLineRepository.all();
+
+    if (company != null) {
+      filter +=
+          " AND (self.stockLocation.company.id = :companyId"
+              + " OR self.detailsStockLocation.company.id = :companyId)";
+      query.bind("companyId", company.getId());
+    }
+
+    processByIdCursor(
+        query,
+        filter,
+        stockLocationLine -> {
+          if (stockLocationLineService.rebuildFutureQty(stockLocationLine)) {
+            incrementDone();
+          }
+        },
+        (stockLocationLine, e) -> {
+          incrementAnomaly();
+          TraceBackService.trace(e, null, batch.getId());
+        });
+  }
+
+  @Override
+  protected void stop() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(I18n.get(IExceptionMessage.BATCH_REBUILD_FUTURE_QTY_REPORT));
+    sb.append(
+        String.format(
+            I18n.get(
+                IExceptionMessage.BATCH_REBUILD_FUTURE_QTY_DONE_SINGULAR,
+                IExceptionMessage.BATCH_REBUILD_FUTURE_QTY_DONE_PLURAL,
+                batch.getDone()),
+            batch.getDone()));
+    sb.append(
+        String.format(
+            I18n.get(
+                com.axelor.apps.base.exceptions.IExceptionMessage.ABSTRACT_BATCH_ANOMALY_SINGULAR,
+                com.axelor.apps.base.exceptions.IExceptionMessage.ABSTRACT_BATCH_ANOMALY_PLURAL,
+                batch.getAnomaly()),
+            batch.getAnomaly()));
+    addComment(sb.toString());
+    super.stop();
+  }
+}
@@ -134,8 +134,7 @@ public class InventoryController {
   public void validateInventory(ActionRequest request, ActionResponse response) {
     try {
       Long id = request.getContext().asType(Inventory.class).getId();
-      Inventory inventory = Beans.get(InventoryRepository.class).find(id);
-      Beans.get(InventoryService.class).validateInventory(inventory);
+      Beans.get(InventoryService.class).validateInventoryByChunks(id);
       response.setReload(true);
     } catch (Exception e) {
       TraceBackService.trace(response, e);
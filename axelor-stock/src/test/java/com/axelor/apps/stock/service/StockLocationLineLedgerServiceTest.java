@@ -0,0 +1,179 @@
+/*
+ * Axelor Business Solutions
+ *
+ * Copyright (C) 2021 Axelor (<http://axelor.com>).
+ *
+ * This program is free software: you can redistribute it and/or  modify
+ * it under the terms of the GNU Affero General Public License, version 3,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.axelor.apps.stock.service;
+
+import com.axelor.app.AxelorModule;
+import com.axelor.apps.stock.db.StockLocationLine;
+import com.axelor.apps.stock.service.StockLocationLineLedgerServiceTest.MyModule;
+import com.axelor.db.JPA;
+import com.axelor.db.JpaModule;
+import com.axelor.inject.Beans;
+import com.axelor.test.GuiceModules;
+import com.axelor.test.GuiceRunner;
+import com.google.inject.Inject;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(GuiceRunner.class)
+@GuiceModules({MyModule.class})
+public class StockLocationLineLedgerServiceTest {
+
+  @Inject protected StockLocationLineLedgerService ledgerService;
+
+  public static class MyModule extends AxelorModule {
+
+    @Override
+    protected void configure() {
+      bind(Beans.class).asEagerSingleton();
+      install(new JpaModule("testUnit", true, true));
+      bind(StockLocationLineLedgerService.class).to(EnabledLedgerService.class);
+    }
+  }
+
+  /** The ledger service, enabled whatever the application settings. */
+  public static class EnabledLedgerService extends StockLocationLineLedgerServiceImpl {
+
+    @Override
+    public boolean isEnabled() {
+      return true;
+    }
+  }
+
+  @Test
+  public void testSaveDeltas() {
+    Long id = createStockLocationLine("10");
+    moveQty(id, "5", "-2");
+
+    StockLocationLine stockLocationLine = JPA.find(StockLocationLine.class, id);
+
+    Assert.assertEquals(0, new BigDecimal("10").compareTo(stockLocationLine.getCurrentQty()));
+    Assert.assertEquals(0, new BigDecimal("10").compareTo(stockLocationLine.getFutureQty()));
+    Assert.assertEquals(
+        0, new BigDecimal("15").compareTo(ledgerService.getCurrentQty(stockLocationLine)));
+    Assert.assertEquals(
+        0, new BigDecimal("8").compareTo(ledgerService.getFutureQty(stockLocationLine)));
+    Assert.assertEquals(1, countDeltas(id));
+  }
+
+  @Test
+  public void testGetQtyMap() {
+    Long firstId = createStockLocationLine("10");
+    Long secondId = createStockLocationLine("20");
+    Long thirdId = createStockLocationLine("30");
+    moveQty(firstId, "1", "0");
+    moveQty(firstId, "2", "0");
+    moveQty(secondId, "-5", "3");
+
+    Map<Long, BigDecimal> currentQtyMap =
+        ledgerService.getCurrentQtyMap(
+            Arrays.asList(
+                JPA.find(StockLocationLine.class, firstId),
+                JPA.find(StockLocationLine.class, secondId),
+                JPA.find(StockLocationLine.class, thirdId)));
+
+    Assert.assertEquals(0, new BigDecimal("13").compareTo(currentQtyMap.get(firstId)));
+    Assert.assertEquals(0, new BigDecimal("15").compareTo(currentQtyMap.get(secondId)));
+    Assert.assertEquals(0, new BigDecimal("30").compareTo(currentQtyMap.get(thirdId)));
+
+    StockLocationLine secondLine = JPA.find(StockLocationLine.class, secondId);
+
+    Assert.assertEquals(
+        0, new BigDecimal("15").compareTo(ledgerService.getDisplayedCurrentQty(secondLine)));
+    Assert.assertEquals(
+        0, new BigDecimal("23").compareTo(ledgerService.getDisplayedFutureQty(secondLine)));
+  }
+
+  @Test
+  public void testCompactKeepsVersion() {
+    Long id = createStockLocationLine("10");
+    moveQty(id, "5", "1");
+    moveQty(id, "-3", "2");
+    Integer version = JPA.find(StockLocationLine.class, id).getVersion();
+
+    int[] count = {0};
+    JPA.runInTransaction(() -> count[0] = ledgerService.compact(id));
+    JPA.em().clear();
+
+    StockLocationLine stockLocationLine = JPA.find(StockLocationLine.class, id);
+
+    Assert.assertEquals(2, count[0]);
+    Assert.assertEquals(0, countDeltas(id));
+    Assert.assertEquals(version, stockLocationLine.getVersion());
+    Assert.assertEquals(0, new BigDecimal("12").compareTo(stockLocationLine.getCurrentQty()));
+    Assert.assertEquals(0, new BigDecimal("13").compareTo(stockLocationLine.getFutureQty()));
+  }
+
+  @Test
+  public void testSaveLineLoadedBeforeCompaction() {
+    Long id = createStockLocationLine("10");
+    moveQty(id, "5", "0");
+
+    // Held by a user while the compactor folds its deltas
+    StockLocationLine stockLocationLine = JPA.find(StockLocationLine.class, id);
+    JPA.runInTransaction(() -> ledgerService.compact(id));
+
+    JPA.runInTransaction(
+        () -> {
+          ledgerService.lock(Collections.singletonList(stockLocationLine));
+          stockLocationLine.setRack("A1");
+        });
+    JPA.em().clear();
+
+    StockLocationLine savedLine = JPA.find(StockLocationLine.class, id);
+
+    Assert.assertEquals("A1", savedLine.getRack());
+    Assert.assertEquals(0, new BigDecimal("15").compareTo(savedLine.getCurrentQty()));
+  }
+
+  protected Long createStockLocationLine(String qty) {
+    StockLocationLine stockLocationLine = new StockLocationLine();
+    stockLocationLine.setCurrentQty(new BigDecimal(qty));
+    stockLocationLine.setFutureQty(new BigDecimal(qty));
+    JPA.runInTransaction(() -> JPA.em().persist(stockLocationLine));
+    return stockLocationLine.getId();
+  }
+
+  /** Move quantities on a stock location line as the stock moves do when the ledger is enabled. */
+  protected void moveQty(Long id, String currentQty, String futureQty) {
+    JPA.runInTransaction(
+        () -> {
+          StockLocationLine stockLocationLine = JPA.find(StockLocationLine.class, id);
+          ledgerService.loadPendingQty(Collections.singletonList(stockLocationLine));
+          stockLocationLine.setCurrentQty(
+              stockLocationLine.getCurrentQty().add(new BigDecimal(currentQty)));
+          stockLocationLine.setFutureQty(
+              stockLocationLine.getFutureQty().add(new BigDecimal(futureQty)));
+          ledgerService.saveDeltas(Collections.singletonList(stockLocationLine));
+        });
+  }
+
+  protected long countDeltas(Long id) {
+    return JPA.em()
+        .createQuery(
+            "SELECT COUNT(self) FROM StockLocationLineDelta self"
+                + " WHERE self.stockLocationLine.id = :id",
+            Long.class)
+        .setParameter("id", id)
+        .getSingleResult();
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Axelor Business Solutions
+ *
+ * Copyright (C) 2021 Axelor (<http://axelor.com>).
+ *
+ * This program is free software: you can redistribute it and/or  modify
+ * it under the terms of the GNU Affero General Public License, version 3,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.axelor.apps.stock.service;
+
+import static org.mockito.Mockito.mock;
+
+import com.axelor.apps.base.db.Product;
+import com.axelor.apps.base.db.Unit;
+import com.axelor.apps.base.db.repo.ProductRepository;
+import com.axelor.apps.base.service.ProductCompanyService;
+import com.axelor.apps.base.service.UnitConversionService;
+import com.axelor.apps.base.service.app.AppBaseService;
+import com.axelor.apps.stock.db.StockLocation;
+import com.axelor.apps.stock.db.StockLocationLine;
+import com.axelor.apps.stock.db.StockMoveLine;
+import com.axelor.apps.stock.db.TrackingNumber;
+import com.axelor.apps.stock.db.repo.StockMoveLineRepository;
+import com.axelor.apps.stock.db.repo.StockMoveRepository;
+import com.axelor.apps.stock.db.repo.TrackingNumberRepository;
+import com.axelor.apps.stock.service.StockMoveLineServiceImpl.StockLocationLineOperation;
+import com.axelor.apps.stock.service.app.AppStockService;
+import com.axelor.exception.AxelorException;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Operations applied on the stock location lines by the batched stock location update. */
+public class StockMoveLineServiceOperationTest {
+
+  private StockMoveLineServiceImpl stockMoveLineService;
+  private Map<List<Long>, StockLocationLine> stockLocationLineMap;
+  private StockLocation fromStockLocation;
+  private StockLocation toStockLocation;
+  private Unit unit;
+
+  @Before
+  public void prepare() {
+    stockMoveLineService =
+        new StockMoveLineServiceImpl(
+            mock(TrackingNumberService.class),
+            mock(AppBaseService.class),
+            mock(AppStockService.class),
+            mock(StockMoveToolService.class),
+            mock(StockMoveLineRepository.class),
+            mock(StockLocationLineService.class),
+            mock(UnitConversionService.class),
+            mock(WeightedAveragePriceService.class),
+            mock(TrackingNumberRepository.class),
+            mock(ProductCompanyService.class),
+            mock(ShippingCoefService.class));
+    stockLocationLineMap = new HashMap<>();
+    fromStockLocation = createStockLocation(1L);
+    toStockLocation = createStockLocation(2L);
+    unit = new Unit();
+    unit.setId(1L);
+  }
+
+  @Test
+  public void testRealizeDraftMove() throws AxelorException {
+    Product product = createProduct(1L, true);
+    StockLocationLine fromLine = addStockLocationLine(fromStockLocation, product, null);
+    StockLocationLine toLine = addStockLocationLine(toStockLocation, product, null);
+
+    List<StockLocationLineOperation> operationList =
+        addOperations(
+            createStockMoveLine(product, null, "5"),
+            StockMoveRepository.STATUS_DRAFT,
+            StockMoveRepository.STATUS_REALIZED);
+
+    Assert.assertEquals(2, operationList.size());
+    assertOperation(operationList.get(0), fromLine, "5", true, false);
+    assertOperation(operationList.get(1), toLine, "5", true, true);
+  }
+
+  @Test
+  public void testCancelPlannedMove() throws AxelorException {
+    Product product = createProduct(1L, true);
+    StockLocationLine fromLine = addStockLocationLine(fromStockLocation, product, null);
+    StockLocationLine toLine = addStockLocationLine(toStockLocation, product, null);
+
+    List<StockLocationLineOperation> operationList =
+        addOperations(
+            createStockMoveLine(product, null, "3"),
+            StockMoveRepository.STATUS_PLANNED,
+            StockMoveRepository.STATUS_DRAFT);
+
+    Assert.assertEquals(2, operationList.size());
+    assertOperation(operationList.get(0), fromLine, "3", false, true);
+    assertOperation(operationList.get(1), toLine, "3", false, false);
+  }
+
+  @Test
+  public void testProductNotStockManaged() throws AxelorException {
+    Product product = createProduct(1L, false);
+    addStockLocationLine(fromStockLocation, product, null);
+    addStockLocationLine(toStockLocation, product, null);
+
+    List<StockLocationLineOperation> operationList =
+        addOperations(
+            createStockMoveLine(product, null, "5"),
+            StockMoveRepository.STATUS_DRAFT,
+            StockMoveRepository.STATUS_REALIZED);
+
+    Assert.assertTrue(operationList.isEmpty());
+  }
+
+  @Test
+  public void testProductNotStockManagedWithTrackingNumber() throws AxelorException {
+    Product product = createProduct(1L, false);
+    TrackingNumber trackingNumber = new TrackingNumber();
+    trackingNumber.setId(1L);
+    addStockLocationLine(fromStockLocation, product, null);
+    StockLocationLine fromDetailLine =
+        addStockLocationLine(fromStockLocation, product, trackingNumber);
+    StockLocationLine toDetailLine = addStockLocationLine(toStockLocation, product, trackingNumber);
+
+    List<StockLocationLineOperation> operationList =
+        addOperations(
+            createStockMoveLine(product, trackingNumber, "2"),
+            StockMoveRepository.STATUS_DRAFT,
+            StockMoveRepository.STATUS_REALIZED);
+
+    Assert.assertEquals(2, operationList.size());
+    assertOperation(operationList.get(0), fromDetailLine, "2", true, false);
+    assertOperation(operationList.get(1), toDetailLine, "2", true, true);
+  }
+
+  protected List<StockLocationLineOperation> addOperations(
+      StockMoveLine stockMoveLine, int fromStatus, int toStatus) throws AxelorException {
+    List<StockLocationLineOperation> operationList = new ArrayList<>();
+    stockMoveLineService.addOperations(
+        operationList,
+        stockLocationLineMap,
+        stockMoveLine,
+        fromStockLocation,
+        toStockLocation,
+        stockMoveLine.getRealQty(),
+        fromStatus,
+        toStatus,
+        LocalDate.now());
+    return operationList;
+  }
+
+  protected void assertOperation(
+      StockLocationLineOperation operation,
+      StockLocationLine stockLocationLine,
+      String qty,
+      boolean current,
+      boolean isIncrement) {
+    Assert.assertSame(stockLocationLine, operation.stockLocationLine);
+    Assert.assertEquals(0, new BigDecimal(qty).compareTo(operation.qty));
+    Assert.assertEquals(current, operation.current);
+    Assert.assertEquals(isIncrement, operation.isIncrement);
+  }
+
+  protected StockLocation createStockLocation(Long id) {
+    StockLocation stockLocation = new StockLocation();
+    stockLocation.setId(id);
+    return stockLocation;
+  }
+
+  protected Product createProduct(Long id, boolean stockManaged) {
+    Product product = new Product();
+    product.setId(id);
+    product.setStockManaged(stockManaged);
+    product.setProductTypeSelect(ProductRepository.PRODUCT_TYPE_STORABLE);
+    product.setUnit(unit);
+    return product;
+  }
+
+  protected StockMoveLine createStockMoveLine(
+      Product product, TrackingNumber trackingNumber, String qty) {
+    StockMoveLine stockMoveLine = new StockMoveLine();
+    stockMoveLine.setProduct(product);
+    stockMoveLine.setTrackingNumber(trackingNumber);
+    stockMoveLine.setUnit(unit);
+    stockMoveLine.setQty(new BigDecimal(qty));
+    stockMoveLine.setRealQty(new BigDecimal(qty));
+    return stockMoveLine;
+  }
+
+  protected StockLocationLine addStockLocationLine(
+      StockLocation stockLocation, Product product, TrackingNumber trackingNumber) {
+    StockLocationLine stockLocationLine = new StockLocationLine();
+    if (trackingNumber == null) {
+      stockLocationLine.setStockLocation(stockLocation);
+    } else {
+      stockLocationLine.setDetailsStockLocation(stockLocation);
+      stockLocationLine.setTrackingNumber(trackingNumber);
+    }
+    stockLocationLine.setProduct(product);
+    stockLocationLine.setUnit(unit);
+    stockLocationLineMap.put(
+        stockMoveLineService.getStockLocationLineKey(stockLocation, product, trackingNumber),
+        stockLocationLine);
+    return stockLocationLine;
+  }
+}
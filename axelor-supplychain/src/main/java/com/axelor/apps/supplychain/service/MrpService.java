@@ -21,8 +21,10 @@ import com.axelor.apps.base.db.Company;
 import com.axelor.apps.base.db.Product;
 import com.axelor.apps.stock.db.StockLocation;
 import com.axelor.apps.supplychain.db.Mrp;
+import com.axelor.apps.supplychain.db.MrpLine;
 import com.axelor.exception.AxelorException;
 import java.time.LocalDate;
+import java.util.List;
 
 public interface MrpService {
 
@@ -42,7 +44,17 @@ public interface MrpService {
    */
   public LocalDate findMrpEndDate(Mrp mrp);
 
-  public Mrp createProjectedStock(
+  /**
+   * Compute the projected stock of a product in memory. Neither the mrp nor its lines are saved.
+   *
+   * @param mrp a new mrp, with the stock location to compute the projected stock on
+   * @param product the product
+   * @param company the company, used when no stock location is given
+   * @param stockLocation the stock location asked for, can be null
+   * @return the lines of the product, in chronological order, with their cumulative qty
+   * @throws AxelorException
+   */
+  public List<MrpLine> createProjectedStock(
       Mrp mrp, Product product, Company company, StockLocation stockLocation)
       throws AxelorException;
 
@@ -17,6 +17,7 @@
  */
 package com.axelor.apps.supplychain.service;
 
+import com.axelor.app.AppSettings;
 import com.axelor.apps.base.db.Company;
 import com.axelor.apps.base.db.Partner;
 import com.axelor.apps.base.db.Product;
@@ -39,6 +40,7 @@ import com.axelor.apps.stock.db.StockRules;
 import com.axelor.apps.stock.db.repo.StockLocationLineRepository;
 import com.axelor.apps.stock.db.repo.StockLocationRepository;
 import com.axelor.apps.stock.db.repo.StockRulesRepository;
+import com.axelor.apps.stock.service.StockLocationLineLedgerService;
 import com.axelor.apps.stock.service.StockLocationService;
 import com.axelor.apps.stock.service.StockRulesService;
 import com.axelor.apps.supplychain.db.Mrp;
@@ -62,18 +64,41 @@ import com.axelor.inject.Beans;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.math.IntMath;
 import com.google.inject.Inject;
 import com.google.inject.persist.Transactional;
+import com.google.inject.persist.UnitOfWork;
+import com.google.inject.servlet.RequestScoper;
+import com.google.inject.servlet.ServletScopes;
 import java.lang.invoke.MethodHandles;
 import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import javax.persistence.PersistenceException;
+import javax.persistence.TypedQuery;
 import org.apache.commons.lang3.tuple.Pair;
+import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -81,6 +106,18 @@ public class MrpServiceImpl implements MrpService {
 
   private final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
+  public static final String CALCULATION_POOL_SIZE_SETTING = "mrp.calculation.pool.size";
+
+  protected static final int MRP_LINE_BATCH_SIZE = 500;
+
+  /** The order in which the lines of a product are netted. */
+  protected static final Comparator<MrpLine> MRP_LINE_COMPARATOR =
+      Comparator.comparing(
+              MrpLine::getMaturityDate, Comparator.nullsLast(Comparator.<LocalDate>naturalOrder()))
+          .thenComparingInt(mrpLine -> mrpLine.getMrpLineType().getTypeSelect())
+          .thenComparingInt(mrpLine -> mrpLine.getMrpLineType().getSequence())
+          .thenComparing(MrpLine::getId, Comparator.nullsLast(Comparator.<Long>naturalOrder()));
+
   protected MrpRepository mrpRepository;
   protected StockLocationRepository stockLocationRepository;
   protected ProductRepository productRepository;
@@ -98,9 +135,16 @@ public class MrpServiceImpl implements MrpService {
 
   protected List<StockLocation> stockLocationList;
   protected Map<Long, Integer> productMap;
+  protected SortedMap<Integer, List<Long>> levelProductMap;
   protected Mrp mrp;
   protected LocalDate today;
 
+  /** In net change mode, the date of the previous calculation, null for a full calculation. */
+  protected LocalDateTime netChangeDateTime;
+
+  /** When computing a projected stock, the created lines, kept in memory instead of being saved. */
+  protected List<MrpLine> projectedMrpLineList;
+
   @Inject
   public MrpServiceImpl(
       AppBaseService appBaseService,
@@ -136,7 +180,11 @@ public class MrpServiceImpl implements MrpService {
   @Override
   public void runCalculation(Mrp mrp) throws AxelorException {
 
-    this.reset(mrp);
+    this.netChangeDateTime = this.isNetChange(mrp) ? mrp.getLastCalculationDateTime() : null;
+
+    if (this.netChangeDateTime == null) {
+      this.reset(mrp);
+    }
 
     this.startMrp(mrpRepository.find(mrp.getId()));
     this.completeMrp(mrpRepository.find(mrp.getId()));
@@ -148,6 +196,7 @@ public class MrpServiceImpl implements MrpService {
   protected void startMrp(Mrp mrp) {
 
     mrp.setStartDateTime(appBaseService.getTodayDateTime().toLocalDateTime());
+    mrp.setLastCalculationDateTime(LocalDateTime.now());
     log.debug("Start MRP");
 
     mrp.setStatusSelect(MrpRepository.STATUS_CALCULATION_STARTED);
@@ -175,11 +224,60 @@ public class MrpServiceImpl implements MrpService {
     mrpRepository.save(mrp);
   }
 
+  /**
+   * Net change mode only applies to a MRP that has already been computed.
+   *
+   * @param mrp
+   * @return
+   */
+  protected boolean isNetChange(Mrp mrp) {
+
+    return mrp.getNetChangeOk()
+        && mrp.getStatusSelect() == MrpRepository.STATUS_CALCULATION_ENDED
+        && mrp.getLastCalculationDateTime() != null;
+  }
+
+  /**
+   * Remove the lines of the given products that were not edited by the user.
+   *
+   * @param mrp
+   * @param productIdSet
+   */
+  @Transactional
+  protected void reset(Mrp mrp, Set<Long> productIdSet) {
+
+    for (List<Long> productIdList :
+        Lists.partition(new ArrayList<>(productIdSet), MRP_LINE_BATCH_SIZE)) {
+      mrpLineRepository
+          .all()
+          .filter(
+              "self.mrp.id = ?1 AND self.isEditedByUser = false AND self.product.id IN (?2)",
+              mrp.getId(),
+              productIdList)
+          .remove();
+    }
+  }
+
   protected void completeMrp(Mrp mrp) throws AxelorException {
 
     log.debug("Complete MRP");
 
-    // Initialize
+    this.initializeMrp(mrp);
+
+    if (this.netChangeDateTime != null) {
+      this.keepChangedProducts(this.netChangeDateTime);
+
+      if (this.productMap.isEmpty()) {
+        log.debug("No change since the last calculation");
+        return;
+      }
+    }
+
+    this.createMrpLines();
+  }
+
+  protected void initializeMrp(Mrp mrp) throws AxelorException {
+
     this.mrp = mrp;
     List<StockLocation> slList =
         stockLocationService.getAllLocationAndSubLocation(mrp.getStockLocation(), false).stream()
@@ -194,6 +292,10 @@ public class MrpServiceImpl implements MrpService {
           TraceBackRepository.CATEGORY_NO_VALUE,
           I18n.get(IExceptionMessage.MRP_MISSING_STOCK_LOCATION_VALID));
     }
+  }
+
+  protected void createMrpLines() throws AxelorException {
+
     // Get the stock for each product on each stock location
     this.createAvailableStockMrpLines();
 
@@ -204,6 +306,130 @@ public class MrpServiceImpl implements MrpService {
     this.createSaleForecastMrpLines();
   }
 
+  /**
+   * Restrict the calculation to the products that changed since the given date and to the
+   * products linked to them, and remove their lines so that they are computed again.
+   *
+   * @param dateTime
+   * @throws AxelorException
+   */
+  protected void keepChangedProducts(LocalDateTime dateTime) throws AxelorException {
+
+    Map<Long, Set<Long>> linkedProductMap = this.getLinkedProductMap();
+    Set<Long> productIdSet = this.getChangedProductIdSet(dateTime);
+    Deque<Long> productIdDeque = new ArrayDeque<>(productIdSet);
+
+    while (!productIdDeque.isEmpty()) {
+      for (Long linkedProductId :
+          linkedProductMap.getOrDefault(productIdDeque.poll(), Collections.emptySet())) {
+        if (productIdSet.add(linkedProductId)) {
+          productIdDeque.add(linkedProductId);
+        }
+      }
+    }
+
+    productIdSet.removeIf(
+        productId ->
+            !this.productMap.containsKey(productId) && !linkedProductMap.containsKey(productId));
+
+    log.debug("Net change on {} products", productIdSet.size());
+
+    this.productMap.keySet().retainAll(productIdSet);
+    this.reset(mrpRepository.find(mrp.getId()), productIdSet);
+  }
+
+  /**
+   * Get the products whose lines depend on each other, so that they have to be computed again
+   * together in net change mode.
+   *
+   * @return for each product, the products linked to it
+   * @throws AxelorException
+   */
+  protected Map<Long, Set<Long>> getLinkedProductMap() throws AxelorException {
+
+    return new HashMap<>();
+  }
+
+  protected void addLinkedProduct(
+      Map<Long, Set<Long>> linkedProductMap, Long productId, Long linkedProductId) {
+
+    linkedProductMap.computeIfAbsent(productId, key -> new HashSet<>()).add(linkedProductId);
+    linkedProductMap.computeIfAbsent(linkedProductId, key -> new HashSet<>()).add(productId);
+  }
+
+  /**
+   * Get the products with a change that the calculation depends on since the given date: the
+   * product itself, its stock, stock rules, purchase and sale order lines and forecasts.
+   *
+   * @param dateTime
+   * @return
+   */
+  protected Set<Long> getChangedProductIdSet(LocalDateTime dateTime) {
+
+    Set<Long> productIdSet = new HashSet<>();
+
+    productIdSet.addAll(
+        this.createChangedProductQuery(
+                "SELECT self.id FROM Product self "
+                    + "WHERE self.createdOn > :dateTime OR self.updatedOn > :dateTime",
+                dateTime)
+            .getResultList());
+
+    productIdSet.addAll(
+        this.createChangedProductQuery(
+                "SELECT self.product.id FROM StockLocationLine self "
+                    + "WHERE self.stockLocation IN (:stockLocations) "
+                    + "AND (self.createdOn > :dateTime OR self.updatedOn > :dateTime)",
+                dateTime)
+            .setParameter("stockLocations", this.stockLocationList)
+            .getResultList());
+
+    productIdSet.addAll(
+        this.createChangedProductQuery(
+                "SELECT self.product.id FROM StockRules self "
+                    + "WHERE self.stockLocation IN (:stockLocations) "
+                    + "AND (self.createdOn > :dateTime OR self.updatedOn > :dateTime)",
+                dateTime)
+            .setParameter("stockLocations", this.stockLocationList)
+            .getResultList());
+
+    productIdSet.addAll(
+        this.createChangedProductQuery(
+                "SELECT self.product.id FROM PurchaseOrderLine self "
+                    + "WHERE self.purchaseOrder.stockLocation IN (:stockLocations) "
+                    + "AND (self.createdOn > :dateTime OR self.updatedOn > :dateTime "
+                    + "OR self.purchaseOrder.updatedOn > :dateTime)",
+                dateTime)
+            .setParameter("stockLocations", this.stockLocationList)
+            .getResultList());
+
+    productIdSet.addAll(
+        this.createChangedProductQuery(
+                "SELECT self.product.id FROM SaleOrderLine self "
+                    + "WHERE self.saleOrder.stockLocation IN (:stockLocations) "
+                    + "AND (self.createdOn > :dateTime OR self.updatedOn > :dateTime "
+                    + "OR self.saleOrder.updatedOn > :dateTime)",
+                dateTime)
+            .setParameter("stockLocations", this.stockLocationList)
+            .getResultList());
+
+    productIdSet.addAll(
+        this.createChangedProductQuery(
+                "SELECT self.product.id FROM MrpForecast self "
+                    + "WHERE self.stockLocation IN (:stockLocations) "
+                    + "AND (self.createdOn > :dateTime OR self.updatedOn > :dateTime)",
+                dateTime)
+            .setParameter("stockLocations", this.stockLocationList)
+            .getResultList());
+
+    return productIdSet;
+  }
+
+  protected TypedQuery<Long> createChangedProductQuery(String query, LocalDateTime dateTime) {
+
+    return JPA.em().createQuery(query, Long.class).setParameter("dateTime", dateTime);
+  }
+
   protected void doCalulation(Mrp mrp) throws AxelorException {
 
     log.debug("Do calculation");
@@ -228,13 +454,295 @@ public class MrpServiceImpl implements MrpService {
 
   protected void checkInsufficientCumulativeQty() throws AxelorException {
 
-    for (int level = 0; level <= this.getMaxLevel(); level++) {
+    this.levelProductMap = this.getLevelProductMap();
 
-      for (Product product : this.getProductList(level)) {
+    int poolSize = this.getCalculationPoolSize();
+    ExecutorService executor = poolSize > 1 ? Executors.newFixedThreadPool(poolSize) : null;
+
+    Session session = JPA.em().unwrap(Session.class);
+    Integer jdbcBatchSize = session.getJdbcBatchSize();
+    session.setJdbcBatchSize(MRP_LINE_BATCH_SIZE);
+
+    try {
+      // Proposals of a level only create needs on the next levels, so the products of a level are
+      // independent and each level is a barrier.
+      for (List<Long> productIdList : this.levelProductMap.values()) {
+
+        if (executor == null) {
+          this.checkInsufficientCumulativeQty(productIdList);
+        } else {
+          this.checkInsufficientCumulativeQty(productIdList, executor, poolSize);
+        }
 
-        this.checkInsufficientCumulativeQty(product, true);
+        JPA.clear();
       }
+    } finally {
+      session.setJdbcBatchSize(jdbcBatchSize);
+
+      if (executor != null) {
+        executor.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Number of workers used to net the products of a level, read from the <code>
+   * mrp.calculation.pool.size</code> application setting. With a single worker, products are
+   * netted one after the other on the calling thread.
+   *
+   * @return
+   */
+  protected int getCalculationPoolSize() {
+    return Math.max(1, AppSettings.get().getInt(CALCULATION_POOL_SIZE_SETTING, 1));
+  }
+
+  protected void checkInsufficientCumulativeQty(List<Long> productIdList) throws AxelorException {
+
+    Map<Long, List<MrpLine>> mrpLineMap = this.getMrpLineMap(productIdList);
+
+    for (Long productId : productIdList) {
+
+      List<MrpLine> mrpLineList = mrpLineMap.get(productId);
+
+      if (mrpLineList != null) {
+        this.checkInsufficientCumulativeQty(mrpLineList.get(0).getProduct(), mrpLineList);
+      }
+    }
+  }
+
+  /**
+   * Net the products of a level on a pool of workers, and wait for all of them to finish.
+   *
+   * <p>Two products of the same level can create proposal needs on the same component, and each
+   * worker would insert its own need line where a single worker merges them. The products sharing
+   * a component are therefore netted by the same worker. The transaction of a product that still
+   * conflicts with another worker is rolled back, and the product is netted again on the calling
+   * thread once the workers are done.
+   *
+   * @param productIdList
+   * @param executor
+   * @param poolSize
+   * @throws AxelorException
+   */
+  protected void checkInsufficientCumulativeQty(
+      List<Long> productIdList, ExecutorService executor, int poolSize) throws AxelorException {
+
+    int chunkSize =
+        Math.min(
+            MRP_LINE_BATCH_SIZE,
+            IntMath.divide(productIdList.size(), poolSize, RoundingMode.CEILING));
+    Queue<Long> conflictQueue = new ConcurrentLinkedQueue<>();
+    List<Future<?>> futureList = new ArrayList<>();
+
+    for (List<Long> productIdSubList : this.partitionByComponent(productIdList, chunkSize)) {
+      futureList.add(
+          executor.submit(
+              () -> {
+                this.checkInsufficientCumulativeQtyInWorker(productIdSubList, conflictQueue);
+                return null;
+              }));
+    }
+
+    try {
+      for (Future<?> future : futureList) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      futureList.forEach(future -> future.cancel(true));
+      Thread.currentThread().interrupt();
+      throw new AxelorException(e, TraceBackRepository.CATEGORY_INCONSISTENCY);
+    } catch (ExecutionException e) {
+      futureList.forEach(future -> future.cancel(true));
+      Throwable cause = e.getCause();
+      if (cause instanceof AxelorException) {
+        throw (AxelorException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new AxelorException(cause, TraceBackRepository.CATEGORY_INCONSISTENCY);
+    }
+
+    if (!conflictQueue.isEmpty()) {
+      log.debug("Net again {} products after a conflict", conflictQueue.size());
+      this.checkInsufficientCumulativeQty(new ArrayList<>(conflictQueue));
+    }
+  }
+
+  /**
+   * Split the products of a level into chunks of about the given size, keeping the products whose
+   * proposals create needs on a same component in the same chunk.
+   *
+   * @param productIdList
+   * @param chunkSize
+   * @return
+   * @throws AxelorException
+   */
+  protected List<List<Long>> partitionByComponent(List<Long> productIdList, int chunkSize)
+      throws AxelorException {
+
+    Map<Long, Set<Long>> componentProductMap = this.getComponentProductMap(productIdList);
+
+    // Products and components sharing a root are linked through a chain of components
+    Map<Long, Long> rootMap = new HashMap<>();
+
+    for (Long productId : productIdList) {
+      for (Long componentId : componentProductMap.getOrDefault(productId, Collections.emptySet())) {
+        Long productRoot = this.getRoot(rootMap, productId);
+        Long componentRoot = this.getRoot(rootMap, componentId);
+        if (!productRoot.equals(componentRoot)) {
+          rootMap.put(productRoot, componentRoot);
+        }
+      }
+    }
+
+    Map<Long, List<Long>> groupMap = new LinkedHashMap<>();
+
+    for (Long productId : productIdList) {
+      groupMap
+          .computeIfAbsent(this.getRoot(rootMap, productId), root -> new ArrayList<>())
+          .add(productId);
     }
+
+    List<List<Long>> partitionList = new ArrayList<>();
+    List<Long> chunk = new ArrayList<>();
+
+    for (List<Long> group : groupMap.values()) {
+      chunk.addAll(group);
+
+      if (chunk.size() >= chunkSize) {
+        partitionList.add(chunk);
+        chunk = new ArrayList<>();
+      }
+    }
+
+    if (!chunk.isEmpty()) {
+      partitionList.add(chunk);
+    }
+
+    return partitionList;
+  }
+
+  protected Long getRoot(Map<Long, Long> rootMap, Long productId) {
+
+    Long root = productId;
+
+    while (rootMap.containsKey(root)) {
+      root = rootMap.get(root);
+    }
+
+    return root;
+  }
+
+  /**
+   * Get the components on which the proposals of the given products can create needs.
+   *
+   * @param productIdList
+   * @return for each product, the ids of its components
+   * @throws AxelorException
+   */
+  protected Map<Long, Set<Long>> getComponentProductMap(List<Long> productIdList)
+      throws AxelorException {
+
+    return new HashMap<>();
+  }
+
+  /**
+   * Net products on a worker thread, in its own request scope and unit of work so that it gets its
+   * own entity manager.
+   *
+   * @param productIdList
+   * @param conflictQueue the products whose transaction conflicted with another worker
+   * @throws AxelorException
+   */
+  protected void checkInsufficientCumulativeQtyInWorker(
+      List<Long> productIdList, Queue<Long> conflictQueue) throws AxelorException {
+
+    RequestScoper scope = ServletScopes.scopeRequest(Collections.emptyMap());
+    UnitOfWork unitOfWork = Beans.get(UnitOfWork.class);
+
+    try (RequestScoper.CloseableScope ignored = scope.open()) {
+      unitOfWork.begin();
+      JPA.em().unwrap(Session.class).setJdbcBatchSize(MRP_LINE_BATCH_SIZE);
+
+      Map<Long, List<MrpLine>> mrpLineMap = this.getMrpLineMap(productIdList);
+
+      for (int index = 0; index < productIdList.size(); index++) {
+
+        List<MrpLine> mrpLineList = mrpLineMap.get(productIdList.get(index));
+
+        if (mrpLineList == null) {
+          continue;
+        }
+
+        try {
+          this.checkInsufficientCumulativeQty(mrpLineList.get(0).getProduct(), mrpLineList);
+        } catch (PersistenceException e) {
+          log.debug(
+              "Conflict while netting product {}: {}", productIdList.get(index), e.getMessage());
+          conflictQueue.add(productIdList.get(index));
+
+          // The session holds the state of the rolled back transaction, reload the next products
+          JPA.clear();
+          mrpLineMap = this.getMrpLineMap(productIdList.subList(index + 1, productIdList.size()));
+        }
+      }
+    } finally {
+      unitOfWork.end();
+    }
+  }
+
+  /**
+   * Index the ids of the products by level, from the lowest to the highest level.
+   *
+   * @return
+   */
+  protected SortedMap<Integer, List<Long>> getLevelProductMap() {
+
+    SortedMap<Integer, List<Long>> levelProductMap = new TreeMap<>();
+
+    this.productMap.forEach(
+        (productId, level) ->
+            levelProductMap.computeIfAbsent(level, key -> new ArrayList<>()).add(productId));
+
+    return levelProductMap;
+  }
+
+  /**
+   * Load the MRP lines of the given products, grouped by product and sorted in the order they are
+   * netted. The lines are fetched with their product and type in one query per chunk of products.
+   *
+   * @param productIdList
+   * @return
+   */
+  protected Map<Long, List<MrpLine>> getMrpLineMap(List<Long> productIdList) {
+
+    Map<Long, List<MrpLine>> mrpLineMap = new HashMap<>();
+
+    for (List<Long> productIdSubList : Lists.partition(productIdList, MRP_LINE_BATCH_SIZE)) {
+
+      List<MrpLine> mrpLineList =
+          JPA.em()
+              .createQuery(
+                  "SELECT self FROM MrpLine self "
+                      + "JOIN FETCH self.product "
+                      + "JOIN FETCH self.mrpLineType "
+                      + "WHERE self.mrp.id = :mrpId AND self.product.id IN (:productIds)",
+                  MrpLine.class)
+              .setParameter("mrpId", mrp.getId())
+              .setParameter("productIds", productIdSubList)
+              .getResultList();
+
+      for (MrpLine mrpLine : mrpLineList) {
+        mrpLineMap
+            .computeIfAbsent(mrpLine.getProduct().getId(), productId -> new ArrayList<>())
+            .add(mrpLine);
+      }
+    }
+
+    mrpLineMap.values().forEach(mrpLineList -> mrpLineList.sort(MRP_LINE_COMPARATOR));
+
+    return mrpLineMap;
   }
 
   /**
@@ -245,16 +753,17 @@ public class MrpServiceImpl implements MrpService {
    */
   protected List<Product> getProductList(int level) {
 
-    List<Product> productList = Lists.newArrayList();
+    if (this.levelProductMap == null) {
+      this.levelProductMap = this.getLevelProductMap();
+    }
 
-    for (Long productId : this.productMap.keySet()) {
+    List<Long> productIdList = this.levelProductMap.get(level);
 
-      if (this.productMap.get(productId) == level) {
-        productList.add(productRepository.find(productId));
-      }
+    if (productIdList == null) {
+      return Lists.newArrayList();
     }
 
-    return productList;
+    return productRepository.all().filter("self.id IN (?1)", productIdList).fetch();
   }
 
   protected int getMaxLevel() {
@@ -271,47 +780,83 @@ public class MrpServiceImpl implements MrpService {
     return maxLevel;
   }
 
-  protected void checkInsufficientCumulativeQty(Product product, boolean firstPass)
+  /**
+   * Net the timeline of a product in one forward pass. The cumulative quantities are computed in
+   * memory and each proposal created to cover a shortage is inserted into the timeline, so the
+   * following lines are checked against it without reloading the lines from the database.
+   *
+   * @param product
+   * @param mrpLineList the lines of the product, sorted with {@link #MRP_LINE_COMPARATOR}
+   * @throws AxelorException
+   */
+  @Transactional(rollbackOn = {Exception.class})
+  protected void checkInsufficientCumulativeQty(Product product, List<MrpLine> mrpLineList)
       throws AxelorException {
 
-    boolean doASecondPass = false;
+    this.computeCumulativeQty(mrpLineList, 0);
 
-    this.computeCumulativeQty(productRepository.find(product.getId()));
+    boolean firstPass = true;
+    int index = 0;
 
-    JPA.clear();
+    while (index < mrpLineList.size()) {
 
-    List<MrpLine> mrpLineList =
-        mrpLineRepository
-            .all()
-            .filter("self.mrp.id = ?1 AND self.product.id = ?2", mrp.getId(), product.getId())
-            .order("maturityDate")
-            .order("mrpLineType.typeSelect")
-            .order("mrpLineType.sequence")
-            .order("id")
-            .fetch();
-
-    for (MrpLine mrpLine : mrpLineList) {
-
-      doASecondPass =
+      MrpLine proposalMrpLine =
           this.checkInsufficientCumulativeQty(
-              mrpLineRepository.find(mrpLine.getId()),
-              productRepository.find(product.getId()),
-              firstPass);
-      JPA.clear();
-      if (doASecondPass) {
-        break;
+              mrpLineList.get(index), product, firstPass, mrpLineList);
+
+      if (proposalMrpLine == null) {
+        index++;
+        continue;
       }
+
+      firstPass = false;
+
+      int proposalIndex = this.insertMrpLine(mrpLineList, proposalMrpLine);
+      this.computeCumulativeQty(mrpLineList, proposalIndex);
+      index = Math.min(proposalIndex, index + 1);
+    }
+  }
+
+  /**
+   * Insert a line into a sorted timeline, unless it is already part of it.
+   *
+   * @param mrpLineList
+   * @param mrpLine
+   * @return the index of the line in the timeline
+   */
+  protected int insertMrpLine(List<MrpLine> mrpLineList, MrpLine mrpLine) {
+
+    int index = mrpLineList.indexOf(mrpLine);
+
+    if (index >= 0) {
+      return index;
     }
 
-    if (doASecondPass) {
+    index = Collections.binarySearch(mrpLineList, mrpLine, MRP_LINE_COMPARATOR);
 
-      this.checkInsufficientCumulativeQty(product, false);
+    if (index < 0) {
+      index = -index - 1;
     }
+
+    mrpLineList.add(index, mrpLine);
+
+    return index;
   }
 
+  /**
+   * Check if the cumulative qty of a line is insufficient and create a proposal to cover it.
+   *
+   * @param mrpLine
+   * @param product
+   * @param firstPass
+   * @param mrpLineList the lines of the product
+   * @return the created or updated proposal line, or null if no proposal was needed
+   * @throws AxelorException
+   */
   @Transactional(rollbackOn = {Exception.class})
-  protected boolean checkInsufficientCumulativeQty(
-      MrpLine mrpLine, Product product, boolean firstPass) throws AxelorException {
+  protected MrpLine checkInsufficientCumulativeQty(
+      MrpLine mrpLine, Product product, boolean firstPass, List<MrpLine> mrpLineList)
+      throws AxelorException {
 
     BigDecimal cumulativeQty = mrpLine.getCumulativeQty();
 
@@ -353,26 +898,12 @@ public class MrpServiceImpl implements MrpService {
       MrpLineType mrpLineTypeProposal =
           this.getMrpLineTypeForProposal(stockRules, product, mrpLine.getCompany());
 
-      if (mrpLineTypeProposal == null) {
-        return false;
-      }
-
-      long duplicateCount =
-          mrpLineRepository
-              .all()
-              .filter(
-                  "self.mrp.id = ?1  AND self.isEditedByUser = ?2 AND self.product = ?3 AND self.relatedToSelectName = ?4",
-                  mrp.getId(),
-                  true,
-                  product,
-                  mrpLine.getRelatedToSelectName())
-              .count();
-
-      if (duplicateCount != 0) {
-        return false;
+      if (mrpLineTypeProposal == null
+          || this.isEditedByUser(mrpLineList, mrpLine.getRelatedToSelectName())) {
+        return null;
       }
 
-      this.createProposalMrpLine(
+      return this.createProposalMrpLine(
           mrpLine.getMrp(),
           product,
           mrpLineTypeProposal,
@@ -381,11 +912,22 @@ public class MrpServiceImpl implements MrpService {
           mrpLine.getMaturityDate(),
           mrpLine.getMrpLineOriginList(),
           mrpLine.getRelatedToSelectName());
+    }
 
-      return true;
+    return null;
+  }
+
+  protected boolean isEditedByUser(List<MrpLine> mrpLineList, String relatedToSelectName) {
+
+    if (relatedToSelectName == null) {
+      return false;
     }
 
-    return false;
+    return mrpLineList.stream()
+        .anyMatch(
+            mrpLine ->
+                mrpLine.getIsEditedByUser()
+                    && relatedToSelectName.equals(mrpLine.getRelatedToSelectName()));
   }
 
   public MrpLine getPreviousProposalMrpLine(
@@ -421,7 +963,7 @@ public class MrpServiceImpl implements MrpService {
   }
 
   @Transactional(rollbackOn = {Exception.class})
-  protected void createProposalMrpLine(
+  protected MrpLine createProposalMrpLine(
       Mrp mrp,
       Product product,
       MrpLineType mrpLineType,
@@ -469,6 +1011,8 @@ public class MrpServiceImpl implements MrpService {
     }
 
     this.copyMrpLineOrigins(mrpLine, mrpLineOriginList);
+
+    return mrpLine;
   }
 
   protected BigDecimal getSupplierCatalogMinQty(Product product) {
@@ -566,9 +1110,21 @@ public class MrpServiceImpl implements MrpService {
             .order("id")
             .fetch();
 
-    BigDecimal previousCumulativeQty = BigDecimal.ZERO;
+    this.computeCumulativeQty(mrpLineList, 0);
+  }
 
-    for (MrpLine mrpLine : mrpLineList) {
+  /**
+   * Compute the cumulative qty of a sorted timeline, starting from the given index.
+   *
+   * @param mrpLineList
+   * @param fromIndex
+   */
+  protected void computeCumulativeQty(List<MrpLine> mrpLineList, int fromIndex) {
+
+    BigDecimal previousCumulativeQty =
+        fromIndex > 0 ? mrpLineList.get(fromIndex - 1).getCumulativeQty() : BigDecimal.ZERO;
+
+    for (MrpLine mrpLine : mrpLineList.subList(fromIndex, mrpLineList.size())) {
       mrpLine.setCumulativeQty(previousCumulativeQty.add(mrpLine.getQty()));
       previousCumulativeQty = mrpLine.getCumulativeQty();
 
@@ -613,10 +1169,10 @@ public class MrpServiceImpl implements MrpService {
     for (PurchaseOrderLine purchaseOrderLine : purchaseOrderLineList) {
 
       this.createPurchaseMrpLines(
-          mrpRepository.find(mrp.getId()),
+          this.findMrp(),
           purchaseOrderLineRepository.find(purchaseOrderLine.getId()),
           mrpLineTypeRepository.find(purchaseOrderMrpLineType.getId()));
-      JPA.clear();
+      this.clearSession();
     }
   }
 
@@ -663,7 +1219,7 @@ public class MrpServiceImpl implements MrpService {
               purchaseOrder.getStockLocation(),
               purchaseOrderLine);
       if (mrpLine != null) {
-        mrpLineRepository.save(mrpLine);
+        this.saveMrpLine(mrpLine);
       }
     }
   }
@@ -682,9 +1238,9 @@ public class MrpServiceImpl implements MrpService {
 
     List<SaleOrderLine> saleOrderLineList = new ArrayList<>();
 
-    mrp = mrpRepository.find(mrp.getId());
+    mrp = this.findMrp();
 
-    if (mrp.getSaleOrderLineSet().isEmpty()) {
+    if (mrp.getSaleOrderLineSet() == null || mrp.getSaleOrderLineSet().isEmpty()) {
 
       saleOrderLineList.addAll(
           saleOrderLineRepository
@@ -705,11 +1261,11 @@ public class MrpServiceImpl implements MrpService {
     for (SaleOrderLine saleOrderLine : saleOrderLineList) {
 
       this.createSaleOrderMrpLines(
-          mrpRepository.find(mrp.getId()),
+          this.findMrp(),
           saleOrderLineRepository.find(saleOrderLine.getId()),
           mrpLineTypeRepository.find(saleOrderMrpLineType.getId()),
           statusList);
-      JPA.clear();
+      this.clearSession();
     }
   }
 
@@ -722,6 +1278,9 @@ public class MrpServiceImpl implements MrpService {
       throws AxelorException {
 
     SaleOrder saleOrder = saleOrderLine.getSaleOrder();
+    if (!this.productMap.containsKey(saleOrderLine.getProduct().getId())) {
+      return;
+    }
     if (!this.stockLocationList.contains(saleOrder.getStockLocation())) {
       return;
     }
@@ -767,7 +1326,7 @@ public class MrpServiceImpl implements MrpService {
               saleOrder.getStockLocation(),
               saleOrderLine);
       if (mrpLine != null) {
-        mrpLineRepository.save(mrpLine);
+        this.saveMrpLine(mrpLine);
       }
     }
   }
@@ -783,9 +1342,9 @@ public class MrpServiceImpl implements MrpService {
 
     List<MrpForecast> mrpForecastList = new ArrayList<>();
 
-    mrp = mrpRepository.find(mrp.getId());
+    mrp = this.findMrp();
 
-    if (mrp.getMrpForecastSet().isEmpty()) {
+    if (mrp.getMrpForecastSet() == null || mrp.getMrpForecastSet().isEmpty()) {
 
       mrpForecastList.addAll(
           mrpForecastRepository
@@ -805,10 +1364,10 @@ public class MrpServiceImpl implements MrpService {
     for (MrpForecast mrpForecast : mrpForecastList) {
 
       this.createSaleForecastMrpLines(
-          mrpRepository.find(mrp.getId()),
+          this.findMrp(),
           mrpForecastRepository.find(mrpForecast.getId()),
           mrpLineTypeRepository.find(saleForecastMrpLineType.getId()));
-      JPA.clear();
+      this.clearSession();
     }
   }
 
@@ -817,6 +1376,10 @@ public class MrpServiceImpl implements MrpService {
       Mrp mrp, MrpForecast mrpForecast, MrpLineType saleForecastMrpLineType)
       throws AxelorException {
 
+    if (!this.productMap.containsKey(mrpForecast.getProduct().getId())) {
+      return;
+    }
+
     LocalDate maturityDate = mrpForecast.getForecastDate();
 
     if (maturityDate != null
@@ -840,7 +1403,7 @@ public class MrpServiceImpl implements MrpService {
               mrpForecast.getStockLocation(),
               mrpForecast);
       if (mrpLine != null) {
-        mrpLineRepository.save(mrpLine);
+        this.saveMrpLine(mrpLine);
       }
     }
   }
@@ -877,12 +1440,12 @@ public class MrpServiceImpl implements MrpService {
 
       for (StockLocation stockLocation : this.stockLocationList) {
         this.createAvailableStockMrpLine(
-            mrpRepository.find(mrp.getId()),
+            this.findMrp(),
             productRepository.find(productId),
             stockLocationRepository.find(stockLocation.getId()),
             mrpLineTypeRepository.find(availableStockMrpLineType.getId()));
       }
-      JPA.clear();
+      this.clearSession();
     }
   }
 
@@ -897,10 +1460,10 @@ public class MrpServiceImpl implements MrpService {
 
     if (stockLocationLine != null) {
 
-      qty = stockLocationLine.getCurrentQty();
+      qty = Beans.get(StockLocationLineLedgerService.class).getCurrentQty(stockLocationLine);
     }
 
-    return mrpLineRepository.save(
+    return this.saveMrpLine(
         this.createMrpLine(
             mrp, product, availableStockMrpLineType, qty, today, qty, stockLocation, null));
   }
@@ -1024,6 +1587,7 @@ public class MrpServiceImpl implements MrpService {
   protected void assignProductAndLevel(Set<Product> productList) throws AxelorException {
 
     productMap = Maps.newHashMap();
+    levelProductMap = null;
 
     for (Product product : productList) {
 
@@ -1123,12 +1687,28 @@ public class MrpServiceImpl implements MrpService {
   }
 
   @Override
-  public Mrp createProjectedStock(
+  public List<MrpLine> createProjectedStock(
       Mrp mrp, Product product, Company company, StockLocation stockLocation)
       throws AxelorException {
-    this.completeProjectedStock(mrp, product, company, stockLocation);
-    this.computeCumulativeQty(product);
-    return mrp;
+
+    this.projectedMrpLineList = new ArrayList<>();
+    this.today = appBaseService.getTodayDate(mrp.getStockLocation().getCompany());
+
+    try {
+      this.completeProjectedStock(mrp, product, company, stockLocation);
+
+      List<MrpLine> mrpLineList =
+          this.projectedMrpLineList.stream()
+              .filter(mrpLine -> mrpLine.getProduct().equals(product))
+              .sorted(MRP_LINE_COMPARATOR)
+              .collect(Collectors.toList());
+
+      this.computeCumulativeQty(mrpLineList, 0);
+
+      return mrpLineList;
+    } finally {
+      this.projectedMrpLineList = null;
+    }
   }
 
   protected Mrp completeProjectedStock(
@@ -1155,7 +1735,6 @@ public class MrpServiceImpl implements MrpService {
               .filter("self.typeSelect != ?1", StockLocationRepository.TYPE_VIRTUAL)
               .fetch();
     }
-    this.startMrp(mrpRepository.find(mrp.getId()));
     this.assignProductAndLevel(this.getProductList());
 
     // Get the stock for each product on each stock location
@@ -1168,6 +1747,42 @@ public class MrpServiceImpl implements MrpService {
     return mrp;
   }
 
+  /**
+   * Get the mrp being computed, attached to the current session. When computing a projected stock,
+   * the mrp is not saved and is returned as is.
+   *
+   * @return
+   */
+  protected Mrp findMrp() {
+
+    if (this.projectedMrpLineList != null) {
+      return this.mrp;
+    }
+
+    return mrpRepository.find(mrp.getId());
+  }
+
+  protected MrpLine saveMrpLine(MrpLine mrpLine) {
+
+    if (this.projectedMrpLineList != null) {
+      this.projectedMrpLineList.add(mrpLine);
+      return mrpLine;
+    }
+
+    return mrpLineRepository.save(mrpLine);
+  }
+
+  /**
+   * Clear the session between two created lines. When computing a projected stock, the lines are
+   * kept in memory with the entities they reference, so the session is kept.
+   */
+  protected void clearSession() {
+
+    if (this.projectedMrpLineList == null) {
+      JPA.clear();
+    }
+  }
+
   @Override
   @Transactional(rollbackOn = {Exception.class})
   public void undoManualChanges(Mrp mrp) {
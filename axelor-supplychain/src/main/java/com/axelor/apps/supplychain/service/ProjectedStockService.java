@@ -29,6 +29,4 @@ public interface ProjectedStockService {
       throws AxelorException;
 
   Map<String, Long> getProductIdCompanyIdStockLocationIdFromContext(Context context);
-
-  void removeMrpAndMrpLine(List<MrpLine> mrpLineList);
 }
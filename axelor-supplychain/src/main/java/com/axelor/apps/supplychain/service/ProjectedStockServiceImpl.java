@@ -25,24 +25,22 @@ import com.axelor.apps.stock.db.StockLocation;
 import com.axelor.apps.stock.db.repo.StockLocationRepository;
 import com.axelor.apps.supplychain.db.Mrp;
 import com.axelor.apps.supplychain.db.MrpLine;
-import com.axelor.apps.supplychain.db.repo.MrpLineRepository;
 import com.axelor.apps.supplychain.db.repo.MrpRepository;
 import com.axelor.exception.AxelorException;
 import com.axelor.inject.Beans;
 import com.axelor.rpc.Context;
 import com.google.inject.Inject;
-import com.google.inject.persist.Transactional;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 public class ProjectedStockServiceImpl implements ProjectedStockService {
 
   @Inject StockLocationRepository stockLocationRepository;
 
-  @Transactional(rollbackOn = {Exception.class})
   @Override
   public List<MrpLine> createProjectedStock(Long productId, Long companyId, Long stockLocationId)
       throws AxelorException {
@@ -55,27 +53,14 @@ public class ProjectedStockServiceImpl implements ProjectedStockService {
     if (mrp.getStockLocation() == null) {
       return Collections.emptyList();
     }
-    mrp.addProductSetItem(product);
     mrp.setMrpTypeSelect(MrpRepository.MRP_TYPE_MRP);
-    mrp = Beans.get(MrpRepository.class).save(mrp);
-    mrp = Beans.get(MrpService.class).createProjectedStock(mrp, product, company, stockLocation);
 
     List<MrpLine> mrpLineList =
-        Beans.get(MrpLineRepository.class)
-            .all()
-            .filter("self.mrp = ?1 AND self.product = ?2 AND self.qty != 0", mrp, product)
-            .order("maturityDate")
-            .order("mrpLineType.typeSelect")
-            .order("mrpLineType.sequence")
-            .order("id")
-            .fetch();
-
-    if (mrpLineList.isEmpty()) {
-      List<MrpLine> mrpLineListToDelete =
-          Beans.get(MrpLineRepository.class).all().filter("self.mrp = ?1", mrp).fetch();
-      removeMrpAndMrpLine(mrpLineListToDelete);
-      return Collections.emptyList();
-    }
+        Beans.get(MrpService.class)
+            .createProjectedStock(mrp, product, company, stockLocation)
+            .stream()
+            .filter(mrpLine -> mrpLine.getQty().signum() != 0)
+            .collect(Collectors.toList());
 
     for (MrpLine mrpLine : mrpLineList) {
       mrpLine.setCompany(mrpLine.getStockLocation().getCompany());
@@ -142,14 +127,4 @@ public class ProjectedStockServiceImpl implements ProjectedStockService {
     mapId.put("stockLocationId", stockLocationId);
     return mapId;
   }
-
-  @Transactional(rollbackOn = {Exception.class})
-  @Override
-  public void removeMrpAndMrpLine(List<MrpLine> mrpLineList) {
-    if (mrpLineList != null && !mrpLineList.isEmpty()) {
-      Long mrpId = mrpLineList.get(0).getMrp().getId();
-      Beans.get(MrpLineRepository.class).all().filter("self.mrp.id = ?1", mrpId).remove();
-      Beans.get(MrpRepository.class).all().filter("self.id = ?1", mrpId).remove();
-    }
-  }
 }
@@ -31,6 +31,7 @@ import com.axelor.apps.stock.db.StockMoveLine;
 import com.axelor.apps.stock.db.repo.StockLocationRepository;
 import com.axelor.apps.stock.db.repo.StockMoveLineRepository;
 import com.axelor.apps.stock.db.repo.StockMoveRepository;
+import com.axelor.apps.stock.service.StockLocationLineLedgerService;
 import com.axelor.apps.stock.service.StockLocationLineService;
 import com.axelor.apps.supplychain.db.SupplyChainConfig;
 import com.axelor.apps.supplychain.exception.IExceptionMessage;
@@ -43,6 +44,7 @@ import com.axelor.inject.Beans;
 import com.google.inject.Inject;
 import com.google.inject.persist.Transactional;
 import java.math.BigDecimal;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
@@ -57,6 +59,7 @@ public class ReservedQtyServiceImpl implements ReservedQtyService {
   protected UnitConversionService unitConversionService;
   protected SupplyChainConfigService supplychainConfigService;
   protected AppBaseService appBaseService;
+  protected StockLocationLineLedgerService stockLocationLineLedgerService;
 
   @Inject
   public ReservedQtyServiceImpl(
@@ -64,12 +67,14 @@ public class ReservedQtyServiceImpl implements ReservedQtyService {
       StockMoveLineRepository stockMoveLineRepository,
       UnitConversionService unitConversionService,
       SupplyChainConfigService supplyChainConfigService,
-      AppBaseService appBaseService) {
+      AppBaseService appBaseService,
+      StockLocationLineLedgerService stockLocationLineLedgerService) {
     this.stockLocationLineService = stockLocationLineService;
     this.stockMoveLineRepository = stockMoveLineRepository;
     this.unitConversionService = unitConversionService;
     this.supplychainConfigService = supplyChainConfigService;
     this.appBaseService = appBaseService;
+    this.stockLocationLineLedgerService = stockLocationLineLedgerService;
   }
 
   @Override
@@ -127,8 +132,9 @@ public class ReservedQtyServiceImpl implements ReservedQtyService {
       stockMoveLine.setRequestedReservedQty(qty);
       // update in stock location line
       StockLocationLine stockLocationLine =
-          stockLocationLineService.getOrCreateStockLocationLine(
-              stockMoveLine.getStockMove().getFromStockLocation(), product);
+          lockStockLocationLine(
+              stockLocationLineService.getOrCreateStockLocationLine(
+                  stockMoveLine.getStockMove().getFromStockLocation(), product));
       BigDecimal diffRequestedQuantityLocation =
           convertUnitWithProduct(
               stockMoveLine.getUnit(), stockLocationLine.getUnit(), diffRequestedQty, product);
@@ -240,7 +246,8 @@ public class ReservedQtyServiceImpl implements ReservedQtyService {
     Unit stockMoveLineUnit = stockMoveLine.getUnit();
 
     StockLocationLine stockLocationLine =
-        stockLocationLineService.getStockLocationLine(stockLocation, product);
+        lockStockLocationLine(
+            stockLocationLineService.getStockLocationLine(stockLocation, product));
     if (stockLocationLine == null) {
       return;
     }
@@ -307,7 +314,9 @@ public class ReservedQtyServiceImpl implements ReservedQtyService {
           .getSupplyChainConfig(stockLocation.getCompany())
           .getAutoAllocateOnAllocation()) {
         BigDecimal availableQuantityInLocation =
-            stockLocationLine.getCurrentQty().subtract(stockLocationLine.getReservedQty());
+            stockLocationLineLedgerService
+                .getCurrentQty(stockLocationLine)
+                .subtract(stockLocationLine.getReservedQty());
         availableQuantityInLocation =
             convertUnitWithProduct(
                 stockLocationLineUnit, stockMoveLineUnit, availableQuantityInLocation, product);
@@ -349,7 +358,8 @@ public class ReservedQtyServiceImpl implements ReservedQtyService {
       return;
     }
     StockLocationLine stockLocationLine =
-        stockLocationLineService.getStockLocationLine(stockLocation, product);
+        lockStockLocationLine(
+            stockLocationLineService.getStockLocationLine(stockLocation, product));
     if (stockLocationLine == null) {
       return;
     }
@@ -581,7 +591,10 @@ public class ReservedQtyServiceImpl implements ReservedQtyService {
 
     if (((toStatus == StockMoveRepository.STATUS_REALIZED)
             || toStatus == StockMoveRepository.STATUS_CANCELED)
-        && stockLocationLine.getReservedQty().compareTo(stockLocationLine.getCurrentQty()) > 0) {
+        && stockLocationLine
+                .getReservedQty()
+                .compareTo(stockLocationLineLedgerService.getCurrentQty(stockLocationLine))
+            > 0) {
       BigDecimal convertedAvailableQtyInStockMove =
           convertUnitWithProduct(
               stockMoveLine.getUnit(),
@@ -597,7 +610,7 @@ public class ReservedQtyServiceImpl implements ReservedQtyService {
 
       BigDecimal availableQty =
           convertedAvailableQtyInStockMove
-              .add(stockLocationLine.getCurrentQty())
+              .add(stockLocationLineLedgerService.getCurrentQty(stockLocationLine))
               .subtract(convertedReservedQtyInStockMove.add(stockLocationLine.getReservedQty()));
       BigDecimal neededQty =
           convertedAvailableQtyInStockMove.subtract(convertedReservedQtyInStockMove);
@@ -615,7 +628,9 @@ public class ReservedQtyServiceImpl implements ReservedQtyService {
       StockLocationLine stockLocationLine, BigDecimal requestedReservedQty) {
 
     BigDecimal qtyLeftToBeAllocated =
-        stockLocationLine.getCurrentQty().subtract(stockLocationLine.getReservedQty());
+        stockLocationLineLedgerService
+            .getCurrentQty(stockLocationLine)
+            .subtract(stockLocationLine.getReservedQty());
     return qtyLeftToBeAllocated.min(requestedReservedQty).max(BigDecimal.ZERO);
   }
 
@@ -643,10 +658,13 @@ public class ReservedQtyServiceImpl implements ReservedQtyService {
     }
 
     StockLocationLine stockLocationLine =
-        stockLocationLineService.getOrCreateStockLocationLine(
-            stockMoveLine.getStockMove().getFromStockLocation(), stockMoveLine.getProduct());
+        lockStockLocationLine(
+            stockLocationLineService.getOrCreateStockLocationLine(
+                stockMoveLine.getStockMove().getFromStockLocation(), stockMoveLine.getProduct()));
     BigDecimal availableQtyToBeReserved =
-        stockLocationLine.getCurrentQty().subtract(stockLocationLine.getReservedQty());
+        stockLocationLineLedgerService
+            .getCurrentQty(stockLocationLine)
+            .subtract(stockLocationLine.getReservedQty());
     BigDecimal diffReservedQuantity = newReservedQty.subtract(saleOrderLine.getReservedQty());
     Product product = stockMoveLine.getProduct();
     BigDecimal diffReservedQuantityLocation =
@@ -697,8 +715,9 @@ public class ReservedQtyServiceImpl implements ReservedQtyService {
             saleOrderLine, stockMoveLine.getProduct(), newReservedQty);
 
     StockLocationLine stockLocationLine =
-        stockLocationLineService.getOrCreateStockLocationLine(
-            stockMoveLine.getStockMove().getFromStockLocation(), stockMoveLine.getProduct());
+        lockStockLocationLine(
+            stockLocationLineService.getOrCreateStockLocationLine(
+                stockMoveLine.getStockMove().getFromStockLocation(), stockMoveLine.getProduct()));
 
     Product product = stockMoveLine.getProduct();
     // update in stock location line
@@ -719,8 +738,9 @@ public class ReservedQtyServiceImpl implements ReservedQtyService {
   public void updateReservedQty(StockMoveLine stockMoveLine, BigDecimal newReservedQty)
       throws AxelorException {
     StockLocationLine stockLocationLine =
-        stockLocationLineService.getOrCreateStockLocationLine(
-            stockMoveLine.getStockMove().getFromStockLocation(), stockMoveLine.getProduct());
+        lockStockLocationLine(
+            stockLocationLineService.getOrCreateStockLocationLine(
+                stockMoveLine.getStockMove().getFromStockLocation(), stockMoveLine.getProduct()));
     updateReservedQty(stockLocationLine, stockMoveLine, newReservedQty);
   }
 
@@ -747,7 +767,9 @@ public class ReservedQtyServiceImpl implements ReservedQtyService {
       }
 
       BigDecimal availableQtyToBeReserved =
-          stockLocationLine.getCurrentQty().subtract(stockLocationLine.getReservedQty());
+          stockLocationLineLedgerService
+              .getCurrentQty(stockLocationLine)
+              .subtract(stockLocationLine.getReservedQty());
       BigDecimal diffReservedQuantity = newReservedQty.subtract(stockMoveLine.getReservedQty());
       Product product = stockMoveLine.getProduct();
       BigDecimal diffReservedQuantityLocation =
@@ -770,8 +792,9 @@ public class ReservedQtyServiceImpl implements ReservedQtyService {
   public void updateRequestedReservedQty(StockMoveLine stockMoveLine, BigDecimal newReservedQty)
       throws AxelorException {
     StockLocationLine stockLocationLine =
-        stockLocationLineService.getOrCreateStockLocationLine(
-            stockMoveLine.getStockMove().getFromStockLocation(), stockMoveLine.getProduct());
+        lockStockLocationLine(
+            stockLocationLineService.getOrCreateStockLocationLine(
+                stockMoveLine.getStockMove().getFromStockLocation(), stockMoveLine.getProduct()));
     updateRequestedReservedQty(stockLocationLine, stockMoveLine, newReservedQty);
   }
 
@@ -848,8 +871,9 @@ public class ReservedQtyServiceImpl implements ReservedQtyService {
     // deallocate in stock location line
     if (stockMoveLine.getStockMove() != null) {
       StockLocationLine stockLocationLine =
-          stockLocationLineService.getStockLocationLine(
-              stockMoveLine.getStockMove().getFromStockLocation(), stockMoveLine.getProduct());
+          lockStockLocationLine(
+              stockLocationLineService.getStockLocationLine(
+                  stockMoveLine.getStockMove().getFromStockLocation(), stockMoveLine.getProduct()));
       if (stockLocationLine != null) {
         updateReservedQty(stockLocationLine);
       }
@@ -878,9 +902,25 @@ public class ReservedQtyServiceImpl implements ReservedQtyService {
     }
   }
 
+  /**
+   * Lock a stock location line before updating its reserved quantities, when the stock movement
+   * ledger is enabled. The line is re-read, so that its quantities folded by the ledger compactor
+   * are not overwritten.
+   *
+   * @param stockLocationLine a stock location line, or null
+   * @return the same stock location line
+   */
+  protected StockLocationLine lockStockLocationLine(StockLocationLine stockLocationLine) {
+    if (stockLocationLine != null && stockLocationLineLedgerService.isEnabled()) {
+      stockLocationLineLedgerService.lock(Collections.singletonList(stockLocationLine));
+    }
+    return stockLocationLine;
+  }
+
   @Override
   public void updateRequestedReservedQty(StockLocationLine stockLocationLine)
       throws AxelorException {
+    lockStockLocationLine(stockLocationLine);
     // compute from stock move lines
     List<StockMoveLine> stockMoveLineList =
         stockMoveLineRepository
@@ -933,6 +973,7 @@ public class ReservedQtyServiceImpl implements ReservedQtyService {
 
   @Override
   public void updateReservedQty(StockLocationLine stockLocationLine) throws AxelorException {
+    lockStockLocationLine(stockLocationLine);
     // compute from stock move lines
     List<StockMoveLine> stockMoveLineList =
         stockMoveLineRepository
@@ -974,10 +1015,13 @@ public class ReservedQtyServiceImpl implements ReservedQtyService {
     }
     // search for the maximum quantity that can be allocated.
     StockLocationLine stockLocationLine =
-        stockLocationLineService.getOrCreateStockLocationLine(
-            stockMoveLine.getStockMove().getFromStockLocation(), stockMoveLine.getProduct());
+        lockStockLocationLine(
+            stockLocationLineService.getOrCreateStockLocationLine(
+                stockMoveLine.getStockMove().getFromStockLocation(), stockMoveLine.getProduct()));
     BigDecimal availableQtyToBeReserved =
-        stockLocationLine.getCurrentQty().subtract(stockLocationLine.getReservedQty());
+        stockLocationLineLedgerService
+            .getCurrentQty(stockLocationLine)
+            .subtract(stockLocationLine.getReservedQty());
     Product product = stockMoveLine.getProduct();
     BigDecimal availableQtyToBeReservedSaleOrderLine =
         convertUnitWithProduct(
@@ -1005,10 +1049,13 @@ public class ReservedQtyServiceImpl implements ReservedQtyService {
     } else {
       // search for the maximum quantity that can be allocated in the stock move line.
       StockLocationLine stockLocationLine =
-          stockLocationLineService.getOrCreateStockLocationLine(
-              stockMoveLine.getStockMove().getFromStockLocation(), stockMoveLine.getProduct());
+          lockStockLocationLine(
+              stockLocationLineService.getOrCreateStockLocationLine(
+                  stockMoveLine.getStockMove().getFromStockLocation(), stockMoveLine.getProduct()));
       BigDecimal availableQtyToBeReserved =
-          stockLocationLine.getCurrentQty().subtract(stockLocationLine.getReservedQty());
+          stockLocationLineLedgerService
+              .getCurrentQty(stockLocationLine)
+              .subtract(stockLocationLine.getReservedQty());
       Product product = stockMoveLine.getProduct();
       BigDecimal availableQtyToBeReservedStockMoveLine =
           convertUnitWithProduct(
@@ -22,10 +22,12 @@ import com.axelor.apps.stock.db.StockLocationLine;
 import com.axelor.apps.stock.db.StockMoveLine;
 import com.axelor.apps.stock.db.repo.StockMoveLineRepository;
 import com.axelor.apps.stock.db.repo.StockMoveRepository;
+import com.axelor.apps.stock.service.StockLocationLineLedgerService;
 import com.axelor.exception.AxelorException;
 import com.axelor.inject.Beans;
 import com.google.inject.persist.Transactional;
 import java.math.BigDecimal;
+import java.util.Collections;
 import java.util.List;
 
 public class StockLocationLineReservationServiceImpl
@@ -34,12 +36,17 @@ public class StockLocationLineReservationServiceImpl
   @Override
   @Transactional(rollbackOn = {Exception.class})
   public void allocateAll(StockLocationLine stockLocationLine) throws AxelorException {
+    StockLocationLineLedgerService ledgerService = Beans.get(StockLocationLineLedgerService.class);
+    if (ledgerService.isEnabled()) {
+      // re-read the quantities folded by the ledger compactor before saving the line
+      ledgerService.lock(Collections.singletonList(stockLocationLine));
+    }
     // qty to allocate is the minimum value between requested and current qty subtracted by reserved
     // qty
     BigDecimal qtyToAllocate =
         stockLocationLine
             .getRequestedReservedQty()
-            .min(stockLocationLine.getCurrentQty())
+            .min(ledgerService.getCurrentQty(stockLocationLine))
             .subtract(stockLocationLine.getReservedQty());
     BigDecimal qtyAllocated =
         Beans.get(ReservedQtyService.class)
@@ -26,6 +26,7 @@ import com.axelor.apps.stock.db.TrackingNumber;
 import com.axelor.apps.stock.db.repo.StockLocationLineRepository;
 import com.axelor.apps.stock.db.repo.StockMoveLineRepository;
 import com.axelor.apps.stock.db.repo.WapHistoryRepository;
+import com.axelor.apps.stock.service.StockLocationLineLedgerService;
 import com.axelor.apps.stock.service.StockLocationLineServiceImpl;
 import com.axelor.apps.stock.service.StockRulesService;
 import com.axelor.apps.supplychain.exception.IExceptionMessage;
@@ -74,8 +75,8 @@ public class StockLocationLineServiceSupplychainImpl extends StockLocationLineSe
         && product.getStockManaged()) {
       StockLocationLine stockLocationLine = this.getStockLocationLine(stockLocation, product);
       if (stockLocationLine != null
-          && stockLocationLine
-                  .getCurrentQty()
+          && Beans.get(StockLocationLineLedgerService.class)
+                  .getCurrentQty(stockLocationLine)
                   .subtract(stockLocationLine.getReservedQty())
                   .compareTo(qty)
               < 0) {
@@ -99,7 +100,10 @@ public class StockLocationLineServiceSupplychainImpl extends StockLocationLineSe
     StockLocationLine stockLocationLine = getStockLocationLine(stockLocation, product);
     BigDecimal availableQty = BigDecimal.ZERO;
     if (stockLocationLine != null) {
-      availableQty = stockLocationLine.getCurrentQty().subtract(stockLocationLine.getReservedQty());
+      availableQty =
+          Beans.get(StockLocationLineLedgerService.class)
+              .getCurrentQty(stockLocationLine)
+              .subtract(stockLocationLine.getReservedQty());
     }
     return availableQty;
   }
@@ -120,8 +124,8 @@ public class StockLocationLineServiceSupplychainImpl extends StockLocationLineSe
 
     if (detailStockLocationLine != null) {
       availableQty =
-          detailStockLocationLine
-              .getCurrentQty()
+          Beans.get(StockLocationLineLedgerService.class)
+              .getCurrentQty(detailStockLocationLine)
               .subtract(detailStockLocationLine.getReservedQty());
     }
     return availableQty;
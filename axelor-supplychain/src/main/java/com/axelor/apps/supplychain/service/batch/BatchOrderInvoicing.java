@@ -19,10 +19,59 @@ package com.axelor.apps.supplychain.service.batch;
 
 import com.axelor.apps.base.service.administration.AbstractBatch;
 import com.axelor.apps.supplychain.exception.IExceptionMessage;
+import com.axelor.apps.tool.ThrowConsumer;
+import com.axelor.db.JPA;
+import com.axelor.db.Model;
+import com.axelor.exception.db.repo.ExceptionOriginRepository;
+import com.axelor.exception.service.TraceBackService;
 import com.axelor.i18n.I18n;
+import java.util.Map;
+import javax.persistence.TypedQuery;
 
 public abstract class BatchOrderInvoicing extends AbstractBatch {
 
+  /**
+   * Generate the invoices of the orders matching the filter, the orders of each partner being
+   * processed as a separate partition.
+   *
+   * @param klass the order class.
+   * @param partnerField the name of the order field holding the partner.
+   * @param filter the filter of the orders to invoice.
+   * @param bindingMap the named parameters of the filter.
+   * @param invoiceGenerator generates the invoice of an order.
+   */
+  protected <T extends Model> void processByPartner(
+      Class<T> klass,
+      String partnerField,
+      String filter,
+      Map<String, Object> bindingMap,
+      ThrowConsumer<T> invoiceGenerator) {
+    TypedQuery<Long> partnerQuery =
+        JPA.em()
+            .createQuery(
+                String.format(
+                    "SELECT DISTINCT self.%s.id FROM %s self WHERE %s",
+                    partnerField, klass.getSimpleName(), filter),
+                Long.class);
+    bindingMap.forEach(partnerQuery::setParameter);
+
+    processPartitions(
+        partnerQuery.getResultList(),
+        partnerId ->
+            processByIdCursor(
+                JPA.all(klass).bind(bindingMap).bind("partnerId", partnerId),
+                String.format("(%s) AND self.%s.id = :partnerId", filter, partnerField),
+                order -> {
+                  invoiceGenerator.accept(order);
+                  incrementDone();
+                },
+                (order, e) -> {
+                  incrementAnomaly();
+                  TraceBackService.trace(
+                      e, ExceptionOriginRepository.INVOICE_ORIGIN, batch.getId());
+                }));
+  }
+
   @Override
   protected void stop() {
     StringBuilder sb = new StringBuilder();
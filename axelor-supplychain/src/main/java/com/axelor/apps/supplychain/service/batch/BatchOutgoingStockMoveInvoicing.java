@@ -26,15 +26,12 @@ import com.axelor.apps.stock.db.repo.StockMoveRepository;
 import com.axelor.apps.supplychain.db.SupplychainBatch;
 import com.axelor.apps.supplychain.exception.IExceptionMessage;
 import com.axelor.apps.supplychain.service.StockMoveInvoiceService;
-import com.axelor.db.JPA;
+import com.axelor.db.Query;
 import com.axelor.exception.db.repo.ExceptionOriginRepository;
 import com.axelor.exception.service.TraceBackService;
 import com.axelor.i18n.I18n;
 import com.axelor.inject.Beans;
-import com.google.common.collect.Lists;
 import com.google.inject.Inject;
-import java.util.List;
-import javax.persistence.TypedQuery;
 
 public class BatchOutgoingStockMoveInvoicing extends BatchStrategy {
 
@@ -48,49 +45,37 @@ public class BatchOutgoingStockMoveInvoicing extends BatchStrategy {
   @Override
   protected void process() {
     SupplychainBatch supplychainBatch = batch.getSupplychainBatch();
-    List<Long> anomalyList = Lists.newArrayList(0L);
     SaleOrderRepository saleRepo = Beans.get(SaleOrderRepository.class);
 
-    TypedQuery<StockMove> query =
-        JPA.em()
-            .createQuery(
-                "SELECT self FROM StockMove self "
-                    + "WHERE self.statusSelect = :statusSelect "
-                    + "AND self.originTypeSelect LIKE :typeSaleOrder "
-                    + "AND (SELECT count(invoice.id) FROM Invoice invoice WHERE invoice.statusSelect != :invoiceStatusCanceled AND invoice MEMBER OF self.invoiceSet) = 0"
-                    + "AND self.id NOT IN (:anomalyList) "
-                    + "AND self.partner.id NOT IN ("
-                    + Beans.get(BlockingService.class)
-                        .listOfBlockedPartner(
-                            supplychainBatch.getCompany(), BlockingRepository.INVOICING_BLOCKING)
-                    + ") "
-                    + "AND :batch NOT MEMBER OF self.batchSet "
-                    + "ORDER BY self.id",
-                StockMove.class)
-            .setParameter("statusSelect", StockMoveRepository.STATUS_REALIZED)
-            .setParameter("typeSaleOrder", StockMoveRepository.ORIGIN_SALE_ORDER)
-            .setParameter("invoiceStatusCanceled", InvoiceRepository.STATUS_CANCELED)
-            .setParameter("anomalyList", anomalyList)
-            .setParameter("batch", batch)
-            .setMaxResults(FETCH_LIMIT);
+    String filter =
+        "self.statusSelect = :statusSelect "
+            + "AND self.originTypeSelect LIKE :typeSaleOrder "
+            + "AND (SELECT count(invoice.id) FROM Invoice invoice WHERE invoice.statusSelect != :invoiceStatusCanceled AND invoice MEMBER OF self.invoiceSet) = 0 "
+            + "AND self.partner.id NOT IN ("
+            + Beans.get(BlockingService.class)
+                .listOfBlockedPartner(
+                    supplychainBatch.getCompany(), BlockingRepository.INVOICING_BLOCKING)
+            + ")";
 
-    List<StockMove> stockMoveList;
-    while (!(stockMoveList = query.getResultList()).isEmpty()) {
-      for (StockMove stockMove : stockMoveList) {
-        try {
+    Query<StockMove> query =
+        Beans.get(StockMoveRepository.class)
+            .all()
+            .bind("statusSelect", StockMoveRepository.STATUS_REALIZED)
+            .bind("typeSaleOrder", StockMoveRepository.ORIGIN_SALE_ORDER)
+            .bind("invoiceStatusCanceled", InvoiceRepository.STATUS_CANCELED);
+
+    processByIdCursor(
+        query,
+        filter,
+        stockMove -> {
           stockMoveInvoiceService.createInvoiceFromSaleOrder(
               stockMove, saleRepo.find(stockMove.getOriginId()), null);
           updateStockMove(stockMove);
-        } catch (Exception e) {
+        },
+        (stockMove, e) -> {
           incrementAnomaly();
-          anomalyList.add(stockMove.getId());
-          query.setParameter("anomalyList", anomalyList);
           TraceBackService.trace(e, ExceptionOriginRepository.INVOICE_ORIGIN, batch.getId());
-          break;
-        }
-      }
-      JPA.clear();
-    }
+        });
   }
 
   @Override
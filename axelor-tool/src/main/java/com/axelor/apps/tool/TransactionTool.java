@@ -0,0 +1,59 @@
+/*
+ * Axelor Business Solutions
+ *
+ * Copyright (C) 2021 Axelor (<http://axelor.com>).
+ *
+ * This program is free software: you can redistribute it and/or  modify
+ * it under the terms of the GNU Affero General Public License, version 3,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.axelor.apps.tool;
+
+import com.axelor.db.JPA;
+import javax.persistence.EntityManager;
+import javax.transaction.Synchronization;
+import org.hibernate.Session;
+
+public final class TransactionTool {
+
+  private TransactionTool() {}
+
+  /**
+   * Run a task once the current transaction is committed or rolled back, or right away outside of
+   * a transaction.
+   *
+   * <p>Used to clear the caches of the records changed by the transaction: cleared before the
+   * commit, a cache could be filled again by another thread with the previous values.
+   *
+   * @param runnable the task to run.
+   */
+  public static void afterCompletion(Runnable runnable) {
+    EntityManager em = JPA.em();
+
+    if (!em.getTransaction().isActive()) {
+      runnable.run();
+      return;
+    }
+
+    em.unwrap(Session.class)
+        .getTransaction()
+        .registerSynchronization(
+            new Synchronization() {
+              @Override
+              public void beforeCompletion() {}
+
+              @Override
+              public void afterCompletion(int status) {
+                runnable.run();
+              }
+            });
+  }
+}